@@ -95,6 +95,25 @@ ELSEIF(${CURRENT_OS} STREQUAL "windows")
 	set_target_properties(${PROJECT_NAME} PROPERTIES LINK_FLAGS "-Wl,-rpath,./")
 ENDIF()
 
+# native benchmarks and command line tools, one executable per file
+# -------
+IF(${CURRENT_OS} STREQUAL "linux" OR ${CURRENT_OS} STREQUAL "windows")
+	FILE(GLOB BENCHMARK_SOURCE_FILES
+		"${CMAKE_CURRENT_SOURCE_DIR}/benchmark/*.cc"
+		"${CMAKE_CURRENT_SOURCE_DIR}/tools/*.cc")
+	FOREACH(BENCHMARK_SOURCE ${BENCHMARK_SOURCE_FILES})
+		GET_FILENAME_COMPONENT(BENCHMARK_NAME ${BENCHMARK_SOURCE} NAME_WE)
+		ADD_EXECUTABLE(${BENCHMARK_NAME} ${BENCHMARK_SOURCE})
+		IF(${CURRENT_OS} STREQUAL "linux")
+			TARGET_LINK_LIBRARIES(${BENCHMARK_NAME} gpupixel GL glfw)
+		ELSE()
+			TARGET_SOURCES(${BENCHMARK_NAME} PRIVATE ${GLAD_SOURCE_FILE})
+			TARGET_LINK_LIBRARIES(${BENCHMARK_NAME} gpupixel opengl32 glfw3)
+		ENDIF()
+		set_target_properties(${BENCHMARK_NAME} PROPERTIES LINK_FLAGS "-Wl,-rpath,./")
+	ENDFOREACH()
+ENDIF()
+
 # copy resource file
 # --------
 # Add resource file
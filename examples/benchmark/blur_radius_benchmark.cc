@@ -0,0 +1,159 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+// Time per frame of a two pass Gaussian and box blur against the radius,
+// sampled at full size as before and through the downsampled pass the blur
+// groups use now, then the cost of dragging a radius slider: every frame a
+// new radius, the first sweep compiling shaders and the second reusing them.
+
+#include <chrono>
+#include <cstdio>
+#include <vector>
+#include "gpupixel.h"
+using namespace gpupixel;
+
+static const int kWidth = 1280;
+static const int kHeight = 720;
+static const int kFrames = 120;
+
+static const int kRadii[] = {2, 4, 8, 12, 16, 24, 32};
+
+// the two passes of a blur, wired up by hand so the downsampling can be
+// left off
+static std::shared_ptr<Filter> createPasses(bool box,
+                                            bool downsampled,
+                                            std::shared_ptr<Filter>& last) {
+  std::shared_ptr<GaussianBlurMonoFilter> horizontal;
+  std::shared_ptr<GaussianBlurMonoFilter> vertical;
+  if (box) {
+    horizontal = BoxMonoBlurFilter::create(GaussianBlurMonoFilter::HORIZONTAL);
+    vertical = BoxMonoBlurFilter::create(GaussianBlurMonoFilter::VERTICAL);
+  } else {
+    horizontal =
+        GaussianBlurMonoFilter::create(GaussianBlurMonoFilter::HORIZONTAL);
+    vertical = GaussianBlurMonoFilter::create(GaussianBlurMonoFilter::VERTICAL);
+  }
+  horizontal->setAutoDownsampling(downsampled);
+  vertical->setAutoDownsampling(downsampled);
+  horizontal->addTarget(vertical);
+  last = vertical;
+  return horizontal;
+}
+
+static double run(bool box,
+                  bool downsampled,
+                  int radius,
+                  const std::vector<uint8_t>& frame) {
+  std::shared_ptr<SourceRawDataInput> input;
+  std::shared_ptr<TargetRawDataOutput> output;
+  std::shared_ptr<Filter> first;
+  std::shared_ptr<Filter> last;
+  GPUPixelContext::getInstance()->runSync([&] {
+    input = SourceRawDataInput::create();
+    output = TargetRawDataOutput::create();
+    first = createPasses(box, downsampled, last);
+    auto horizontal = std::static_pointer_cast<GaussianBlurMonoFilter>(first);
+    auto vertical = std::static_pointer_cast<GaussianBlurMonoFilter>(last);
+    // setSigma derives a radius of its own, the one asked for goes last
+    if (!box) {
+      horizontal->setSigma(radius / 2.0);
+      vertical->setSigma(radius / 2.0);
+    }
+    horizontal->setRadius(radius);
+    vertical->setRadius(radius);
+  });
+  input->addTarget(first);
+  last->addTarget(output);
+  output->setPixelsCallbck([](const uint8_t*, int, int, int64_t) {});
+
+  input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, 0);
+  auto start = std::chrono::steady_clock::now();
+  for (int i = 1; i <= kFrames; ++i) {
+    input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, i);
+  }
+  GPUPixelContext::getInstance()->runSync([] { glFinish(); });
+  double ms = std::chrono::duration<double, std::milli>(
+                  std::chrono::steady_clock::now() - start)
+                  .count();
+
+  GPUPixelContext::getInstance()->runSync([&] {
+    input.reset();
+    output.reset();
+    first.reset();
+    last.reset();
+  });
+  return ms / kFrames;
+}
+
+// one frame per radius from 1 to 32 and back, twice
+static void dragSlider(const std::vector<uint8_t>& frame) {
+  std::shared_ptr<SourceRawDataInput> input;
+  std::shared_ptr<GaussianBlurFilter> blur;
+  std::shared_ptr<TargetRawDataOutput> output;
+  GPUPixelContext::getInstance()->runSync([&] {
+    input = SourceRawDataInput::create();
+    blur = GaussianBlurFilter::create();
+    output = TargetRawDataOutput::create();
+  });
+  input->addTarget(blur)->addTarget(output);
+  output->setPixelsCallbck([](const uint8_t*, int, int, int64_t) {});
+
+  ShaderProgramCache* cache =
+      GPUPixelContext::getInstance()->getShaderProgramCache();
+  int64_t timestamp = 0;
+  for (int sweep = 1; sweep <= 2; ++sweep) {
+    GPUPixelContext::getInstance()->runSync([cache] { cache->resetStats(); });
+    auto start = std::chrono::steady_clock::now();
+    int frames = 0;
+    for (int step = 0; step < 62; ++step) {
+      int radius = step < 32 ? step + 1 : 63 - step;
+      GPUPixelContext::getInstance()->runSync(
+          [&blur, radius] { blur->setRadius(radius); });
+      input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, ++timestamp);
+      frames++;
+    }
+    GPUPixelContext::getInstance()->runSync([] { glFinish(); });
+    double ms = std::chrono::duration<double, std::milli>(
+                    std::chrono::steady_clock::now() - start)
+                    .count();
+    ShaderProgramCacheStats stats = cache->getStats();
+    printf("slider sweep %d: %.3f ms/frame, %llu compiles (%.1f ms)\n", sweep,
+           ms / frames, (unsigned long long)stats.compiles, stats.compileMs);
+  }
+
+  GPUPixelContext::getInstance()->runSync([&] {
+    input.reset();
+    blur.reset();
+    output.reset();
+  });
+}
+
+int main() {
+  GPUPixelContext::setHeadless(true);
+  printf("renderer: %s\n",
+         GPUPixelContext::getInstance()->getRendererName().c_str());
+
+  std::vector<uint8_t> frame((size_t)kWidth * kHeight * 4);
+  for (size_t i = 0; i < frame.size(); ++i) {
+    frame[i] = (uint8_t)(i * 31 + i / 4096);
+  }
+
+  printf("%-8s %-12s %-12s %-12s %-12s\n", "radius", "gauss full",
+         "gauss pyr", "box full", "box pyr");
+  for (int radius : kRadii) {
+    printf("%-8d %-12.3f %-12.3f %-12.3f %-12.3f\n", radius,
+           run(false, false, radius, frame), run(false, true, radius, frame),
+           run(true, false, radius, frame), run(true, true, radius, frame));
+  }
+  printf("(ms/frame at %dx%d, pyramid above radius %d)\n", kWidth, kHeight,
+         GaussianBlurMonoFilter::kMaxKernelRadius);
+
+  dragSlider(frame);
+
+  GPUPixelContext::destroy();
+  return 0;
+}
@@ -0,0 +1,137 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+// Fetch/return cost of FramebufferCache against the string keyed lookups it
+// replaced, plus its behaviour when the preview resolution keeps changing.
+
+#include <glad/glad.h>
+#include <GLFW/glfw3.h>
+
+#include <chrono>
+#include <cstdio>
+#include <map>
+#include <string>
+#include <vector>
+#include "gpupixel.h"
+using namespace gpupixel;
+
+static const int kChainLength = 8;
+static const int kFrames = 20000;
+
+static double elapsedNs(std::chrono::steady_clock::time_point start) {
+  return (double)std::chrono::duration_cast<std::chrono::nanoseconds>(
+             std::chrono::steady_clock::now() - start)
+      .count();
+}
+
+static void printStats(const char* label, FramebufferCache* cache) {
+  FramebufferCacheStats stats = cache->getStats();
+  printf("%-28s hits %llu  misses %llu  evictions %llu  resident %.1f MB"
+         "  high water %.1f MB\n",
+         label, (unsigned long long)stats.hits,
+         (unsigned long long)stats.misses,
+         (unsigned long long)stats.evictions,
+         stats.bytesResident / (1024.0 * 1024.0),
+         stats.bytesResidentHighWater / (1024.0 * 1024.0));
+}
+
+// a filter chain: every node fetches its output, then hands it back
+static void benchSteadyState(FramebufferCache* cache) {
+  std::vector<std::shared_ptr<Framebuffer>> chain(kChainLength);
+  cache->resetStats();
+  auto start = std::chrono::steady_clock::now();
+  for (int frame = 0; frame < kFrames; ++frame) {
+    for (int i = 0; i < kChainLength; ++i) {
+      chain[i] = cache->fetchFramebuffer(1280, 720);
+    }
+    for (int i = 0; i < kChainLength; ++i) {
+      cache->returnFramebuffer(chain[i]);
+      chain[i].reset();
+    }
+  }
+  double ns = elapsedNs(start);
+  printf("steady state: %.1f ns per fetch + return\n",
+         ns / (kFrames * kChainLength));
+  printStats("steady state", cache);
+}
+
+// what every fetch paid before: formatted keys in std::map lookups
+static void benchStringKeys() {
+  const TextureAttributes& attributes = Framebuffer::defaultTextureAttribures;
+  std::map<std::string, int> typeCounts;
+  std::map<std::string, int> entries;
+  auto start = std::chrono::steady_clock::now();
+  for (int frame = 0; frame < kFrames; ++frame) {
+    for (int i = 0; i < kChainLength; ++i) {
+      std::string hash = Util::str_format(
+          "%.1dx%.1d-%d:%d:%d:%d:%d:%d:%d", 1280, 720, attributes.minFilter,
+          attributes.magFilter, attributes.wrapS, attributes.wrapT,
+          attributes.internalFormat, attributes.format, attributes.type);
+      int count = typeCounts[hash];
+      std::string entry = Util::str_format("%s-%ld", hash.c_str(), count);
+      entries[entry] = i;
+      typeCounts[hash] = count + 1;
+    }
+    for (int i = 0; i < kChainLength; ++i) {
+      std::string hash = Util::str_format(
+          "%.1dx%.1d-%d:%d:%d:%d:%d:%d:%d", 1280, 720, attributes.minFilter,
+          attributes.magFilter, attributes.wrapS, attributes.wrapT,
+          attributes.internalFormat, attributes.format, attributes.type);
+      int count = typeCounts[hash] - 1;
+      entries.erase(Util::str_format("%s-%ld", hash.c_str(), count));
+      typeCounts[hash] = count;
+    }
+  }
+  double ns = elapsedNs(start);
+  printf("string keys (old scheme): %.1f ns per fetch + return, keys only\n",
+         ns / (kFrames * kChainLength));
+}
+
+// preview size changes leave the old sizes idle in the cache
+static void benchResolutionSwitch(FramebufferCache* cache) {
+  const int sizes[][2] = {{1920, 1080}, {1280, 720}, {960, 540}, {640, 480}};
+  const int sizeCount = sizeof(sizes) / sizeof(sizes[0]);
+  std::vector<std::shared_ptr<Framebuffer>> chain(kChainLength);
+  cache->purge();
+  cache->resetStats();
+  for (int round = 0; round < 40; ++round) {
+    const int* size = sizes[round % sizeCount];
+    for (int frame = 0; frame < 30; ++frame) {
+      for (int i = 0; i < kChainLength; ++i) {
+        chain[i] = cache->fetchFramebuffer(size[0], size[1]);
+      }
+      for (int i = 0; i < kChainLength; ++i) {
+        cache->returnFramebuffer(chain[i]);
+        chain[i].reset();
+      }
+    }
+  }
+  printStats("resolution switching", cache);
+  printf("budget %.1f MB\n", cache->getBudgetBytes() / (1024.0 * 1024.0));
+}
+
+int main() {
+  glfwInit();
+  GLFWwindow* window = GPUPixelContext::getInstance()->GetGLContext();
+  if (window == NULL) {
+    printf("Failed to create GLFW window\n");
+    glfwTerminate();
+    return -1;
+  }
+  gladLoadGL();
+
+  GPUPixelContext::getInstance()->runSync([] {
+    FramebufferCache* cache =
+        GPUPixelContext::getInstance()->getFramebufferCache();
+    benchSteadyState(cache);
+    benchStringKeys();
+    benchResolutionSwitch(cache);
+  });
+
+  GPUPixelContext::destroy();
+  return 0;
+}
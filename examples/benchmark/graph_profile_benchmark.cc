@@ -0,0 +1,85 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+// Per-node CPU and GPU time of the beauty graph from PipelineMetrics, plus
+// the topology it recorded. Pass --json for the raw snapshot.
+
+#include <cstdio>
+#include <cstring>
+#include <vector>
+#include "gpupixel.h"
+using namespace gpupixel;
+
+static const int kWidth = 1280;
+static const int kHeight = 720;
+static const int kFrames = 240;
+
+int main(int argc, char** argv) {
+  GPUPixelContext::setHeadless(true);
+  GPUPixelContext* context = GPUPixelContext::getInstance();
+  printf("renderer: %s\n", context->getRendererName().c_str());
+
+  std::shared_ptr<SourceRawDataInput> input;
+  std::shared_ptr<TargetRawDataOutput> output;
+  std::vector<std::shared_ptr<Filter>> filters;
+  context->runSync([&] {
+    input = SourceRawDataInput::create();
+    output = TargetRawDataOutput::create();
+    for (const char* name : {"BeautyFaceFilter", "FaceReshapeFilter",
+                             "ContrastFilter", "SaturationFilter"}) {
+      filters.push_back(Filter::create(name));
+    }
+  });
+  filters[0]->setProperty("skin_smoothing", 0.5f);
+  std::shared_ptr<Source> last = input;
+  for (auto& filter : filters) {
+    last = last->addTarget(filter);
+  }
+  last->addTarget(output);
+  output->setPixelsCallbck([](const uint8_t*, int, int, int64_t) {});
+
+  std::vector<uint8_t> frame((size_t)kWidth * kHeight * 4);
+  for (size_t i = 0; i < frame.size(); ++i) {
+    frame[i] = (uint8_t)(i * 31 + i / 4096);
+  }
+  // shader compilation stays out of the numbers
+  input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, 0);
+
+  PipelineMetrics* metrics = context->getPipelineMetrics();
+  metrics->setEnabled(true);
+  for (int i = 1; i <= kFrames; ++i) {
+    input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, i);
+  }
+  // lets the last timer queries finish
+  context->runSync([] { glFinish(); });
+  input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, kFrames + 1);
+
+  if (argc > 1 && !strcmp(argv[1], "--json")) {
+    printf("%s\n", metrics->toJson().c_str());
+  } else {
+    printf("%s\n", metrics->dumpTopology().c_str());
+    printf("%4s %-34s %10s %10s %10s %10s\n", "id", "node", "cpu p50",
+           "cpu p95", "gpu p50", "gpu p95");
+    for (auto& node : metrics->getSnapshot()) {
+      printf("%4llu %-34s %7.3f ms %7.3f ms %7.3f ms %7.3f ms\n",
+             (unsigned long long)node.id, node.name.c_str(), node.cpu.p50Ms,
+             node.cpu.p95Ms, node.gpu.p50Ms, node.gpu.p95Ms);
+    }
+    if (!metrics->isGpuTimingSupported()) {
+      printf("no timer queries on this driver, GPU columns are empty\n");
+    }
+  }
+
+  context->runSync([&] {
+    input.reset();
+    output.reset();
+    filters.clear();
+    last.reset();
+  });
+  GPUPixelContext::destroy();
+  return 0;
+}
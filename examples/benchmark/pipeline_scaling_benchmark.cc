@@ -0,0 +1,122 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+// Throughput of 1, 2 and 4 pipelines (GPUPixelContext::create) running the
+// beauty chain side by side, each fed from its own thread. Runs headless;
+// pass --window to use hidden GLFW windows instead.
+
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <thread>
+#include <vector>
+#include "gpupixel.h"
+using namespace gpupixel;
+
+static const int kWidth = 1280;
+static const int kHeight = 720;
+static const int kFramesPerPipeline = 300;
+
+struct Pipeline {
+  std::shared_ptr<GPUPixelContext> context;
+  std::shared_ptr<GPUPixelOffscreenSession> session;
+  std::vector<std::shared_ptr<Filter>> filters;
+  std::vector<uint8_t> output;
+};
+
+static std::shared_ptr<Filter> createFilter(const char* name,
+                                            const char* property,
+                                            float value) {
+  auto filter = Filter::create(name);
+  if (filter) {
+    filter->setProperty(property, value);
+  }
+  return filter;
+}
+
+static bool setUp(Pipeline& pipeline) {
+  pipeline.context = GPUPixelContext::create();
+  bool ok = false;
+  // filters and the session belong to the context they are created on
+  pipeline.context->runSync([&] {
+    pipeline.session = GPUPixelOffscreenSession::create();
+    pipeline.filters = {
+        createFilter("BeautyFaceFilter", "skin_smoothing", 0.5f),
+        createFilter("SaturationFilter", "saturation", 1.2f),
+    };
+    ok = pipeline.session && pipeline.filters[0] && pipeline.filters[1];
+  });
+  if (ok) {
+    pipeline.session->setFilters(pipeline.filters);
+  }
+  return ok;
+}
+
+static double run(int count, const std::vector<uint8_t>& frame) {
+  std::vector<Pipeline> pipelines(count);
+  for (auto& pipeline : pipelines) {
+    if (!setUp(pipeline)) {
+      fprintf(stderr, "cannot create pipeline\n");
+      return 0;
+    }
+    // shader compilation stays out of the numbers
+    pipeline.session->process(frame.data(), kWidth, kHeight, kWidth,
+                              pipeline.output);
+  }
+
+  auto start = std::chrono::steady_clock::now();
+  std::vector<std::thread> threads;
+  for (auto& pipeline : pipelines) {
+    threads.emplace_back([&pipeline, &frame] {
+      for (int i = 0; i < kFramesPerPipeline; ++i) {
+        pipeline.session->process(frame.data(), kWidth, kHeight, kWidth,
+                                  pipeline.output);
+      }
+    });
+  }
+  for (auto& thread : threads) {
+    thread.join();
+  }
+  double seconds = std::chrono::duration<double>(
+                       std::chrono::steady_clock::now() - start)
+                       .count();
+
+  for (auto& pipeline : pipelines) {
+    pipeline.session.reset();
+    pipeline.filters.clear();
+    pipeline.context.reset();
+  }
+  return count * kFramesPerPipeline / seconds;
+}
+
+int main(int argc, char** argv) {
+  GPUPixelContext::setHeadless(!(argc > 1 && !strcmp(argv[1], "--window")));
+  printf("renderer: %s\n",
+         GPUPixelContext::getInstance()->getRendererName().c_str());
+
+  std::vector<uint8_t> frame((size_t)kWidth * kHeight * 4);
+  for (size_t i = 0; i < frame.size(); ++i) {
+    frame[i] = (uint8_t)(i * 31 + i / 4096);
+  }
+
+  double single = 0;
+  for (int count : {1, 2, 4}) {
+    double fps = run(count, frame);
+    if (fps <= 0) {
+      return 1;
+    }
+    if (count == 1) {
+      single = fps;
+    }
+    printf("%d pipeline(s): %.1f frames/s total, %.1f per pipeline, "
+           "scaling %.2fx\n",
+           count, fps, fps / count, fps / single);
+  }
+
+  GPUPixelContext::destroy();
+  return 0;
+}
@@ -0,0 +1,106 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+// Time per frame of a colour grading chain (Brightness, Contrast,
+// Saturation, Exposure, Hue, WhiteBalance) drawn pass by pass and as one
+// fused pass, and the largest channel difference between the two outputs.
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <vector>
+#include "gpupixel.h"
+using namespace gpupixel;
+
+static const int kWidth = 1920;
+static const int kHeight = 1080;
+static const int kFrames = 300;
+
+static const char* kChain[] = {
+    "BrightnessFilter", "ContrastFilter", "SaturationFilter",
+    "ExposureFilter",   "HueFilter",      "WhiteBalanceFilter",
+};
+
+static double run(bool fused,
+                  const std::vector<uint8_t>& frame,
+                  std::vector<uint8_t>& result) {
+  std::shared_ptr<SourceRawDataInput> input;
+  std::shared_ptr<TargetRawDataOutput> output;
+  std::vector<std::shared_ptr<Filter>> filters;
+  GPUPixelContext::getInstance()->runSync([&] {
+    input = SourceRawDataInput::create();
+    output = TargetRawDataOutput::create();
+    for (const char* name : kChain) {
+      filters.push_back(Filter::create(name));
+    }
+  });
+  filters[0]->setProperty("brightness_para", 0.05f);
+  filters[1]->setProperty("contrast", 1.2f);
+  filters[2]->setProperty("saturation", 1.3f);
+  filters[3]->setProperty("exposure", 0.2f);
+  filters[4]->setProperty("hueAdjustment", 10.0f);
+  filters[5]->setProperty("temperature", 5600.0f);
+
+  input->setPointwiseFusion(fused);
+  std::shared_ptr<Source> last = input;
+  for (auto& filter : filters) {
+    last = last->addTarget(filter);
+  }
+  last->addTarget(output);
+  output->setPixelsCallbck(
+      [&result](const uint8_t* data, int width, int height, int64_t) {
+        result.assign(data, data + (size_t)width * height * 4);
+      });
+
+  // compiles the programs
+  input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, 0);
+  auto start = std::chrono::steady_clock::now();
+  for (int i = 1; i <= kFrames; ++i) {
+    input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, i);
+  }
+  GPUPixelContext::getInstance()->runSync([] { glFinish(); });
+  double ms = std::chrono::duration<double, std::milli>(
+                  std::chrono::steady_clock::now() - start)
+                  .count();
+
+  GPUPixelContext::getInstance()->runSync([&] {
+    input.reset();
+    output.reset();
+    filters.clear();
+    last.reset();
+  });
+  return ms / kFrames;
+}
+
+int main() {
+  GPUPixelContext::setHeadless(true);
+  printf("renderer: %s\n",
+         GPUPixelContext::getInstance()->getRendererName().c_str());
+
+  std::vector<uint8_t> frame((size_t)kWidth * kHeight * 4);
+  for (size_t i = 0; i < frame.size(); ++i) {
+    frame[i] = (uint8_t)(i * 31 + i / 4096);
+  }
+
+  std::vector<uint8_t> separate;
+  std::vector<uint8_t> fused;
+  double separateMs = run(false, frame, separate);
+  double fusedMs = run(true, frame, fused);
+
+  int maxDiff = 0;
+  for (size_t i = 0; i < separate.size() && i < fused.size(); ++i) {
+    maxDiff = std::max(maxDiff, std::abs(separate[i] - fused[i]));
+  }
+  printf("pass per filter: %.3f ms/frame\n", separateMs);
+  printf("fused:           %.3f ms/frame (%.2fx)\n", fusedMs,
+         separateMs / fusedMs);
+  printf("largest channel difference: %d\n", maxDiff);
+
+  GPUPixelContext::destroy();
+  return 0;
+}
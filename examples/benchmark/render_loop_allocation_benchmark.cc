@@ -0,0 +1,102 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+// Heap allocations and time per frame of the beauty chain in steady state,
+// from uploadBytes through to the pixel readback. Allocations are only
+// counted in builds configured with -DGPUPIXEL_COUNT_ALLOCATIONS=ON; the
+// exit status is 1 when any frame allocated.
+
+#include <chrono>
+#include <cstdio>
+#include <vector>
+#include "gpupixel.h"
+using namespace gpupixel;
+
+static const int kWidth = 1280;
+static const int kHeight = 720;
+static const int kWarmUpFrames = 30;
+static const int kFrames = 600;
+
+int main() {
+  GPUPixelContext::setHeadless(true);
+  printf("renderer: %s\n",
+         GPUPixelContext::getInstance()->getRendererName().c_str());
+
+  std::shared_ptr<SourceRawDataInput> input;
+  std::shared_ptr<TargetRawDataOutput> output;
+  std::vector<std::shared_ptr<Filter>> filters;
+  GPUPixelContext::getInstance()->runSync([&] {
+    input = SourceRawDataInput::create();
+    output = TargetRawDataOutput::create();
+    for (const char* name : {"BeautyFaceFilter", "FaceReshapeFilter",
+                             "BrightnessFilter", "ContrastFilter",
+                             "SaturationFilter"}) {
+      filters.push_back(Filter::create(name));
+    }
+  });
+  filters[0]->setProperty("skin_smoothing", 0.5f);
+  filters[0]->setProperty("whiteness", 0.3f);
+  filters[4]->setProperty("saturation", 1.2f);
+
+  std::shared_ptr<Source> last = input;
+  for (auto& filter : filters) {
+    last = last->addTarget(filter);
+  }
+  last->addTarget(output);
+
+  uint64_t readbacks = 0;
+  output->setPixelsCallbck(
+      [&readbacks](const uint8_t*, int, int, int64_t) { ++readbacks; });
+
+  std::vector<uint8_t> frame((size_t)kWidth * kHeight * 4);
+  for (size_t i = 0; i < frame.size(); ++i) {
+    frame[i] = (uint8_t)(i * 31 + i / 4096);
+  }
+
+  // first frames compile shaders and fill the framebuffer cache
+  for (int i = 0; i < kWarmUpFrames; ++i) {
+    input->uploadBytes(frame.data(), kWidth, kHeight, kWidth, i);
+  }
+
+  uint64_t worst = 0;
+  uint64_t total = 0;
+  auto start = std::chrono::steady_clock::now();
+  for (int i = 0; i < kFrames; ++i) {
+    uint64_t before = AllocationCounter::threadAllocations();
+    input->uploadBytes(frame.data(), kWidth, kHeight, kWidth,
+                       kWarmUpFrames + i);
+    uint64_t count = AllocationCounter::threadAllocations() - before;
+    total += count;
+    if (count > worst) {
+      worst = count;
+    }
+  }
+  double ms = std::chrono::duration<double, std::milli>(
+                  std::chrono::steady_clock::now() - start)
+                  .count();
+
+  printf("%d frames, %.3f ms/frame, %llu readbacks\n", kFrames, ms / kFrames,
+         (unsigned long long)readbacks);
+  int status = 0;
+  if (AllocationCounter::isEnabled()) {
+    printf("allocations: %.2f/frame, worst frame %llu\n",
+           (double)total / kFrames, (unsigned long long)worst);
+    status = total ? 1 : 0;
+  } else {
+    printf("allocations: not counted, configure with "
+           "-DGPUPIXEL_COUNT_ALLOCATIONS=ON\n");
+  }
+
+  GPUPixelContext::getInstance()->runSync([&] {
+    input.reset();
+    output.reset();
+    filters.clear();
+    last.reset();
+  });
+  GPUPixelContext::destroy();
+  return status;
+}
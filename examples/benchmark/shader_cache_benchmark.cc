@@ -0,0 +1,87 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+// Time to build the beauty graph with an empty shader program store, with
+// its programs already linked in the context, and from the stored binaries
+// the way a second launch sees them.
+//
+//   shader_cache_benchmark [store dir]
+
+#include <chrono>
+#include <cstdio>
+#include <filesystem>
+#include <string>
+#include <vector>
+#include "gpupixel.h"
+using namespace gpupixel;
+
+static const char* kGraph[] = {
+    "BeautyFaceFilter", "FaceReshapeFilter", "LipstickFilter",
+    "BlusherFilter",    "BrightnessFilter",  "ContrastFilter",
+    "SaturationFilter", "ExposureFilter",    "HueFilter",
+    "WhiteBalanceFilter", "GrayscaleFilter",
+};
+
+static double buildGraph(std::vector<std::shared_ptr<Filter>>& filters) {
+  double ms = 0;
+  GPUPixelContext::getInstance()->runSync([&] {
+    auto start = std::chrono::steady_clock::now();
+    for (const char* name : kGraph) {
+      filters.push_back(Filter::create(name));
+    }
+    glFinish();
+    ms = std::chrono::duration<double, std::milli>(
+             std::chrono::steady_clock::now() - start)
+             .count();
+  });
+  return ms;
+}
+
+static void printStats(const char* label, double ms) {
+  ShaderProgramCacheStats stats =
+      GPUPixelContext::getInstance()->getShaderProgramCache()->getStats();
+  printf("%-24s %8.2f ms  compiled %llu (%.2f ms)  from disk %llu (%.2f ms)"
+         "  shared %llu  rejected %llu\n",
+         label, ms, (unsigned long long)stats.compiles, stats.compileMs,
+         (unsigned long long)stats.diskLoads, stats.diskLoadMs,
+         (unsigned long long)stats.hits,
+         (unsigned long long)stats.diskRejected);
+  GPUPixelContext::getInstance()->getShaderProgramCache()->resetStats();
+}
+
+static void release(std::vector<std::shared_ptr<Filter>>& filters) {
+  filters.clear();
+  GPUPixelContext::getInstance()->runSync(
+      [] { GPUPixelContext::getInstance()->purge(); });
+}
+
+int main(int argc, char** argv) {
+  std::string directory = argc > 1 ? argv[1] : "gpupixel_shader_cache";
+  std::filesystem::create_directories(directory);
+
+  GPUPixelContext::setHeadless(true);
+  printf("renderer: %s\n",
+         GPUPixelContext::getInstance()->getRendererName().c_str());
+  ShaderProgramCache::setDiskCache(directory);
+  ShaderProgramCache::clearDiskCache();
+
+  std::vector<std::shared_ptr<Filter>> first;
+  std::vector<std::shared_ptr<Filter>> second;
+  printStats("cold", buildGraph(first));
+  printStats("shared in context", buildGraph(second));
+  release(second);
+  release(first);
+
+  // what the next launch does: read the store back, link from binaries
+  ShaderProgramCache::flushDiskCache();
+  ShaderProgramCache::setDiskCache(directory);
+  printStats("from disk", buildGraph(first));
+  release(first);
+
+  GPUPixelContext::destroy();
+  return 0;
+}
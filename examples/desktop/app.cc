@@ -59,11 +59,9 @@ int main()
     gpuSourceImage = SourceImage::create("demo.png");
     target_view = std::make_shared<TargetView>();
 
-    gpuSourceImage->RegLandmarkCallback([=](std::vector<float> landmarks) {
-       lipstick_filter_->SetFaceLandmarks(landmarks);
-       blusher_filter_->SetFaceLandmarks(landmarks);
-       face_reshape_filter_->SetFaceLandmarks(landmarks);
-     });
+    gpuSourceImage->bindLandmarks(lipstick_filter_);
+    gpuSourceImage->bindLandmarks(blusher_filter_);
+    gpuSourceImage->bindLandmarks(face_reshape_filter_);
 
     beauty_face_filter_ = BeautyFaceFilter::create();
  
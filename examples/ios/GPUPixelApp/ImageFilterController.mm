@@ -119,11 +119,9 @@ using namespace gpupixel;
 
     gpuSourceImage = SourceImage::create([imagePath UTF8String]);
     
-    gpuSourceImage->RegLandmarkCallback([=](std::vector<float> landmarks) {
-      lipstick_filter_->SetFaceLandmarks(landmarks);
-      blusher_filter_->SetFaceLandmarks(landmarks);
-      face_reshape_filter_->SetFaceLandmarks(landmarks);
-    });
+    gpuSourceImage->bindLandmarks(lipstick_filter_);
+    gpuSourceImage->bindLandmarks(blusher_filter_);
+    gpuSourceImage->bindLandmarks(face_reshape_filter_);
     
     // filter pipline
     gpuSourceImage->addTarget(lipstick_filter_)
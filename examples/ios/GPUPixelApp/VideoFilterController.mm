@@ -144,16 +144,15 @@ using namespace gpupixel;
     lipstick_filter_ = LipstickFilter::create();
     blusher_filter_ = BlusherFilter::create();
  
-    gpuPixelRawInput->RegLandmarkCallback([=](std::vector<float> landmarks) {
-      lipstick_filter_->SetFaceLandmarks(landmarks);
-      blusher_filter_->SetFaceLandmarks(landmarks);
-      face_reshape_filter_->SetFaceLandmarks(landmarks);
-    });
   
     // create filter
     targetRawOutput_ = TargetRawDataOutput::create();
     beauty_face_filter_ = BeautyFaceFilter::create();
     face_reshape_filter_ = FaceReshapeFilter::create();
+
+    gpuPixelRawInput->bindLandmarks(lipstick_filter_);
+    gpuPixelRawInput->bindLandmarks(blusher_filter_);
+    gpuPixelRawInput->bindLandmarks(face_reshape_filter_);
     
     // filter pipline
     gpuPixelRawInput->addTarget(lipstick_filter_)
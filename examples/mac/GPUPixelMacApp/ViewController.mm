@@ -102,11 +102,9 @@ using namespace gpupixel;
     blusher_filter_ = BlusherFilter::create();
     face_reshape_filter_ = FaceReshapeFilter::create();
     
-    gpuPixelRawInput->RegLandmarkCallback([=](std::vector<float> landmarks) {
-       lipstick_filter_->SetFaceLandmarks(landmarks);
-       blusher_filter_->SetFaceLandmarks(landmarks);
-       face_reshape_filter_->SetFaceLandmarks(landmarks);
-     });
+    gpuPixelRawInput->bindLandmarks(lipstick_filter_);
+    gpuPixelRawInput->bindLandmarks(blusher_filter_);
+    gpuPixelRawInput->bindLandmarks(face_reshape_filter_);
  
     // create filter
     targetRawOutput_ = TargetRawDataOutput::create();
@@ -0,0 +1,267 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+// Runs every image in a directory through a filter chain without a window
+// and reports throughput, e.g.
+//
+//   gpupixel_batch photos/ --chain beauty --output out/
+//   gpupixel_batch photos/ --chain "BeautyFaceFilter:skin_smoothing=0.6,
+//                                   SaturationFilter:saturation=1.2"
+//
+// A chain is a preset name or a comma separated list of filter classes,
+// each followed by :property=value pairs. Results are written as PPM.
+
+#define STB_IMAGE_STATIC
+#define STB_IMAGE_IMPLEMENTATION
+#include "stb_image.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <filesystem>
+#include <map>
+#include <string>
+#include <vector>
+#include "gpupixel.h"
+using namespace gpupixel;
+
+static const std::map<std::string, std::string> kPresets = {
+    {"beauty", "BeautyFaceFilter:skin_smoothing=0.5:whiteness=0.3"},
+    {"reshape", "FaceReshapeFilter:thin_face=0.025:big_eye=0.05"},
+    {"makeup", "LipstickFilter:blend_level=0.5,BlusherFilter:blend_level=0.5"},
+    {"full",
+     "BeautyFaceFilter:skin_smoothing=0.5:whiteness=0.3,"
+     "FaceReshapeFilter:thin_face=0.025:big_eye=0.05,"
+     "LipstickFilter:blend_level=0.5,BlusherFilter:blend_level=0.5"},
+};
+
+static std::vector<std::string> split(const std::string& text, char separator) {
+  std::vector<std::string> parts;
+  size_t start = 0;
+  while (start <= text.size()) {
+    size_t end = text.find(separator, start);
+    if (end == std::string::npos) {
+      end = text.size();
+    }
+    std::string part = text.substr(start, end - start);
+    part.erase(0, part.find_first_not_of(" \t\n"));
+    part.erase(part.find_last_not_of(" \t\n") + 1);
+    if (!part.empty()) {
+      parts.push_back(part);
+    }
+    start = end + 1;
+  }
+  return parts;
+}
+
+static bool setFilterProperty(std::shared_ptr<Filter> filter,
+                              const std::string& name,
+                              const std::string& value) {
+  std::string type;
+  if (!filter->getPropertyType(name, type)) {
+    return false;
+  }
+  if (type == "int") {
+    return filter->setProperty(name, atoi(value.c_str()));
+  } else if (type == "string") {
+    return filter->setProperty(name, value);
+  }
+  return filter->setProperty(name, (float)atof(value.c_str()));
+}
+
+static bool buildChain(const std::string& spec,
+                       std::vector<std::shared_ptr<Filter>>& filters) {
+  auto preset = kPresets.find(spec);
+  const std::string& chain = preset != kPresets.end() ? preset->second : spec;
+  for (const std::string& node : split(chain, ',')) {
+    std::vector<std::string> fields = split(node, ':');
+    auto filter = Filter::create(fields[0]);
+    if (!filter) {
+      fprintf(stderr, "unknown filter %s\n", fields[0].c_str());
+      return false;
+    }
+    for (size_t i = 1; i < fields.size(); ++i) {
+      size_t equals = fields[i].find('=');
+      if (equals == std::string::npos ||
+          !setFilterProperty(filter, fields[i].substr(0, equals),
+                             fields[i].substr(equals + 1))) {
+        fprintf(stderr, "bad property %s for %s\n", fields[i].c_str(),
+                fields[0].c_str());
+        return false;
+      }
+    }
+    filters.push_back(filter);
+  }
+  return true;
+}
+
+static bool writePPM(const std::string& path,
+                     const std::vector<uint8_t>& rgba,
+                     int width,
+                     int height) {
+  FILE* file = fopen(path.c_str(), "wb");
+  if (!file) {
+    return false;
+  }
+  fprintf(file, "P6\n%d %d\n255\n", width, height);
+  std::vector<uint8_t> row((size_t)width * 3);
+  for (int y = 0; y < height; ++y) {
+    const uint8_t* src = rgba.data() + (size_t)y * width * 4;
+    for (int x = 0; x < width; ++x) {
+      row[x * 3] = src[x * 4];
+      row[x * 3 + 1] = src[x * 4 + 1];
+      row[x * 3 + 2] = src[x * 4 + 2];
+    }
+    fwrite(row.data(), 1, row.size(), file);
+  }
+  return fclose(file) == 0;
+}
+
+static void usage(const char* program) {
+  fprintf(stderr,
+          "usage: %s <input dir> [--chain preset|spec] [--output dir]\n"
+          "          [--repeat n] [--window]\n"
+          "presets:",
+          program);
+  for (auto& preset : kPresets) {
+    fprintf(stderr, " %s", preset.first.c_str());
+  }
+  fprintf(stderr, "\n");
+}
+
+int main(int argc, char** argv) {
+  std::string inputDir;
+  std::string outputDir;
+  std::string chain = "beauty";
+  int repeat = 1;
+  bool headless = true;
+  for (int i = 1; i < argc; ++i) {
+    if (!strcmp(argv[i], "--chain") && i + 1 < argc) {
+      chain = argv[++i];
+    } else if (!strcmp(argv[i], "--output") && i + 1 < argc) {
+      outputDir = argv[++i];
+    } else if (!strcmp(argv[i], "--repeat") && i + 1 < argc) {
+      repeat = std::max(1, atoi(argv[++i]));
+    } else if (!strcmp(argv[i], "--window")) {
+      headless = false;
+    } else if (argv[i][0] != '-' && inputDir.empty()) {
+      inputDir = argv[i];
+    } else {
+      usage(argv[0]);
+      return 1;
+    }
+  }
+  if (inputDir.empty()) {
+    usage(argv[0]);
+    return 1;
+  }
+
+  std::vector<std::filesystem::path> inputs;
+  for (auto& entry : std::filesystem::directory_iterator(inputDir)) {
+    std::string extension = entry.path().extension().string();
+    std::transform(extension.begin(), extension.end(), extension.begin(),
+                   ::tolower);
+    if (entry.is_regular_file() &&
+        (extension == ".jpg" || extension == ".jpeg" || extension == ".png" ||
+         extension == ".bmp" || extension == ".tga")) {
+      inputs.push_back(entry.path());
+    }
+  }
+  std::sort(inputs.begin(), inputs.end());
+  if (inputs.empty()) {
+    fprintf(stderr, "no images in %s\n", inputDir.c_str());
+    return 1;
+  }
+  if (!outputDir.empty()) {
+    std::filesystem::create_directories(outputDir);
+  }
+
+  GPUPixelContext::setHeadless(headless);
+  GPUPixelContext* context = GPUPixelContext::getInstance();
+  printf("renderer: %s%s\n", context->getRendererName().c_str(),
+         context->isHeadless() ? " (headless)" : "");
+
+  std::shared_ptr<GPUPixelOffscreenSession> session;
+  std::vector<std::shared_ptr<Filter>> filters;
+  bool built = false;
+  context->runSync([&] {
+    built = buildChain(chain, filters);
+    session = GPUPixelOffscreenSession::create();
+  });
+  if (!built || !session) {
+    return 1;
+  }
+  session->setFilters(filters);
+  for (auto& filter : filters) {
+    session->bindLandmarks(filter);
+  }
+
+  std::vector<double> timesMs;
+  std::vector<uint8_t> output;
+  double megapixels = 0;
+  int failures = 0;
+  for (auto& path : inputs) {
+    int width = 0;
+    int height = 0;
+    int channels = 0;
+    uint8_t* pixels =
+        stbi_load(path.string().c_str(), &width, &height, &channels, 4);
+    if (!pixels) {
+      fprintf(stderr, "cannot decode %s\n", path.string().c_str());
+      failures++;
+      continue;
+    }
+    if (timesMs.empty()) {
+      // shader compilation and first allocations stay out of the numbers
+      session->process(pixels, width, height, width, output);
+    }
+    for (int i = 0; i < repeat; ++i) {
+      auto start = std::chrono::steady_clock::now();
+      bool ok = session->process(pixels, width, height, width, output);
+      timesMs.push_back(std::chrono::duration<double, std::milli>(
+                            std::chrono::steady_clock::now() - start)
+                            .count());
+      if (!ok) {
+        failures++;
+        break;
+      }
+      megapixels += width * height / 1e6;
+    }
+    stbi_image_free(pixels);
+
+    if (!outputDir.empty()) {
+      std::filesystem::path target =
+          std::filesystem::path(outputDir) / path.stem();
+      writePPM(target.string() + ".ppm", output, session->getOutputWidth(),
+               session->getOutputHeight());
+    }
+  }
+
+  if (timesMs.empty()) {
+    return 1;
+  }
+  double totalMs = 0;
+  for (double ms : timesMs) {
+    totalMs += ms;
+  }
+  std::vector<double> sorted = timesMs;
+  std::sort(sorted.begin(), sorted.end());
+  printf("chain: %s\n", chain.c_str());
+  printf("%zu frames from %zu images, %d failed\n", timesMs.size(),
+         inputs.size(), failures);
+  printf("%.1f frames/s, %.1f MP/s, mean %.2f ms, p50 %.2f ms, p95 %.2f ms\n",
+         timesMs.size() * 1000.0 / totalMs, megapixels * 1000.0 / totalMs,
+         totalMs / timesMs.size(), sorted[sorted.size() / 2],
+         sorted[std::min(sorted.size() - 1, sorted.size() * 95 / 100)]);
+
+  session.reset();
+  filters.clear();
+  GPUPixelContext::destroy();
+  return failures == 0 ? 0 : 1;
+}
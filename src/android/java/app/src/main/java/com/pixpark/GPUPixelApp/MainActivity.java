@@ -53,6 +53,18 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         Log.i(TAG, path);
 
         GPUPixel.setContext(this);
+        // the face filters below need the model, have it ready before the first frame
+        GPUPixel.preloadFaceDetector(new GPUPixel.FaceDetectorPreloadListener() {
+            @Override
+            public void onProgress(float progress) {
+            }
+
+            @Override
+            public void onComplete(boolean loaded, int loadMs, int warmUpMs) {
+                Log.i(TAG, "face detector " + (loaded ? "ready" : "failed")
+                        + ", load " + loadMs + " ms, warm-up " + warmUpMs + " ms");
+            }
+        });
         // 保持屏幕常亮
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
@@ -170,13 +182,8 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         faceReshapFilter.addTarget(beautyFaceFilter);
         beautyFaceFilter.addTarget(surfaceView);
 
-        sourceCamera.setLandmarkCallbck(new GPUPixel.GPUPixelLandmarkCallback() {
-            @Override
-            public void onFaceLandmark(float[] landmarks) {
-                faceReshapFilter.setFaceLandmark(landmarks);
-                lipstickFilter.setFaceLandmark(landmarks);
-            }
-        });
+        sourceCamera.bindLandmarks(faceReshapFilter);
+        sourceCamera.bindLandmarks(lipstickFilter);
         // set default value
         beautyFaceFilter.setSmoothLevel(0.5f);
         beautyFaceFilter.setWhiteLevel(0.4f);
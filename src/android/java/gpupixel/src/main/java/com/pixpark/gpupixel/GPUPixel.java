@@ -12,16 +12,96 @@ import android.graphics.Bitmap;
 import android.opengl.GLSurfaceView;
 import android.graphics.PixelFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
 
 public class GPUPixel {
 
     public interface GPUPixelLandmarkCallback {
         public void onFaceLandmark(float[] landmarks);
     }
+
+    // Every tracked face of a frame: face i has id faceIds[i], stable while
+    // it stays tracked, and FACE_LANDMARK_STRIDE floats of normalized
+    // (x, y) points from landmarks[i * FACE_LANDMARK_STRIDE]. Faces come
+    // ordered by id. The arrays are reused, copy what is kept.
+    public interface GPUPixelFaceLandmarksCallback {
+        public void onFaceLandmarks(int faceCount, int[] faceIds, float[] landmarks);
+    }
+
+    public static final int FACE_LANDMARK_POINTS = 111;
+    public static final int FACE_LANDMARK_STRIDE = FACE_LANDMARK_POINTS * 2;
+    public static final int MAX_FACES = 4;
+
+    // called on the main thread, see preloadFaceDetector()
+    public interface FaceDetectorPreloadListener {
+        // 0 to 1: model file found, model loaded, warm-up inference done
+        public void onProgress(float progress);
+        public void onComplete(boolean loaded, int loadMs, int warmUpMs);
+    }
+
+    public static final int FACE_DETECTOR_UNLOADED = 0;
+    public static final int FACE_DETECTOR_LOADING = 1;
+    public static final int FACE_DETECTOR_READY = 2;
+    public static final int FACE_DETECTOR_FAILED = 3;
+
+    // snapshot of the native framebuffer cache, see getFramebufferCacheStats()
+    public static final class FramebufferCacheStats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        // idle framebuffers kept for reuse
+        public final long bytesResident;
+        public final long bytesResidentHighWater;
+        public final long framebuffersResident;
+        public final long budgetBytes;
+
+        FramebufferCacheStats(long[] values) {
+            hits = values[0];
+            misses = values[1];
+            evictions = values[2];
+            bytesResident = values[3];
+            bytesResidentHighWater = values[4];
+            framebuffersResident = values[5];
+            budgetBytes = values[6];
+        }
+    }
+
+    // snapshot of the native shader program cache, see getShaderProgramCacheStats()
+    public static final class ShaderProgramCacheStats {
+        // programs shared with a filter that already had the same shader
+        public final long hits;
+        public final long compiles;
+        // programs loaded from the on-disk store instead of compiled
+        public final long diskLoads;
+        public final long diskRejected;
+        public final long programsResident;
+        public final double compileMs;
+        public final double diskLoadMs;
+
+        ShaderProgramCacheStats(double[] values) {
+            hits = (long) values[0];
+            compiles = (long) values[1];
+            diskLoads = (long) values[2];
+            diskRejected = (long) values[3];
+            programsResident = (long) values[4];
+            compileMs = values[5];
+            diskLoadMs = values[6];
+        }
+    }
+
     public static final int NoRotation = 0;
     public static final int RotateLeft = 1;
     public static final int RotateRight = 2;
@@ -32,17 +112,86 @@ public class GPUPixel {
     public static final int Rotate180 = 7;
 
     public static String resource_path;
+    private static volatile Future<String> sResourceExtraction = null;
     private GPUPixelRenderer mRenderer = null;
+    private GPUPixelFrameScheduler mFrameScheduler = null;
+    private GPUPixelFrameGovernor mFrameGovernor = null;
     private GLSurfaceView mGLSurfaceView = null;
     private int mGLSurfaceViewRenderMode = GLSurfaceView.RENDERMODE_WHEN_DIRTY;
 
+    // instances made by create(): their own native pipeline state, 0 for the
+    // default instance
+    private final boolean mIsDefault;
+    private final GPUPixel mShareWith;
+    private long mNativeContext = 0;
+    private volatile EGLContext mEGLContext = null;
+
+    private static final ThreadLocal<GPUPixel> sCurrent = new ThreadLocal<GPUPixel>();
+
     private static class SingletonHolder {
         private static final GPUPixel INSTANCE = new GPUPixel();
     }
 
+    // restores the instance that was current before use()
+    public static final class Scope implements AutoCloseable {
+        private final GPUPixel mPrevious;
+
+        private Scope(GPUPixel previous) {
+            mPrevious = previous;
+        }
+
+        @Override
+        public void close() {
+            sCurrent.set(mPrevious);
+        }
+    }
+
+    private GPUPixel() {
+        mIsDefault = true;
+        mShareWith = null;
+        init();
+    }
+
+    private GPUPixel(GPUPixel shareWith) {
+        mIsDefault = false;
+        mShareWith = shareWith;
+        init();
+    }
+
+    // A second pipeline with its own GLSurfaceView, renderer queues and
+    // native framebuffer cache, so two previews render independently.
+    // Sources, filters and targets attach to the instance that is current
+    // on the thread creating them: wrap their construction in use(). With
+    // shareWith the GL contexts share textures and programs, provided the
+    // other instance's view has created its context first.
+    public static GPUPixel create() {
+        return create(null);
+    }
+
+    public static GPUPixel create(GPUPixel shareWith) {
+        return new GPUPixel(shareWith);
+    }
+
+    // makes this instance what getInstance() returns on the calling thread
+    // until the scope is closed
+    public Scope use() {
+        Scope scope = new Scope(sCurrent.get());
+        sCurrent.set(mIsDefault ? null : this);
+        return scope;
+    }
+
+    // called by the renderer on its GL thread
+    void bindCurrentThread() {
+        sCurrent.set(mIsDefault ? null : this);
+        nativeContextBindThread(mNativeContext);
+    }
 
-    private GPUPixel(){ init(); }
+    // the instance current on this thread (see use()), otherwise the default
     public static final GPUPixel getInstance() {
+        GPUPixel current = sCurrent.get();
+        if (current != null) {
+            return current;
+        }
         GPUPixel instance = SingletonHolder.INSTANCE;
         if (!instance.isInited()) {
             instance.init();
@@ -53,12 +202,41 @@ public class GPUPixel {
     public boolean isInited() {
         return mRenderer != null;
     }
+    // Textures load from the APK from here on; the rest is extracted in the
+    // background, see getResourceExtraction().
     public static void setContext(Context context) {
-        copyResource(context);
+        nativeSetAssetManager(context.getAssets());
+        extractResource(context);
+        File shaderCache = new File(context.getCodeCacheDir(), "gpupixel");
+        if (shaderCache.isDirectory() || shaderCache.mkdirs()) {
+            setShaderProgramDiskCache(shaderCache.getAbsolutePath(), DEFAULT_SHADER_CACHE_BYTES);
+        }
+    }
+
+    public static final long DEFAULT_SHADER_CACHE_BYTES = 4L * 1024 * 1024;
+
+    // Linked shader programs are kept in directory so later launches skip
+    // compiling them; null disables it. setContext() picks the code cache
+    // directory, which the system clears when the app is updated.
+    public static void setShaderProgramDiskCache(String directory, long maxBytes) {
+        nativeSetShaderProgramDiskCache(directory == null ? "" : directory, maxBytes);
+    }
+
+    public static void clearShaderProgramDiskCache() {
+        nativeClearShaderProgramDiskCache();
     }
 
     public void init() {
         mRenderer = new GPUPixelRenderer();
+        mRenderer.setOwner(this);
+        setFrameClock(new GPUPixelFrameScheduler.ChoreographerClock());
+        mFrameGovernor = new GPUPixelFrameGovernor(this);
+        mRenderer.setFrameGovernor(mFrameGovernor);
+        if (!mIsDefault && mNativeContext == 0) {
+            boolean share = mShareWith != null;
+            mNativeContext = nativeContextCreate(share,
+                    share ? mShareWith.mNativeContext : 0);
+        }
         runOnDraw(new Runnable() {
             @Override
             public void run() {
@@ -70,6 +248,33 @@ public class GPUPixel {
     public void destroy() {
         if (!isInited()) return;
         purge();
+        final GPUPixelFrameGovernor governor = mFrameGovernor;
+        if (!mIsDefault && mNativeContext != 0) {
+            final long nativeContext = mNativeContext;
+            mNativeContext = 0;
+            if (mGLSurfaceView != null) {
+                // GL objects have to go on the view's thread
+                mGLSurfaceView.queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        governor.release(nativeContext);
+                        nativeContextDestroyInstance(nativeContext);
+                    }
+                });
+            } else {
+                governor.release(nativeContext);
+                nativeContextDestroyInstance(nativeContext);
+            }
+        } else if (mGLSurfaceView != null) {
+            runOnDraw(new Runnable() {
+                @Override
+                public void run() {
+                    governor.release(0);
+                }
+            });
+        } else {
+            governor.release(0);
+        }
         setGLSurfaceView(null);
         setSource(null);
         mRenderer.clear();
@@ -86,6 +291,28 @@ public class GPUPixel {
             mGLSurfaceView.setEGLContextClientVersion(2);
             mGLSurfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
             mGLSurfaceView.getHolder().setFormat(PixelFormat.RGBA_8888);
+            mGLSurfaceView.setEGLContextFactory(new GLSurfaceView.EGLContextFactory() {
+                private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+                @Override
+                public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+                    EGLContext share = EGL10.EGL_NO_CONTEXT;
+                    if (mShareWith != null && mShareWith.mEGLContext != null) {
+                        share = mShareWith.mEGLContext;
+                    }
+                    int[] attributes = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
+                    mEGLContext = egl.eglCreateContext(display, config, share, attributes);
+                    return mEGLContext;
+                }
+
+                @Override
+                public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+                    if (mEGLContext == context) {
+                        mEGLContext = null;
+                    }
+                    egl.eglDestroyContext(display, context);
+                }
+            });
             mGLSurfaceView.setRenderer(mRenderer);
             mGLSurfaceView.setRenderMode(mGLSurfaceViewRenderMode);
             if (Build.VERSION.SDK_INT > Build.VERSION_CODES.GINGERBREAD_MR1) {
@@ -108,15 +335,51 @@ public class GPUPixel {
         return mGLSurfaceView;
     }
 
+    // renders once on the next vsync, however often it is called until then
     public void requestRender() {
         if (mGLSurfaceView != null) {
-            mGLSurfaceView.requestRender();
+            mFrameScheduler.requestFrame();
         }
     }
 
+    // where vsync ticks come from, Choreographer unless replaced, e.g. by a
+    // test clock
+    public void setFrameClock(GPUPixelFrameScheduler.Clock clock) {
+        mFrameScheduler = new GPUPixelFrameScheduler(clock, new Runnable() {
+            @Override
+            public void run() {
+                GLSurfaceView view = mGLSurfaceView;
+                if (view != null) {
+                    view.requestRender();
+                }
+            }
+        });
+        mRenderer.setFrameScheduler(mFrameScheduler);
+    }
+
+    // pacing and missed deadlines of the rendered frames
+    public GPUPixelFrameScheduler getFrameScheduler() {
+        return mFrameScheduler;
+    }
+
+    // trades quality for frame rate under load, off until enabled
+    public GPUPixelFrameGovernor getFrameGovernor() {
+        return mFrameGovernor;
+    }
+
+    // 0 for the default instance
+    long getNativeContext() {
+        return mNativeContext;
+    }
+
+    // the frame being rendered, for stamping it; GL thread only
+    long getPresentationTimeMillis() {
+        return mFrameScheduler.getPresentationTimeMillis();
+    }
+
     public void purge() {
         if (mGLSurfaceView != null) {
-            GPUPixel.getInstance().runOnDraw(new Runnable() {
+            runOnDraw(new Runnable() {
                 @Override
                 public void run() {
                     GPUPixel.nativeContextPurge();
@@ -128,6 +391,53 @@ public class GPUPixel {
         }
     }
 
+    // safe from any thread
+    public FramebufferCacheStats getFramebufferCacheStats() {
+        long[] values = new long[7];
+        nativeContextGetFramebufferCacheStats(values);
+        return new FramebufferCacheStats(values);
+    }
+
+    // safe from any thread
+    public ShaderProgramCacheStats getShaderProgramCacheStats() {
+        double[] values = new double[7];
+        nativeContextGetShaderProgramCacheStats(values);
+        return new ShaderProgramCacheStats(values);
+    }
+
+    public void resetFramebufferCacheStats() {
+        nativeContextResetFramebufferCacheStats();
+    }
+
+    // bytes of idle framebuffers kept for reuse, least recently used go first
+    public void setFramebufferCacheBudget(final long bytes) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                nativeContextSetFramebufferCacheBudget(bytes);
+            }
+        });
+    }
+
+    // Per-node CPU and GPU timing plus renderer queue timing, off by
+    // default. Costs a timer query and a clock read per node while on.
+    public void setMetricsEnabled(boolean enabled) {
+        mRenderer.setMeasureQueues(enabled);
+        nativeContextSetMetricsEnabled(mNativeContext, enabled);
+    }
+
+    // safe from any thread
+    public GPUPixelMetrics getMetricsSnapshot() {
+        return new GPUPixelMetrics(nativeContextGetMetrics(mNativeContext),
+                mRenderer.getPreDrawTiming(), mRenderer.getDrawTiming(),
+                mRenderer.getPostDrawTiming());
+    }
+
+    public void resetMetrics() {
+        mRenderer.resetQueueTimes();
+        nativeContextResetMetrics(mNativeContext);
+    }
+
     public GPUPixelRenderer getRenderer() {
         return mRenderer;
     }
@@ -144,6 +454,16 @@ public class GPUPixel {
         mRenderer.runOnDraw(runnable);
     }
 
+    // allocation-free variant of runOnDraw: fill the returned command's
+    // arguments, then hand it back through runOnDraw(GPUPixelCommand)
+    public GPUPixelCommand obtainDrawCommand(GPUPixelCommand.Action action) {
+        return mRenderer.obtainDrawCommand(action);
+    }
+
+    public void runOnDraw(GPUPixelCommand cmd) {
+        mRenderer.runOnDraw(cmd);
+    }
+
     public boolean isPostDrawQueueEmpty() { return mRenderer.isPostDrawQueueEmpty(); }
 
     public void runOnPostDraw(Runnable runnable) {
@@ -157,13 +477,87 @@ public class GPUPixel {
         System.loadLibrary("vnn_face");
     }
 
+    // Loads the face model and runs a warm-up inference in the background,
+    // so turning on a face effect later doesn't stall the preview. The
+    // model is shared by every source; one already loaded completes at
+    // once. Call after setContext(), the model is among the resources.
+    public static void preloadFaceDetector(final FaceDetectorPreloadListener listener) {
+        if (listener == null) {
+            nativePreloadFaceDetector(null);
+            return;
+        }
+        final Handler handler = new Handler(Looper.getMainLooper());
+        nativePreloadFaceDetector(new FaceDetectorPreloadListener() {
+            @Override
+            public void onProgress(final float progress) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProgress(progress);
+                    }
+                });
+            }
+
+            @Override
+            public void onComplete(final boolean loaded, final int loadMs, final int warmUpMs) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onComplete(loaded, loadMs, warmUpMs);
+                    }
+                });
+            }
+        });
+    }
+
+    // one of FACE_DETECTOR_*
+    public static int getFaceDetectorState() {
+        return nativeGetFaceDetectorState();
+    }
+
+    // frees the model once no source uses it any more
+    public static void unloadFaceDetector() {
+        nativeUnloadFaceDetector();
+    }
+
+    // blocks until the resources are extracted
     public static void copyResource(Context context) {
-        String exPath = context.getExternalFilesDir(null).getAbsolutePath();
-        copyAssetsToFiles(context, "resource", exPath + "/resource");
-        resource_path = exPath + "/resource";
+        Future<String> extraction = extractResource(context);
+        try {
+            extraction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static synchronized Future<String> extractResource(Context context) {
+        File directory = new File(context.getExternalFilesDir(null), GPUPixelAssetExtractor.ASSET_DIR);
+        resource_path = directory.getAbsolutePath();
+        sResourceExtraction = GPUPixelAssetExtractor.extract(context, directory);
+        return sResourceExtraction;
     }
 
+    // completes once the files under getResource_path() are in place; null
+    // before setContext()
+    public static Future<String> getResourceExtraction() {
+        return sResourceExtraction;
+    }
+
+    // called natively for resources that need a file, the face model, so it
+    // waits for an extraction still running
     public static String getResource_path() {
+        Future<String> extraction = sResourceExtraction;
+        if (extraction != null) {
+            try {
+                extraction.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
         return resource_path;
     }
 
@@ -210,10 +604,14 @@ public class GPUPixel {
     public static native long nativeFilterCreate(final String filterClassName);
     public static native void nativeFilterDestroy(long classID);
     public static native void nativeFilterFinalize(long classID);
+    public static native void nativeFilterSetRenderScale(long classID, float scale);
     public static native void nativeFilterSetPropertyFloat(long classID, String property, float value);
     public static native void nativeFilterSetPropertyInt(long classID, String property, int value);
     public static native void nativeFilterSetPropertyFloatArray(long classID, String property, float[] array);
     public static native void nativeFilterSetPropertyString(long classID, String prooerty, String value);
+    public static native String[] nativeFilterGetPropertyNames(long classID);
+    public static native void nativeFilterSetProperties(long classID, int[] header, int count, float[] floatData, int[] intData);
+    public static native void nativeFilterRequestCapture(long classID, Object capture, Bitmap bitmap, ByteBuffer buffer, int width, int height);
     // SourceImage
     public static native long nativeSourceImageNew();
     public static native void nativeSourceImageDestroy(final long classID);
@@ -228,17 +626,20 @@ public class GPUPixel {
 
     // SourceRawDataInput
     public static native long nativeSourceRawInputNew();
-    public static native void nativeSourceRawInputUploadBytes(final long classID, final int[] pixel, final int width, final int height, final int stride);
+    public static native void nativeSourceRawInputDestroy(final long classID);
+    public static native void nativeSourceRawInputUploadBytes(final long classID, final int[] pixel, final int width, final int height, final int stride, final long frameTimeMillis);
     public static native void nativeSourceRawInputSetRotation(final long classID, final int rotation);
+    public static native void nativeSourceRawInputSetFaceDetectionProxySize(final long classID, final int shortSide);
+    public static native void nativeSourceRawInputUploadI420(final long classID, final ByteBuffer dataY, final int offsetY, final int strideY, final ByteBuffer dataU, final int offsetU, final int strideU, final ByteBuffer dataV, final int offsetV, final int strideV, final int width, final int height, final int rotation, final long frameTimeMillis);
+    public static native void nativeSourceRawInputUploadNV(final long classID, final boolean isNV21, final ByteBuffer dataY, final int offsetY, final int strideY, final ByteBuffer dataUV, final int offsetUV, final int strideUV, final int width, final int height, final int rotation, final long frameTimeMillis);
 
     // Source
     public static native long nativeSourceAddTarget(final long classID, final long targetClassID, final int texID, final boolean isFilter);
     public static native void nativeSourceRemoveTarget(final long classID, final long targetClassID, final boolean isFilter);
     public static native void nativeSourceRemoveAllTargets(final long classID);
-    public static native boolean nativeSourceProceed(final long classID, final boolean bUpdateTargets);
+    public static native boolean nativeSourceProceed(final long classID, final boolean bUpdateTargets, final long frameTimeMillis);
     public static native int nativeSourceGetRotatedFramebuferWidth(final long classID);
     public static native int nativeSourceGetRotatedFramebuferHeight(final long classID);
-    public static native byte[] nativeSourceCaptureAProcessedFrameData(final long classId, final long upToFilterClassId, final int width, final int height);
 
     // view
     public static native long nativeTargetViewNew();
@@ -246,14 +647,53 @@ public class GPUPixel {
     public static native void nativeTargetViewOnSizeChanged(final long classID, final int width, final int height);
     public static native void nativeTargetViewSetFillMode(final long classID, final int fillMode);
     public static native void nativeTargetViewSetMirror(final long classID, final boolean mirror);
+    // raw output
+    public static native long nativeTargetRawOutputNew(final Object output, final int pboCount);
+    public static native void nativeTargetRawOutputDestroy(final long classID);
     // context
     public static native void nativeContextInit();
     public static native void nativeContextDestroy();
     public static native void nativeContextPurge();
+    public static native int nativeContextPollCaptures(final boolean wait);
+    public static native void nativeContextGetFramebufferCacheStats(long[] out);
+    public static native void nativeContextResetFramebufferCacheStats();
+    public static native void nativeContextSetFramebufferCacheBudget(final long bytes);
+    public static native void nativeContextMakeCurrent();
+    public static native void nativeContextGetShaderProgramCacheStats(double[] out);
+    public static native void nativeSetAssetManager(final Object assetManager);
+    public static native void nativeSetShaderProgramDiskCache(final String directory, final long maxBytes);
+    public static native void nativeClearShaderProgramDiskCache();
+    public static native long nativeContextCreate(final boolean share, final long shareClassID);
+    public static native void nativeContextDestroyInstance(final long classID);
+    public static native void nativeContextBindThread(final long classID);
+    public static native void nativeContextSetMetricsEnabled(final long classID, final boolean enabled);
+    public static native String nativeContextGetMetrics(final long classID);
+    public static native void nativeContextResetMetrics(final long classID);
+    public static native void nativeContextGovernorSetEnabled(final long classID, final boolean enabled);
+    public static native void nativeContextGovernorConfigure(final long classID, final float targetFps, final float degradeRatio, final float recoverRatio, final int degradeAfterMs, final int recoverAfterMs);
+    public static native int nativeContextGovernorAddStep(final long classID, final int type, final String name, final long nodeClassID, final String property, final float value, final int intValue);
+    public static native void nativeContextGovernorClearSteps(final long classID);
+    public static native void nativeContextGovernorBeginFrame(final long classID);
+    public static native void nativeContextGovernorEndFrame(final long classID);
+    public static native void nativeContextGovernorSetListener(final long classID, final Object listener);
+
+    // offscreen session
+    public static native long nativeOffscreenSessionNew();
+    public static native void nativeOffscreenSessionDestroy(final long classID);
+    public static native void nativeOffscreenSessionSetFilters(final long classID, final long[] filterClassIDs);
+    public static native boolean nativeOffscreenSessionBindLandmarks(final long classID, final long filterClassID);
+    public static native boolean nativeOffscreenSessionProcess(final long classID, final Bitmap input, final Bitmap output);
 
     // utils
     public static native void nativeYUVtoRBGA(byte[] yuv, int width, int height, int[] out);
 
     public static native void nativeSetLandmarkCallback(Object source, final long classID);
+    public static native boolean nativeSourceBindLandmarks(final long classID, final long filterClassID, final boolean bind);
+    public static native void nativeSourceSetFaceDetectionCadence(final long classID, final int everyNFrames, final int minIntervalMs);
+    public static native void nativeSourceSetFaceDetectionMaxFaces(final long classID, final int maxFaces);
+    public static native void nativeSourceSetFaceLandmarksCallback(Object source, final long classID);
+    public static native void nativePreloadFaceDetector(Object listener);
+    public static native int nativeGetFaceDetectorState();
+    public static native void nativeUnloadFaceDetector();
 
 }
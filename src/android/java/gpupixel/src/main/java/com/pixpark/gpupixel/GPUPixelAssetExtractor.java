@@ -0,0 +1,283 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Copies the "resource" assets to files, off the calling thread and only
+ * when the app or the assets changed since the last run. The build lists
+ * every asset with its size and CRC in {@link #MANIFEST_ASSET}; the list
+ * from the last extraction is kept next to the files, so an unchanged
+ * launch costs one small read and a stat per file, and an update copies
+ * only the entries that differ. Files are written under a temporary name
+ * and renamed, a half-written model is never picked up.
+ * <p>
+ * Textures are read from the APK directly (see {@link GPUPixel#setContext});
+ * the face model is what needs a file, the detector only takes a path.
+ */
+public final class GPUPixelAssetExtractor {
+    private static final String TAG = "GPUPixelAssetExtractor";
+    public static final String ASSET_DIR = "resource";
+    public static final String MANIFEST_ASSET = "gpupixel_resource_manifest.txt";
+    private static final String STAMP_FILE = ".gpupixel_extracted";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_COPY_THREADS = 4;
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GPUPixelAssets");
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+
+    private GPUPixelAssetExtractor() {
+    }
+
+    /**
+     * Extracts the assets into directory in the background. The future
+     * yields the directory's path once every file is in place, or throws
+     * the error that stopped the extraction.
+     */
+    public static Future<String> extract(Context context, final File directory) {
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        return sExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                long start = System.currentTimeMillis();
+                int copied = extractSync(appContext, directory);
+                Log.i(TAG, "copied " + copied + " files in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                return directory.getAbsolutePath();
+            }
+        });
+    }
+
+    private static int extractSync(Context context, File directory) throws Exception {
+        AssetManager assets = context.getAssets();
+        String version = appVersion(context);
+        String manifest = readManifest(assets);
+        File stampFile = new File(directory, STAMP_FILE);
+        String stamp = stampFile.exists() ? readFile(stampFile) : null;
+        Map<String, String> extracted = stamp == null
+                ? new HashMap<String, String>()
+                : parseManifest(stamp.substring(stamp.indexOf('\n') + 1));
+
+        Map<String, String> entries;
+        if (manifest != null) {
+            entries = parseManifest(manifest);
+        } else if (stamp != null && stamp.startsWith(version + "\n")) {
+            // same install as last time, the assets can't have changed
+            entries = extracted;
+        } else {
+            // no way to tell what changed, everything is copied again
+            entries = listAssets(assets, "");
+            extracted.clear();
+        }
+
+        List<String> pending = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            File file = new File(directory, entry.getKey());
+            if (!entry.getValue().equals(extracted.get(entry.getKey()))
+                    || !file.isFile() || file.length() != entrySize(entry.getValue())) {
+                pending.add(entry.getKey());
+            }
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        // the stamp goes first, a crash mid-copy must not leave it claiming
+        // the old files are current
+        stampFile.delete();
+        copyAll(assets, directory, pending);
+        if (manifest == null) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                entry.setValue(Long.toString(new File(directory, entry.getKey()).length()));
+            }
+            manifest = formatManifest(entries);
+        }
+        File temporary = new File(directory, STAMP_FILE + ".tmp");
+        writeFile(temporary, version + "\n" + manifest);
+        if (!temporary.renameTo(stampFile)) {
+            throw new IOException("can't write " + stampFile);
+        }
+        return pending.size();
+    }
+
+    private static void copyAll(final AssetManager assets, final File directory,
+                                List<String> paths) throws Exception {
+        int threads = Math.min(MAX_COPY_THREADS,
+                Math.min(paths.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService copiers = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Void>> copies = new ArrayList<Future<Void>>();
+            for (final String path : paths) {
+                copies.add(copiers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        copy(assets, path, new File(directory, path));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> copy : copies) {
+                copy.get();
+            }
+        } finally {
+            copiers.shutdownNow();
+        }
+    }
+
+    private static void copy(AssetManager assets, String path, File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("can't create " + parent);
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        InputStream in = assets.open(ASSET_DIR + "/" + path, AssetManager.ACCESS_STREAMING);
+        try {
+            OutputStream out = new FileOutputStream(temporary);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("can't replace " + file);
+        }
+    }
+
+    private static String appVersion(Context context) {
+        try {
+            return Long.toString(context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException e) {
+            return "0";
+        }
+    }
+
+    private static String readManifest(AssetManager assets) {
+        try {
+            return readStream(assets.open(MANIFEST_ASSET));
+        } catch (IOException e) {
+            Log.w(TAG, MANIFEST_ASSET + " is missing, listing the assets instead");
+            return null;
+        }
+    }
+
+    // one "path\tsize\tcrc" line per asset, paths relative to ASSET_DIR
+    private static Map<String, String> parseManifest(String manifest) {
+        Map<String, String> entries = new HashMap<String, String>();
+        for (String line : manifest.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                entries.put(line.substring(0, tab), line.substring(tab + 1).trim());
+            }
+        }
+        return entries;
+    }
+
+    private static String formatManifest(Map<String, String> entries) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            builder.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static long entrySize(String value) {
+        int tab = value.indexOf('\t');
+        try {
+            return Long.parseLong(tab < 0 ? value : value.substring(0, tab));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // without a manifest the sizes are unknown until the files are copied
+    private static Map<String, String> listAssets(AssetManager assets, String prefix)
+            throws IOException {
+        Map<String, String> entries = new HashMap<String, String>();
+        String[] names = assets.list(prefix.isEmpty() ? ASSET_DIR : ASSET_DIR + "/" + prefix);
+        for (String name : names) {
+            String path = prefix.isEmpty() ? name : prefix + "/" + name;
+            String[] children = assets.list(ASSET_DIR + "/" + path);
+            if (children != null && children.length > 0) {
+                entries.putAll(listAssets(assets, path));
+            } else {
+                entries.put(path, "");
+            }
+        }
+        return entries;
+    }
+
+    private static String readFile(File file) {
+        try {
+            return readStream(new FileInputStream(file));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String readStream(InputStream in) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        return builder.toString();
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
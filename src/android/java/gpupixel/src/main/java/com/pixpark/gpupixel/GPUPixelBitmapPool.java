@@ -0,0 +1,62 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+
+/**
+ * Reusable ARGB_8888 Bitmaps for frame captures. Size it to the longest
+ * burst that should run without allocating; Bitmaps of another size, or
+ * beyond the limit, are left to the garbage collector when recycled.
+ */
+public final class GPUPixelBitmapPool {
+    private final int mMaxBitmaps;
+    private final ArrayDeque<Bitmap> mFree = new ArrayDeque<Bitmap>();
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mAllocatedCount = 0;
+
+    public GPUPixelBitmapPool(int maxBitmaps) {
+        mMaxBitmaps = Math.max(1, maxBitmaps);
+    }
+
+    public synchronized Bitmap obtain(int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            mFree.clear();
+            mWidth = width;
+            mHeight = height;
+        }
+        Bitmap bitmap = mFree.poll();
+        if (bitmap == null || bitmap.isRecycled()) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mAllocatedCount++;
+        }
+        return bitmap;
+    }
+
+    public synchronized void recycle(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (bitmap.getWidth() == mWidth && bitmap.getHeight() == mHeight
+                && mFree.size() < mMaxBitmaps) {
+            mFree.add(bitmap);
+        }
+    }
+
+    // Bitmaps created so far, a steady burst should stop growing this
+    public synchronized int getAllocatedCount() {
+        return mAllocatedCount;
+    }
+
+    public synchronized void clear() {
+        mFree.clear();
+    }
+}
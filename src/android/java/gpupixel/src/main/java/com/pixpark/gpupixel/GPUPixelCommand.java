@@ -0,0 +1,70 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+/**
+ * A recyclable unit of GL work. Commands live in the slots of a
+ * {@link GPUPixelCommandQueue} and are reused, so callers describe the work
+ * with a shared stateless {@link Action} plus the argument fields below
+ * instead of allocating a closure per call.
+ */
+public final class GPUPixelCommand {
+    public interface Action {
+        void run(GPUPixelCommand cmd);
+    }
+
+    private static final Action RUN_RUNNABLE = new Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            ((Runnable) cmd.arg0).run();
+        }
+    };
+
+    public Action action;
+    public Object arg0;
+    public Object arg1;
+    public Object arg2;
+    public long longArg;
+    public int intArg;
+    public int intArg1;
+    public float floatArg;
+    public boolean boolArg0;
+    public boolean boolArg1;
+
+    // true when the command was allocated because the ring was full
+    boolean spilled;
+    // ring position the command was claimed at
+    long position;
+
+    GPUPixelCommand() {
+    }
+
+    void setRunnable(Runnable runnable) {
+        action = RUN_RUNNABLE;
+        arg0 = runnable;
+    }
+
+    void execute() {
+        if (action != null) {
+            action.run(this);
+        }
+    }
+
+    void reset() {
+        action = null;
+        arg0 = null;
+        arg1 = null;
+        arg2 = null;
+        longArg = 0;
+        intArg = 0;
+        intArg1 = 0;
+        floatArg = 0.0f;
+        boolArg0 = false;
+        boolArg1 = false;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer / single-consumer ring of recyclable
+ * {@link GPUPixelCommand}s. Producers (UI, camera and GL threads) claim a
+ * slot with a CAS on the tail and never block; the GL thread drains the ring
+ * without holding any lock that producers contend on.
+ *
+ * When the ring is full, commands spill into an overflow list so no GL work
+ * is ever dropped. While spilling, every producer appends to the overflow
+ * list, and the list only runs once every slot claimed before it has run,
+ * which keeps each thread's commands in FIFO order. Overflows are
+ * counted and reported through {@link OverflowListener}.
+ */
+public final class GPUPixelCommandQueue {
+    public interface OverflowListener {
+        void onQueueOverflow(String queueName, int capacity, long overflowCount);
+    }
+
+    private final String mName;
+    private final GPUPixelCommand[] mSlots;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong(0);
+    private volatile long mHead = 0;
+
+    private final Object mConsumerLock = new Object();
+    private final Object mSpillLock = new Object();
+    private ArrayDeque<GPUPixelCommand> mSpill = new ArrayDeque<GPUPixelCommand>();
+    private ArrayDeque<GPUPixelCommand> mSpillDraining = new ArrayDeque<GPUPixelCommand>();
+    private volatile boolean mSpilling = false;
+
+    private final AtomicInteger mHighWaterMark = new AtomicInteger(0);
+    private final AtomicLong mOverflowCount = new AtomicLong(0);
+    private volatile OverflowListener mOverflowListener;
+
+    public GPUPixelCommandQueue(String name, int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mName = name;
+        mMask = size - 1;
+        mSlots = new GPUPixelCommand[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new GPUPixelCommand();
+            mSequences.set(i, i);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Claims a command for the caller to fill in. It must be handed back
+     * through {@link #publish(GPUPixelCommand)} exactly once.
+     */
+    public GPUPixelCommand claim(GPUPixelCommand.Action action) {
+        GPUPixelCommand cmd = null;
+        if (!mSpilling) {
+            long pos = mTail.get();
+            for (;;) {
+                int idx = (int) (pos & mMask);
+                long diff = mSequences.get(idx) - pos;
+                if (diff == 0) {
+                    if (mTail.compareAndSet(pos, pos + 1)) {
+                        cmd = mSlots[idx];
+                        cmd.position = pos;
+                        updateHighWaterMark((int) (pos + 1 - mHead));
+                        break;
+                    }
+                    pos = mTail.get();
+                } else if (diff < 0) {
+                    // ring is full
+                    break;
+                } else {
+                    pos = mTail.get();
+                }
+            }
+        }
+
+        if (cmd == null) {
+            cmd = new GPUPixelCommand();
+            cmd.spilled = true;
+        }
+        cmd.action = action;
+        return cmd;
+    }
+
+    public void publish(GPUPixelCommand cmd) {
+        if (!cmd.spilled) {
+            mSequences.set((int) (cmd.position & mMask), cmd.position + 1);
+            return;
+        }
+
+        boolean startedSpilling;
+        synchronized (mSpillLock) {
+            mSpill.add(cmd);
+            startedSpilling = !mSpilling;
+            mSpilling = true;
+        }
+        long overflowCount = mOverflowCount.incrementAndGet();
+        OverflowListener listener = mOverflowListener;
+        if (startedSpilling && listener != null) {
+            listener.onQueueOverflow(mName, mSlots.length, overflowCount);
+        }
+    }
+
+    public void add(Runnable runnable) {
+        GPUPixelCommand cmd = claim(null);
+        cmd.setRunnable(runnable);
+        publish(cmd);
+    }
+
+    /**
+     * Runs every published command on the calling (GL) thread, including
+     * commands enqueued while draining. Spilled commands behind a slot that
+     * is claimed but not yet published wait for the next drain. Returns the
+     * number executed.
+     */
+    public int drain() {
+        return drain(true);
+    }
+
+    /**
+     * Drops every pending command without running it.
+     */
+    public void clear() {
+        drain(false);
+    }
+
+    private int drain(boolean execute) {
+        int count = 0;
+        synchronized (mConsumerLock) {
+            for (;;) {
+                for (;;) {
+                    long pos = mHead;
+                    int idx = (int) (pos & mMask);
+                    if (mSequences.get(idx) != pos + 1) {
+                        break;
+                    }
+                    GPUPixelCommand cmd = mSlots[idx];
+                    mHead = pos + 1;
+                    try {
+                        if (execute) {
+                            cmd.execute();
+                        }
+                    } finally {
+                        cmd.reset();
+                        mSequences.set(idx, pos + mSlots.length);
+                    }
+                    count++;
+                }
+
+                if (!mSpilling) {
+                    break;
+                }
+                // A producer's spilled commands come after the ring slots it
+                // claimed before, so they only run once every claimed slot
+                // ran. Checked under the spill lock: whatever spilled by now
+                // was claimed after all of those.
+                ArrayDeque<GPUPixelCommand> batch = null;
+                boolean ringAhead = false;
+                synchronized (mSpillLock) {
+                    long head = mHead;
+                    if (mTail.get() == head) {
+                        batch = mSpill;
+                        mSpill = mSpillDraining;
+                        mSpillDraining = batch;
+                        mSpilling = false;
+                    } else {
+                        ringAhead = mSequences.get((int) (head & mMask)) == head + 1;
+                    }
+                }
+                if (batch == null) {
+                    if (ringAhead) {
+                        continue;
+                    }
+                    // a slot is claimed but not published yet, the next
+                    // drain picks up from there
+                    break;
+                }
+                GPUPixelCommand cmd;
+                while ((cmd = batch.poll()) != null) {
+                    if (execute) {
+                        cmd.execute();
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() == mHead && !mSpilling;
+    }
+
+    public int size() {
+        int spilled;
+        synchronized (mSpillLock) {
+            spilled = mSpill.size();
+        }
+        return (int) (mTail.get() - mHead) + spilled;
+    }
+
+    public int getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    public void setOverflowListener(OverflowListener listener) {
+        mOverflowListener = listener;
+    }
+
+    private void updateHighWaterMark(int occupancy) {
+        int current = mHighWaterMark.get();
+        while (occupancy > current) {
+            if (mHighWaterMark.compareAndSet(current, occupancy)) {
+                return;
+            }
+            current = mHighWaterMark.get();
+        }
+    }
+}
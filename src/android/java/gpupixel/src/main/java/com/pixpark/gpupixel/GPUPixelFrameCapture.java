@@ -0,0 +1,204 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One in-flight capture started by {@link GPUPixelSource#captureFrame}. The
+ * node's output is read back through a pixel pack buffer the next time it
+ * renders and written straight into the target Bitmap or direct ByteBuffer
+ * (tightly packed RGBA), so capturing never stalls the preview and several
+ * captures can be pending at once.
+ *
+ * The capture completes on the GL thread, where the optional callback runs.
+ * A capture backed by a {@link GPUPixelBitmapPool} hands its Bitmap back
+ * with {@link #release()}.
+ */
+public final class GPUPixelFrameCapture<T> implements Future<T> {
+    public interface Callback<T> {
+        // GL thread; check isDone() / isFailed() or call get()
+        void onCaptured(GPUPixelFrameCapture<T> capture);
+    }
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_WRITING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_FAILED = 3;
+    private static final int STATE_CANCELLED = 4;
+
+    private static final AtomicBoolean sPollScheduled = new AtomicBoolean(false);
+
+    // keeps polling after the last frame until pending readbacks are delivered
+    private static final Runnable POLL = new Runnable() {
+        @Override
+        public void run() {
+            sPollScheduled.set(false);
+            if (GPUPixel.nativeContextPollCaptures(false) > 0) {
+                schedulePoll();
+            }
+        }
+    };
+
+    private final T mTarget;
+    private final GPUPixelBitmapPool mPool;
+    private final Callback<T> mCallback;
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private final Object mLock = new Object();
+    private int mState = STATE_PENDING;
+    private int mWidth;
+    private int mHeight;
+    private long mTimestamp;
+
+    GPUPixelFrameCapture(T target, GPUPixelBitmapPool pool, Callback<T> callback) {
+        mTarget = target;
+        mPool = pool;
+        mCallback = callback;
+    }
+
+    static void schedulePoll() {
+        if (sPollScheduled.compareAndSet(false, true)) {
+            GPUPixel.getInstance().runOnPostDraw(POLL);
+            GPUPixel.getInstance().requestRender();
+        }
+    }
+
+    public T getTarget() {
+        return mTarget;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // milliseconds, the time the captured frame was processed
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public boolean isFailed() {
+        synchronized (mLock) {
+            return mState == STATE_FAILED;
+        }
+    }
+
+    // returns a pooled target to its pool; the target must not be used after
+    public void release() {
+        if (mPool != null) {
+            synchronized (mLock) {
+                if (mState == STATE_PENDING || mState == STATE_WRITING) {
+                    // still owned by the readback, it goes back once done
+                    mState = STATE_CANCELLED;
+                    mLatch.countDown();
+                    return;
+                }
+            }
+            mPool.recycle((Bitmap) mTarget);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (mLock) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mState = STATE_CANCELLED;
+        }
+        mLatch.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mState == STATE_CANCELLED;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        return mLatch.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mLatch.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        synchronized (mLock) {
+            if (mState == STATE_CANCELLED) {
+                throw new CancellationException();
+            }
+            if (mState == STATE_FAILED) {
+                throw new ExecutionException(new IllegalStateException(
+                        "frame capture failed, target missing or too small"));
+            }
+        }
+        return mTarget;
+    }
+
+    // called by native on the GL thread before the target is written;
+    // false once the capture was cancelled
+    private boolean beginWrite() {
+        synchronized (mLock) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mState = STATE_WRITING;
+            return true;
+        }
+    }
+
+    // called by native on the GL thread
+    private void complete(boolean ok, int width, int height, long timestamp) {
+        boolean cancelled;
+        synchronized (mLock) {
+            cancelled = mState == STATE_CANCELLED;
+            if (!cancelled) {
+                mState = ok ? STATE_DONE : STATE_FAILED;
+                mWidth = width;
+                mHeight = height;
+                mTimestamp = timestamp;
+            }
+        }
+        if (cancelled) {
+            if (mPool != null) {
+                mPool.recycle((Bitmap) mTarget);
+            }
+            return;
+        }
+        mLatch.countDown();
+        if (mCallback != null) {
+            mCallback.onCaptured(this);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import com.pixpark.gpupixel.filter.GPUPixelFilter;
+
+/**
+ * Holds a frame rate by giving up quality when the device can't keep up,
+ * e.g. once it throttles under heat. Every frame's render time is measured
+ * against the budget of the target rate; when frames run over it for a
+ * while the next step of a ladder is applied, and when they have stayed
+ * well under it for longer the last step is undone. A step that has to be
+ * applied again soon after being undone waits twice as long before the
+ * next try.
+ * <p>
+ * Steps are added in the order they should be given up, for a beauty
+ * pipeline typically:
+ * <pre>
+ * governor.addPropertyStep("blur radius", beauty, "blur_radius", 2);
+ * governor.addDetectionCadenceStep("detection", camera, 3, 100);
+ * governor.addPropertyStep("blur scale", beauty, "blur_scale", 0.5f);
+ * governor.addBypassStep("lipstick", lipstick);
+ * governor.setEnabled(true);
+ * </pre>
+ * Off until enabled; disabling it undoes every step. Sources and filters
+ * in steps must outlive them, call {@link #clearSteps()} before destroying
+ * them.
+ */
+public final class GPUPixelFrameGovernor {
+    public interface Listener {
+        // on the GL thread, after a step was applied (level went up) or
+        // undone; frameMs is the averaged render time that caused it
+        void onTransition(int level, int previousLevel, String step,
+                          float frameMs, float budgetMs);
+    }
+
+    public static final float DEFAULT_TARGET_FPS = 30;
+    public static final float DEFAULT_DEGRADE_RATIO = 0.9f;
+    public static final float DEFAULT_RECOVER_RATIO = 0.6f;
+    public static final int DEFAULT_DEGRADE_AFTER_MS = 1000;
+    public static final int DEFAULT_RECOVER_AFTER_MS = 5000;
+
+    // step types, as the native side knows them
+    private static final int STEP_PROPERTY = 0;
+    private static final int STEP_RENDER_SCALE = 1;
+    private static final int STEP_BYPASS = 2;
+    private static final int STEP_DETECTION_CADENCE = 3;
+
+    private final GPUPixel mOwner;
+    private volatile boolean mEnabled = false;
+    private volatile int mLevel = 0;
+    private volatile int mStepCount = 0;
+    private volatile float mFrameMs = 0;
+    private volatile Listener mListener = null;
+    private boolean mListening = false;
+
+    GPUPixelFrameGovernor(GPUPixel owner) {
+        mOwner = owner;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+        mOwner.runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (enabled && !mListening) {
+                    GPUPixel.nativeContextGovernorSetListener(mOwner.getNativeContext(),
+                            GPUPixelFrameGovernor.this);
+                    mListening = true;
+                }
+                GPUPixel.nativeContextGovernorSetEnabled(mOwner.getNativeContext(), enabled);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * degradeRatio and recoverRatio are shares of the frame budget, see
+     * the class comment; the defaults are the DEFAULT_ constants.
+     */
+    public void configure(final float targetFps, final float degradeRatio,
+                          final float recoverRatio, final int degradeAfterMs,
+                          final int recoverAfterMs) {
+        mOwner.runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                GPUPixel.nativeContextGovernorConfigure(mOwner.getNativeContext(), targetFps,
+                        degradeRatio, recoverRatio, degradeAfterMs, recoverAfterMs);
+            }
+        });
+    }
+
+    public void setTargetFps(float targetFps) {
+        configure(targetFps, DEFAULT_DEGRADE_RATIO, DEFAULT_RECOVER_RATIO,
+                DEFAULT_DEGRADE_AFTER_MS, DEFAULT_RECOVER_AFTER_MS);
+    }
+
+    // sets a float property of filter, e.g. BeautyFaceFilter's
+    // "blur_radius" or "blur_scale"; undoing it restores the old value
+    public void addPropertyStep(String name, GPUPixelFilter filter, String property,
+                                float degradedValue) {
+        addStep(STEP_PROPERTY, name, filter, property, degradedValue, 0);
+    }
+
+    // see GPUPixelFilter.setRenderScale
+    public void addRenderScaleStep(String name, GPUPixelFilter filter, float scale) {
+        addStep(STEP_RENDER_SCALE, name, filter, null, scale, 0);
+    }
+
+    // the filter hands its input on untouched while the step is applied
+    public void addBypassStep(String name, GPUPixelFilter filter) {
+        addStep(STEP_BYPASS, name, filter, null, 0, 0);
+    }
+
+    // see GPUPixelSource.setFaceDetectionCadence
+    public void addDetectionCadenceStep(String name, GPUPixelSource source,
+                                        int everyNFrames, int minIntervalMs) {
+        addStep(STEP_DETECTION_CADENCE, name, source, null, everyNFrames, minIntervalMs);
+    }
+
+    private void addStep(final int type, final String name, final GPUPixelSource node,
+                         final String property, final float value, final int intValue) {
+        mStepCount++;
+        mOwner.runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (node.getNativeClassID() != 0) {
+                    GPUPixel.nativeContextGovernorAddStep(mOwner.getNativeContext(), type, name,
+                            node.getNativeClassID(), property, value, intValue);
+                }
+            }
+        });
+    }
+
+    public void clearSteps() {
+        mStepCount = 0;
+        mOwner.runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                GPUPixel.nativeContextGovernorClearSteps(mOwner.getNativeContext());
+            }
+        });
+    }
+
+    public int getStepCount() {
+        return mStepCount;
+    }
+
+    // steps applied right now, 0 at full quality
+    public int getLevel() {
+        return mLevel;
+    }
+
+    // averaged render time at the last transition
+    public float getFrameMs() {
+        return mFrameMs;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // GL thread, around the work of one frame
+    void beginFrame() {
+        if (mEnabled) {
+            GPUPixel.nativeContextGovernorBeginFrame(mOwner.getNativeContext());
+        }
+    }
+
+    void endFrame() {
+        if (mEnabled) {
+            GPUPixel.nativeContextGovernorEndFrame(mOwner.getNativeContext());
+        }
+    }
+
+    // GL thread, before the native context goes; drops the steps and the
+    // native side's reference to this
+    void release(long context) {
+        mEnabled = false;
+        mStepCount = 0;
+        mLevel = 0;
+        GPUPixel.nativeContextGovernorSetEnabled(context, false);
+        GPUPixel.nativeContextGovernorClearSteps(context);
+        GPUPixel.nativeContextGovernorSetListener(context, null);
+        mListening = false;
+    }
+
+    // from native
+    void onTransition(int level, int previousLevel, String step, float frameMs,
+                      float budgetMs) {
+        mLevel = level;
+        mFrameMs = frameMs;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onTransition(level, previousLevel, step, frameMs, budgetMs);
+        }
+    }
+}
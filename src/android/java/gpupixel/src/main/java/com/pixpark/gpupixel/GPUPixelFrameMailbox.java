@@ -0,0 +1,156 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-slot, latest-frame-wins hand-off from a capture thread to the GL
+ * thread. At most one render command per mailbox is ever queued; a frame
+ * posted while an older one is still waiting replaces it, and the older one
+ * is handed back through {@link Handler#onFrameDropped} so its buffer can be
+ * recycled. Latency is measured from {@link #post} to the GL thread picking
+ * the frame up.
+ */
+public final class GPUPixelFrameMailbox {
+    public interface Handler {
+        // GL thread
+        void onFrame(Object frame, Object tag, int width, int height);
+
+        // posting thread, or the caller of clear()
+        void onFrameDropped(Object frame, Object tag);
+    }
+
+    private static final GPUPixelCommand.Action DRAIN = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            ((GPUPixelFrameMailbox) cmd.arg0).drain();
+        }
+    };
+
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    private Object mFrame;
+    private Object mTag;
+    private int mWidth;
+    private int mHeight;
+    private long mPostTimeNs;
+    private boolean mDrainScheduled = false;
+
+    private final AtomicLong mReceivedCount = new AtomicLong(0);
+    private final AtomicLong mRenderedCount = new AtomicLong(0);
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+    private volatile long mLastLatencyNs = 0;
+    private volatile long mMaxLatencyNs = 0;
+    private volatile long mTotalLatencyNs = 0;
+
+    public GPUPixelFrameMailbox(Handler handler) {
+        mHandler = handler;
+    }
+
+    public void post(Object frame, Object tag, int width, int height) {
+        Object droppedFrame;
+        Object droppedTag;
+        boolean schedule;
+        synchronized (mLock) {
+            droppedFrame = mFrame;
+            droppedTag = mTag;
+            mFrame = frame;
+            mTag = tag;
+            mWidth = width;
+            mHeight = height;
+            mPostTimeNs = System.nanoTime();
+            schedule = !mDrainScheduled;
+            mDrainScheduled = true;
+        }
+        mReceivedCount.incrementAndGet();
+
+        if (droppedFrame != null) {
+            mDroppedCount.incrementAndGet();
+            mHandler.onFrameDropped(droppedFrame, droppedTag);
+        }
+        if (schedule) {
+            GPUPixelCommand cmd = GPUPixel.getInstance().obtainDrawCommand(DRAIN);
+            cmd.arg0 = this;
+            GPUPixel.getInstance().runOnDraw(cmd);
+        }
+    }
+
+    // drops a pending frame, e.g. when the producer goes away
+    public void clear() {
+        Object frame;
+        Object tag;
+        synchronized (mLock) {
+            frame = mFrame;
+            tag = mTag;
+            mFrame = null;
+            mTag = null;
+        }
+        if (frame != null) {
+            mDroppedCount.incrementAndGet();
+            mHandler.onFrameDropped(frame, tag);
+        }
+    }
+
+    private void drain() {
+        Object frame;
+        Object tag;
+        int width;
+        int height;
+        long postTimeNs;
+        synchronized (mLock) {
+            frame = mFrame;
+            tag = mTag;
+            width = mWidth;
+            height = mHeight;
+            postTimeNs = mPostTimeNs;
+            mFrame = null;
+            mTag = null;
+            mDrainScheduled = false;
+        }
+        if (frame == null) {
+            return;
+        }
+
+        long latencyNs = System.nanoTime() - postTimeNs;
+        mLastLatencyNs = latencyNs;
+        if (latencyNs > mMaxLatencyNs) {
+            mMaxLatencyNs = latencyNs;
+        }
+        // only the GL thread writes the total
+        mTotalLatencyNs += latencyNs;
+        mRenderedCount.incrementAndGet();
+
+        mHandler.onFrame(frame, tag, width, height);
+    }
+
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    public long getRenderedCount() {
+        return mRenderedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getLastLatencyNs() {
+        return mLastLatencyNs;
+    }
+
+    public long getMaxLatencyNs() {
+        return mMaxLatencyNs;
+    }
+
+    public long getAverageLatencyNs() {
+        long rendered = mRenderedCount.get();
+        return rendered == 0 ? 0 : mTotalLatencyNs / rendered;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns render requests into at most one render per vsync. Requests from
+ * any thread between two ticks are coalesced; on the tick the view is
+ * asked to render once, and the frame it renders carries that tick's
+ * presentation time through the graph instead of whenever the GL thread
+ * happened to get to it. Each rendered frame is checked against its
+ * deadline, the next vsync after the one it was scheduled on.
+ * <p>
+ * Ticks come from a {@link Clock}: Choreographer on a device, anything
+ * that calls back with a time in tests.
+ */
+public final class GPUPixelFrameScheduler {
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+
+    public interface Clock {
+        // same time base as the frame times handed to callbacks
+        long nanoTime();
+
+        // calls back once, on the next vsync, from any thread
+        void postFrameCallback(FrameCallback callback);
+    }
+
+    public static final long DEFAULT_VSYNC_PERIOD_NANOS = 1000000000L / 60;
+
+    public static final class Stats {
+        // render requests, and how many of them shared a frame with another
+        public final long requests;
+        public final long coalesced;
+        public final long frames;
+        // frames that finished after the vsync following theirs
+        public final long missedDeadlines;
+        // vsyncs left out between frames less than four periods apart
+        public final long skippedVsyncs;
+        // tick to end of render
+        public final GPUPixelMetrics.Timing latency;
+        // tick to tick of consecutive frames; judder shows as spread here
+        public final GPUPixelMetrics.Timing frameInterval;
+
+        Stats(long requests, long coalesced, long frames, long missedDeadlines,
+              long skippedVsyncs, GPUPixelMetrics.Timing latency,
+              GPUPixelMetrics.Timing frameInterval) {
+            this.requests = requests;
+            this.coalesced = coalesced;
+            this.frames = frames;
+            this.missedDeadlines = missedDeadlines;
+            this.skippedVsyncs = skippedVsyncs;
+            this.latency = latency;
+            this.frameInterval = frameInterval;
+        }
+    }
+
+    /**
+     * Choreographer ticks. Its instance belongs to the main thread, so
+     * callbacks are posted from there; one is pending at a time.
+     */
+    public static final class ChoreographerClock implements Clock {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private volatile FrameCallback mCallback;
+
+        private final Choreographer.FrameCallback mVsync = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                FrameCallback callback = mCallback;
+                mCallback = null;
+                if (callback != null) {
+                    callback.doFrame(frameTimeNanos);
+                }
+            }
+        };
+
+        private final Runnable mPost = new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(mVsync);
+            }
+        };
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void postFrameCallback(FrameCallback callback) {
+            mCallback = callback;
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                mPost.run();
+            } else {
+                mMainHandler.post(mPost);
+            }
+        }
+    }
+
+    private final Clock mClock;
+    private final Runnable mRender;
+    private volatile long mVsyncPeriodNanos = DEFAULT_VSYNC_PERIOD_NANOS;
+
+    private final AtomicBoolean mTickPosted = new AtomicBoolean(false);
+    private final AtomicBoolean mRequested = new AtomicBoolean(false);
+    private final AtomicLong mRequests = new AtomicLong(0);
+    private final AtomicLong mCoalesced = new AtomicLong(0);
+    // the tick the view was last asked to render for, 0 once taken
+    private final AtomicLong mScheduledVsyncNanos = new AtomicLong(0);
+
+    // GL thread only
+    private long mFrameVsyncNanos = 0;
+    private long mLastFrameVsyncNanos = 0;
+    private boolean mInScheduledFrame = false;
+    private volatile long mFrames = 0;
+    private volatile long mMissedDeadlines = 0;
+    private volatile long mSkippedVsyncs = 0;
+    private final GPUPixelMetrics.Window mLatency = new GPUPixelMetrics.Window();
+    private final GPUPixelMetrics.Window mFrameInterval = new GPUPixelMetrics.Window();
+
+    private final FrameCallback mTick = new FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mTickPosted.set(false);
+            if (!mRequested.getAndSet(false)) {
+                return;
+            }
+            mScheduledVsyncNanos.set(frameTimeNanos);
+            mRender.run();
+        }
+    };
+
+    /**
+     * render asks the view for one frame, e.g. GLSurfaceView.requestRender;
+     * the view must then call beginFrame() and endFrame() around it.
+     */
+    public GPUPixelFrameScheduler(Clock clock, Runnable render) {
+        mClock = clock;
+        mRender = render;
+    }
+
+    public void setVsyncPeriodNanos(long periodNanos) {
+        if (periodNanos > 0) {
+            mVsyncPeriodNanos = periodNanos;
+        }
+    }
+
+    public long getVsyncPeriodNanos() {
+        return mVsyncPeriodNanos;
+    }
+
+    // from any thread; renders on the next vsync
+    public void requestFrame() {
+        mRequests.incrementAndGet();
+        if (mRequested.getAndSet(true)) {
+            mCoalesced.incrementAndGet();
+        }
+        if (mTickPosted.compareAndSet(false, true)) {
+            mClock.postFrameCallback(mTick);
+        }
+    }
+
+    // GL thread, before the frame's commands run
+    void beginFrame() {
+        long vsync = mScheduledVsyncNanos.getAndSet(0);
+        mInScheduledFrame = vsync != 0;
+        // renders the view does on its own, e.g. after a resize, count
+        // from now
+        mFrameVsyncNanos = mInScheduledFrame ? vsync : mClock.nanoTime();
+    }
+
+    // GL thread, after the frame's commands ran
+    void endFrame() {
+        if (!mInScheduledFrame) {
+            return;
+        }
+        mInScheduledFrame = false;
+        long period = mVsyncPeriodNanos;
+        long latency = mClock.nanoTime() - mFrameVsyncNanos;
+        mLatency.add(latency / 1e6f);
+        if (latency > period) {
+            mMissedDeadlines++;
+        }
+        if (mLastFrameVsyncNanos != 0) {
+            long interval = mFrameVsyncNanos - mLastFrameVsyncNanos;
+            // long gaps are idle time, not judder
+            if (interval < 4 * period) {
+                mFrameInterval.add(interval / 1e6f);
+                long skipped = (interval + period / 2) / period - 1;
+                if (skipped > 0) {
+                    mSkippedVsyncs += skipped;
+                }
+            }
+        }
+        mLastFrameVsyncNanos = mFrameVsyncNanos;
+        mFrames++;
+    }
+
+    /**
+     * Presentation time of the frame being rendered, in milliseconds on
+     * the clock's time base: the vsync after the one it was scheduled on,
+     * the earliest it can reach the screen. GL thread only.
+     */
+    public long getPresentationTimeMillis() {
+        long vsync = mFrameVsyncNanos != 0 ? mFrameVsyncNanos : mClock.nanoTime();
+        return (vsync + mVsyncPeriodNanos) / 1000000L;
+    }
+
+    public Stats getStats() {
+        return new Stats(mRequests.get(), mCoalesced.get(), mFrames, mMissedDeadlines,
+                mSkippedVsyncs, mLatency.timing(), mFrameInterval.timing());
+    }
+
+    // GL thread, or while nothing renders
+    public void resetStats() {
+        mRequests.set(0);
+        mCoalesced.set(0);
+        mFrames = 0;
+        mMissedDeadlines = 0;
+        mSkippedVsyncs = 0;
+        mLastFrameVsyncNanos = 0;
+        mLatency.clear();
+        mFrameInterval.clear();
+    }
+}
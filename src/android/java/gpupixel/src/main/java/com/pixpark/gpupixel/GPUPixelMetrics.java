@@ -0,0 +1,175 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of a pipeline's timings, see {@link GPUPixel#getMetricsSnapshot()}.
+ * Each graph node reports its own pass only, not the nodes it feeds: CPU
+ * time on the GL thread and, where the driver has timer queries, GPU time.
+ * The renderer's pre-draw, draw and post-draw queues report how long each
+ * drain took. All timings cover the last {@link #WINDOW} samples.
+ */
+public final class GPUPixelMetrics {
+    public static final int WINDOW = 120;
+    // upper bounds of the histogram buckets, the last bucket has none
+    public static final double[] BUCKET_BOUNDS_MS = {
+            0.1, 0.25, 0.5, 1.0, 2.0, 4.0, 8.0, 16.0, 33.0};
+
+    public static final class Timing {
+        public final int samples;
+        public final double meanMs;
+        public final double p50Ms;
+        public final double p95Ms;
+        public final double maxMs;
+        // samples per bucket of BUCKET_BOUNDS_MS
+        public final int[] buckets;
+
+        Timing(int samples, double meanMs, double p50Ms, double p95Ms, double maxMs, int[] buckets) {
+            this.samples = samples;
+            this.meanMs = meanMs;
+            this.p50Ms = p50Ms;
+            this.p95Ms = p95Ms;
+            this.maxMs = maxMs;
+            this.buckets = buckets;
+        }
+
+        static Timing fromJson(JSONObject json) {
+            int[] buckets = new int[BUCKET_BOUNDS_MS.length + 1];
+            if (json == null) {
+                return new Timing(0, 0, 0, 0, 0, buckets);
+            }
+            JSONArray array = json.optJSONArray("buckets");
+            for (int i = 0; array != null && i < array.length() && i < buckets.length; i++) {
+                buckets[i] = array.optInt(i);
+            }
+            return new Timing(json.optInt("samples"), json.optDouble("meanMs"),
+                    json.optDouble("p50Ms"), json.optDouble("p95Ms"),
+                    json.optDouble("maxMs"), buckets);
+        }
+    }
+
+    public static final class Node {
+        // stable for the node's lifetime
+        public final long id;
+        // filter class, e.g. "SaturationFilter"
+        public final String name;
+        // nodes this one renders into and the input index it feeds there
+        public final long[] targetIds;
+        public final int[] targetInputs;
+        public final Timing cpu;
+        // no samples when the driver has no timer queries
+        public final Timing gpu;
+
+        Node(JSONObject json) {
+            id = json.optLong("id");
+            name = json.optString("name");
+            JSONArray targets = json.optJSONArray("targets");
+            int count = targets == null ? 0 : targets.length();
+            targetIds = new long[count];
+            targetInputs = new int[count];
+            for (int i = 0; i < count; i++) {
+                JSONObject target = targets.optJSONObject(i);
+                targetIds[i] = target.optLong("id");
+                targetInputs[i] = target.optInt("input");
+            }
+            cpu = Timing.fromJson(json.optJSONObject("cpu"));
+            gpu = Timing.fromJson(json.optJSONObject("gpu"));
+        }
+    }
+
+    public final boolean gpuTimingSupported;
+    public final List<Node> nodes;
+    // one line per node: "id name -> id[input] ..."
+    public final String topology;
+    public final Timing preDrawQueue;
+    public final Timing drawQueue;
+    public final Timing postDrawQueue;
+    // the native part as reported, for sending along with telemetry
+    public final String json;
+
+    GPUPixelMetrics(String nativeJson, Timing preDraw, Timing draw, Timing postDraw) {
+        boolean gpu = false;
+        String topologyDump = "";
+        List<Node> parsed = new ArrayList<Node>();
+        try {
+            JSONObject root = new JSONObject(nativeJson);
+            gpu = root.optBoolean("gpuTiming");
+            topologyDump = root.optString("topology");
+            JSONArray array = root.optJSONArray("nodes");
+            for (int i = 0; array != null && i < array.length(); i++) {
+                parsed.add(new Node(array.optJSONObject(i)));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        gpuTimingSupported = gpu;
+        nodes = Collections.unmodifiableList(parsed);
+        topology = topologyDump;
+        preDrawQueue = preDraw;
+        drawQueue = draw;
+        postDrawQueue = postDraw;
+        json = nativeJson;
+    }
+
+    /**
+     * Rolling window of durations recorded on one thread and read from any,
+     * used for the renderer queues.
+     */
+    static final class Window {
+        private final float[] mSamples = new float[WINDOW];
+        private int mCount = 0;
+        private int mNext = 0;
+
+        synchronized void add(float ms) {
+            mSamples[mNext] = ms;
+            mNext = (mNext + 1) % WINDOW;
+            if (mCount < WINDOW) {
+                mCount++;
+            }
+        }
+
+        synchronized void clear() {
+            mCount = 0;
+            mNext = 0;
+        }
+
+        Timing timing() {
+            float[] sorted;
+            synchronized (this) {
+                sorted = new float[mCount];
+                System.arraycopy(mSamples, 0, sorted, 0, mCount);
+            }
+            int[] buckets = new int[BUCKET_BOUNDS_MS.length + 1];
+            int count = sorted.length;
+            if (count == 0) {
+                return new Timing(0, 0, 0, 0, 0, buckets);
+            }
+            Arrays.sort(sorted);
+            double total = 0;
+            for (float ms : sorted) {
+                total += ms;
+                int bucket = 0;
+                while (bucket < BUCKET_BOUNDS_MS.length && ms > BUCKET_BOUNDS_MS[bucket]) {
+                    bucket++;
+                }
+                buckets[bucket]++;
+            }
+            return new Timing(count, total / count, sorted[count / 2],
+                    sorted[Math.min(count - 1, count * 95 / 100)], sorted[count - 1], buckets);
+        }
+    }
+}
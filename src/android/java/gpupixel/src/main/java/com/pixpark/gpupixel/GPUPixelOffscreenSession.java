@@ -0,0 +1,135 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import android.graphics.Bitmap;
+
+import com.pixpark.gpupixel.filter.GPUPixelFilter;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a filter chain over Bitmaps with no GPUPixelView, for batch work such
+ * as applying a beauty preset to saved photos. Everything happens on a
+ * thread owned by the session, which renders through GPUPixel's own
+ * pbuffer context.
+ *
+ * The session drains GPUPixel's command queues itself before each image, so
+ * filters are created and configured the usual way. Don't attach a
+ * GLSurfaceView to GPUPixel while a session is open.
+ */
+public final class GPUPixelOffscreenSession {
+    private final ExecutorService mExecutor;
+    // session thread only
+    private long mNativeSessionID = 0;
+
+    public GPUPixelOffscreenSession() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "GPUPixelOffscreen");
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                GPUPixel.nativeContextMakeCurrent();
+                drainCommands();
+                mNativeSessionID = GPUPixel.nativeOffscreenSessionNew();
+            }
+        });
+    }
+
+    // applied in order; no filters hands the input back unchanged
+    public void setFilters(GPUPixelFilter... filters) {
+        final GPUPixelFilter[] chain = filters.clone();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // filters created just before have their native side now
+                drainCommands();
+                long[] ids = new long[chain.length];
+                for (int i = 0; i < chain.length; i++) {
+                    ids[i] = chain[i].getNativeClassID();
+                }
+                if (mNativeSessionID != 0) {
+                    GPUPixel.nativeOffscreenSessionSetFilters(mNativeSessionID, ids);
+                }
+            }
+        });
+    }
+
+    // landmarks are detected on every image before it renders
+    public void bindLandmarks(final GPUPixelFilter filter) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drainCommands();
+                if (mNativeSessionID != 0) {
+                    GPUPixel.nativeOffscreenSessionBindLandmarks(mNativeSessionID,
+                            filter.getNativeClassID());
+                }
+            }
+        });
+    }
+
+    public Future<Bitmap> process(Bitmap input) {
+        return process(input, null);
+    }
+
+    // input and output are ARGB_8888 and the same size; a null output is
+    // allocated. Images are processed in the order they were submitted.
+    public Future<Bitmap> process(final Bitmap input, final Bitmap output) {
+        if (input.getConfig() != Bitmap.Config.ARGB_8888) {
+            throw new IllegalArgumentException("input must be ARGB_8888");
+        }
+        if (output != null && (output.getWidth() != input.getWidth()
+                || output.getHeight() != input.getHeight())) {
+            throw new IllegalArgumentException("output must match the input size");
+        }
+        return mExecutor.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                drainCommands();
+                Bitmap result = output;
+                if (result == null) {
+                    result = Bitmap.createBitmap(input.getWidth(), input.getHeight(),
+                            Bitmap.Config.ARGB_8888);
+                }
+                if (mNativeSessionID == 0
+                        || !GPUPixel.nativeOffscreenSessionProcess(mNativeSessionID, input, result)) {
+                    throw new IllegalStateException("offscreen processing failed");
+                }
+                return result;
+            }
+        });
+    }
+
+    // images already submitted still finish
+    public void release() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drainCommands();
+                if (mNativeSessionID != 0) {
+                    GPUPixel.nativeOffscreenSessionDestroy(mNativeSessionID);
+                    mNativeSessionID = 0;
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private static void drainCommands() {
+        GPUPixel.getInstance().getRenderer().drainQueues();
+    }
+}
@@ -11,20 +11,53 @@ package com.pixpark.gpupixel;
 import android.opengl.GLSurfaceView.Renderer;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
-import java.util.Queue;
-import java.util.LinkedList;
 
 public class GPUPixelRenderer implements Renderer {
-    private final Queue<Runnable> mPreDrawQueue;
-    private final Queue<Runnable> mDrawQueue;
-    private final Queue<Runnable> mPostDrawQueue;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final GPUPixelCommandQueue mPreDrawQueue;
+    private final GPUPixelCommandQueue mDrawQueue;
+    private final GPUPixelCommandQueue mPostDrawQueue;
 
     private GPUPixelSource mSource = null;
+    private GPUPixel mOwner = null;
+    private GPUPixelFrameScheduler mScheduler = null;
+    private GPUPixelFrameGovernor mGovernor = null;
+    private Thread mBoundThread = null;
+
+    private volatile boolean mMeasureQueues = false;
+    private final GPUPixelMetrics.Window mPreDrawTimes = new GPUPixelMetrics.Window();
+    private final GPUPixelMetrics.Window mDrawTimes = new GPUPixelMetrics.Window();
+    private final GPUPixelMetrics.Window mPostDrawTimes = new GPUPixelMetrics.Window();
 
     public GPUPixelRenderer() {
-        mPreDrawQueue = new LinkedList<Runnable>();
-        mDrawQueue = new LinkedList<Runnable>();
-        mPostDrawQueue = new LinkedList<Runnable>();
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public GPUPixelRenderer(int queueCapacity) {
+        mPreDrawQueue = new GPUPixelCommandQueue("pre-draw", queueCapacity);
+        mDrawQueue = new GPUPixelCommandQueue("draw", queueCapacity);
+        mPostDrawQueue = new GPUPixelCommandQueue("post-draw", queueCapacity);
+    }
+
+    void setOwner(GPUPixel owner) {
+        mOwner = owner;
+    }
+
+    // GLSurfaceView keeps one thread per view, binding it once is enough
+    private void bindThread() {
+        if (mOwner != null && mBoundThread != Thread.currentThread()) {
+            mOwner.bindCurrentThread();
+            mBoundThread = Thread.currentThread();
+        }
+    }
+
+    void setFrameScheduler(GPUPixelFrameScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    void setFrameGovernor(GPUPixelFrameGovernor governor) {
+        mGovernor = governor;
     }
 
     public void setSource(GPUPixelSource source) {
@@ -33,10 +66,12 @@ public class GPUPixelRenderer implements Renderer {
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        bindThread();
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
+        bindThread();
         if (mSource != null) {
             mSource.proceed(true, false);
         }
@@ -44,53 +79,120 @@ public class GPUPixelRenderer implements Renderer {
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        runAll(mPreDrawQueue);
-        runAll(mDrawQueue);
-        runAll(mPostDrawQueue);
+        bindThread();
+        GPUPixelFrameScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.beginFrame();
+        }
+        // a GPU that can't keep up blocks the next frame's GL calls, so
+        // this also tells when the GPU is the bottleneck
+        GPUPixelFrameGovernor governor = mGovernor;
+        if (governor != null) {
+            governor.beginFrame();
+        }
+        if (!mMeasureQueues) {
+            mPreDrawQueue.drain();
+            mDrawQueue.drain();
+            mPostDrawQueue.drain();
+        } else {
+            long start = System.nanoTime();
+            mPreDrawQueue.drain();
+            long preDrawEnd = System.nanoTime();
+            mDrawQueue.drain();
+            long drawEnd = System.nanoTime();
+            mPostDrawQueue.drain();
+            long end = System.nanoTime();
+            mPreDrawTimes.add((preDrawEnd - start) / 1e6f);
+            mDrawTimes.add((drawEnd - preDrawEnd) / 1e6f);
+            mPostDrawTimes.add((end - drawEnd) / 1e6f);
+        }
+        if (governor != null) {
+            governor.endFrame();
+        }
+        if (scheduler != null) {
+            scheduler.endFrame();
+        }
     }
 
-    private void runAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll().run();
-            }
-        }
+    // runs what is queued outside of a frame, e.g. for offscreen work;
+    // neither the scheduler nor the governor sees it
+    void drainQueues() {
+        bindThread();
+        mPreDrawQueue.drain();
+        mDrawQueue.drain();
+        mPostDrawQueue.drain();
+    }
+
+    void setMeasureQueues(boolean measure) {
+        mMeasureQueues = measure;
+    }
+
+    void resetQueueTimes() {
+        mPreDrawTimes.clear();
+        mDrawTimes.clear();
+        mPostDrawTimes.clear();
+    }
+
+    GPUPixelMetrics.Timing getPreDrawTiming() {
+        return mPreDrawTimes.timing();
+    }
+
+    GPUPixelMetrics.Timing getDrawTiming() {
+        return mDrawTimes.timing();
+    }
+
+    GPUPixelMetrics.Timing getPostDrawTiming() {
+        return mPostDrawTimes.timing();
     }
 
     protected boolean isPreDrawQueueEmpty() {
-        synchronized (mPreDrawQueue) {
-            return mPreDrawQueue.isEmpty();
-        }
+        return mPreDrawQueue.isEmpty();
     }
 
     protected void runOnPreDraw(final Runnable runnable) {
-        synchronized (mPreDrawQueue) {
-            mPreDrawQueue.add(runnable);
-        }
+        mPreDrawQueue.add(runnable);
     }
 
     protected boolean isDrawQueueEmpty() {
-        synchronized (mDrawQueue) {
-            return mDrawQueue.isEmpty();
-        }
+        return mDrawQueue.isEmpty();
     }
 
     protected void runOnDraw(final Runnable runnable) {
-        synchronized (mDrawQueue) {
-            mDrawQueue.add(runnable);
-        }
+        mDrawQueue.add(runnable);
+    }
+
+    protected GPUPixelCommand obtainDrawCommand(GPUPixelCommand.Action action) {
+        return mDrawQueue.claim(action);
+    }
+
+    protected void runOnDraw(GPUPixelCommand cmd) {
+        mDrawQueue.publish(cmd);
     }
 
     protected boolean isPostDrawQueueEmpty() {
-        synchronized (mPostDrawQueue) {
-            return mPostDrawQueue.isEmpty();
-        }
+        return mPostDrawQueue.isEmpty();
     }
 
     protected void runOnPostDraw(final Runnable runnable) {
-        synchronized (mPostDrawQueue) {
-            mPostDrawQueue.add(runnable);
-        }
+        mPostDrawQueue.add(runnable);
+    }
+
+    public GPUPixelCommandQueue getPreDrawQueue() {
+        return mPreDrawQueue;
+    }
+
+    public GPUPixelCommandQueue getDrawQueue() {
+        return mDrawQueue;
+    }
+
+    public GPUPixelCommandQueue getPostDrawQueue() {
+        return mPostDrawQueue;
+    }
+
+    public void setQueueOverflowListener(GPUPixelCommandQueue.OverflowListener listener) {
+        mPreDrawQueue.setOverflowListener(listener);
+        mDrawQueue.setOverflowListener(listener);
+        mPostDrawQueue.setOverflowListener(listener);
     }
 
     public void clear() {
@@ -15,6 +15,7 @@ import java.nio.ByteBuffer;
 
 public abstract class GPUPixelSource {
     protected long mNativeClassID = 0;
+    private volatile GPUPixel.GPUPixelFaceLandmarksCallback mFaceLandmarksCallback;
 
     public long getNativeClassID() {
         return mNativeClassID;
@@ -24,14 +25,51 @@ public abstract class GPUPixelSource {
         return addTarget(target, -1);
     }
 
+    private static final GPUPixelCommand.Action ADD_TARGET = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            GPUPixelSource source = (GPUPixelSource) cmd.arg0;
+            GPUPixelTarget target = (GPUPixelTarget) cmd.arg1;
+            if (source.mNativeClassID != 0)
+                GPUPixel.nativeSourceAddTarget(source.mNativeClassID, target.getNativeClassID(), cmd.intArg, target instanceof GPUPixelFilter);
+        }
+    };
+
+    private static final GPUPixelCommand.Action REMOVE_TARGET = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            GPUPixelSource source = (GPUPixelSource) cmd.arg0;
+            GPUPixelTarget target = (GPUPixelTarget) cmd.arg1;
+            if (source.mNativeClassID != 0 && target.getNativeClassID() != 0)
+                GPUPixel.nativeSourceRemoveTarget(source.mNativeClassID, target.getNativeClassID(), target instanceof GPUPixelFilter);
+        }
+    };
+
+    private static final GPUPixelCommand.Action REMOVE_ALL_TARGETS = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            GPUPixelSource source = (GPUPixelSource) cmd.arg0;
+            if (source.mNativeClassID != 0)
+                GPUPixel.nativeSourceRemoveAllTargets(source.mNativeClassID);
+        }
+    };
+
+    private static final GPUPixelCommand.Action PROCEED = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            GPUPixelSource source = (GPUPixelSource) cmd.arg0;
+            if (source.mNativeClassID != 0)
+                GPUPixel.nativeSourceProceed(source.mNativeClassID, cmd.boolArg0,
+                        cmd.longArg != 0 ? cmd.longArg : GPUPixel.getInstance().getPresentationTimeMillis());
+        }
+    };
+
     public final GPUPixelSource addTarget(final GPUPixelTarget target, final int texID) {
-        GPUPixel.getInstance().runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                if (mNativeClassID != 0)
-                    GPUPixel.nativeSourceAddTarget(mNativeClassID, target.getNativeClassID(), texID, target instanceof GPUPixelFilter);
-            }
-        });
+        GPUPixelCommand cmd = GPUPixel.getInstance().obtainDrawCommand(ADD_TARGET);
+        cmd.arg0 = this;
+        cmd.arg1 = target;
+        cmd.intArg = texID;
+        GPUPixel.getInstance().runOnDraw(cmd);
         if (target instanceof GPUPixelSource)
             return (GPUPixelSource) target;
         else
@@ -39,39 +77,121 @@ public abstract class GPUPixelSource {
     }
 
     public final void removeTarget(final GPUPixelTarget target) {
+        GPUPixelCommand cmd = GPUPixel.getInstance().obtainDrawCommand(REMOVE_TARGET);
+        cmd.arg0 = this;
+        cmd.arg1 = target;
+        GPUPixel.getInstance().runOnDraw(cmd);
+    }
+
+    public final void removeAllTargets() {
+        GPUPixelCommand cmd = GPUPixel.getInstance().obtainDrawCommand(REMOVE_ALL_TARGETS);
+        cmd.arg0 = this;
+        GPUPixel.getInstance().runOnDraw(cmd);
+    }
+
+    public void proceed() {
+        proceed(true, true);
+    }
+
+    // renders on the next vsync, stamped with its presentation time
+    public void proceed(final boolean bUpdateTargets, final boolean bRequestRender) {
+        proceed(bUpdateTargets, bRequestRender, 0);
+    }
+
+    // presentationTimeMillis on the System.nanoTime() base, 0 for the vsync's
+    public void proceed(final boolean bUpdateTargets, final boolean bRequestRender,
+                        final long presentationTimeMillis) {
+        GPUPixelCommand cmd = GPUPixel.getInstance().obtainDrawCommand(PROCEED);
+        cmd.arg0 = this;
+        cmd.boolArg0 = bUpdateTargets;
+        cmd.longArg = presentationTimeMillis;
+        GPUPixel.getInstance().runOnDraw(cmd);
+        if (bRequestRender) {
+            GPUPixel.getInstance().requestRender();
+        }
+    }
+
+    /**
+     * Feeds this source's face landmarks straight to a face filter
+     * (FaceReshapeFilter, LipstickFilter, BlusherFilter) inside the native
+     * pipeline, on the frame they were detected for. No landmark callback is
+     * needed for this. Every tracked face is drawn, in a single pass.
+     */
+    public void bindLandmarks(final GPUPixelFilter filter) {
         GPUPixel.getInstance().runOnDraw(new Runnable() {
             @Override
             public void run() {
-                if (mNativeClassID != 0 && target.getNativeClassID() != 0)
-                    GPUPixel.nativeSourceRemoveTarget(mNativeClassID, target.getNativeClassID(), target instanceof GPUPixelFilter);
+                if (mNativeClassID != 0 && filter.getNativeClassID() != 0) {
+                    GPUPixel.nativeSourceBindLandmarks(mNativeClassID, filter.getNativeClassID(), true);
+                }
             }
         });
     }
 
-    public final void removeAllTargets() {
+    public void unbindLandmarks(final GPUPixelFilter filter) {
         GPUPixel.getInstance().runOnDraw(new Runnable() {
             @Override
             public void run() {
-                if (mNativeClassID != 0)
-                    GPUPixel.nativeSourceRemoveAllTargets(mNativeClassID);
+                if (mNativeClassID != 0 && filter.getNativeClassID() != 0) {
+                    GPUPixel.nativeSourceBindLandmarks(mNativeClassID, filter.getNativeClassID(), false);
+                }
             }
         });
     }
 
-    public void proceed() {
-        proceed(true, true);
+    /**
+     * Face detection runs on its own thread; a frame is handed to it once at
+     * least everyNFrames frames and minIntervalMs have passed since the last
+     * one. Landmarks for the frames in between are extrapolated.
+     */
+    public void setFaceDetectionCadence(final int everyNFrames, final int minIntervalMs) {
+        GPUPixel.getInstance().runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mNativeClassID != 0) {
+                    GPUPixel.nativeSourceSetFaceDetectionCadence(mNativeClassID, everyNFrames, minIntervalMs);
+                }
+            }
+        });
     }
 
-    public void proceed(final boolean bUpdateTargets, final boolean bRequestRender) {
+    /**
+     * Tracks up to maxFaces faces, 1 to {@link GPUPixel#MAX_FACES}, the
+     * largest first. Bound face filters draw all of them in one pass.
+     */
+    public void setFaceDetectionMaxFaces(final int maxFaces) {
         GPUPixel.getInstance().runOnDraw(new Runnable() {
             @Override
             public void run() {
-                if (mNativeClassID != 0)
-                    GPUPixel.nativeSourceProceed(mNativeClassID, bUpdateTargets);
+                if (mNativeClassID != 0) {
+                    GPUPixel.nativeSourceSetFaceDetectionMaxFaces(mNativeClassID, maxFaces);
+                }
             }
         });
-        if (bRequestRender) {
-            GPUPixel.getInstance().requestRender();
+    }
+
+    // called on the GL thread with every tracked face of each frame
+    public void setFaceLandmarksCallback(GPUPixel.GPUPixelFaceLandmarksCallback callback) {
+        final boolean registered = mFaceLandmarksCallback != null;
+        mFaceLandmarksCallback = callback;
+        if (registered || callback == null) {
+            return;
+        }
+        GPUPixel.getInstance().runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mNativeClassID != 0) {
+                    GPUPixel.nativeSourceSetFaceLandmarksCallback(GPUPixelSource.this, mNativeClassID);
+                }
+            }
+        });
+    }
+
+    // callback by native
+    void onFaceLandmarks(int faceCount, int[] faceIds, float[] landmarks) {
+        GPUPixel.GPUPixelFaceLandmarksCallback callback = mFaceLandmarksCallback;
+        if (callback != null) {
+            callback.onFaceLandmarks(faceCount, faceIds, landmarks);
         }
     }
 
@@ -83,25 +203,97 @@ public abstract class GPUPixelSource {
         return GPUPixel.nativeSourceGetRotatedFramebuferHeight(mNativeClassID);
     }
 
+    private static final GPUPixelCommand.Action CAPTURE = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            GPUPixelSource source = (GPUPixelSource) cmd.arg0;
+            GPUPixelFilter upToFilter = (GPUPixelFilter) cmd.arg1;
+            GPUPixelFrameCapture<?> capture = (GPUPixelFrameCapture<?>) cmd.arg2;
+            Object target = capture.getTarget();
+            GPUPixel.nativeFilterRequestCapture(upToFilter.getNativeClassID(), capture,
+                    target instanceof Bitmap ? (Bitmap) target : null,
+                    target instanceof ByteBuffer ? (ByteBuffer) target : null,
+                    cmd.intArg, cmd.intArg1);
+            if (cmd.boolArg0 && source.mNativeClassID != 0) {
+                GPUPixel.nativeSourceProceed(source.mNativeClassID, true,
+                        GPUPixel.getInstance().getPresentationTimeMillis());
+            }
+            GPUPixelFrameCapture.schedulePoll();
+        }
+    };
+
+    /**
+     * Captures upToFilter's output of the next rendered frame into target,
+     * which must be a mutable ARGB_8888 Bitmap. The filter renders once more
+     * at the Bitmap's size if that differs from its own.
+     */
+    public GPUPixelFrameCapture<Bitmap> captureFrame(GPUPixelFilter upToFilter, Bitmap target,
+                                                     GPUPixelFrameCapture.Callback<Bitmap> callback) {
+        GPUPixelFrameCapture<Bitmap> capture = new GPUPixelFrameCapture<Bitmap>(target, null, callback);
+        submitCapture(upToFilter, capture, target.getWidth(), target.getHeight(), false);
+        return capture;
+    }
+
+    // as above, into a pooled Bitmap that goes back with capture.release()
+    public GPUPixelFrameCapture<Bitmap> captureFrame(GPUPixelFilter upToFilter, GPUPixelBitmapPool pool,
+                                                     int width, int height,
+                                                     GPUPixelFrameCapture.Callback<Bitmap> callback) {
+        GPUPixelFrameCapture<Bitmap> capture =
+                new GPUPixelFrameCapture<Bitmap>(pool.obtain(width, height), pool, callback);
+        submitCapture(upToFilter, capture, width, height, false);
+        return capture;
+    }
+
+    /**
+     * Captures into a direct ByteBuffer holding at least width * height * 4
+     * bytes. Width and height of 0 capture at the filter's own size.
+     */
+    public GPUPixelFrameCapture<ByteBuffer> captureFrame(GPUPixelFilter upToFilter, ByteBuffer target,
+                                                         int width, int height,
+                                                         GPUPixelFrameCapture.Callback<ByteBuffer> callback) {
+        if (!target.isDirect()) {
+            throw new IllegalArgumentException("capture target must be a direct ByteBuffer");
+        }
+        GPUPixelFrameCapture<ByteBuffer> capture = new GPUPixelFrameCapture<ByteBuffer>(target, null, callback);
+        submitCapture(upToFilter, capture, width, height, false);
+        return capture;
+    }
+
+    private void submitCapture(GPUPixelFilter upToFilter, GPUPixelFrameCapture<?> capture,
+                               int width, int height, boolean proceed) {
+        GPUPixelCommand cmd = GPUPixel.getInstance().obtainDrawCommand(CAPTURE);
+        cmd.arg0 = this;
+        cmd.arg1 = upToFilter;
+        cmd.arg2 = capture;
+        cmd.intArg = width;
+        cmd.intArg1 = height;
+        cmd.boolArg0 = proceed;
+        GPUPixel.getInstance().runOnDraw(cmd);
+        GPUPixel.getInstance().requestRender();
+    }
+
+    /**
+     * @deprecated re-renders the whole graph and allocates a Bitmap per call;
+     * use {@link #captureFrame} instead.
+     */
+    @Deprecated
     public void captureAProcessedFrameData(final GPUPixelFilter upToFilter, final ProcessedFrameDataCallback proceedResult) {
         captureAProcessedFrameData(upToFilter, getRotatedFramebufferWidth(), getRotatedFramebufferHeight(), proceedResult);
     }
 
+    @Deprecated
     public void captureAProcessedFrameData(final GPUPixelFilter upToFilter, final int width, final int height, final ProcessedFrameDataCallback proceedResult) {
-        GPUPixel.getInstance().runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                if (mNativeClassID != 0) {
-                    byte[] resultData = GPUPixel.nativeSourceCaptureAProcessedFrameData(mNativeClassID, upToFilter.getNativeClassID(), width, height);
-                    if (resultData != null) {
-                        Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                        bmp.copyPixelsFromBuffer(ByteBuffer.wrap(resultData));
-                        proceedResult.onResult(bmp);
+        Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        GPUPixelFrameCapture<Bitmap> capture = new GPUPixelFrameCapture<Bitmap>(bmp, null,
+                new GPUPixelFrameCapture.Callback<Bitmap>() {
+                    @Override
+                    public void onCaptured(GPUPixelFrameCapture<Bitmap> capture) {
+                        if (!capture.isFailed()) {
+                            proceedResult.onResult(capture.getTarget());
+                        }
                     }
-                }
-            }
-        });
-        GPUPixel.getInstance().requestRender();
+                });
+        submitCapture(upToFilter, capture, width, height, true);
     }
 
     public interface ProcessedFrameDataCallback {
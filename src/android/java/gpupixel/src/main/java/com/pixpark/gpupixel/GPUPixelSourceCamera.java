@@ -19,9 +19,40 @@ import android.view.SurfaceHolder;
 import android.view.WindowManager;
 import java.io.IOException;
 import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class GPUPixelSourceCamera extends GPUPixelSource implements Camera.PreviewCallback {
-    private Camera mCamera;
+    public static final int DEFAULT_PREVIEW_WIDTH = 1280;
+    public static final int DEFAULT_PREVIEW_HEIGHT = 720;
+    public static final int DEFAULT_CALLBACK_BUFFER_COUNT = 3;
+
+    private volatile Camera mCamera;
+    private int mRequestedPreviewWidth = DEFAULT_PREVIEW_WIDTH;
+    private int mRequestedPreviewHeight = DEFAULT_PREVIEW_HEIGHT;
+    private int mCallbackBufferCount = DEFAULT_CALLBACK_BUFFER_COUNT;
+    private volatile int mPreviewWidth;
+    private volatile int mPreviewHeight;
+    private int mCallbackBufferSize;
+    // callback buffers currently held by us instead of the camera
+    private final AtomicInteger mBuffersInFlight = new AtomicInteger(0);
+    private final AtomicLong mPoolExhaustedCount = new AtomicLong(0);
+    private final AtomicLong mBufferReuseCount = new AtomicLong(0);
+    private final AtomicLong mDroppedFrameCount = new AtomicLong(0);
+    private final GPUPixelFrameMailbox mFrameMailbox = new GPUPixelFrameMailbox(new GPUPixelFrameMailbox.Handler() {
+        @Override
+        public void onFrame(Object frame, Object tag, int width, int height) {
+            renderPreviewFrame((byte[]) frame, (Camera) tag, width, height);
+        }
+
+        @Override
+        public void onFrameDropped(Object frame, Object tag) {
+            // replaced by a newer frame before the GL thread got to it
+            mDroppedFrameCount.incrementAndGet();
+            recycleCallbackBuffer((byte[]) frame, (Camera) tag);
+        }
+    });
     private int mCurrentCameraId = 1;
     private IntBuffer mRGBABuffer;
     private int mRotation = GPUPixel.NoRotation;
@@ -31,7 +62,16 @@ public class GPUPixelSourceCamera extends GPUPixelSource implements Camera.Previ
     private Object object_this;
     private GPUPixel.GPUPixelLandmarkCallback landmarkCallback;
     public GPUPixelSourceCamera(Context context) {
+        this(context, DEFAULT_PREVIEW_WIDTH, DEFAULT_PREVIEW_HEIGHT, DEFAULT_CALLBACK_BUFFER_COUNT);
+    }
+
+    // previewWidth/Height is a request, the closest size the camera supports
+    // is used; callbackBufferCount is the depth of the preview buffer pool
+    public GPUPixelSourceCamera(Context context, int previewWidth, int previewHeight, int callbackBufferCount) {
         mContext = context;
+        mRequestedPreviewWidth = previewWidth;
+        mRequestedPreviewHeight = previewHeight;
+        mCallbackBufferCount = Math.max(1, callbackBufferCount);
         object_this = this;
         if (mNativeClassID != 0) return;
         GPUPixel.getInstance().runOnDraw(new Runnable() {
@@ -64,24 +104,87 @@ public class GPUPixelSourceCamera extends GPUPixelSource implements Camera.Previ
 
     @Override
     public void onPreviewFrame(final byte[] data, Camera camera) {
-        final Camera.Size previewSize = camera.getParameters().getPreviewSize();
-        if (mRGBABuffer == null) {
-            mRGBABuffer = IntBuffer.allocate(previewSize.width * previewSize.height);
+        if (data == null) {
+            return;
+        }
+        if (mBuffersInFlight.incrementAndGet() >= mCallbackBufferCount) {
+            // the camera has no buffer left and drops frames until one returns
+            mPoolExhaustedCount.incrementAndGet();
         }
-        final Camera cam = camera;
 
-        GPUPixel.getInstance().runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                if (mNativeClassID != 0) {
-                    // todo(jeayo yuv to texture)
-                    GPUPixel.nativeYUVtoRBGA(data, previewSize.width, previewSize.height, mRGBABuffer.array());
-                    cam.addCallbackBuffer(data);
-                    GPUPixel.nativeSourceCameraSetFrame(mNativeClassID, previewSize.height, previewSize.width, mRGBABuffer.array(), GPUPixel.NoRotation);
-                }
+        mFrameMailbox.post(data, camera, mPreviewWidth, mPreviewHeight);
+        GPUPixel.getInstance().requestRender();
+    }
+
+    private void renderPreviewFrame(byte[] data, Camera camera, int width, int height) {
+        if (mNativeClassID != 0 && data.length >= width * height * 3 / 2) {
+            if (mRGBABuffer == null || mRGBABuffer.capacity() != width * height) {
+                mRGBABuffer = IntBuffer.allocate(width * height);
             }
-        });
-        proceed(true, true);
+            // todo(jeayo yuv to texture)
+            GPUPixel.nativeYUVtoRBGA(data, width, height, mRGBABuffer.array());
+            recycleCallbackBuffer(data, camera);
+            GPUPixel.nativeSourceCameraSetFrame(mNativeClassID, height, width, mRGBABuffer.array(), GPUPixel.NoRotation);
+            GPUPixel.nativeSourceProceed(mNativeClassID, true,
+                    GPUPixel.getInstance().getPresentationTimeMillis());
+        } else {
+            mDroppedFrameCount.incrementAndGet();
+            recycleCallbackBuffer(data, camera);
+        }
+    }
+
+    private void recycleCallbackBuffer(byte[] data, Camera camera) {
+        mBuffersInFlight.decrementAndGet();
+        // buffers of a released camera, or of a previous preview size, are
+        // left to the GC; the new pool was queued in setUpCamera
+        if (camera == mCamera && data.length == mCallbackBufferSize) {
+            camera.addCallbackBuffer(data);
+            mBufferReuseCount.incrementAndGet();
+        }
+    }
+
+    public int getPreviewWidth() {
+        return mPreviewWidth;
+    }
+
+    public int getPreviewHeight() {
+        return mPreviewHeight;
+    }
+
+    // takes effect the next time the camera is opened (onResume / switchCamera)
+    public void setPreviewSize(int width, int height) {
+        mRequestedPreviewWidth = width;
+        mRequestedPreviewHeight = height;
+    }
+
+    // takes effect the next time the camera is opened (onResume / switchCamera)
+    public void setCallbackBufferCount(int count) {
+        mCallbackBufferCount = Math.max(1, count);
+    }
+
+    public int getCallbackBufferCount() {
+        return mCallbackBufferCount;
+    }
+
+    // frames that arrived while every pool buffer was held by the pipeline
+    public long getPoolExhaustedCount() {
+        return mPoolExhaustedCount.get();
+    }
+
+    // callback buffers handed back to the camera for reuse
+    public long getBufferReuseCount() {
+        return mBufferReuseCount.get();
+    }
+
+    // frames received but not rendered, including frames replaced by a
+    // newer one before the GL thread picked them up
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    // received/rendered/dropped counts and queue latency of preview frames
+    public GPUPixelFrameMailbox getFrameMailbox() {
+        return mFrameMailbox;
     }
 
     public void onResume() {
@@ -109,10 +212,25 @@ public class GPUPixelSourceCamera extends GPUPixelSource implements Camera.Previ
                 Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
             parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
         }
-        parameters.setPreviewSize(1280, 720);
+        Camera.Size previewSize = choosePreviewSize(parameters.getSupportedPreviewSizes(),
+                mRequestedPreviewWidth, mRequestedPreviewHeight);
+        if (previewSize != null) {
+            mPreviewWidth = previewSize.width;
+            mPreviewHeight = previewSize.height;
+        } else {
+            mPreviewWidth = mRequestedPreviewWidth;
+            mPreviewHeight = mRequestedPreviewHeight;
+        }
+        parameters.setPreviewSize(mPreviewWidth, mPreviewHeight);
         parameters.setPreviewFormat(ImageFormat.NV21);
         mCamera.setParameters(parameters);
 
+        mCallbackBufferSize = mPreviewWidth * mPreviewHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        mBuffersInFlight.set(0);
+        for (int i = 0; i < mCallbackBufferCount; i++) {
+            mCamera.addCallbackBuffer(new byte[mCallbackBufferSize]);
+        }
+
         int deviceRotation = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay()
                 .getRotation();
         android.hardware.Camera.CameraInfo info = new android.hardware.Camera.CameraInfo();
@@ -177,7 +295,7 @@ public class GPUPixelSourceCamera extends GPUPixelSource implements Camera.Previ
                         mSurfaceTexture = new SurfaceTexture(textures[0]);
                         try {
                             mCamera.setPreviewTexture(mSurfaceTexture);
-                            mCamera.setPreviewCallback(GPUPixelSourceCamera.this);
+                            mCamera.setPreviewCallbackWithBuffer(GPUPixelSourceCamera.this);
                             mCamera.startPreview();
                         } catch (IOException e) {
                             e.printStackTrace();
@@ -187,10 +305,27 @@ public class GPUPixelSourceCamera extends GPUPixelSource implements Camera.Previ
             });
             GPUPixel.getInstance().requestRender();
         } else {
-            mCamera.setPreviewCallback(this);
+            mCamera.setPreviewCallbackWithBuffer(this);
             mCamera.startPreview();
         }
     }
+
+    private static Camera.Size choosePreviewSize(List<Camera.Size> sizes, int width, int height) {
+        if (sizes == null) {
+            return null;
+        }
+        Camera.Size best = null;
+        long bestScore = Long.MAX_VALUE;
+        for (Camera.Size size : sizes) {
+            long score = (long) Math.abs(size.width - width) + Math.abs(size.height - height);
+            if (score < bestScore) {
+                best = size;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
     public void setPreviewHolder(SurfaceHolder holder) {
         try {
             mCamera.setPreviewDisplay(holder);
@@ -202,8 +337,9 @@ public class GPUPixelSourceCamera extends GPUPixelSource implements Camera.Previ
 
 
     private void releaseCamera() {
+        mFrameMailbox.clear();
         mSurfaceTexture = null;
-        mCamera.setPreviewCallback(null);
+        mCamera.setPreviewCallbackWithBuffer(null);
         mCamera.release();
         mCamera = null;
     }
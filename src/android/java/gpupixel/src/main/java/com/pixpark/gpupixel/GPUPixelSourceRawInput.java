@@ -9,8 +9,66 @@ package com.pixpark.gpupixel;
 
 import android.graphics.Bitmap;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 public class GPUPixelSourceRawInput extends GPUPixelSource {
+    public static final int FORMAT_NV12 = 1;
+    public static final int FORMAT_NV21 = 2;
+
+    // planes of a frame are handed back once uploaded or replaced
+    public interface BufferReleaseListener {
+        // dataV is null for NV12 / NV21. On the GL thread after the upload,
+        // or on the uploading thread when a newer frame replaced this one.
+        void onBuffersReleased(ByteBuffer dataY, ByteBuffer dataU, ByteBuffer dataV,
+                               boolean uploaded);
+    }
+
+    private static final int FORMAT_RGBA = 0;
+    private static final int FORMAT_I420 = 3;
+    // copies of int[] uploads kept for reuse
+    private static final int MAX_SPARE_PIXELS = 2;
+
+    // what uploadBytes was given, held until the GL thread uploads it
+    private static final class RawFrame {
+        int format;
+        int[] pixels;
+        ByteBuffer dataY;
+        ByteBuffer dataU;
+        ByteBuffer dataV;
+        int offsetY;
+        int offsetU;
+        int offsetV;
+        int strideY;
+        int strideU;
+        int strideV;
+        int width;
+        int height;
+        int rotation;
+    }
+
+    private final ArrayDeque<int[]> mSparePixels = new ArrayDeque<int[]>();
+    private volatile BufferReleaseListener mBufferReleaseListener;
+    // for int[] uploads, YUV ones pass their own
+    private volatile int mRotation = GPUPixel.NoRotation;
+
+    // a frame waits here until the GL thread uploads and renders it, a newer
+    // one replaces it in the meantime
+    private final GPUPixelFrameMailbox mFrameMailbox = new GPUPixelFrameMailbox(new GPUPixelFrameMailbox.Handler() {
+        @Override
+        public void onFrame(Object frame, Object tag, int width, int height) {
+            RawFrame raw = (RawFrame) frame;
+            if (mNativeClassID != 0) {
+                upload(raw, GPUPixel.getInstance().getPresentationTimeMillis());
+            }
+            release(raw, mNativeClassID != 0);
+        }
+
+        @Override
+        public void onFrameDropped(Object frame, Object tag) {
+            release((RawFrame) frame, false);
+        }
+    });
+
     public GPUPixelSourceRawInput() {
         if (mNativeClassID != 0) return;
         GPUPixel.getInstance().runOnDraw(new Runnable() {
@@ -21,14 +79,211 @@ public class GPUPixelSourceRawInput extends GPUPixelSource {
         });
     }
 
+    // rotation of the int[] uploads from the next one on, applied with the
+    // frame on the GL thread
     public void SetRotation(int rotation)
     {
-        GPUPixel.nativeSourceRawInputSetRotation(mNativeClassID, rotation);
+        mRotation = rotation;
+    }
+
+    // Faces are detected in a copy of each frame scaled on the GPU to this
+    // short side, 320 by default, so detection costs the same at any
+    // capture size; 0 detects in the full frame instead.
+    public void setFaceDetectionProxySize(final int shortSide) {
+        GPUPixel.getInstance().runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mNativeClassID != 0) {
+                    GPUPixel.nativeSourceRawInputSetFaceDetectionProxySize(mNativeClassID, shortSide);
+                }
+            }
+        });
     }
 
+    // the pixels are copied, the array can be reused right away
     public void uploadBytes(final int[] pixels, int width, int height, int stride) {
-        GPUPixel.nativeSourceRawInputUploadBytes(mNativeClassID, pixels, width, height, stride);
-        proceed(true, false);
+        if (width <= 0 || height <= 0 || stride < width
+                || pixels == null || pixels.length < (long) stride * height) {
+            throw new IllegalArgumentException("pixels too small for " + width + "x" + height
+                    + " with stride " + stride);
+        }
+        RawFrame frame = new RawFrame();
+        frame.format = FORMAT_RGBA;
+        frame.pixels = obtainPixels(stride * height);
+        System.arraycopy(pixels, 0, frame.pixels, 0, stride * height);
+        frame.strideY = stride;
+        frame.width = width;
+        frame.height = height;
+        frame.rotation = mRotation;
+        mFrameMailbox.post(frame, null, width, height);
+    }
+
+    // I420 planes in direct ByteBuffers, read from their current position.
+    // They are read on the GL thread later on and must stay untouched until
+    // the BufferReleaseListener gets them back. Rotation is one of the
+    // GPUPixel rotation constants and is applied on the GPU.
+    public void uploadBytes(final ByteBuffer dataY, int strideY,
+                            final ByteBuffer dataU, int strideU,
+                            final ByteBuffer dataV, int strideV,
+                            int width, int height, int rotation) {
+        checkSize(width, height);
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        checkPlane("Y", dataY, strideY, width, height);
+        checkPlane("U", dataU, strideU, chromaWidth, chromaHeight);
+        checkPlane("V", dataV, strideV, chromaWidth, chromaHeight);
+        RawFrame frame = new RawFrame();
+        frame.format = FORMAT_I420;
+        setPlanes(frame, dataY, strideY, dataU, strideU, dataV, strideV);
+        frame.width = width;
+        frame.height = height;
+        frame.rotation = rotation;
+        mFrameMailbox.post(frame, null, width, height);
+    }
+
+    // NV12 or NV21 (format FORMAT_NV12 / FORMAT_NV21) in direct ByteBuffers,
+    // held as the I420 ones are
+    public void uploadBytes(int format,
+                            final ByteBuffer dataY, int strideY,
+                            final ByteBuffer dataUV, int strideUV,
+                            int width, int height, int rotation) {
+        if (format != FORMAT_NV12 && format != FORMAT_NV21) {
+            throw new IllegalArgumentException("Unsupported YUV format: " + format);
+        }
+        checkSize(width, height);
+        checkPlane("Y", dataY, strideY, width, height);
+        checkPlane("UV", dataUV, strideUV, 2 * ((width + 1) / 2), (height + 1) / 2);
+        RawFrame frame = new RawFrame();
+        frame.format = format;
+        setPlanes(frame, dataY, strideY, dataUV, strideUV, null, 0);
+        frame.width = width;
+        frame.height = height;
+        frame.rotation = rotation;
+        mFrameMailbox.post(frame, null, width, height);
+    }
+
+    // a pending frame is dropped and its buffers handed back
+    public void destroy() {
+        destroy(true);
+    }
+
+    public void destroy(boolean onGLThread) {
+        mFrameMailbox.clear();
+        if (onGLThread) {
+            // queued behind the constructor's runnable, the native object may
+            // not exist yet when called right after it
+            GPUPixel.getInstance().runOnDraw(new Runnable() {
+                @Override
+                public void run() {
+                    if (mNativeClassID != 0) {
+                        GPUPixel.nativeSourceRawInputDestroy(mNativeClassID);
+                        mNativeClassID = 0;
+                    }
+                }
+            });
+        } else if (mNativeClassID != 0) {
+            GPUPixel.nativeSourceRawInputDestroy(mNativeClassID);
+            mNativeClassID = 0;
+        }
+    }
+
+    public void setBufferReleaseListener(BufferReleaseListener listener) {
+        mBufferReleaseListener = listener;
+    }
+
+    // received/rendered/dropped counts and queue latency of uploaded frames
+    public GPUPixelFrameMailbox getFrameMailbox() {
+        return mFrameMailbox;
+    }
+
+    // GL thread
+    private void upload(RawFrame frame, long timestamp) {
+        switch (frame.format) {
+            case FORMAT_RGBA:
+                GPUPixel.nativeSourceRawInputSetRotation(mNativeClassID, frame.rotation);
+                GPUPixel.nativeSourceRawInputUploadBytes(mNativeClassID, frame.pixels,
+                        frame.width, frame.height, frame.strideY, timestamp);
+                break;
+            case FORMAT_I420:
+                GPUPixel.nativeSourceRawInputUploadI420(mNativeClassID,
+                        frame.dataY, frame.offsetY, frame.strideY,
+                        frame.dataU, frame.offsetU, frame.strideU,
+                        frame.dataV, frame.offsetV, frame.strideV,
+                        frame.width, frame.height, frame.rotation, timestamp);
+                break;
+            default:
+                GPUPixel.nativeSourceRawInputUploadNV(mNativeClassID, frame.format == FORMAT_NV21,
+                        frame.dataY, frame.offsetY, frame.strideY,
+                        frame.dataU, frame.offsetU, frame.strideU,
+                        frame.width, frame.height, frame.rotation, timestamp);
+                break;
+        }
+    }
+
+    private void release(RawFrame frame, boolean uploaded) {
+        if (frame.pixels != null) {
+            synchronized (mSparePixels) {
+                if (mSparePixels.size() < MAX_SPARE_PIXELS) {
+                    mSparePixels.add(frame.pixels);
+                }
+            }
+            return;
+        }
+        BufferReleaseListener listener = mBufferReleaseListener;
+        if (listener != null) {
+            listener.onBuffersReleased(frame.dataY, frame.dataU, frame.dataV, uploaded);
+        }
+    }
+
+    private int[] obtainPixels(int length) {
+        synchronized (mSparePixels) {
+            int[] pixels;
+            while ((pixels = mSparePixels.poll()) != null) {
+                if (pixels.length == length) {
+                    return pixels;
+                }
+            }
+        }
+        return new int[length];
+    }
+
+    private static void setPlanes(RawFrame frame, ByteBuffer dataY, int strideY,
+                                  ByteBuffer dataU, int strideU,
+                                  ByteBuffer dataV, int strideV) {
+        frame.dataY = dataY;
+        frame.offsetY = dataY.position();
+        frame.strideY = strideY;
+        frame.dataU = dataU;
+        frame.offsetU = dataU.position();
+        frame.strideU = strideU;
+        if (dataV != null) {
+            frame.dataV = dataV;
+            frame.offsetV = dataV.position();
+            frame.strideV = strideV;
+        }
+    }
+
+    private static void checkSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height);
+        }
+    }
+
+    // the upload reads rows rows of stride bytes from the position on;
+    // checked here, where a bad call can still be told to the caller
+    private static void checkPlane(String name, ByteBuffer buffer, int stride,
+                                   int rowBytes, int rows) {
+        if (buffer == null || !buffer.isDirect()) {
+            throw new IllegalArgumentException("YUV planes must be direct ByteBuffers");
+        }
+        if (stride < rowBytes) {
+            throw new IllegalArgumentException(name + " stride " + stride
+                    + " is less than its row of " + rowBytes + " bytes");
+        }
+        if (buffer.remaining() < (long) stride * rows) {
+            throw new IllegalArgumentException(name + " plane has " + buffer.remaining()
+                    + " bytes, needs " + (long) stride * rows);
+        }
     }
 
 }
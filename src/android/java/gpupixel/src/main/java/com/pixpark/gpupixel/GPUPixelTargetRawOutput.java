@@ -0,0 +1,200 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads processed frames back without stalling the GL thread. Frames are
+ * read through a ring of PBOs and copied into pooled direct ByteBuffers
+ * (tightly packed RGBA), which are handed to the callback on the given
+ * executor. Every delivered frame must be given back with
+ * {@link Frame#release()}; when all pooled buffers are out, new frames are
+ * dropped and counted.
+ *
+ * The native side holds a reference to this object until {@link #destroy()}.
+ */
+public class GPUPixelTargetRawOutput implements GPUPixelTarget {
+    public static final int DEFAULT_PBO_COUNT = 2;
+    public static final int DEFAULT_POOL_SIZE = 3;
+
+    public interface FrameCallback {
+        void onFrame(Frame frame);
+    }
+
+    public static final class Frame implements Runnable {
+        private final GPUPixelTargetRawOutput mOwner;
+        private final ByteBuffer mBuffer;
+        // pool generation it was allocated for, see obtainBuffer
+        private final int mGeneration;
+        // guarded by the owner's mPoolLock; a second release is ignored
+        private boolean mInPool = false;
+        private int mWidth;
+        private int mHeight;
+        private long mTimestamp;
+
+        private Frame(GPUPixelTargetRawOutput owner, int size, int generation) {
+            mOwner = owner;
+            mGeneration = generation;
+            mBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getStride() {
+            return mWidth * 4;
+        }
+
+        // milliseconds, the time the frame was processed
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public void release() {
+            mOwner.recycle(this);
+        }
+
+        @Override
+        public void run() {
+            mOwner.mCallback.onFrame(this);
+        }
+    }
+
+    protected long mNativeClassID = 0;
+
+    private final Executor mExecutor;
+    private final FrameCallback mCallback;
+    private final int mPoolSize;
+
+    private final Object mPoolLock = new Object();
+    private final ArrayDeque<Frame> mFreeFrames = new ArrayDeque<Frame>();
+    private int mFrameSize = 0;
+    private int mGeneration = 0;
+    private int mAllocatedFrames = 0;
+    // GL thread: frame handed to native in obtainBuffer, filled by deliverFrame
+    private Frame mPendingFrame;
+
+    private final AtomicLong mDeliveredCount = new AtomicLong(0);
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+
+    public GPUPixelTargetRawOutput(Executor executor, FrameCallback callback) {
+        this(executor, callback, DEFAULT_PBO_COUNT, DEFAULT_POOL_SIZE);
+    }
+
+    public GPUPixelTargetRawOutput(Executor executor, FrameCallback callback,
+                                   final int pboCount, int poolSize) {
+        mExecutor = executor;
+        mCallback = callback;
+        mPoolSize = Math.max(1, poolSize);
+        GPUPixel.getInstance().runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mNativeClassID = GPUPixel.nativeTargetRawOutputNew(GPUPixelTargetRawOutput.this, pboCount);
+            }
+        });
+    }
+
+    @Override
+    public long getNativeClassID() {
+        return mNativeClassID;
+    }
+
+    public long getDeliveredFrameCount() {
+        return mDeliveredCount.get();
+    }
+
+    // frames dropped because every pooled buffer was still held by the caller
+    public long getDroppedFrameCount() {
+        return mDroppedCount.get();
+    }
+
+    // called by native on the GL thread
+    private ByteBuffer obtainBuffer(int width, int height) {
+        int size = width * height * 4;
+        Frame frame;
+        synchronized (mPoolLock) {
+            if (size != mFrameSize) {
+                // frames of the old size are dropped as they come back, even
+                // once the size is the same again
+                mFreeFrames.clear();
+                mAllocatedFrames = 0;
+                mFrameSize = size;
+                mGeneration++;
+            }
+            frame = mFreeFrames.poll();
+            if (frame != null) {
+                frame.mInPool = false;
+            } else if (mAllocatedFrames < mPoolSize) {
+                frame = new Frame(this, size, mGeneration);
+                mAllocatedFrames++;
+            }
+        }
+        if (frame == null) {
+            mDroppedCount.incrementAndGet();
+            return null;
+        }
+        mPendingFrame = frame;
+        return frame.mBuffer;
+    }
+
+    // called by native on the GL thread once the buffer from obtainBuffer is filled
+    private void deliverFrame(ByteBuffer buffer, int width, int height, long timestamp) {
+        Frame frame = mPendingFrame;
+        mPendingFrame = null;
+        if (frame == null) {
+            return;
+        }
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mTimestamp = timestamp;
+        frame.mBuffer.clear();
+        try {
+            mExecutor.execute(frame);
+            mDeliveredCount.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            mDroppedCount.incrementAndGet();
+            recycle(frame);
+        }
+    }
+
+    private void recycle(Frame frame) {
+        synchronized (mPoolLock) {
+            if (!frame.mInPool && frame.mGeneration == mGeneration) {
+                frame.mInPool = true;
+                mFreeFrames.add(frame);
+            }
+        }
+    }
+
+    public void destroy() {
+        GPUPixel.getInstance().runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mNativeClassID != 0) {
+                    GPUPixel.nativeTargetRawOutputDestroy(mNativeClassID);
+                    mNativeClassID = 0;
+                }
+            }
+        });
+    }
+}
@@ -5,9 +5,13 @@ public final class BeautyFaceFilter extends GPUPixelFilter {
     private static final String name = "BeautyFaceFilter";
     private static final String propSmoothLevel = "skin_smoothing";
     private static final String propWhiteLevel = "whiteness";
+    private static final String propBlurScale = "blur_scale";
+    private static final String propBlurRadius = "blur_radius";
 
     private float smoothLevel = 0.0f;
     private float whiteLevel = 0.0f;
+    private float blurScale = 1.0f;
+    private float blurRadius = 4.0f;
 
     public BeautyFaceFilter() {
         super(name);
@@ -30,4 +34,24 @@ public final class BeautyFaceFilter extends GPUPixelFilter {
         this.whiteLevel = whiteLevel;
         setProperty(propWhiteLevel, whiteLevel);
     }
+
+    public float getBlurRadius() {
+        return blurRadius;
+    }
+
+    // 磨皮模糊半径, 越小越省 GPU
+    public void setBlurRadius(float blurRadius) {
+        this.blurRadius = blurRadius;
+        setProperty(propBlurRadius, blurRadius);
+    }
+
+    public float getBlurScale() {
+        return blurScale;
+    }
+
+    // 磨皮模糊层的分辨率, 0.5 或 0.25 更省 GPU
+    public void setBlurScale(float blurScale) {
+        this.blurScale = blurScale;
+        setProperty(propBlurScale, blurScale);
+    }
 }
\ No newline at end of file
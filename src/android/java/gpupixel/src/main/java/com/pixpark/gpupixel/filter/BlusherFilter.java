@@ -0,0 +1,36 @@
+package com.pixpark.gpupixel.filter;
+
+/**
+ * 腮红
+ */
+public final class BlusherFilter extends GPUPixelFilter {
+    private static final String name = "BlusherFilter";
+    private static final String propBlendLevel = "blend_level";
+    private static final String propFaceLandmark = "face_landmark";
+
+    private float blendLevel = 0.0f;
+
+    private float[] faceLandmark;
+
+    public BlusherFilter() {
+        super(name);
+    }
+
+    public float getBlendLevel() {
+        return blendLevel;
+    }
+
+    public void setBlendLevel(float blendLevel) {
+        this.blendLevel = blendLevel;
+        setProperty(propBlendLevel, blendLevel);
+    }
+
+    public float[] getFaceLandmark() {
+        return faceLandmark;
+    }
+
+    public void setFaceLandmark(float[] faceLandmark) {
+        this.faceLandmark = faceLandmark;
+        setProperty(propFaceLandmark, faceLandmark);
+    }
+}
\ No newline at end of file
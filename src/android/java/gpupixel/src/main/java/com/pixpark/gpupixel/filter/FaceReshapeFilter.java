@@ -41,6 +41,7 @@ public final class FaceReshapeFilter extends GPUPixelFilter {
         return faceLandmark;
     }
 
+    // one face, or several back to back, GPUPixel.FACE_LANDMARK_STRIDE floats each
     public void setFaceLandmark(float[] faceLandmark) {
         this.faceLandmark = faceLandmark;
         setProperty(propFaceLandmark, faceLandmark);
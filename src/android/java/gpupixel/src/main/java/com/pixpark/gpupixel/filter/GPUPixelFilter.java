@@ -8,11 +8,66 @@
 package com.pixpark.gpupixel.filter;
 
 import com.pixpark.gpupixel.GPUPixel;
+import com.pixpark.gpupixel.GPUPixelCommand;
 import com.pixpark.gpupixel.GPUPixelSource;
 import com.pixpark.gpupixel.GPUPixelTarget;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 public class GPUPixelFilter extends GPUPixelSource implements GPUPixelTarget {
+    public static final int PROPERTY_TYPE_FLOAT = 0;
+    public static final int PROPERTY_TYPE_INT = 1;
+    public static final int PROPERTY_TYPE_FLOAT_ARRAY = 2;
+    public static final int PROPERTY_TYPE_STRING = 3;
+
+    private static final int PROPERTY_ID_UNRESOLVED = -1;
+    private static final int PROPERTY_ID_UNKNOWN = -2;
+
+    // latest pending value of one property; later writes overwrite earlier
+    // ones until the next flush
+    private static final class PropertySlot {
+        final String name;
+        int id = PROPERTY_ID_UNRESOLVED;
+        int type;
+        float floatValue;
+        int intValue;
+        float[] arrayValue;
+        int arrayLength;
+        String stringValue;
+        boolean dirty;
+
+        PropertySlot(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final GPUPixelCommand.Action FLUSH_PROPERTIES = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            ((GPUPixelFilter) cmd.arg0).flushProperties();
+        }
+    };
+
     private String filterClassName;
+    private volatile float mRenderScale = 1.0f;
+
+    private final Object mPropertyLock = new Object();
+    private final HashMap<String, PropertySlot> mPropertySlots = new HashMap<String, PropertySlot>();
+    private PropertySlot[] mDirtySlots = new PropertySlot[8];
+    private int mDirtyCount = 0;
+    private boolean mFlushScheduled = false;
+
+    // GL thread only
+    private HashMap<String, Integer> mPropertyIds;
+    private int[] mBatchHeader = new int[32];
+    private float[] mBatchFloats = new float[32];
+    private int[] mBatchInts = new int[8];
+    private PropertySlot[] mFallbackSlots = new PropertySlot[4];
+    private int[] mFallbackTypes = new int[4];
+    private float[] mFallbackFloats = new float[4];
+    private int[] mFallbackInts = new int[4];
+    private Object[] mFallbackObjects = new Object[4];
 
     GPUPixelFilter(final String filterClassName) {
         if (mNativeClassID != 0) return;
@@ -20,6 +75,7 @@ public class GPUPixelFilter extends GPUPixelSource implements GPUPixelTarget {
             @Override
             public void run() {
                 mNativeClassID = GPUPixel.nativeFilterCreate(filterClassName);
+                resolvePropertyIds();
             }
         });
         this.filterClassName = filterClassName;
@@ -29,52 +85,221 @@ public class GPUPixelFilter extends GPUPixelSource implements GPUPixelTarget {
         return filterClassName;
     }
 
-    public final void setProperty(final String property, final double value) {
-        setProperty(property, (float) value);
-    }
-
-    public final void setProperty(final String property, final float value) {
+    /**
+     * Renders this filter at scale times its input's size, 1/16 to 1; the
+     * filters after it sample the result bilinearly. Worth it for blurs,
+     * whose output has little detail to lose, e.g. 0.5 or 0.25.
+     */
+    public final void setRenderScale(final float scale) {
+        mRenderScale = Math.min(1.0f, Math.max(1.0f / 16, scale));
         GPUPixel.getInstance().runOnDraw(new Runnable() {
             @Override
             public void run() {
                 if (mNativeClassID != 0) {
-                    GPUPixel.nativeFilterSetPropertyFloat(mNativeClassID, property, value);
+                    GPUPixel.nativeFilterSetRenderScale(mNativeClassID, mRenderScale);
                 }
             }
         });
     }
 
+    public final float getRenderScale() {
+        return mRenderScale;
+    }
+
+    public final void setProperty(final String property, final double value) {
+        setProperty(property, (float) value);
+    }
+
+    public final void setProperty(final String property, final float value) {
+        boolean schedule;
+        synchronized (mPropertyLock) {
+            PropertySlot slot = obtainPropertySlot(property);
+            slot.type = PROPERTY_TYPE_FLOAT;
+            slot.floatValue = value;
+            schedule = markPropertyDirty(slot);
+        }
+        if (schedule) scheduleFlush();
+    }
+
     public final void setProperty(final String property, final float[] array) {
-        GPUPixel.getInstance().runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                if (mNativeClassID != 0) {
-                    GPUPixel.nativeFilterSetPropertyFloatArray(mNativeClassID, property, array);
-                }
+        boolean schedule;
+        synchronized (mPropertyLock) {
+            PropertySlot slot = obtainPropertySlot(property);
+            slot.type = PROPERTY_TYPE_FLOAT_ARRAY;
+            if (slot.arrayValue == null || slot.arrayValue.length < array.length) {
+                slot.arrayValue = new float[array.length];
             }
-        });
+            System.arraycopy(array, 0, slot.arrayValue, 0, array.length);
+            slot.arrayLength = array.length;
+            schedule = markPropertyDirty(slot);
+        }
+        if (schedule) scheduleFlush();
     }
 
     public final void setProperty(final String property, final int value) {
-        GPUPixel.getInstance().runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                if (mNativeClassID != 0) {
-                    GPUPixel.nativeFilterSetPropertyInt(mNativeClassID, property, value);
-                }
-            }
-        });
+        boolean schedule;
+        synchronized (mPropertyLock) {
+            PropertySlot slot = obtainPropertySlot(property);
+            slot.type = PROPERTY_TYPE_INT;
+            slot.intValue = value;
+            schedule = markPropertyDirty(slot);
+        }
+        if (schedule) scheduleFlush();
     }
 
     public final void setProperty(final String property, final String value) {
-        GPUPixel.getInstance().runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                if (mNativeClassID != 0) {
-                    GPUPixel.nativeFilterSetPropertyString(mNativeClassID, property, value);
+        boolean schedule;
+        synchronized (mPropertyLock) {
+            PropertySlot slot = obtainPropertySlot(property);
+            slot.type = PROPERTY_TYPE_STRING;
+            slot.stringValue = value;
+            schedule = markPropertyDirty(slot);
+        }
+        if (schedule) scheduleFlush();
+    }
+
+    private PropertySlot obtainPropertySlot(String property) {
+        PropertySlot slot = mPropertySlots.get(property);
+        if (slot == null) {
+            slot = new PropertySlot(property);
+            mPropertySlots.put(property, slot);
+        }
+        return slot;
+    }
+
+    // returns true when the caller has to post a flush for this frame
+    private boolean markPropertyDirty(PropertySlot slot) {
+        if (!slot.dirty) {
+            slot.dirty = true;
+            if (mDirtyCount == mDirtySlots.length) {
+                mDirtySlots = Arrays.copyOf(mDirtySlots, mDirtyCount * 2);
+            }
+            mDirtySlots[mDirtyCount++] = slot;
+        }
+        if (mFlushScheduled) {
+            return false;
+        }
+        mFlushScheduled = true;
+        return true;
+    }
+
+    private void scheduleFlush() {
+        GPUPixelCommand cmd = GPUPixel.getInstance().obtainDrawCommand(FLUSH_PROPERTIES);
+        cmd.arg0 = this;
+        GPUPixel.getInstance().runOnDraw(cmd);
+    }
+
+    private void resolvePropertyIds() {
+        if (mNativeClassID == 0) return;
+        String[] names = GPUPixel.nativeFilterGetPropertyNames(mNativeClassID);
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        for (int i = 0; i < names.length; i++) {
+            ids.put(names[i], i);
+        }
+        mPropertyIds = ids;
+    }
+
+    // Runs on the GL thread: every property written since the last flush is
+    // applied with its latest value. Numeric and array values go down in a
+    // single JNI call; strings and names the native filter doesn't know take
+    // the by-name path.
+    private void flushProperties() {
+        long classID = mNativeClassID;
+        int count = 0;
+        int floatCount = 0;
+        int intCount = 0;
+        int fallbackCount = 0;
+        synchronized (mPropertyLock) {
+            mFlushScheduled = false;
+            for (int i = 0; i < mDirtyCount; i++) {
+                PropertySlot slot = mDirtySlots[i];
+                mDirtySlots[i] = null;
+                slot.dirty = false;
+                if (classID == 0) continue;
+
+                if (slot.id == PROPERTY_ID_UNRESOLVED) {
+                    Integer id = mPropertyIds != null ? mPropertyIds.get(slot.name) : null;
+                    slot.id = id != null ? id : PROPERTY_ID_UNKNOWN;
+                }
+
+                if (slot.id == PROPERTY_ID_UNKNOWN || slot.type == PROPERTY_TYPE_STRING) {
+                    ensureFallbackCapacity(fallbackCount + 1);
+                    mFallbackSlots[fallbackCount] = slot;
+                    mFallbackTypes[fallbackCount] = slot.type;
+                    mFallbackFloats[fallbackCount] = slot.floatValue;
+                    mFallbackInts[fallbackCount] = slot.intValue;
+                    mFallbackObjects[fallbackCount] = slot.type == PROPERTY_TYPE_FLOAT_ARRAY
+                            ? Arrays.copyOf(slot.arrayValue, slot.arrayLength) : slot.stringValue;
+                    fallbackCount++;
+                    continue;
+                }
+
+                if (mBatchHeader.length < (count + 1) * 4) {
+                    mBatchHeader = Arrays.copyOf(mBatchHeader, mBatchHeader.length * 2);
                 }
+                int offset;
+                int length;
+                if (slot.type == PROPERTY_TYPE_INT) {
+                    if (mBatchInts.length < intCount + 1) {
+                        mBatchInts = Arrays.copyOf(mBatchInts, mBatchInts.length * 2);
+                    }
+                    offset = intCount;
+                    length = 1;
+                    mBatchInts[intCount++] = slot.intValue;
+                } else {
+                    length = slot.type == PROPERTY_TYPE_FLOAT ? 1 : slot.arrayLength;
+                    if (mBatchFloats.length < floatCount + length) {
+                        mBatchFloats = Arrays.copyOf(mBatchFloats, Math.max(mBatchFloats.length * 2, floatCount + length));
+                    }
+                    offset = floatCount;
+                    if (slot.type == PROPERTY_TYPE_FLOAT) {
+                        mBatchFloats[floatCount] = slot.floatValue;
+                    } else {
+                        System.arraycopy(slot.arrayValue, 0, mBatchFloats, floatCount, length);
+                    }
+                    floatCount += length;
+                }
+                mBatchHeader[count * 4] = slot.id;
+                mBatchHeader[count * 4 + 1] = slot.type;
+                mBatchHeader[count * 4 + 2] = offset;
+                mBatchHeader[count * 4 + 3] = length;
+                count++;
             }
-        });
+            mDirtyCount = 0;
+        }
+
+        if (count > 0) {
+            GPUPixel.nativeFilterSetProperties(classID, mBatchHeader, count, mBatchFloats, mBatchInts);
+        }
+        for (int i = 0; i < fallbackCount; i++) {
+            String name = mFallbackSlots[i].name;
+            switch (mFallbackTypes[i]) {
+                case PROPERTY_TYPE_FLOAT:
+                    GPUPixel.nativeFilterSetPropertyFloat(classID, name, mFallbackFloats[i]);
+                    break;
+                case PROPERTY_TYPE_INT:
+                    GPUPixel.nativeFilterSetPropertyInt(classID, name, mFallbackInts[i]);
+                    break;
+                case PROPERTY_TYPE_FLOAT_ARRAY:
+                    GPUPixel.nativeFilterSetPropertyFloatArray(classID, name, (float[]) mFallbackObjects[i]);
+                    break;
+                case PROPERTY_TYPE_STRING:
+                    GPUPixel.nativeFilterSetPropertyString(classID, name, (String) mFallbackObjects[i]);
+                    break;
+            }
+            mFallbackSlots[i] = null;
+            mFallbackObjects[i] = null;
+        }
+    }
+
+    private void ensureFallbackCapacity(int capacity) {
+        if (mFallbackSlots.length >= capacity) return;
+        int size = mFallbackSlots.length * 2;
+        mFallbackSlots = Arrays.copyOf(mFallbackSlots, size);
+        mFallbackTypes = Arrays.copyOf(mFallbackTypes, size);
+        mFallbackFloats = Arrays.copyOf(mFallbackFloats, size);
+        mFallbackInts = Arrays.copyOf(mFallbackInts, size);
+        mFallbackObjects = Arrays.copyOf(mFallbackObjects, size);
     }
 
     public final void destroy() {
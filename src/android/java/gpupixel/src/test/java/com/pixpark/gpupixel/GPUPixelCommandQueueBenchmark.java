@@ -0,0 +1,150 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput of the command ring against the synchronized LinkedList the
+ * renderer queues used before, with 1 to 8 producer threads posting to one
+ * draining consumer. Prints nanoseconds per command; the numbers only mean
+ * something relative to each other on the same machine. The command count
+ * per run is -Dgpupixel.benchmark.commands, small by default so it can run
+ * with the other tests.
+ *
+ * A plain timing loop with warm-up runs rather than a JMH harness: the
+ * module only has JUnit on its test classpath.
+ */
+public class GPUPixelCommandQueueBenchmark {
+    private static final int[] PRODUCERS = {1, 2, 4, 8};
+    private static final int CAPACITY = 256;
+    private static final int WARMUP_RUNS = 2;
+
+    private static final GPUPixelCommand.Action NOOP = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+        }
+    };
+
+    private interface Sink {
+        void post();
+
+        // consumer; returns the commands run
+        int drain();
+    }
+
+    private static final class RingSink implements Sink {
+        private final GPUPixelCommandQueue mQueue = new GPUPixelCommandQueue("benchmark", CAPACITY);
+
+        @Override
+        public void post() {
+            GPUPixelCommand cmd = mQueue.claim(NOOP);
+            mQueue.publish(cmd);
+        }
+
+        @Override
+        public int drain() {
+            return mQueue.drain();
+        }
+    }
+
+    // what GPUPixelRenderer did: a closure per post, the lock held while running
+    private static final class LinkedListSink implements Sink {
+        private final Queue<Runnable> mQueue = new LinkedList<Runnable>();
+
+        @Override
+        public void post() {
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                }
+            };
+            synchronized (mQueue) {
+                mQueue.add(runnable);
+            }
+        }
+
+        @Override
+        public int drain() {
+            int count = 0;
+            synchronized (mQueue) {
+                while (!mQueue.isEmpty()) {
+                    mQueue.poll().run();
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static long run(final Sink sink, int producers, int commands) throws Exception {
+        final int perProducer = commands / producers;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            sink.post();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        final long[] drained = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (producing.get()) {
+                    drained[0] += sink.drain();
+                }
+                drained[0] += sink.drain();
+            }
+        });
+        consumer.start();
+
+        long startNs = System.nanoTime();
+        start.countDown();
+        done.await();
+        producing.set(false);
+        consumer.join();
+        long elapsedNs = System.nanoTime() - startNs;
+        assertEquals((long) perProducer * producers, drained[0]);
+        return elapsedNs / ((long) perProducer * producers);
+    }
+
+    @Test(timeout = 300000)
+    public void ringAgainstSynchronizedLinkedList() throws Exception {
+        int commands = Integer.getInteger("gpupixel.benchmark.commands", 200000);
+        System.out.println("producers  ring ns/cmd  linked list ns/cmd");
+        for (int producers : PRODUCERS) {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                run(new RingSink(), producers, commands);
+                run(new LinkedListSink(), producers, commands);
+            }
+            long ring = run(new RingSink(), producers, commands);
+            long linkedList = run(new LinkedListSink(), producers, commands);
+            System.out.println(String.format("%9d  %11d  %18d", producers, ring, linkedList));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GPUPixelCommandQueueTest {
+    // appends (producer, sequence) to the log, run by the consumer only
+    private static final GPUPixelCommand.Action RECORD = new GPUPixelCommand.Action() {
+        @Override
+        public void run(GPUPixelCommand cmd) {
+            @SuppressWarnings("unchecked")
+            List<Integer>[] log = (List<Integer>[]) cmd.arg0;
+            log[cmd.intArg].add(cmd.intArg1);
+        }
+    };
+
+    private static void post(GPUPixelCommandQueue queue, List<Integer>[] log,
+                             int producer, int sequence) {
+        GPUPixelCommand cmd = queue.claim(RECORD);
+        cmd.arg0 = log;
+        cmd.intArg = producer;
+        cmd.intArg1 = sequence;
+        queue.publish(cmd);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Integer>[] newLog(int producers) {
+        List<Integer>[] log = new List[producers];
+        for (int i = 0; i < producers; i++) {
+            log[i] = new ArrayList<Integer>();
+        }
+        return log;
+    }
+
+    private static void assertInOrder(List<Integer>[] log, int perProducer) {
+        for (int producer = 0; producer < log.length; producer++) {
+            assertEquals("commands of producer " + producer, perProducer, log[producer].size());
+            for (int i = 0; i < perProducer; i++) {
+                if (log[producer].get(i) != i) {
+                    fail("producer " + producer + " ran " + log[producer].get(i)
+                            + " in place of " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void capacityRoundsUpToAPowerOfTwo() {
+        assertEquals(16, new GPUPixelCommandQueue("q", 10).getCapacity());
+        assertEquals(16, new GPUPixelCommandQueue("q", 16).getCapacity());
+    }
+
+    @Test
+    public void fullRingSpillsInOrder() {
+        GPUPixelCommandQueue queue = new GPUPixelCommandQueue("q", 8);
+        final AtomicInteger overflows = new AtomicInteger(0);
+        queue.setOverflowListener(new GPUPixelCommandQueue.OverflowListener() {
+            @Override
+            public void onQueueOverflow(String queueName, int capacity, long overflowCount) {
+                overflows.incrementAndGet();
+            }
+        });
+        List<Integer>[] log = newLog(1);
+        for (int i = 0; i < 20; i++) {
+            post(queue, log, 0, i);
+        }
+        assertEquals(20, queue.size());
+        assertEquals(12, queue.getOverflowCount());
+        assertEquals(8, queue.getHighWaterMark());
+        // once per run of overflows, not per command
+        assertEquals(1, overflows.get());
+
+        assertEquals(20, queue.drain());
+        assertTrue(queue.isEmpty());
+        assertInOrder(log, 20);
+
+        // the ring takes commands again after the spill drained
+        log = newLog(1);
+        for (int i = 0; i < 4; i++) {
+            post(queue, log, 0, i);
+        }
+        assertEquals(12, queue.getOverflowCount());
+        assertEquals(4, queue.drain());
+        assertInOrder(log, 4);
+    }
+
+    @Test
+    public void clearDropsWithoutRunning() {
+        GPUPixelCommandQueue queue = new GPUPixelCommandQueue("q", 4);
+        List<Integer>[] log = newLog(1);
+        for (int i = 0; i < 10; i++) {
+            post(queue, log, 0, i);
+        }
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, log[0].size());
+        assertEquals(0, queue.drain());
+    }
+
+    @Test
+    public void commandsQueuedWhileDrainingRunInTheSameDrain() {
+        final GPUPixelCommandQueue queue = new GPUPixelCommandQueue("q", 4);
+        final AtomicInteger runs = new AtomicInteger(0);
+        queue.add(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                queue.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        runs.incrementAndGet();
+                    }
+                });
+            }
+        });
+        assertEquals(2, queue.drain());
+        assertEquals(2, runs.get());
+    }
+
+    private static void runProducersAgainstConsumer(int producers, final int perProducer)
+            throws Exception {
+        // small enough that the ring fills up and spills under load
+        final GPUPixelCommandQueue queue = new GPUPixelCommandQueue("q", 64);
+        final List<Integer>[] log = newLog(producers);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final AtomicBoolean consuming = new AtomicBoolean(true);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            post(queue, log, producer, i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        final AtomicInteger drained = new AtomicInteger(0);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (consuming.get()) {
+                    drained.addAndGet(queue.drain());
+                }
+            }
+        });
+        consumer.start();
+
+        start.countDown();
+        done.await();
+        consuming.set(false);
+        consumer.join();
+        drained.addAndGet(queue.drain());
+
+        assertEquals(producers * perProducer, drained.get());
+        assertTrue(queue.isEmpty());
+        assertInOrder(log, perProducer);
+    }
+
+    @Test(timeout = 120000)
+    public void concurrentProducersLoseNothingAndKeepTheirOrder() throws Exception {
+        // reordering needs an unlucky interleaving, so many short runs
+        for (int run = 0; run < 200; run++) {
+            runProducersAgainstConsumer(8, 2000);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void producersSpillingTogetherKeepTheirOrder() throws Exception {
+        final int producers = 4;
+        final int perProducer = 5000;
+        // nothing drains until every producer is done, most commands spill
+        final GPUPixelCommandQueue queue = new GPUPixelCommandQueue("q", 16);
+        final List<Integer>[] log = newLog(producers);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        post(queue, log, producer, i);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(producers * perProducer, queue.size());
+        assertEquals(producers * perProducer - queue.getCapacity(), queue.getOverflowCount());
+        assertEquals(producers * perProducer, queue.drain());
+        assertInOrder(log, perProducer);
+    }
+}
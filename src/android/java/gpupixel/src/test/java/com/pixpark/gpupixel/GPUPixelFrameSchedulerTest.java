@@ -0,0 +1,174 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+package com.pixpark.gpupixel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GPUPixelFrameSchedulerTest {
+    private static final long PERIOD = GPUPixelFrameScheduler.DEFAULT_VSYNC_PERIOD_NANOS;
+
+    // vsyncs come from tick(), time only moves when told to
+    private static final class FakeClock implements GPUPixelFrameScheduler.Clock {
+        long now = 1000000000L;
+        GPUPixelFrameScheduler.FrameCallback pending;
+        int posts = 0;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void postFrameCallback(GPUPixelFrameScheduler.FrameCallback callback) {
+            pending = callback;
+            posts++;
+        }
+
+        void tick(long vsyncNanos) {
+            now = vsyncNanos;
+            GPUPixelFrameScheduler.FrameCallback callback = pending;
+            pending = null;
+            if (callback != null) {
+                callback.doFrame(vsyncNanos);
+            }
+        }
+    }
+
+    private FakeClock mClock;
+    private GPUPixelFrameScheduler mScheduler;
+    private int mRenders;
+    // how long the next frames take to render
+    private long mRenderNanos;
+    private long mPresentationTimeMillis;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mRenders = 0;
+        mRenderNanos = PERIOD / 4;
+        // stands in for the view: renders right away, on the tick
+        mScheduler = new GPUPixelFrameScheduler(mClock, new Runnable() {
+            @Override
+            public void run() {
+                mRenders++;
+                mScheduler.beginFrame();
+                mPresentationTimeMillis = mScheduler.getPresentationTimeMillis();
+                mClock.now += mRenderNanos;
+                mScheduler.endFrame();
+            }
+        });
+    }
+
+    @Test
+    public void requestsBetweenTicksShareOneFrame() {
+        mScheduler.requestFrame();
+        mScheduler.requestFrame();
+        mScheduler.requestFrame();
+        assertEquals(1, mClock.posts);
+
+        mClock.tick(mClock.now + PERIOD);
+        assertEquals(1, mRenders);
+
+        GPUPixelFrameScheduler.Stats stats = mScheduler.getStats();
+        assertEquals(3, stats.requests);
+        assertEquals(2, stats.coalesced);
+        assertEquals(1, stats.frames);
+    }
+
+    @Test
+    public void tickWithoutRequestRendersNothing() {
+        mScheduler.requestFrame();
+        mClock.tick(mClock.now + PERIOD);
+        assertEquals(1, mRenders);
+
+        // nothing asked for since, a stray tick is ignored
+        assertNull(mClock.pending);
+        mScheduler.requestFrame();
+        mClock.tick(mClock.now + PERIOD);
+        mClock.tick(mClock.now + PERIOD);
+        assertEquals(2, mRenders);
+    }
+
+    @Test
+    public void frameOverItsPeriodMissesTheDeadline() {
+        long vsync = mClock.now;
+        mScheduler.requestFrame();
+        mClock.tick(vsync += PERIOD);
+
+        mRenderNanos = PERIOD + PERIOD / 2;
+        mScheduler.requestFrame();
+        mClock.tick(vsync += 2 * PERIOD);
+
+        GPUPixelFrameScheduler.Stats stats = mScheduler.getStats();
+        assertEquals(2, stats.frames);
+        assertEquals(1, stats.missedDeadlines);
+        assertEquals(2, stats.latency.samples);
+    }
+
+    @Test
+    public void gapsBetweenFramesCountSkippedVsyncs() {
+        long vsync = mClock.now;
+        mScheduler.requestFrame();
+        mClock.tick(vsync += PERIOD);
+        mScheduler.requestFrame();
+        // two vsyncs went by without a frame
+        mClock.tick(vsync += 3 * PERIOD);
+        mScheduler.requestFrame();
+        mClock.tick(vsync += PERIOD);
+
+        GPUPixelFrameScheduler.Stats stats = mScheduler.getStats();
+        assertEquals(3, stats.frames);
+        assertEquals(2, stats.skippedVsyncs);
+        assertEquals(2, stats.frameInterval.samples);
+
+        // a long idle gap is not judder
+        mScheduler.requestFrame();
+        mClock.tick(vsync += 10 * PERIOD);
+        assertEquals(2, mScheduler.getStats().skippedVsyncs);
+    }
+
+    @Test
+    public void presentationTimeIsTheVsyncAfterTheScheduledOne() {
+        long vsync = mClock.now + PERIOD;
+        mScheduler.requestFrame();
+        mClock.tick(vsync);
+        assertEquals((vsync + PERIOD) / 1000000L, mPresentationTimeMillis);
+
+        mScheduler.setVsyncPeriodNanos(PERIOD * 2);
+        vsync += 2 * PERIOD;
+        mScheduler.requestFrame();
+        mClock.tick(vsync);
+        assertEquals((vsync + 2 * PERIOD) / 1000000L, mPresentationTimeMillis);
+    }
+
+    @Test
+    public void renderOutsideATickCountsFromNow() {
+        mClock.now += 5 * PERIOD;
+        mScheduler.beginFrame();
+        assertEquals((mClock.now + PERIOD) / 1000000L, mScheduler.getPresentationTimeMillis());
+        mScheduler.endFrame();
+        assertEquals(0, mScheduler.getStats().frames);
+    }
+
+    @Test
+    public void resetStatsClearsCounters() {
+        mScheduler.requestFrame();
+        mScheduler.requestFrame();
+        mClock.tick(mClock.now + PERIOD);
+        mScheduler.resetStats();
+
+        GPUPixelFrameScheduler.Stats stats = mScheduler.getStats();
+        assertEquals(0, stats.requests);
+        assertEquals(0, stats.coalesced);
+        assertEquals(0, stats.frames);
+        assertEquals(0, stats.latency.samples);
+    }
+}
@@ -1,21 +1,48 @@
 #if PLATFORM == PLATFORM_ANDROID
 
+#include <android/asset_manager_jni.h>
 #include <android/bitmap.h>
 #include <jni.h>
 #include <string>
 #include <list>
+#include <map>
 #include <face_reshape_filter.h>
 #include "gpupixel_context.h"
+#include "gpupixel_offscreen_session.h"
 #include "jni_helpers.h"
 #include "libyuv.h"
+#include "resource_loader.h"
+#include "face_detector.h"
 #include "filter.h"
 #include "source_camera.h"
 #include "source_image.h"
 #include "source_raw_data_input.h"
 #include "target_view.h"
+#include "target_raw_data_output.h"
+#include <cstring>
 
 USING_NS_GPUPIXEL
 std::list<std::shared_ptr<Filter>>  filter_list_;
+std::list<std::shared_ptr<SourceRawDataInput>> raw_input_list_;
+std::list<std::shared_ptr<GPUPixelOffscreenSession>> offscreen_session_list_;
+std::list<std::shared_ptr<GPUPixelContext>> context_list_;
+
+struct RawOutputBinding {
+  std::shared_ptr<TargetRawDataOutput> output;
+  jobject owner;
+};
+std::list<RawOutputBinding> raw_output_list_;
+
+// targets created here are retained above, hand out that shared_ptr instead
+// of wrapping the raw pointer a second time
+static std::shared_ptr<Target> findRetainedTarget(jlong targetClassId) {
+  for (auto& binding : raw_output_list_) {
+    if ((jlong)binding.output.get() == targetClassId) {
+      return binding.output;
+    }
+  }
+  return nullptr;
+}
 
 extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeSourceImageNew(
     JNIEnv* env,
@@ -92,7 +119,24 @@ extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeSourceCameraSetFrame(
 extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeSourceRawInputNew(
     JNIEnv* env,
     jclass) {
-  return 0;
+  auto rawInput = SourceRawDataInput::create();
+  if (!rawInput) {
+    return 0;
+  }
+  raw_input_list_.push_back(rawInput);
+  return (uintptr_t)rawInput.get();
+};
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeSourceRawInputDestroy(
+    JNIEnv* env,
+    jclass,
+    jlong classId) {
+  for (auto it = raw_input_list_.begin(); it != raw_input_list_.end(); ++it) {
+    if ((jlong)it->get() == classId) {
+      raw_input_list_.erase(it);
+      return;
+    }
+  }
 };
 
 extern "C" void
@@ -103,10 +147,98 @@ Java_com_pixpark_gpupixel_GPUPixel_nativeSourceRawInputUploadBytes(
     jintArray jPixel,
     jint width,
     jint height,
-    jint stride) {
+    jint stride,
+    jlong frameTime) {
+  if (env->GetArrayLength(jPixel) < (jlong)stride * height) {
+    return;
+  }
   jint* pixel = env->GetIntArrayElements(jPixel, 0);
-  ((SourceRawDataInput*)classId)->uploadBytes((uint8_t*)pixel, width, height, stride, 0);
-  env->ReleaseIntArrayElements(jPixel, pixel, 0);
+  ((SourceRawDataInput*)classId)
+      ->uploadBytes((uint8_t*)pixel, width, height, stride, frameTime);
+  env->ReleaseIntArrayElements(jPixel, pixel, JNI_ABORT);
+};
+
+// planes are direct ByteBuffers read in place; offsets are the buffers'
+// positions when the frame was posted. The Java side validated them, a
+// plane that doesn't hold rows of stride bytes past its offset is dropped
+// here as well rather than read past its end.
+static bool planeFits(JNIEnv* env,
+                      jobject buffer,
+                      jint offset,
+                      jint stride,
+                      jint rows) {
+  jlong capacity = env->GetDirectBufferCapacity(buffer);
+  return offset >= 0 && stride > 0 && capacity >= 0 &&
+         (jlong)offset + (jlong)stride * rows <= capacity;
+}
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeSourceRawInputUploadI420(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jobject jDataY,
+    jint offsetY,
+    jint strideY,
+    jobject jDataU,
+    jint offsetU,
+    jint strideU,
+    jobject jDataV,
+    jint offsetV,
+    jint strideV,
+    jint width,
+    jint height,
+    jint rotation,
+    jlong frameTime) {
+  uint8_t* dataY = (uint8_t*)env->GetDirectBufferAddress(jDataY);
+  uint8_t* dataU = (uint8_t*)env->GetDirectBufferAddress(jDataU);
+  uint8_t* dataV = (uint8_t*)env->GetDirectBufferAddress(jDataV);
+  if (!dataY || !dataU || !dataV) {
+    return;
+  }
+  const jint chromaRows = (height + 1) / 2;
+  if (!planeFits(env, jDataY, offsetY, strideY, height) ||
+      !planeFits(env, jDataU, offsetU, strideU, chromaRows) ||
+      !planeFits(env, jDataV, offsetV, strideV, chromaRows)) {
+    return;
+  }
+  SourceRawDataInput* rawInput = (SourceRawDataInput*)classId;
+  rawInput->setRotation((RotationMode)rotation);
+  rawInput->uploadBytes(width, height, dataY + offsetY, strideY,
+                        dataU + offsetU, strideU, dataV + offsetV, strideV,
+                        frameTime);
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeSourceRawInputUploadNV(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jboolean isNV21,
+    jobject jDataY,
+    jint offsetY,
+    jint strideY,
+    jobject jDataUV,
+    jint offsetUV,
+    jint strideUV,
+    jint width,
+    jint height,
+    jint rotation,
+    jlong frameTime) {
+  uint8_t* dataY = (uint8_t*)env->GetDirectBufferAddress(jDataY);
+  uint8_t* dataUV = (uint8_t*)env->GetDirectBufferAddress(jDataUV);
+  if (!dataY || !dataUV) {
+    return;
+  }
+  if (!planeFits(env, jDataY, offsetY, strideY, height) ||
+      !planeFits(env, jDataUV, offsetUV, strideUV, (height + 1) / 2)) {
+    return;
+  }
+  SourceRawDataInput* rawInput = (SourceRawDataInput*)classId;
+  rawInput->setRotation((RotationMode)rotation);
+  rawInput->uploadBytes(
+      width, height, dataY + offsetY, strideY, dataUV + offsetUV, strideUV,
+      isNV21 ? GPUPIXEL_FRAME_TYPE_NV21 : GPUPIXEL_FRAME_TYPE_NV12, frameTime);
 };
 
 extern "C" void
@@ -118,6 +250,15 @@ Java_com_pixpark_gpupixel_GPUPixel_nativeSourceRawInputSetRotation(
   ((SourceRawDataInput*)classId)->setRotation((RotationMode)rotation);
 };
 
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeSourceRawInputSetFaceDetectionProxySize(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jint shortSide) {
+  ((SourceRawDataInput*)classId)->setFaceDetectionProxySize(shortSide);
+};
+
 extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeSourceAddTarget(
     JNIEnv* env,
     jclass,
@@ -126,9 +267,11 @@ extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeSourceAddTarget(
     jint texID,
     jboolean isFilter) {
   Source* source = (Source*)classId;
-  std::shared_ptr<Target> target =
-      isFilter ? std::shared_ptr<Target>((Filter*)targetClassId)
-               : std::shared_ptr<Target>((Target*)targetClassId);
+  std::shared_ptr<Target> target = findRetainedTarget(targetClassId);
+  if (!target) {
+    target = isFilter ? std::shared_ptr<Target>((Filter*)targetClassId)
+                      : std::shared_ptr<Target>((Target*)targetClassId);
+  }
   if (texID >= 0) {
     return (uintptr_t)(source->addTarget(target, texID)).get();
   } else {
@@ -143,6 +286,11 @@ extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeSourceRemoveTarget(
     jlong targetClassId,
     jboolean isFilter) {
   Source* source = (Source*)classId;
+  std::shared_ptr<Target> retained = findRetainedTarget(targetClassId);
+  if (retained) {
+    source->removeTarget(retained);
+    return;
+  }
   Target* target = isFilter ? dynamic_cast<Target*>((Filter*)targetClassId)
                             : (Target*)targetClassId;
   source->removeTarget(std::shared_ptr<Target>(target));
@@ -159,8 +307,10 @@ extern "C" jboolean Java_com_pixpark_gpupixel_GPUPixel_nativeSourceProceed(
     JNIEnv* env,
     jclass,
     jlong classId,
-    jboolean bUpdateTargets) {
-  return ((Source*)classId)->proceed(bUpdateTargets, Util::nowTimeMs());
+    jboolean bUpdateTargets,
+    jlong frameTimeMs) {
+  return ((Source*)classId)->proceed(
+      bUpdateTargets, frameTimeMs > 0 ? frameTimeMs : Util::nowTimeMs());
 };
 
 extern "C" jint
@@ -179,30 +329,84 @@ Java_com_pixpark_gpupixel_GPUPixel_nativeSourceGetRotatedFramebuferHeight(
   return ((Source*)classId)->getRotatedFramebufferHeight();
 };
 
-extern "C" jbyteArray
-Java_com_pixpark_gpupixel_GPUPixel_nativeSourceCaptureAProcessedFrameData(
+// copies a finished readback into the capture's Bitmap or direct buffer
+static bool CopyCapturedFrame(JNIEnv* env,
+                              jobject bitmap,
+                              jobject buffer,
+                              const uint8_t* data,
+                              int width,
+                              int height) {
+  const int rowBytes = width * 4;
+  if (bitmap) {
+    AndroidBitmapInfo info;
+    void* pixels = nullptr;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0 ||
+        info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 ||
+        (int)info.width != width || (int)info.height != height) {
+      return false;
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) < 0) {
+      return false;
+    }
+    for (int row = 0; row < height; ++row) {
+      std::memcpy((uint8_t*)pixels + row * info.stride, data + row * rowBytes,
+                  rowBytes);
+    }
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return true;
+  }
+
+  uint8_t* dst = (uint8_t*)env->GetDirectBufferAddress(buffer);
+  if (!dst || env->GetDirectBufferCapacity(buffer) < (jlong)rowBytes * height) {
+    return false;
+  }
+  std::memcpy(dst, data, (size_t)rowBytes * height);
+  return true;
+}
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeFilterRequestCapture(
     JNIEnv* env,
     jclass,
     jlong classId,
-    jlong upToFilterClassId,
+    jobject jCapture,
+    jobject jBitmap,
+    jobject jBuffer,
     jint width,
     jint height) {
-  unsigned char* processedFrameData =
-      ((Source*)classId)
-          ->captureAProcessedFrameData(
-              std::shared_ptr<Filter>((Filter*)upToFilterClassId), width,
-              height);
-  int frameSize = width * height * 4 * sizeof(unsigned char);
+  jobject capture = env->NewGlobalRef(jCapture);
+  jobject bitmap = jBitmap ? env->NewGlobalRef(jBitmap) : nullptr;
+  jobject buffer = jBuffer ? env->NewGlobalRef(jBuffer) : nullptr;
+  jclass cls = env->GetObjectClass(jCapture);
+  jmethodID beginWriteID = env->GetMethodID(cls, "beginWrite", "()Z");
+  jmethodID completeID = env->GetMethodID(cls, "complete", "(ZIIJ)V");
+  env->DeleteLocalRef(cls);
 
-  jbyteArray jresult = NULL;
-  if (processedFrameData) {
-    jbyte* by = (jbyte*)processedFrameData;
-    jresult = env->NewByteArray(frameSize);
-    env->SetByteArrayRegion(jresult, 0, frameSize, by);
-    delete[] processedFrameData;
-    processedFrameData = 0;
+  FrameCaptureRequest request;
+  request.width = width;
+  request.height = height;
+  // runs exactly once, with null data when the readback was dropped
+  request.callback = [=](const uint8_t* data, int w, int h, int64_t ts) {
+    AttachThreadScoped scope(GetJVM());
+    JNIEnv* env = scope.env();
+    bool ok = false;
+    if (env->CallBooleanMethod(capture, beginWriteID)) {
+      ok = data && (bitmap || buffer) &&
+           CopyCapturedFrame(env, bitmap, buffer, data, w, h);
+    }
+    env->CallVoidMethod(capture, completeID, (jboolean)ok, w, h, (jlong)ts);
+    env->DeleteGlobalRef(capture);
+    if (bitmap) {
+      env->DeleteGlobalRef(bitmap);
+    }
+    if (buffer) {
+      env->DeleteGlobalRef(buffer);
+    }
+  };
+  if (!classId) {
+    request.callback(nullptr, width, height, 0);
+    return;
   }
-  return jresult;
+  ((Filter*)classId)->requestCapture(request);
 };
 
 extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeTargetViewNew(
@@ -243,6 +447,61 @@ Java_com_pixpark_gpupixel_GPUPixel_nativeTargetViewSetMirror(JNIEnv *env, jclass
     ((TargetView*)class_id)->setMirror(mirror);
 }
 
+// Frames are copied straight from the mapped PBO into a pooled direct
+// ByteBuffer the Java owner hands out, then handed back to it for delivery.
+extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeTargetRawOutputNew(
+    JNIEnv* env,
+    jclass,
+    jobject jOwner,
+    jint pboCount) {
+  auto output = TargetRawDataOutput::create();
+  output->setPBOCount(pboCount);
+
+  jobject owner = env->NewGlobalRef(jOwner);
+  jclass cls = env->GetObjectClass(jOwner);
+  jmethodID obtainBufferID =
+      env->GetMethodID(cls, "obtainBuffer", "(II)Ljava/nio/ByteBuffer;");
+  jmethodID deliverFrameID =
+      env->GetMethodID(cls, "deliverFrame", "(Ljava/nio/ByteBuffer;IIJ)V");
+  env->DeleteLocalRef(cls);
+
+  output->setPixelsCallbck([=](const uint8_t* data, int width, int height,
+                               int64_t ts) {
+    AttachThreadScoped scope(GetJVM());
+    JNIEnv* env = scope.env();
+    jobject buffer = env->CallObjectMethod(owner, obtainBufferID, width, height);
+    if (!buffer) {
+      // pool exhausted, counted as a drop on the Java side
+      return;
+    }
+    uint8_t* dst = (uint8_t*)env->GetDirectBufferAddress(buffer);
+    const jlong size = (jlong)width * height * 4;
+    if (dst && env->GetDirectBufferCapacity(buffer) >= size) {
+      std::memcpy(dst, data, size);
+    }
+    env->CallVoidMethod(owner, deliverFrameID, buffer, width, height,
+                        (jlong)ts);
+    env->DeleteLocalRef(buffer);
+  });
+
+  raw_output_list_.push_back({output, owner});
+  return (jlong)output.get();
+};
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeTargetRawOutputDestroy(
+    JNIEnv* env,
+    jclass,
+    jlong classId) {
+  for (auto it = raw_output_list_.begin(); it != raw_output_list_.end(); ++it) {
+    if ((jlong)it->output.get() == classId) {
+      it->output->setPixelsCallbck(nullptr);
+      env->DeleteGlobalRef(it->owner);
+      raw_output_list_.erase(it);
+      return;
+    }
+  }
+};
+
 extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeFilterCreate(
     JNIEnv* env,
     jclass obj,
@@ -274,6 +533,14 @@ extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeFilterFinalize(
   ((Filter*)classId)->releaseFramebuffer(false);
 };
 
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeFilterSetRenderScale(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId,
+    jfloat scale) {
+  ((Filter*)classId)->setRenderScale(scale);
+};
+
 extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeFilterSetPropertyFloat(
     JNIEnv* env,
     jclass obj,
@@ -310,6 +577,58 @@ Java_com_pixpark_gpupixel_GPUPixel_nativeFilterSetPropertyString(
   env->ReleaseStringUTFChars(jValue, value);
 };
 
+extern "C" jobjectArray
+Java_com_pixpark_gpupixel_GPUPixel_nativeFilterGetPropertyNames(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId) {
+  const std::vector<std::string>& names =
+      ((Filter*)classId)->getPropertyNames();
+  jclass stringClass = env->FindClass("java/lang/String");
+  jobjectArray array = env->NewObjectArray(names.size(), stringClass, 0);
+  for (size_t i = 0; i < names.size(); i++) {
+    jstring name = env->NewStringUTF(names[i].c_str());
+    env->SetObjectArrayElement(array, i, name);
+    env->DeleteLocalRef(name);
+  }
+  env->DeleteLocalRef(stringClass);
+  return array;
+};
+
+// header holds {id, type, offset, length} per update, type being one of the
+// GPUPixelFilter.PROPERTY_TYPE_* constants; ints are read from intData and
+// floats/vectors from floatData
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeFilterSetProperties(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId,
+    jintArray jHeader,
+    jint count,
+    jfloatArray jFloatData,
+    jintArray jIntData) {
+  Filter* filter = (Filter*)classId;
+  jint* header = env->GetIntArrayElements(jHeader, 0);
+  jfloat* floatData = env->GetFloatArrayElements(jFloatData, 0);
+  jint* intData = env->GetIntArrayElements(jIntData, 0);
+  for (int i = 0; i < count; i++) {
+    const jint* entry = header + i * 4;
+    switch (entry[1]) {
+      case 0:
+        filter->setPropertyById(entry[0], (float)floatData[entry[2]]);
+        break;
+      case 1:
+        filter->setPropertyById(entry[0], (int)intData[entry[2]]);
+        break;
+      case 2:
+        filter->setPropertyById(entry[0], floatData + entry[2], entry[3]);
+        break;
+    }
+  }
+  env->ReleaseIntArrayElements(jIntData, intData, JNI_ABORT);
+  env->ReleaseFloatArrayElements(jFloatData, floatData, JNI_ABORT);
+  env->ReleaseIntArrayElements(jHeader, header, JNI_ABORT);
+};
+
 extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeContextInit(
     JNIEnv* env,
     jclass obj){
@@ -322,12 +641,346 @@ extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeContextDestroy(
   GPUPixelContext::destroy();
 };
 
+extern "C" jint Java_com_pixpark_gpupixel_GPUPixel_nativeContextPollCaptures(
+    JNIEnv* env,
+    jclass,
+    jboolean wait) {
+  return GPUPixelContext::getInstance()->getFrameCapture()->poll(wait);
+};
+
+// out: hits, misses, evictions, bytes resident, high water, count, budget
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGetFramebufferCacheStats(
+    JNIEnv* env,
+    jclass,
+    jlongArray jOut) {
+  FramebufferCacheStats stats =
+      GPUPixelContext::getInstance()->getFramebufferCache()->getStats();
+  jlong values[] = {(jlong)stats.hits,
+                    (jlong)stats.misses,
+                    (jlong)stats.evictions,
+                    (jlong)stats.bytesResident,
+                    (jlong)stats.bytesResidentHighWater,
+                    (jlong)stats.framebuffersResident,
+                    (jlong)stats.budgetBytes};
+  const jsize count = sizeof(values) / sizeof(values[0]);
+  if (env->GetArrayLength(jOut) >= count) {
+    env->SetLongArrayRegion(jOut, 0, count, values);
+  }
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextResetFramebufferCacheStats(
+    JNIEnv* env,
+    jclass) {
+  GPUPixelContext::getInstance()->getFramebufferCache()->resetStats();
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextSetFramebufferCacheBudget(
+    JNIEnv* env,
+    jclass,
+    jlong bytes) {
+  GPUPixelContext::getInstance()->getFramebufferCache()->setBudgetBytes(
+      bytes < 0 ? 0 : (uint64_t)bytes);
+};
+
 extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeContextPurge(
     JNIEnv* env,
     jclass obj) {
   GPUPixelContext::getInstance()->purge();
 };
 
+// binds the library's own pbuffer context to the calling thread, for
+// rendering without a GLSurfaceView
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeContextMakeCurrent(
+    JNIEnv* env,
+    jclass obj) {
+  GPUPixelContext::getInstance()->useAsCurrent();
+};
+
+// out: hits, compiles, disk loads, disk rejected, resident, compile ms,
+// disk load ms
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGetShaderProgramCacheStats(
+    JNIEnv* env,
+    jclass,
+    jdoubleArray jOut) {
+  ShaderProgramCacheStats stats =
+      GPUPixelContext::getInstance()->getShaderProgramCache()->getStats();
+  jdouble values[] = {(jdouble)stats.hits,
+                      (jdouble)stats.compiles,
+                      (jdouble)stats.diskLoads,
+                      (jdouble)stats.diskRejected,
+                      (jdouble)stats.programsResident,
+                      stats.compileMs,
+                      stats.diskLoadMs};
+  const jsize count = sizeof(values) / sizeof(values[0]);
+  if (env->GetArrayLength(jOut) >= count) {
+    env->SetDoubleArrayRegion(jOut, 0, count, values);
+  }
+};
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeSetShaderProgramDiskCache(
+    JNIEnv* env,
+    jclass,
+    jstring jDirectory,
+    jlong maxBytes) {
+  const char* directory = env->GetStringUTFChars(jDirectory, 0);
+  ShaderProgramCache::setDiskCache(directory,
+                                   maxBytes < 0 ? 0 : (uint64_t)maxBytes);
+  env->ReleaseStringUTFChars(jDirectory, directory);
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeClearShaderProgramDiskCache(
+    JNIEnv* env,
+    jclass) {
+  ShaderProgramCache::clearDiskCache();
+};
+
+// the Java AssetManager is held so the native one stays valid
+static jobject asset_manager_ = nullptr;
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeSetAssetManager(
+    JNIEnv* env,
+    jclass,
+    jobject jAssetManager) {
+  jobject previous = asset_manager_;
+  asset_manager_ = jAssetManager ? env->NewGlobalRef(jAssetManager) : nullptr;
+  ResourceLoader::setAssetManager(
+      asset_manager_ ? AAssetManager_fromJava(env, asset_manager_) : nullptr);
+  if (previous) {
+    env->DeleteGlobalRef(previous);
+  }
+};
+
+// pipeline state for a GPUPixel instance besides the default one; its GL
+// context is the GLSurfaceView's
+extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeContextCreate(
+    JNIEnv* env,
+    jclass obj,
+    jboolean share,
+    jlong shareClassId) {
+  GPUPixelContext* shareContext = nullptr;
+  if (share) {
+    shareContext = shareClassId ? (GPUPixelContext*)shareClassId
+                                : GPUPixelContext::getInstance();
+  }
+  auto context = GPUPixelContext::createExternal(shareContext);
+  context_list_.push_back(context);
+  return (uintptr_t)context.get();
+};
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeContextDestroyInstance(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId) {
+  GPUPixelContext* context = (GPUPixelContext*)classId;
+  if (GPUPixelContext::getThreadContext() == context) {
+    GPUPixelContext::setThreadContext(nullptr);
+  }
+  for (auto it = context_list_.begin(); it != context_list_.end(); ++it) {
+    if (it->get() == context) {
+      context_list_.erase(it);
+      break;
+    }
+  }
+};
+
+// 0 binds the default context
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeContextBindThread(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId) {
+  GPUPixelContext::setThreadContext((GPUPixelContext*)classId);
+};
+
+// 0 is the default context
+static GPUPixelContext* contextForClassId(jlong classId) {
+  return classId ? (GPUPixelContext*)classId : GPUPixelContext::getInstance();
+}
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextSetMetricsEnabled(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId,
+    jboolean enabled) {
+  contextForClassId(classId)->getPipelineMetrics()->setEnabled(enabled);
+};
+
+extern "C" jstring Java_com_pixpark_gpupixel_GPUPixel_nativeContextGetMetrics(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId) {
+  std::string json = contextForClassId(classId)->getPipelineMetrics()->toJson();
+  return env->NewStringUTF(json.c_str());
+};
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeContextResetMetrics(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId) {
+  contextForClassId(classId)->getPipelineMetrics()->reset();
+};
+
+// frame governor, called on the context's GL thread
+static std::shared_ptr<Filter> findFilter(jlong filterClassId);
+
+// Java owns camera and image sources, the governor only gets to watch them;
+// the references are dropped with the steps
+static std::map<GPUPixelContext*, std::list<std::shared_ptr<Source>>>
+    governor_sources_;
+static std::map<GPUPixelContext*, jobject> governor_listeners_;
+
+static std::shared_ptr<Source> governedSource(GPUPixelContext* context,
+                                              jlong sourceClassId) {
+  for (auto& input : raw_input_list_) {
+    if ((jlong)input.get() == sourceClassId) {
+      return input;
+    }
+  }
+  auto source = std::shared_ptr<Source>((Source*)sourceClassId, [](Source*) {});
+  governor_sources_[context].push_back(source);
+  return source;
+}
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGovernorSetEnabled(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId,
+    jboolean enabled) {
+  contextForClassId(classId)->getFrameGovernor()->setEnabled(enabled);
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGovernorConfigure(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId,
+    jfloat targetFps,
+    jfloat degradeRatio,
+    jfloat recoverRatio,
+    jint degradeAfterMs,
+    jint recoverAfterMs) {
+  FrameGovernor* governor = contextForClassId(classId)->getFrameGovernor();
+  governor->setTargetFps(targetFps);
+  governor->setHysteresis(degradeRatio, recoverRatio, degradeAfterMs,
+                          recoverAfterMs);
+};
+
+extern "C" jint
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGovernorAddStep(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId,
+    jint type,
+    jstring jName,
+    jlong nodeClassId,
+    jstring jProperty,
+    jfloat value,
+    jint intValue) {
+  GPUPixelContext* context = contextForClassId(classId);
+  FrameGovernor* governor = context->getFrameGovernor();
+  const char* name = env->GetStringUTFChars(jName, 0);
+  int index = -1;
+  // the types of GPUPixelFrameGovernor
+  switch (type) {
+    case 0: {
+      auto filter = findFilter(nodeClassId);
+      const char* property = env->GetStringUTFChars(jProperty, 0);
+      if (filter) {
+        index = governor->addPropertyStep(name, filter, property, value);
+      }
+      env->ReleaseStringUTFChars(jProperty, property);
+      break;
+    }
+    case 1: {
+      if (auto filter = findFilter(nodeClassId)) {
+        index = governor->addRenderScaleStep(name, filter, value);
+      }
+      break;
+    }
+    case 2: {
+      if (auto filter = findFilter(nodeClassId)) {
+        index = governor->addBypassStep(name, filter);
+      }
+      break;
+    }
+    case 3:
+      index = governor->addDetectionCadenceStep(
+          name, governedSource(context, nodeClassId), (int)value, intValue);
+      break;
+  }
+  env->ReleaseStringUTFChars(jName, name);
+  return index;
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGovernorClearSteps(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId) {
+  GPUPixelContext* context = contextForClassId(classId);
+  context->getFrameGovernor()->clearSteps();
+  governor_sources_.erase(context);
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGovernorBeginFrame(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId) {
+  contextForClassId(classId)->getFrameGovernor()->beginFrame();
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGovernorEndFrame(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId) {
+  contextForClassId(classId)->getFrameGovernor()->endFrame();
+};
+
+// listener.onTransition(level, previousLevel, step, frameMs, budgetMs)
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeContextGovernorSetListener(
+    JNIEnv* env,
+    jclass obj,
+    jlong classId,
+    jobject jListener) {
+  GPUPixelContext* context = contextForClassId(classId);
+  FrameGovernor* governor = context->getFrameGovernor();
+  auto it = governor_listeners_.find(context);
+  if (it != governor_listeners_.end()) {
+    env->DeleteGlobalRef(it->second);
+    governor_listeners_.erase(it);
+  }
+  if (!jListener) {
+    governor->setTransitionCallback(nullptr);
+    return;
+  }
+  jobject listener = env->NewGlobalRef(jListener);
+  governor_listeners_[context] = listener;
+  jclass cls = env->GetObjectClass(jListener);
+  jmethodID methodID =
+      env->GetMethodID(cls, "onTransition", "(IILjava/lang/String;FF)V");
+  env->DeleteLocalRef(cls);
+  governor->setTransitionCallback(
+      [=](const FrameGovernor::Transition& transition) {
+        AttachThreadScoped scope(GetJVM());
+        JNIEnv* env = scope.env();
+        jstring step = env->NewStringUTF(transition.step.c_str());
+        env->CallVoidMethod(listener, methodID, (jint)transition.level,
+                            (jint)transition.previousLevel, step,
+                            (jfloat)transition.frameMs,
+                            (jfloat)transition.budgetMs);
+        env->DeleteLocalRef(step);
+      });
+};
+
 extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeYUVtoRBGA(
     JNIEnv* env,
     jclass obj,
@@ -362,6 +1015,114 @@ extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeYUVtoRBGA(
     env->ReleasePrimitiveArrayCritical(yuv420sp, nv21, 0);
 }
 
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeSourceSetFaceDetectionCadence(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jint everyNFrames,
+    jint minIntervalMs) {
+  ((Source*)classId)->setFaceDetectionCadence(everyNFrames, minIntervalMs);
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeSourceSetFaceDetectionMaxFaces(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jint maxFaces) {
+  ((Source*)classId)->setFaceDetectionMaxFaces(maxFaces);
+};
+
+// every tracked face each frame, into arrays sized for the most faces and
+// reused from call to call
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeSourceSetFaceLandmarksCallback(
+    JNIEnv* env,
+    jclass,
+    jobject source,
+    jlong classId) {
+  jobject sourceRef = env->NewGlobalRef(source);
+  jclass cls = env->GetObjectClass(source);
+  jmethodID methodID = env->GetMethodID(cls, "onFaceLandmarks", "(I[I[F)V");
+  jintArray ids = (jintArray)env->NewGlobalRef(
+      env->NewIntArray(FaceLandmarkSet::kMaxFaces));
+  jfloatArray points = (jfloatArray)env->NewGlobalRef(env->NewFloatArray(
+      FaceLandmarkSet::kMaxFaces * FaceLandmarkSet::kStride));
+  ((Source*)classId)
+      ->RegLandmarkCallback(
+          FaceLandmarksCallback([=](const FaceLandmarkSet& faces) {
+            AttachThreadScoped scope(GetJVM());
+            JNIEnv* env = scope.env();
+            const int count = faces.faceCount();
+            if (count > 0) {
+              env->SetIntArrayRegion(ids, 0, count, faces.ids.data());
+              env->SetFloatArrayRegion(points, 0,
+                                       count * FaceLandmarkSet::kStride,
+                                       faces.points.data());
+            }
+            env->CallVoidMethod(sourceRef, methodID, count, ids, points);
+          }));
+};
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativePreloadFaceDetector(
+    JNIEnv* env,
+    jclass,
+    jobject jListener) {
+  if (!jListener) {
+    FaceDetectorModel::Preload(nullptr, nullptr);
+    return;
+  }
+  jobject listener = env->NewGlobalRef(jListener);
+  jclass cls = env->GetObjectClass(jListener);
+  jmethodID progressID = env->GetMethodID(cls, "onProgress", "(F)V");
+  jmethodID completeID = env->GetMethodID(cls, "onComplete", "(ZII)V");
+  env->DeleteLocalRef(cls);
+  FaceDetectorModel::Preload(
+      [=](float progress) {
+        AttachThreadScoped scope(GetJVM());
+        scope.env()->CallVoidMethod(listener, progressID, (jfloat)progress);
+      },
+      // runs once, after the last progress
+      [=](bool loaded, int loadMs, int warmUpMs) {
+        AttachThreadScoped scope(GetJVM());
+        JNIEnv* env = scope.env();
+        env->CallVoidMethod(listener, completeID, (jboolean)loaded,
+                            (jint)loadMs, (jint)warmUpMs);
+        env->DeleteGlobalRef(listener);
+      });
+};
+
+extern "C" jint Java_com_pixpark_gpupixel_GPUPixel_nativeGetFaceDetectorState(
+    JNIEnv* env,
+    jclass) {
+  return FaceDetectorModel::GetState();
+};
+
+extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeUnloadFaceDetector(
+    JNIEnv* env,
+    jclass) {
+  FaceDetectorModel::Unload();
+};
+
+extern "C" jboolean Java_com_pixpark_gpupixel_GPUPixel_nativeSourceBindLandmarks(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jlong filterClassId,
+    jboolean bind) {
+  for (auto& ft : filter_list_) {
+    if ((jlong)ft.get() == filterClassId) {
+      if (!bind) {
+        ((Source*)classId)->unbindLandmarks(ft);
+        return true;
+      }
+      return ((Source*)classId)->bindLandmarks(ft);
+    }
+  }
+  return false;
+};
+
 extern "C" void Java_com_pixpark_gpupixel_GPUPixel_nativeSetLandmarkCallback (
         JNIEnv* env,
         jclass obj,
@@ -407,6 +1168,12 @@ Java_com_pixpark_gpupixel_GPUPixel_nativeFilterSetPropertyFloatArray(JNIEnv *env
 
 extern "C" jint JNIEXPORT JNICALL JNI_OnLoad(JavaVM* jvm, void* reserved) {
   SetJVM(jvm);
+  JNIEnv* env = GetEnv(jvm);
+  jclass clazz = env->FindClass("com/pixpark/gpupixel/GPUPixel");
+  if (clazz) {
+    SetGPUPixelClass((jclass)env->NewGlobalRef(clazz));
+    env->DeleteLocalRef(clazz);
+  }
   return JNI_VERSION_1_6;
 }
 
@@ -415,3 +1182,97 @@ extern "C" void JNIEXPORT JNICALL JNI_OnUnLoad(JavaVM* jvm, void* reserved) {
 }
 
 #endif
+
+// offscreen session
+static std::shared_ptr<Filter> findFilter(jlong filterClassId) {
+  for (auto& ft : filter_list_) {
+    if ((jlong)ft.get() == filterClassId) {
+      return ft;
+    }
+  }
+  return nullptr;
+}
+
+extern "C" jlong Java_com_pixpark_gpupixel_GPUPixel_nativeOffscreenSessionNew(
+    JNIEnv* env,
+    jclass) {
+  auto session = GPUPixelOffscreenSession::create();
+  if (!session) {
+    return 0;
+  }
+  offscreen_session_list_.push_back(session);
+  return (jlong)session.get();
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeOffscreenSessionDestroy(
+    JNIEnv* env,
+    jclass,
+    jlong classId) {
+  for (auto it = offscreen_session_list_.begin();
+       it != offscreen_session_list_.end(); ++it) {
+    if ((jlong)it->get() == classId) {
+      offscreen_session_list_.erase(it);
+      return;
+    }
+  }
+};
+
+extern "C" void
+Java_com_pixpark_gpupixel_GPUPixel_nativeOffscreenSessionSetFilters(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jlongArray jFilterClassIds) {
+  std::vector<std::shared_ptr<Filter>> filters;
+  const jsize count = env->GetArrayLength(jFilterClassIds);
+  jlong* ids = env->GetLongArrayElements(jFilterClassIds, nullptr);
+  for (jsize i = 0; i < count; ++i) {
+    auto filter = findFilter(ids[i]);
+    if (filter) {
+      filters.push_back(filter);
+    }
+  }
+  env->ReleaseLongArrayElements(jFilterClassIds, ids, JNI_ABORT);
+  ((GPUPixelOffscreenSession*)classId)->setFilters(filters);
+};
+
+extern "C" jboolean
+Java_com_pixpark_gpupixel_GPUPixel_nativeOffscreenSessionBindLandmarks(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jlong filterClassId) {
+  auto filter = findFilter(filterClassId);
+  return filter &&
+         ((GPUPixelOffscreenSession*)classId)->bindLandmarks(filter);
+};
+
+// input and output are RGBA_8888 Bitmaps; output must match the result size
+extern "C" jboolean
+Java_com_pixpark_gpupixel_GPUPixel_nativeOffscreenSessionProcess(
+    JNIEnv* env,
+    jclass,
+    jlong classId,
+    jobject input,
+    jobject output) {
+  auto session = (GPUPixelOffscreenSession*)classId;
+  AndroidBitmapInfo info;
+  void* pixels = nullptr;
+  if (AndroidBitmap_getInfo(env, input, &info) < 0 ||
+      info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 ||
+      info.stride % 4 != 0) {
+    return false;
+  }
+  if (AndroidBitmap_lockPixels(env, input, &pixels) < 0) {
+    return false;
+  }
+  // reused across calls, the session runs on one thread
+  static thread_local std::vector<uint8_t> result;
+  bool ok = session->process((const uint8_t*)pixels, info.width, info.height,
+                             info.stride / 4, result);
+  AndroidBitmap_unlockPixels(env, input);
+  return ok && CopyCapturedFrame(env, output, nullptr, result.data(),
+                                 session->getOutputWidth(),
+                                 session->getOutputHeight());
+};
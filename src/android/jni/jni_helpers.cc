@@ -20,6 +20,11 @@ JavaVM *GetJVM() { return g_jvm; }
 
 void SetJVM(JavaVM *jvm) { g_jvm = jvm; }
 
+jclass g_gpupixel_class = nullptr;
+jclass GetGPUPixelClass() { return g_gpupixel_class; }
+
+void SetGPUPixelClass(jclass clazz) { g_gpupixel_class = clazz; }
+
 JNIEnv *GetEnv(JavaVM *jvm) {
   void *env = NULL;
   jint status = jvm->GetEnv(&env, JNI_VERSION_1_6);
@@ -29,6 +29,11 @@ void SetJVM(JavaVM *jvm);
 
 JNIEnv *GetEnv(JavaVM *jvm);
 
+// com.pixpark.gpupixel.GPUPixel, looked up once in JNI_OnLoad: FindClass
+// on a thread attached from native code only sees system classes
+jclass GetGPUPixelClass();
+void SetGPUPixelClass(jclass clazz);
+
 // Attach thread to JVM if necessary and detach at scope end if originally
 // attached.
 class AttachThreadScoped {
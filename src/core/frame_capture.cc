@@ -0,0 +1,228 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "frame_capture.h"
+#include <cctype>
+#include <cstdio>
+#include <cstring>
+#include <iterator>
+#include "gpupixel_context.h"
+#include "util.h"
+
+#ifndef APIENTRY
+#define APIENTRY
+#endif
+
+NS_GPUPIXEL_BEGIN
+
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+typedef GLsync(APIENTRY* FenceSyncFunc)(GLenum condition, GLbitfield flags);
+typedef GLenum(APIENTRY* ClientWaitSyncFunc)(GLsync sync,
+                                             GLbitfield flags,
+                                             GLuint64 timeout);
+typedef void(APIENTRY* DeleteSyncFunc)(GLsync sync);
+typedef void*(APIENTRY* MapBufferRangeFunc)(GLenum target,
+                                            GLintptr offset,
+                                            GLsizeiptr length,
+                                            GLbitfield access);
+typedef GLboolean(APIENTRY* UnmapBufferFunc)(GLenum target);
+
+// fences need ES 3.0 or GL 3.2
+static bool hasFenceSync() {
+  const char* version = (const char*)glGetString(GL_VERSION);
+  if (!version) {
+    return false;
+  }
+  bool es = strncmp(version, "OpenGL ES", 9) == 0;
+  while (*version && !isdigit((unsigned char)*version)) {
+    version++;
+  }
+  int major = 0;
+  int minor = 0;
+  sscanf(version, "%d.%d", &major, &minor);
+  return es ? major >= 3 : (major > 3 || (major == 3 && minor >= 2));
+}
+#endif
+
+// free buffers kept around for the next capture burst
+static const int kMaxPooledPBOs = 4;
+
+FrameCapture::FrameCapture() {}
+
+FrameCapture::~FrameCapture() {
+  purge();
+}
+
+void FrameCapture::readPixels(std::shared_ptr<Framebuffer> fb,
+                              const FrameCaptureCallback& callback,
+                              int64_t frameTime) {
+  if (!fb || !callback) {
+    return;
+  }
+
+  PendingRead read;
+  read.width = fb->getWidth();
+  read.height = fb->getHeight();
+  read.frameTime = frameTime;
+  read.callback = callback;
+  const int size = read.width * read.height * 4;
+
+  fb->active();
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+  read.pbo = 0;
+  read.fence = 0;
+  read.flushed = false;
+  if (_resolveAsyncFunctions()) {
+    read.pbo = _obtainPBO(size);
+    CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, read.pbo));
+    CHECK_GL(glReadPixels(0, 0, read.width, read.height, GL_RGBA,
+                          GL_UNSIGNED_BYTE, 0));
+    CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, 0));
+    read.fence = ((FenceSyncFunc)_fenceSync)(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+  } else
+#endif
+  {
+    // no pack buffers on this context, read now and deliver on the next poll
+    read.pixels.resize(size);
+    CHECK_GL(glReadPixels(0, 0, read.width, read.height, GL_RGBA,
+                          GL_UNSIGNED_BYTE, read.pixels.data()));
+  }
+  fb->inactive();
+
+  _inFlight.push_back(std::move(read));
+}
+
+int FrameCapture::poll(bool wait /* = false*/) {
+  if (_inFlight.empty()) {
+    return 0;
+  }
+
+  // deliver in submission order, stopping at the first unfinished read
+  size_t done = 0;
+  for (; done < _inFlight.size(); ++done) {
+    PendingRead& read = _inFlight[done];
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+    if (read.fence) {
+      GLbitfield flags = read.flushed ? 0 : GL_SYNC_FLUSH_COMMANDS_BIT;
+      GLuint64 timeout = wait ? 1000000000ull : 0;
+      GLenum status = ((ClientWaitSyncFunc)_clientWaitSync)(read.fence, flags,
+                                                            timeout);
+      read.flushed = true;
+      if (status == GL_TIMEOUT_EXPIRED) {
+        break;
+      }
+    }
+#endif
+  }
+
+  // callbacks may queue new captures, so take the finished reads out first
+  std::vector<PendingRead> finished(
+      std::make_move_iterator(_inFlight.begin()),
+      std::make_move_iterator(_inFlight.begin() + done));
+  _inFlight.erase(_inFlight.begin(), _inFlight.begin() + done);
+  for (auto& read : finished) {
+    _deliver(read);
+  }
+  return (int)_inFlight.size();
+}
+
+void FrameCapture::purge() {
+  std::vector<PendingRead> dropped;
+  dropped.swap(_inFlight);
+  for (auto& read : dropped) {
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+    if (read.fence) {
+      ((DeleteSyncFunc)_deleteSync)(read.fence);
+    }
+    if (read.pbo) {
+      glDeleteBuffers(1, &read.pbo);
+    }
+#endif
+    read.callback(nullptr, read.width, read.height, read.frameTime);
+  }
+
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+  for (auto& pooled : _freePBOs) {
+    glDeleteBuffers(1, &pooled.pbo);
+  }
+  _freePBOs.clear();
+#endif
+}
+
+void FrameCapture::_deliver(PendingRead& read) {
+  const int size = read.width * read.height * 4;
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+  if (read.pbo) {
+    if (read.fence) {
+      ((DeleteSyncFunc)_deleteSync)(read.fence);
+      read.fence = 0;
+    }
+    CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, read.pbo));
+    MapBufferRangeFunc mapBufferRange = (MapBufferRangeFunc)_mapBufferRange;
+    const uint8_t* data = (const uint8_t*)mapBufferRange(
+        GL_PIXEL_PACK_BUFFER, 0, size, GL_MAP_READ_BIT);
+    read.callback(data, read.width, read.height, read.frameTime);
+    if (data) {
+      ((UnmapBufferFunc)_unmapBuffer)(GL_PIXEL_PACK_BUFFER);
+    }
+    CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, 0));
+    _recyclePBO(read.pbo, size);
+    return;
+  }
+#endif
+  read.callback(read.pixels.data(), read.width, read.height, read.frameTime);
+}
+
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+bool FrameCapture::_resolveAsyncFunctions() {
+  if (_resolved) {
+    return _fenceSync != nullptr;
+  }
+  _resolved = true;
+  if (!hasFenceSync()) {
+    return false;
+  }
+  _fenceSync = GPUPixelContext::getProcAddress("glFenceSync");
+  _clientWaitSync = GPUPixelContext::getProcAddress("glClientWaitSync");
+  _deleteSync = GPUPixelContext::getProcAddress("glDeleteSync");
+  _mapBufferRange = GPUPixelContext::getProcAddress("glMapBufferRange");
+  _unmapBuffer = GPUPixelContext::getProcAddress("glUnmapBuffer");
+  if (!_fenceSync || !_clientWaitSync || !_deleteSync || !_mapBufferRange ||
+      !_unmapBuffer) {
+    _fenceSync = nullptr;
+    return false;
+  }
+  return true;
+}
+
+GLuint FrameCapture::_obtainPBO(int size) {
+  for (auto it = _freePBOs.begin(); it != _freePBOs.end(); ++it) {
+    if (it->size == size) {
+      GLuint pbo = it->pbo;
+      _freePBOs.erase(it);
+      return pbo;
+    }
+  }
+
+  GLuint pbo = 0;
+  CHECK_GL(glGenBuffers(1, &pbo));
+  CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, pbo));
+  CHECK_GL(glBufferData(GL_PIXEL_PACK_BUFFER, size, 0, GL_STREAM_READ));
+  CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, 0));
+  return pbo;
+}
+
+void FrameCapture::_recyclePBO(GLuint pbo, int size) {
+  if ((int)_freePBOs.size() >= kMaxPooledPBOs) {
+    glDeleteBuffers(1, &_freePBOs.front().pbo);
+    _freePBOs.erase(_freePBOs.begin());
+  }
+  _freePBOs.push_back({pbo, size});
+}
+#endif
+
+NS_GPUPIXEL_END
@@ -0,0 +1,99 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <functional>
+#include <vector>
+#include "framebuffer.h"
+#include "gpupixel_macros.h"
+
+#if defined(GPUPIXEL_ANDROID) || defined(GPUPIXEL_LINUX) || \
+    defined(GPUPIXEL_WIN)
+// pixel pack buffers and fences may be there, checked per context since
+// an ES2 or GL 2.x context has neither
+#define GPUPIXEL_CAPTURE_ASYNC 1
+#endif
+
+NS_GPUPIXEL_BEGIN
+
+// data is tightly packed RGBA, or null when the capture was dropped
+GPUPIXEL_API typedef std::function<
+    void(const uint8_t* data, int width, int height, int64_t frameTime)>
+    FrameCaptureCallback;
+
+struct FrameCaptureRequest {
+  // <= 0 captures at the node's own size
+  int width;
+  int height;
+  FrameCaptureCallback callback;
+};
+
+// Reads framebuffers back for capture requests without waiting on the GPU.
+// Each readback goes into a pooled pixel pack buffer guarded by a fence;
+// poll() hands finished ones to their callbacks, so any number of captures
+// at any nodes can be in flight. Contexts below ES 3.0 / GL 3.2 read
+// synchronously instead. All calls must come from the GL thread.
+class GPUPIXEL_API FrameCapture {
+ public:
+  FrameCapture();
+  ~FrameCapture();
+
+  // queues a readback of fb, which must hold the frame already
+  void readPixels(std::shared_ptr<Framebuffer> fb,
+                  const FrameCaptureCallback& callback,
+                  int64_t frameTime);
+
+  // delivers every finished readback, or all of them when wait is true.
+  // Returns the number still in flight.
+  int poll(bool wait = false);
+
+  int getInFlightCount() const { return (int)_inFlight.size(); }
+
+  // drops pending readbacks (their callbacks get null) and pooled buffers
+  void purge();
+
+ private:
+  struct PendingRead {
+    int width;
+    int height;
+    int64_t frameTime;
+    FrameCaptureCallback callback;
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+    // 0 when the context read synchronously into pixels
+    GLuint pbo;
+    GLsync fence;
+    bool flushed;
+#endif
+    std::vector<uint8_t> pixels;
+  };
+
+#if defined(GPUPIXEL_CAPTURE_ASYNC)
+  bool _resolveAsyncFunctions();
+  GLuint _obtainPBO(int size);
+  void _recyclePBO(GLuint pbo, int size);
+
+  struct PooledPBO {
+    GLuint pbo;
+    int size;
+  };
+  std::vector<PooledPBO> _freePBOs;
+
+  // filled on the first readback, when a context is current
+  bool _resolved = false;
+  void* _fenceSync = nullptr;
+  void* _clientWaitSync = nullptr;
+  void* _deleteSync = nullptr;
+  void* _mapBufferRange = nullptr;
+  void* _unmapBuffer = nullptr;
+#endif
+  void _deliver(PendingRead& read);
+
+  std::vector<PendingRead> _inFlight;
+};
+
+NS_GPUPIXEL_END
@@ -0,0 +1,257 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "frame_governor.h"
+#include <algorithm>
+#include "filter.h"
+#include "source.h"
+
+NS_GPUPIXEL_BEGIN
+
+// weight of the newest render time in the average
+static const float kSmoothing = 0.1f;
+// frames after a transition before the average is trusted again
+static const int kSettleFrames = 10;
+// a gap between frames longer than this is idle time, not load
+static const float kMaxGapMs = 250.0f;
+static const int kMaxRecoverAfterMs = 60000;
+
+FrameGovernor::FrameGovernor() {}
+
+FrameGovernor::~FrameGovernor() {}
+
+void FrameGovernor::setEnabled(bool enabled) {
+  if (!enabled) {
+    _restoreAll();
+  } else if (!_enabled) {
+    _recoverAfterMs = _baseRecoverAfterMs;
+    _resetWindow(Clock::now());
+  }
+  _enabled = enabled;
+}
+
+void FrameGovernor::setTargetFps(float fps) {
+  if (fps > 0) {
+    _budgetMs = 1000.0f / fps;
+  }
+}
+
+void FrameGovernor::setHysteresis(float degradeRatio,
+                                  float recoverRatio,
+                                  int degradeAfterMs,
+                                  int recoverAfterMs) {
+  _degradeRatio = degradeRatio;
+  // equal thresholds would flip a level every few seconds
+  _recoverRatio = std::min(recoverRatio, degradeRatio * 0.9f);
+  _degradeAfterMs = std::max(0, degradeAfterMs);
+  _baseRecoverAfterMs = std::max(_degradeAfterMs, recoverAfterMs);
+  _recoverAfterMs = _baseRecoverAfterMs;
+}
+
+int FrameGovernor::addStep(const std::string& name,
+                           std::function<void()> degrade,
+                           std::function<void()> restore) {
+  _steps.push_back({name, degrade, restore});
+  return (int)_steps.size() - 1;
+}
+
+int FrameGovernor::addPropertyStep(const std::string& name,
+                                   std::shared_ptr<Filter> filter,
+                                   const std::string& property,
+                                   float degradedValue) {
+  std::weak_ptr<Filter> weakFilter = filter;
+  auto saved = std::make_shared<float>(0);
+  // a property that can't be read was left alone, nothing to restore
+  auto applied = std::make_shared<bool>(false);
+  return addStep(
+      name,
+      [=] {
+        auto filter = weakFilter.lock();
+        *applied = filter && filter->getProperty(property, *saved);
+        if (*applied) {
+          filter->setProperty(property, degradedValue);
+        }
+      },
+      [=] {
+        auto filter = weakFilter.lock();
+        if (filter && *applied) {
+          filter->setProperty(property, *saved);
+        }
+        *applied = false;
+      });
+}
+
+int FrameGovernor::addRenderScaleStep(const std::string& name,
+                                      std::shared_ptr<Filter> filter,
+                                      float scale) {
+  std::weak_ptr<Filter> weakFilter = filter;
+  auto saved = std::make_shared<float>(1.0f);
+  return addStep(
+      name,
+      [=] {
+        if (auto filter = weakFilter.lock()) {
+          *saved = filter->getRenderScale();
+          filter->setRenderScale(scale);
+        }
+      },
+      [=] {
+        if (auto filter = weakFilter.lock()) {
+          filter->setRenderScale(*saved);
+        }
+      });
+}
+
+int FrameGovernor::addBypassStep(const std::string& name,
+                                 std::shared_ptr<Filter> filter) {
+  std::weak_ptr<Filter> weakFilter = filter;
+  auto saved = std::make_shared<bool>(false);
+  return addStep(
+      name,
+      [=] {
+        if (auto filter = weakFilter.lock()) {
+          *saved = filter->isBypassed();
+          filter->setBypass(true);
+        }
+      },
+      [=] {
+        if (auto filter = weakFilter.lock()) {
+          filter->setBypass(*saved);
+        }
+      });
+}
+
+int FrameGovernor::addDetectionCadenceStep(const std::string& name,
+                                           std::shared_ptr<Source> source,
+                                           int everyNFrames,
+                                           int minIntervalMs) {
+  std::weak_ptr<Source> weakSource = source;
+  auto saved = std::make_shared<std::pair<int, int>>(1, 0);
+  return addStep(
+      name,
+      [=] {
+        if (auto source = weakSource.lock()) {
+          *saved = {source->getFaceDetectionEveryNFrames(),
+                    source->getFaceDetectionMinIntervalMs()};
+          source->setFaceDetectionCadence(everyNFrames, minIntervalMs);
+        }
+      },
+      [=] {
+        if (auto source = weakSource.lock()) {
+          source->setFaceDetectionCadence(saved->first, saved->second);
+        }
+      });
+}
+
+void FrameGovernor::clearSteps() {
+  _restoreAll();
+  _steps.clear();
+}
+
+void FrameGovernor::beginFrame() {
+  _frameStart = Clock::now();
+  _inFrame = true;
+}
+
+void FrameGovernor::endFrame() {
+  if (!_inFrame) {
+    return;
+  }
+  _inFrame = false;
+  recordFrame(std::chrono::duration<float, std::milli>(Clock::now() -
+                                                       _frameStart)
+                  .count());
+}
+
+void FrameGovernor::recordFrame(float renderMs) {
+  if (!_enabled) {
+    return;
+  }
+  Clock::time_point now = Clock::now();
+  float elapsedMs = 0;
+  if (_samples == 0) {
+    _frameMs = renderMs;
+  } else {
+    _frameMs += kSmoothing * (renderMs - _frameMs);
+    elapsedMs = std::min(
+        kMaxGapMs,
+        std::chrono::duration<float, std::milli>(now - _lastSample).count());
+  }
+  _lastSample = now;
+  if (++_samples < kSettleFrames) {
+    return;
+  }
+
+  if (_frameMs > _budgetMs * _degradeRatio) {
+    _overMs += elapsedMs;
+    _underMs = 0;
+  } else if (_frameMs < _budgetMs * _recoverRatio) {
+    _underMs += elapsedMs;
+    _overMs = 0;
+  } else {
+    _overMs = 0;
+    _underMs = 0;
+  }
+
+  if (_overMs >= _degradeAfterMs && _level < (int)_steps.size()) {
+    _degrade();
+  } else if (_underMs >= _recoverAfterMs && _level > 0) {
+    _restore();
+  }
+}
+
+void FrameGovernor::_degrade() {
+  Clock::time_point now = Clock::now();
+  // the load sits between what two levels can take; stay longer on the
+  // cheaper one before trying the better one again
+  if (_lastRestore != Clock::time_point() &&
+      now - _lastRestore < std::chrono::milliseconds(_recoverAfterMs)) {
+    _recoverAfterMs = std::min(_recoverAfterMs * 2, kMaxRecoverAfterMs);
+  } else {
+    _recoverAfterMs = _baseRecoverAfterMs;
+  }
+  const int previousLevel = _level;
+  const Step& step = _steps[_level];
+  if (step.degrade) {
+    step.degrade();
+  }
+  _level++;
+  _transition(previousLevel, step.name);
+  _resetWindow(now);
+}
+
+void FrameGovernor::_restore() {
+  const int previousLevel = _level;
+  _level--;
+  const Step& step = _steps[_level];
+  if (step.restore) {
+    step.restore();
+  }
+  _lastRestore = Clock::now();
+  _transition(previousLevel, step.name);
+  _resetWindow(_lastRestore);
+}
+
+void FrameGovernor::_restoreAll() {
+  while (_level > 0) {
+    _restore();
+  }
+}
+
+void FrameGovernor::_transition(int previousLevel, const std::string& step) {
+  if (_callback) {
+    _callback({_level, previousLevel, step, _frameMs, _budgetMs});
+  }
+}
+
+void FrameGovernor::_resetWindow(Clock::time_point now) {
+  _samples = 0;
+  _overMs = 0;
+  _underMs = 0;
+  _lastSample = now;
+}
+
+NS_GPUPIXEL_END
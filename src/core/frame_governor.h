@@ -0,0 +1,140 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <chrono>
+#include <functional>
+#include <memory>
+#include <string>
+#include <vector>
+#include "gpupixel_macros.h"
+
+NS_GPUPIXEL_BEGIN
+class Filter;
+class Source;
+
+// Holds a frame rate by giving up quality. Each frame's render time is
+// measured against the budget of the target rate; once frames have run
+// over it for a while the next step of a ladder is applied, and once they
+// have stayed well under it for longer the last step applied is undone.
+// Steps are declared in the order they should be given up, cheapest loss
+// first: typically the blur radius, then the face detection cadence, then
+// the render scale of expensive filters, then optional filters.
+//
+// Off until setEnabled(true). Everything here runs on the pipeline's GL
+// thread, steps change filters and the filters are not locked.
+class GPUPIXEL_API FrameGovernor {
+ public:
+  struct Transition {
+    int level;
+    int previousLevel;
+    // the step applied or undone
+    std::string step;
+    // the smoothed render time that triggered it
+    float frameMs;
+    float budgetMs;
+  };
+  typedef std::function<void(const Transition&)> TransitionCallback;
+
+  FrameGovernor();
+  ~FrameGovernor();
+
+  // disabling undoes every step applied
+  void setEnabled(bool enabled);
+  bool isEnabled() const { return _enabled; }
+  void setTargetFps(float fps);
+  float getBudgetMs() const { return _budgetMs; }
+  // A step is applied after frames averaged more than degradeRatio of the
+  // budget for degradeAfterMs, and undone after they averaged less than
+  // recoverRatio of it for recoverAfterMs. A step that has to be applied
+  // again soon after being undone doubles the wait before the next undo.
+  void setHysteresis(float degradeRatio,
+                     float recoverRatio,
+                     int degradeAfterMs,
+                     int recoverAfterMs);
+
+  // Appends a step to the ladder and returns its index. degrade and
+  // restore are called on the GL thread, each after the other.
+  int addStep(const std::string& name,
+              std::function<void()> degrade,
+              std::function<void()> restore);
+  // sets a float property, restoring the value it had before
+  int addPropertyStep(const std::string& name,
+                      std::shared_ptr<Filter> filter,
+                      const std::string& property,
+                      float degradedValue);
+  // see Filter::setRenderScale
+  int addRenderScaleStep(const std::string& name,
+                         std::shared_ptr<Filter> filter,
+                         float scale);
+  // see Filter::setBypass
+  int addBypassStep(const std::string& name, std::shared_ptr<Filter> filter);
+  // see Source::setFaceDetectionCadence
+  int addDetectionCadenceStep(const std::string& name,
+                              std::shared_ptr<Source> source,
+                              int everyNFrames,
+                              int minIntervalMs);
+  // undoes the steps applied, then forgets all of them
+  void clearSteps();
+  int getStepCount() const { return (int)_steps.size(); }
+  // steps applied right now, 0 at full quality
+  int getLevel() const { return _level; }
+  // smoothed render time of the last frames
+  float getFrameMs() const { return _frameMs; }
+
+  // called on the GL thread after every transition
+  void setTransitionCallback(TransitionCallback callback) {
+    _callback = callback;
+  }
+
+  // bracket the work of one frame
+  void beginFrame();
+  void endFrame();
+  // the same for a frame measured elsewhere
+  void recordFrame(float renderMs);
+
+ private:
+  typedef std::chrono::steady_clock Clock;
+
+  struct Step {
+    std::string name;
+    std::function<void()> degrade;
+    std::function<void()> restore;
+  };
+
+  void _degrade();
+  void _restore();
+  void _restoreAll();
+  void _transition(int previousLevel, const std::string& step);
+  void _resetWindow(Clock::time_point now);
+
+  bool _enabled = false;
+  float _budgetMs = 1000.0f / 30;
+  float _degradeRatio = 0.9f;
+  float _recoverRatio = 0.6f;
+  int _degradeAfterMs = 1000;
+  int _baseRecoverAfterMs = 5000;
+  int _recoverAfterMs = 5000;
+
+  std::vector<Step> _steps;
+  int _level = 0;
+  TransitionCallback _callback;
+
+  Clock::time_point _frameStart;
+  bool _inFrame = false;
+  // exponential average of the render times since the last transition,
+  // and how long it has been over or under its threshold
+  float _frameMs = 0;
+  int _samples = 0;
+  Clock::time_point _lastSample;
+  float _overMs = 0;
+  float _underMs = 0;
+  Clock::time_point _lastRestore;
+};
+
+NS_GPUPIXEL_END
@@ -33,7 +33,9 @@ Framebuffer::Framebuffer(
     int height,
     bool onlyGenerateTexture /* = false*/,
     const TextureAttributes textureAttributes /* = defaultTextureAttribures*/)
-    : _texture(-1), _framebuffer(-1) {
+    : _texture(-1),
+      _framebuffer(-1),
+      _context(GPUPixelContext::getThreadContext()) {
   _width = width;
   _height = height;
   _textureAttributes = textureAttributes;
@@ -47,7 +49,9 @@ Framebuffer::Framebuffer(
 }
 
 Framebuffer::~Framebuffer() {
-  gpupixel::GPUPixelContext::getInstance()->runSync([&] {
+  GPUPixelContext* context =
+      _context ? _context : GPUPixelContext::getInstance();
+  context->runSync([&] {
     bool bDeleteTex = (_texture != -1);
     bool bDeleteFB = (_framebuffer != -1);
 
@@ -12,6 +12,8 @@
 #include <vector>
 
 NS_GPUPIXEL_BEGIN
+class GPUPixelContext;
+
 GPUPIXEL_API typedef struct {
   GLenum minFilter;
   GLenum magFilter;
@@ -53,6 +55,8 @@ class GPUPIXEL_API Framebuffer {
   bool _hasFB;
   GLuint _texture;
   GLuint _framebuffer;
+  // pipeline it was created on, deleted there too; nullptr for the default
+  GPUPixelContext* _context;
 
   void _generateTexture();
   void _generateFramebuffer();
@@ -6,10 +6,33 @@
  */
 
 #include "framebuffer_cache.h"
+#include <cstring>
+#include <iterator>
 #include "util.h"
 
 NS_GPUPIXEL_BEGIN
 
+// single writer, so a plain load/store is enough and skips the locked add
+static inline void addRelaxed(std::atomic<uint64_t>& counter, int64_t delta) {
+  counter.store(counter.load(std::memory_order_relaxed) + delta,
+                std::memory_order_relaxed);
+}
+
+bool FramebufferKey::operator==(const FramebufferKey& other) const {
+  return std::memcmp(this, &other, sizeof(FramebufferKey)) == 0;
+}
+
+size_t FramebufferKeyHash::operator()(const FramebufferKey& key) const {
+  // FNV-1a over the key's words
+  const uint32_t* words = reinterpret_cast<const uint32_t*>(&key);
+  uint64_t hash = 1469598103934665603ull;
+  for (size_t i = 0; i < sizeof(FramebufferKey) / sizeof(uint32_t); ++i) {
+    hash ^= words[i];
+    hash *= 1099511628211ull;
+  }
+  return (size_t)hash;
+}
+
 FramebufferCache::FramebufferCache() {}
 
 FramebufferCache::~FramebufferCache() {
@@ -21,39 +44,34 @@ std::shared_ptr<Framebuffer> FramebufferCache::fetchFramebuffer(
     int height,
     bool onlyTexture /* = false*/,
     const TextureAttributes textureAttributes /* = defaultTextureAttribure*/) {
-  std::shared_ptr<Framebuffer> framebufferFromCache;
-  std::string lookupHash =
-      _getHash(width, height, onlyTexture, textureAttributes);
-  int numberOfMatchingFramebuffers = 0;
-  if (_framebufferTypeCounts.find(lookupHash) != _framebufferTypeCounts.end()) {
-    numberOfMatchingFramebuffers = _framebufferTypeCounts[lookupHash];
+  const FramebufferKey key =
+      _makeKey(width, height, onlyTexture, textureAttributes);
+  auto freeList = _freeLists.find(key);
+  // the most recently returned one is the likeliest to still be warm. One
+  // returned while targets still hold it as their input is skipped, drawing
+  // into it would change their input under them
+  std::vector<LruList::iterator>::reverse_iterator found;
+  if (freeList != _freeLists.end()) {
+    found = freeList->second.rbegin();
+    while (found != freeList->second.rend() &&
+           (*found)->framebuffer.use_count() > 1) {
+      ++found;
+    }
   }
-  if (numberOfMatchingFramebuffers < 1) {
-    framebufferFromCache = std::shared_ptr<Framebuffer>(
+  if (freeList == _freeLists.end() || found == freeList->second.rend()) {
+    addRelaxed(_misses, 1);
+    return std::shared_ptr<Framebuffer>(
         new Framebuffer(width, height, onlyTexture, textureAttributes));
-  } else {
-    int curFramebufferId = numberOfMatchingFramebuffers - 1;
-    while (!framebufferFromCache && curFramebufferId >= 0) {
-      std::string framebufferHash =
-          Util::str_format("%s-%ld", lookupHash.c_str(), curFramebufferId);
-      if (_framebuffers.find(framebufferHash) != _framebuffers.end()) {
-        framebufferFromCache = _framebuffers[framebufferHash];
-        _framebuffers.erase(framebufferHash);
-      } else {
-        framebufferFromCache = 0;
-      }
-      curFramebufferId--;
-    }
-    curFramebufferId++;
-    _framebufferTypeCounts[lookupHash] = curFramebufferId;
-
-    if (!framebufferFromCache) {
-      framebufferFromCache = std::shared_ptr<Framebuffer>(
-          new Framebuffer(width, height, onlyTexture, textureAttributes));
-    }
   }
 
-  return framebufferFromCache;
+  LruList::iterator entry = *found;
+  freeList->second.erase(std::next(found).base());
+  std::shared_ptr<Framebuffer> framebuffer = std::move(entry->framebuffer);
+  addRelaxed(_bytesResident, -(int64_t)entry->bytes);
+  addRelaxed(_framebuffersResident, -1);
+  _lru.erase(entry);
+  addRelaxed(_hits, 1);
+  return framebuffer;
 }
 
 void FramebufferCache::returnFramebuffer(
@@ -61,52 +79,122 @@ void FramebufferCache::returnFramebuffer(
   if (framebuffer == 0) {
     return;
   }
-  int width = framebuffer->getWidth();
-  int height = framebuffer->getHeight();
-  const TextureAttributes& textureAttributes =
-      framebuffer->getTextureAttributes();
-  std::string lookupHash = _getHash(
-      width, height, !framebuffer->hasFramebuffer(), textureAttributes);
-  int numberOfMatchingFramebuffers = 0;
-  if (_framebufferTypeCounts.find(lookupHash) != _framebufferTypeCounts.end()) {
-    numberOfMatchingFramebuffers = _framebufferTypeCounts[lookupHash];
+  const FramebufferKey key = _makeKey(
+      framebuffer->getWidth(), framebuffer->getHeight(),
+      !framebuffer->hasFramebuffer(), framebuffer->getTextureAttributes());
+  const uint64_t bytes =
+      framebufferBytes(framebuffer->getWidth(), framebuffer->getHeight(),
+                       framebuffer->getTextureAttributes());
+
+  _lru.push_front({key, std::move(framebuffer), bytes});
+  _freeLists[key].push_back(_lru.begin());
+  addRelaxed(_bytesResident, bytes);
+  addRelaxed(_framebuffersResident, 1);
+  if (_bytesResident.load(std::memory_order_relaxed) >
+      _bytesResidentHighWater.load(std::memory_order_relaxed)) {
+    _bytesResidentHighWater.store(_bytesResident.load(std::memory_order_relaxed),
+                                  std::memory_order_relaxed);
   }
-  std::string framebufferHash = Util::str_format("%s-%ld", lookupHash.c_str(),
-                                                 numberOfMatchingFramebuffers);
-  _framebuffers[framebufferHash] = framebuffer;
-  _framebufferTypeCounts[lookupHash] = numberOfMatchingFramebuffers + 1;
+  _evictToBudget();
+}
+
+void FramebufferCache::purge() {
+  _freeLists.clear();
+  _lru.clear();
+  _bytesResident = 0;
+  _framebuffersResident = 0;
 }
 
-std::string FramebufferCache::_getHash(
+void FramebufferCache::setBudgetBytes(uint64_t bytes) {
+  _budgetBytes = bytes;
+  _evictToBudget();
+}
+
+FramebufferCacheStats FramebufferCache::getStats() const {
+  FramebufferCacheStats stats;
+  stats.hits = _hits;
+  stats.misses = _misses;
+  stats.evictions = _evictions;
+  stats.bytesResident = _bytesResident;
+  stats.bytesResidentHighWater = _bytesResidentHighWater;
+  stats.framebuffersResident = _framebuffersResident;
+  stats.budgetBytes = _budgetBytes;
+  return stats;
+}
+
+void FramebufferCache::resetStats() {
+  _hits = 0;
+  _misses = 0;
+  _evictions = 0;
+  _bytesResidentHighWater = _bytesResident.load();
+}
+
+uint64_t FramebufferCache::framebufferBytes(
     int width,
     int height,
-    bool onlyTexture,
-    const TextureAttributes textureAttributes) const {
-  if (onlyTexture) {
-    return Util::str_format("%.1dx%.1d-%d:%d:%d:%d:%d:%d:%d-NOFB", width,
-                            height, textureAttributes.minFilter,
-                            textureAttributes.magFilter,
-                            textureAttributes.wrapS, textureAttributes.wrapT,
-                            textureAttributes.internalFormat,
-                            textureAttributes.format, textureAttributes.type);
-  } else {
-    return Util::str_format("%.1dx%.1d-%d:%d:%d:%d:%d:%d:%d", width, height,
-                            textureAttributes.minFilter,
-                            textureAttributes.magFilter,
-                            textureAttributes.wrapS, textureAttributes.wrapT,
-                            textureAttributes.internalFormat,
-                            textureAttributes.format, textureAttributes.type);
+    const TextureAttributes& attributes) {
+  uint64_t channels = 4;
+  switch (attributes.format) {
+    case GL_RGB:
+      channels = 3;
+      break;
+    case GL_LUMINANCE_ALPHA:
+      channels = 2;
+      break;
+    case GL_LUMINANCE:
+    case GL_ALPHA:
+      channels = 1;
+      break;
+    default:
+      break;
   }
+  uint64_t channelBytes = 1;
+  if (attributes.type == GL_FLOAT) {
+    channelBytes = 4;
+  } else if (attributes.type != GL_UNSIGNED_BYTE) {
+    // half floats and packed formats
+    channelBytes = 2;
+  }
+  return (uint64_t)width * height * channels * channelBytes;
 }
 
-std::shared_ptr<Framebuffer> FramebufferCache::_getFramebufferByHash(
-    const std::string& hash) {
-  return _framebuffers[hash];
+FramebufferKey FramebufferCache::_makeKey(
+    int width,
+    int height,
+    bool onlyTexture,
+    const TextureAttributes& textureAttributes) {
+  FramebufferKey key;
+  // no padding in the struct, but keep memcmp honest regardless
+  std::memset(&key, 0, sizeof(key));
+  key.width = width;
+  key.height = height;
+  key.onlyTexture = onlyTexture ? 1 : 0;
+  key.minFilter = textureAttributes.minFilter;
+  key.magFilter = textureAttributes.magFilter;
+  key.wrapS = textureAttributes.wrapS;
+  key.wrapT = textureAttributes.wrapT;
+  key.internalFormat = textureAttributes.internalFormat;
+  key.format = textureAttributes.format;
+  key.type = textureAttributes.type;
+  return key;
 }
 
-void FramebufferCache::purge() {
-  _framebuffers.clear();
-  _framebufferTypeCounts.clear();
+void FramebufferCache::_evictToBudget() {
+  const uint64_t budget = _budgetBytes.load(std::memory_order_relaxed);
+  while (!_lru.empty() &&
+         _bytesResident.load(std::memory_order_relaxed) > budget) {
+    Entry& oldest = _lru.back();
+    auto freeList = _freeLists.find(oldest.key);
+    // the oldest entry overall is also the oldest of its key
+    freeList->second.erase(freeList->second.begin());
+    if (freeList->second.empty()) {
+      _freeLists.erase(freeList);
+    }
+    addRelaxed(_bytesResident, -(int64_t)oldest.bytes);
+    addRelaxed(_framebuffersResident, -1);
+    addRelaxed(_evictions, 1);
+    _lru.pop_back();
+  }
 }
 
 NS_GPUPIXEL_END
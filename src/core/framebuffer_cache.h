@@ -7,14 +7,55 @@
 
 #pragma once
 
-#include <map>
-#include <string>
+#include <atomic>
+#include <list>
+#include <unordered_map>
+#include <vector>
 #include "framebuffer.h"
 #include "gpupixel_macros.h"
 
 NS_GPUPIXEL_BEGIN
+// everything a framebuffer is looked up by, compared and hashed as raw words
+struct FramebufferKey {
+  int32_t width;
+  int32_t height;
+  uint32_t onlyTexture;
+  uint32_t minFilter;
+  uint32_t magFilter;
+  uint32_t wrapS;
+  uint32_t wrapT;
+  uint32_t internalFormat;
+  uint32_t format;
+  uint32_t type;
+
+  bool operator==(const FramebufferKey& other) const;
+};
+
+struct FramebufferKeyHash {
+  size_t operator()(const FramebufferKey& key) const;
+};
+
+struct FramebufferCacheStats {
+  uint64_t hits;
+  uint64_t misses;
+  uint64_t evictions;
+  // idle framebuffers held by the cache
+  uint64_t bytesResident;
+  uint64_t bytesResidentHighWater;
+  uint64_t framebuffersResident;
+  uint64_t budgetBytes;
+};
+
+// Idle framebuffers are kept in a free list per key. When their total size
+// goes over the byte budget, the least recently returned ones are released
+// until it fits again. One returned while a target still holds it as input
+// is only handed out again once the cache is its last owner. All calls must
+// come from the GL thread.
 class GPUPIXEL_API FramebufferCache {
  public:
+  // default budget for idle framebuffers, about eight 1080p RGBA frames
+  static const uint64_t kDefaultBudgetBytes = 64ull * 1024 * 1024;
+
   FramebufferCache();
   ~FramebufferCache();
   std::shared_ptr<Framebuffer> fetchFramebuffer(
@@ -26,15 +67,48 @@ class GPUPIXEL_API FramebufferCache {
   void returnFramebuffer(std::shared_ptr<Framebuffer> framebuffer);
   void purge();
 
+  // 0 keeps nothing around; takes effect immediately
+  void setBudgetBytes(uint64_t bytes);
+  uint64_t getBudgetBytes() const { return _budgetBytes; }
+
+  // safe to call from any thread
+  FramebufferCacheStats getStats() const;
+  void resetStats();
+
+  static uint64_t framebufferBytes(int width,
+                                   int height,
+                                   const TextureAttributes& attributes);
+
  private:
-  std::string _getHash(int width,
-                       int height,
-                       bool onlyTexture,
-                       const TextureAttributes textureAttributes) const;
-  std::shared_ptr<Framebuffer> _getFramebufferByHash(const std::string& hash);
-
-  std::map<std::string, std::shared_ptr<Framebuffer>> _framebuffers;
-  std::map<std::string, int> _framebufferTypeCounts;
+  static FramebufferKey _makeKey(int width,
+                                 int height,
+                                 bool onlyTexture,
+                                 const TextureAttributes& textureAttributes);
+  void _evictToBudget();
+
+  struct Entry {
+    FramebufferKey key;
+    std::shared_ptr<Framebuffer> framebuffer;
+    uint64_t bytes;
+  };
+  typedef std::list<Entry> LruList;
+
+  // front is the most recently returned
+  LruList _lru;
+  // per key, oldest first
+  std::unordered_map<FramebufferKey,
+                     std::vector<LruList::iterator>,
+                     FramebufferKeyHash>
+      _freeLists;
+
+  // only the GL thread writes these, getStats() may read from anywhere
+  std::atomic<uint64_t> _budgetBytes{kDefaultBudgetBytes};
+  std::atomic<uint64_t> _bytesResident{0};
+  std::atomic<uint64_t> _bytesResidentHighWater{0};
+  std::atomic<uint64_t> _framebuffersResident{0};
+  std::atomic<uint64_t> _hits{0};
+  std::atomic<uint64_t> _misses{0};
+  std::atomic<uint64_t> _evictions{0};
 };
 
 NS_GPUPIXEL_END
@@ -6,39 +6,20 @@
  */
 
 #include "gl_program.h"
-#include <algorithm>
 #include "gpupixel_context.h"
 #include "util.h"
 
 NS_GPUPIXEL_BEGIN
 
-std::vector<GLProgram*> GLProgram::_programs;
-
-GLProgram::GLProgram() : _program(-1) {
-  _programs.push_back(this);
-}
+GLProgram::GLProgram()
+    : _program(-1), _context(GPUPixelContext::getThreadContext()) {}
 
 GLProgram::~GLProgram() {
-  GPUPixelContext::getInstance()->runSync([=] {
-    std::vector<GLProgram*>::iterator itr =
-        std::find(_programs.begin(), _programs.end(), this);
-    if (itr != _programs.end()) {
-      _programs.erase(itr);
-    }
-
-    bool bDeleteProgram = (_program != -1);
-
-    for (auto const& program : _programs) {
-      if (bDeleteProgram) {
-        if (_program == program->getID()) {
-          bDeleteProgram = false;
-          break;
-        }
-      }
-    }
-
-    if (bDeleteProgram) {
-      glDeleteProgram(_program);
+  GPUPixelContext* context =
+      _context ? _context : GPUPixelContext::getInstance();
+  context->runSync([=] {
+    if (_program != -1) {
+      context->getShaderProgramCache()->release(_program);
       _program = -1;
     }
   });
@@ -59,64 +40,19 @@ GLProgram* GLProgram::createByShaderString(
 
 bool GLProgram::_initWithShaderString(const std::string& vertexShaderSource,
                                       const std::string& fragmentShaderSource) {
+  ShaderProgramCache* cache =
+      GPUPixelContext::getInstance()->getShaderProgramCache();
   if (_program != -1) {
-    CHECK_GL(glDeleteProgram(_program));
+    cache->release(_program);
     _program = -1;
   }
-  CHECK_GL(_program = glCreateProgram());
-
-  CHECK_GL(GLuint vertShader = glCreateShader(GL_VERTEX_SHADER));
-  const char* vertexShaderSourceStr = vertexShaderSource.c_str();
-  CHECK_GL(glShaderSource(vertShader, 1, &vertexShaderSourceStr, NULL));
-  CHECK_GL(glCompileShader(vertShader));
-
-  //
-  GLint compileSuccess;
-  glGetShaderiv(vertShader, GL_COMPILE_STATUS, &compileSuccess);
-  if (compileSuccess == GL_FALSE) {
-    GLchar messages[256];
-    glGetShaderInfoLog(vertShader, sizeof(messages), 0, &messages[0]);
-#if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_MAC)
-    NSString* messageString = [NSString stringWithUTF8String:messages];
-    NSLog(@"%@", messageString);
-#else
-
-#endif
-    gpupixel::Util::Log(
-        "ERROR", "GL ERROR GLProgram::_initWithShaderString vertex shader %s",
-        messages);
-    return -1;
+  GLuint program = cache->acquire(vertexShaderSource, fragmentShaderSource);
+  if (program == 0) {
+    return false;
   }
-
-  CHECK_GL(GLuint fragShader = glCreateShader(GL_FRAGMENT_SHADER));
-  const char* fragmentShaderSourceStr = fragmentShaderSource.c_str();
-  CHECK_GL(glShaderSource(fragShader, 1, &fragmentShaderSourceStr, NULL));
-  CHECK_GL(glCompileShader(fragShader));
-
-  glGetShaderiv(fragShader, GL_COMPILE_STATUS, &compileSuccess);
-  if (compileSuccess == GL_FALSE) {
-    GLchar messages[256];
-    glGetShaderInfoLog(fragShader, sizeof(messages), 0, &messages[0]);
-#if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_MAC)
-    NSString* messageString = [NSString stringWithUTF8String:messages];
-    NSLog(@"%@", messageString);
-#else
-
-#endif
-    gpupixel::Util::Log(
-        "ERROR", "GL ERROR GLProgram::_initWithShaderString frag shader %s",
-        messages);
-    return -1;
-  }
-
-  CHECK_GL(glAttachShader(_program, vertShader));
-  CHECK_GL(glAttachShader(_program, fragShader));
-
-  CHECK_GL(glLinkProgram(_program));
-
-  CHECK_GL(glDeleteShader(vertShader));
-  CHECK_GL(glDeleteShader(fragShader));
-
+  _program = program;
+  _attribLocations.clear();
+  _uniformLocations.clear();
   return true;
 }
 
@@ -124,46 +60,67 @@ void GLProgram::use() {
   CHECK_GL(glUseProgram(_program));
 }
 
-GLuint GLProgram::getAttribLocation(const std::string& attribute) {
-  return glGetAttribLocation(_program, attribute.c_str());
+GLuint GLProgram::getAttribLocation(const char* attribute) {
+  for (const CachedLocation& cached : _attribLocations) {
+    if (cached.name == attribute) {
+      return cached.location;
+    }
+  }
+  GLint location = glGetAttribLocation(_program, attribute);
+  _attribLocations.push_back({attribute, location});
+  return location;
 }
 
-GLuint GLProgram::getUniformLocation(const std::string& uniformName) {
-  return glGetUniformLocation(_program, uniformName.c_str());
+GLuint GLProgram::getUniformLocation(const char* uniformName) {
+  for (const CachedLocation& cached : _uniformLocations) {
+    if (cached.name == uniformName) {
+      return cached.location;
+    }
+  }
+  GLint location = glGetUniformLocation(_program, uniformName);
+  _uniformLocations.push_back({uniformName, location});
+  return location;
 }
 
-void GLProgram::setUniformValue(const std::string& uniformName, int value) {
+void GLProgram::setUniformValue(const char* uniformName, int value) {
   GPUPixelContext::getInstance()->setActiveShaderProgram(this);
   setUniformValue(getUniformLocation(uniformName), value);
 }
 
-void GLProgram::setUniformValue(const std::string& uniformName, float value) {
+void GLProgram::setUniformValue(const char* uniformName, float value) {
   GPUPixelContext::getInstance()->setActiveShaderProgram(this);
   setUniformValue(getUniformLocation(uniformName), value);
 }
 
-void GLProgram::setUniformValue(const std::string& uniformName, Matrix4 value) {
+void GLProgram::setUniformValue(const char* uniformName, Matrix4 value) {
   GPUPixelContext::getInstance()->setActiveShaderProgram(this);
   setUniformValue(getUniformLocation(uniformName), value);
 }
 
-void GLProgram::setUniformValue(const std::string& uniformName, Vector2 value) {
+void GLProgram::setUniformValue(const char* uniformName, Vector2 value) {
   GPUPixelContext::getInstance()->setActiveShaderProgram(this);
   setUniformValue(getUniformLocation(uniformName), value);
 }
 
-void GLProgram::setUniformValue(const std::string& uniformName, Matrix3 value) {
+void GLProgram::setUniformValue(const char* uniformName, Matrix3 value) {
   GPUPixelContext::getInstance()->setActiveShaderProgram(this);
   setUniformValue(getUniformLocation(uniformName), value);
 }
 
-void GLProgram::setUniformValue(const std::string& uniformName,
+void GLProgram::setUniformValue(const char* uniformName,
                                 const void* value,
                                 int length) {
   GPUPixelContext::getInstance()->setActiveShaderProgram(this);
   setUniformValue(getUniformLocation(uniformName), value, length);
 }
 
+void GLProgram::setUniformVec4Array(const char* uniformName,
+                                    const float* array,
+                                    int count) {
+  GPUPixelContext::getInstance()->setActiveShaderProgram(this);
+  CHECK_GL(glUniform4fv(getUniformLocation(uniformName), count, array));
+}
+
 void GLProgram::setUniformValue(int uniformLocation, int value) {
   GPUPixelContext::getInstance()->setActiveShaderProgram(this);
   CHECK_GL(glUniform1i(uniformLocation, value));
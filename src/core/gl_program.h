@@ -14,29 +14,64 @@
 #include <string>
 
 NS_GPUPIXEL_BEGIN
+class GPUPixelContext;
+
 class GPUPIXEL_API GLProgram {
  public:
   GLProgram();
   ~GLProgram();
 
+  // programs with the same source share one GL program, see
+  // ShaderProgramCache
   static GLProgram* createByShaderString(
       const std::string& vertexShaderSource,
       const std::string& fragmentShaderSource);
   void use();
   GLuint getID() const { return _program; }
 
-  GLuint getAttribLocation(const std::string& attribute);
-  GLuint getUniformLocation(const std::string& uniformName);
+  // looked up once per name and remembered, so calls by name in the render
+  // loop cost a few string compares instead of a driver query; string
+  // literals take the const char* overloads and allocate nothing
+  GLuint getAttribLocation(const char* attribute);
+  GLuint getUniformLocation(const char* uniformName);
+  GLuint getAttribLocation(const std::string& attribute) {
+    return getAttribLocation(attribute.c_str());
+  }
+  GLuint getUniformLocation(const std::string& uniformName) {
+    return getUniformLocation(uniformName.c_str());
+  }
 
-  void setUniformValue(const std::string& uniformName, int value);
-  void setUniformValue(const std::string& uniformName, float value);
-  void setUniformValue(const std::string& uniformName, Vector2 value);
-  void setUniformValue(const std::string& uniformName, Matrix3 value);
-  void setUniformValue(const std::string& uniformName, Matrix4 value);
+  void setUniformValue(const char* uniformName, int value);
+  void setUniformValue(const char* uniformName, float value);
+  void setUniformValue(const char* uniformName, Vector2 value);
+  void setUniformValue(const char* uniformName, Matrix3 value);
+  void setUniformValue(const char* uniformName, Matrix4 value);
+  void setUniformValue(const char* uniformName, const void* array, int length);
+  // count vec4s, for uniform vec4 arrays
+  void setUniformVec4Array(const char* uniformName,
+                           const float* array,
+                           int count);
 
+  void setUniformValue(const std::string& uniformName, int value) {
+    setUniformValue(uniformName.c_str(), value);
+  }
+  void setUniformValue(const std::string& uniformName, float value) {
+    setUniformValue(uniformName.c_str(), value);
+  }
+  void setUniformValue(const std::string& uniformName, Vector2 value) {
+    setUniformValue(uniformName.c_str(), value);
+  }
+  void setUniformValue(const std::string& uniformName, Matrix3 value) {
+    setUniformValue(uniformName.c_str(), value);
+  }
+  void setUniformValue(const std::string& uniformName, Matrix4 value) {
+    setUniformValue(uniformName.c_str(), value);
+  }
   void setUniformValue(const std::string& uniformName,
                        const void* array,
-                       int length);
+                       int length) {
+    setUniformValue(uniformName.c_str(), array, length);
+  }
 
   void setUniformValue(int uniformLocation, int value);
   void setUniformValue(int uniformLocation, float value);
@@ -46,8 +81,18 @@ class GPUPIXEL_API GLProgram {
   void setUniformValue(int uniformLocation, const void* array, int length);
 
  private:
-  static std::vector<GLProgram*> _programs;
   GLuint _program;
+  // pipeline it was created on, nullptr for the default context
+  GPUPixelContext* _context;
+
+  struct CachedLocation {
+    std::string name;
+    GLint location;
+  };
+  // a program has a handful of each, a linear scan beats hashing
+  std::vector<CachedLocation> _attribLocations;
+  std::vector<CachedLocation> _uniformLocations;
+
   bool _initWithShaderString(const std::string& vertexShaderSource,
                              const std::string& fragmentShaderSource);
 };
@@ -15,9 +15,12 @@
 #include "framebuffer_cache.h"
 #include "gl_program.h"
 #include "gpupixel_context.h"
+#include "gpupixel_offscreen_session.h"
 
 // utils
+#include "allocation_counter.h"
 #include "math_toolbox.h"
+#include "resource_loader.h"
 #include "util.h"
 
 // source
@@ -6,7 +6,13 @@
  */
 
 #include "gpupixel_context.h"
+#include <atomic>
+#include <future>
 #include "util.h"
+#if defined(GPUPIXEL_HEADLESS_EGL)
+#include <cstdlib>
+#include <cstring>
+#endif
 
 #if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_MAC)
 
@@ -83,25 +89,160 @@ const unsigned int VIEW_HEIGHT = 720;
 
 #endif
 
+// platform objects every context holds a reference on; the last context
+// out terminates them, which would otherwise pull the rug from the rest
+#if defined(GPUPIXEL_ANDROID) || defined(GPUPIXEL_HEADLESS_EGL)
+static std::atomic<int> sEGLContexts{0};
+#endif
+#if defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)
+static std::atomic<int> sGLFWWindows{0};
+#endif
+
+static bool hasExtension(const char* extensions, const char* name) {
+  if (!extensions) {
+    return false;
+  }
+  const size_t length = strlen(name);
+  for (const char* p = strstr(extensions, name); p;
+       p = strstr(p + length, name)) {
+    if ((p == extensions || p[-1] == ' ') &&
+        (p[length] == ' ' || p[length] == '\0')) {
+      return true;
+    }
+  }
+  return false;
+}
+
+#if defined(GPUPIXEL_HEADLESS_EGL)
+// from EGL_EXT_platform_base / EGL_MESA_platform_surfaceless, which older
+// egl.h headers may not declare
+const EGLenum kEGLPlatformSurfacelessMesa = 0x31DD;
+typedef EGLDisplay (*GetPlatformDisplayProc)(EGLenum platform,
+                                             void* nativeDisplay,
+                                             const EGLint* attribs);
+
+// failed attempts must not take down a display other contexts live on
+static void terminateIfUnused(EGLDisplay display) {
+  if (sEGLContexts == 0) {
+    eglTerminate(display);
+  }
+}
+
+#endif
+
 GPUPixelContext* GPUPixelContext::_instance = 0;
 std::mutex GPUPixelContext::_mutex;
+bool GPUPixelContext::_headlessRequested = false;
 
-GPUPixelContext::GPUPixelContext()
-    : _curShaderProgram(0),
-      isCapturingFrame(false),
-      captureUpToFilter(0),
-      capturedFrameData(0) {
+// kept out of the class so the exported type carries no thread_local member
+static thread_local GPUPixelContext* tThreadContext = nullptr;
+
+GPUPixelContext::GPUPixelContext(Mode mode, GPUPixelContext* shareContext)
+    : _mode(mode), _shareContext(shareContext), _curShaderProgram(0) {
+  _shareGroup = shareContext ? shareContext->_shareGroup : this;
   _framebufferCache = new FramebufferCache();
-  task_queue_ = std::make_shared<LocalDispatchQueue>();
-  init();
+  _frameCapture = new FrameCapture();
+  _shaderProgramCache = new ShaderProgramCache();
+  _pipelineMetrics = new PipelineMetrics();
+  _frameGovernor = new FrameGovernor();
+  if (_mode == kModeDefault) {
+    init();
+  } else if (_mode == kModeOwnThread) {
+    // created here, where GLFW wants its windows made, then handed over
+    createContext();
+    releaseCurrent();
+    _renderQueue.reset(new DispatchQueue(DispatchQueue::Serial));
+    std::promise<void> started;
+    _renderQueue->add([this, &started] {
+      tThreadContext = this;
+      _renderThreadId = std::this_thread::get_id();
+      useAsCurrent();
+      started.set_value();
+    });
+    started.get_future().wait();
+  }
 }
 
 GPUPixelContext::~GPUPixelContext() {
+  if (_renderQueue) {
+    // GL objects go while the context is still current on its thread
+    runSync([this] {
+      delete _frameCapture;
+      _frameCapture = nullptr;
+      _framebufferCache->purge();
+      delete _shaderProgramCache;
+      _shaderProgramCache = nullptr;
+      delete _pipelineMetrics;
+      _pipelineMetrics = nullptr;
+      delete _frameGovernor;
+      _frameGovernor = nullptr;
+      releaseCurrent();
+      tThreadContext = nullptr;
+    });
+    _renderQueue->join();
+    _renderQueue.reset();
+    releaseContext();
+    delete _framebufferCache;
+    return;
+  }
+  delete _frameCapture;
+  delete _shaderProgramCache;
+  delete _pipelineMetrics;
+  delete _frameGovernor;
   releaseContext();
   delete _framebufferCache;
 }
 
+std::shared_ptr<GPUPixelContext> GPUPixelContext::create(
+    GPUPixelContext* shareContext) {
+  return std::shared_ptr<GPUPixelContext>(
+      new GPUPixelContext(kModeOwnThread, shareContext),
+      [](GPUPixelContext* context) { delete context; });
+}
+
+std::shared_ptr<GPUPixelContext> GPUPixelContext::createExternal(
+    GPUPixelContext* shareContext) {
+  return std::shared_ptr<GPUPixelContext>(
+      new GPUPixelContext(kModeExternal, shareContext),
+      [](GPUPixelContext* context) { delete context; });
+}
+
+void GPUPixelContext::setThreadContext(GPUPixelContext* context) {
+  tThreadContext = context;
+}
+
+GPUPixelContext* GPUPixelContext::getThreadContext() {
+  return tThreadContext;
+}
+
+void* GPUPixelContext::getProcAddress(const char* name) {
+#if defined(GPUPIXEL_ANDROID)
+  return (void*)eglGetProcAddress(name);
+#elif defined(GPUPIXEL_HEADLESS_EGL)
+  if (eglGetCurrentContext() != EGL_NO_CONTEXT) {
+    return (void*)eglGetProcAddress(name);
+  }
+  return (void*)glfwGetProcAddress(name);
+#elif (defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)) && \
+    !defined(__emscripten__)
+  return (void*)glfwGetProcAddress(name);
+#else
+  // Apple's GL and WebGL are used through their headers only
+  return nullptr;
+#endif
+}
+
+bool GPUPixelContext::hasGLExtension(const char* name) {
+  // core profiles have no extension string, glGetStringi lists them there
+  const char* extensions = (const char*)glGetString(GL_EXTENSIONS);
+  glGetError();
+  return hasExtension(extensions, name);
+}
+
 GPUPixelContext* GPUPixelContext::getInstance() {
+  if (tThreadContext) {
+    return tThreadContext;
+  }
   if (!_instance) {
     std::unique_lock<std::mutex> lock(_mutex);
     if (!_instance) {
@@ -118,6 +259,15 @@ void GPUPixelContext::destroy() {
   }
 }
 
+void GPUPixelContext::setHeadless(bool headless) {
+  std::unique_lock<std::mutex> lock(_mutex);
+  if (_instance) {
+    Util::Log("WARN", "setHeadless has no effect once the context exists");
+    return;
+  }
+  _headlessRequested = headless;
+}
+
 void GPUPixelContext::init() {
   runSync([=] {
     Util::Log("INFO", "start init GPUPixelContext");
@@ -138,13 +288,22 @@ void GPUPixelContext::setActiveShaderProgram(GLProgram* shaderProgram) {
 
 void GPUPixelContext::purge() {
   _framebufferCache->purge();
+  _shaderProgramCache->purge();
 }
  
 void GPUPixelContext::createContext() {
 #if defined(GPUPIXEL_IOS) 
-  _eglContext = [[EAGLContext alloc] initWithAPI:kEAGLRenderingAPIOpenGLES2];
+  if (_shareContext) {
+    _eglContext = [[EAGLContext alloc]
+        initWithAPI:kEAGLRenderingAPIOpenGLES2
+         sharegroup:_shareContext->_eglContext.sharegroup];
+  } else {
+    _eglContext = [[EAGLContext alloc] initWithAPI:kEAGLRenderingAPIOpenGLES2];
+  }
   [EAGLContext setCurrentContext:_eglContext];
-  iosHelper = [[iOSHelper alloc] init];
+  if (!iosHelper) {
+    iosHelper = [[iOSHelper alloc] init];
+  }
 #elif defined(GPUPIXEL_MAC)
   NSOpenGLPixelFormatAttribute pixelFormatAttributes[] = {
       NSOpenGLPFADoubleBuffer,
@@ -163,7 +322,10 @@ void GPUPixelContext::createContext() {
   _pixelFormat =
       [[NSOpenGLPixelFormat alloc] initWithAttributes:pixelFormatAttributes];
   imageProcessingContext =
-      [[NSOpenGLContext alloc] initWithFormat:_pixelFormat shareContext:nil];
+      [[NSOpenGLContext alloc]
+          initWithFormat:_pixelFormat
+            shareContext:_shareContext ? _shareContext->imageProcessingContext
+                                       : nil];
 
   GLint interval = 0;
   [imageProcessingContext makeCurrentContext];
@@ -216,13 +378,18 @@ void GPUPixelContext::createContext() {
   }
 
   EGLint context_attrib[] = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL_NONE};
+  EGLContext share_context =
+      (_shareContext && _shareContext->m_gpu_context)
+          ? _shareContext->m_gpu_context->eglcontext
+          : EGL_NO_CONTEXT;
   m_gpu_context->eglcontext = eglCreateContext(
-      m_gpu_context->egldisplay, eglConfig, EGL_NO_CONTEXT, context_attrib);
+      m_gpu_context->egldisplay, eglConfig, share_context, context_attrib);
   if (EGL_NO_CONTEXT == m_gpu_context->eglcontext) {
     // err_log("eglCreateContext Error!");
     Util::Log("ERROR", "eglCreateContext Error!");
     return;
   }
+  sEGLContexts++;
 
   int attribListPbuffer[] = {EGL_WIDTH, m_surfacewidth, EGL_HEIGHT,
                              m_surfaceheight, EGL_NONE};
@@ -248,6 +415,14 @@ void GPUPixelContext::createContext() {
   Util::Log("INFO", "Create Surface width:%d height:%d", m_surfacewidth,
             m_surfaceheight);
 #elif defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)
+#if defined(GPUPIXEL_HEADLESS_EGL)
+  const char* headlessEnv = getenv("GPUPIXEL_HEADLESS");
+  if (_headlessRequested || (_shareContext && _shareContext->_headless) ||
+      (headlessEnv && headlessEnv[0] && strcmp(headlessEnv, "0") != 0)) {
+    _headless = createHeadlessContext();
+    return;
+  }
+#endif
   int ret = glfwInit();
 
   glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
@@ -258,22 +433,165 @@ void GPUPixelContext::createContext() {
   if (ret) {
     glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
   } else {
-    // todo log error
+#if defined(GPUPIXEL_HEADLESS_EGL)
+    Util::Log("WARN", "glfwInit failed, falling back to a headless context");
+    _headless = createHeadlessContext();
+#endif
     return;
   }
-  gl_context_ = glfwCreateWindow(VIEW_WIDTH, VIEW_HEIGHT, "gpupixel opengl context", NULL, NULL);
+  gl_context_ = glfwCreateWindow(VIEW_WIDTH, VIEW_HEIGHT, "gpupixel opengl context", NULL,
+                                 _shareContext ? _shareContext->gl_context_ : NULL);
   if (!gl_context_) {
-    // todo log error
     glfwTerminate();
+#if defined(GPUPIXEL_HEADLESS_EGL)
+    Util::Log("WARN", "no window for the context, falling back to headless");
+    _headless = createHeadlessContext();
+#endif
     return;
   }
+  sGLFWWindows++;
   glfwMakeContextCurrent(gl_context_);
 
   gladLoadGL();
+  const GLubyte* renderer = glGetString(GL_RENDERER);
+  _rendererName = renderer ? (const char*)renderer : "";
 #endif
 }
 
+#if defined(GPUPIXEL_HEADLESS_EGL)
+bool GPUPixelContext::createHeadlessContext() {
+  // surfaceless avoids needing any display server at all; the default
+  // display works with a pbuffer wherever the driver offers one
+  if (createEGLContext(true) || createEGLContext(false)) {
+    return true;
+  }
+  // no usable GPU driver (containers, CI): Mesa's llvmpipe still renders
+  if (!getenv("LIBGL_ALWAYS_SOFTWARE")) {
+    Util::Log("WARN", "no hardware EGL context, retrying with llvmpipe");
+    setenv("LIBGL_ALWAYS_SOFTWARE", "1", 1);
+    if (createEGLContext(true) || createEGLContext(false)) {
+      return true;
+    }
+  }
+  Util::Log("ERROR", "failed to create a headless EGL context");
+  return false;
+}
+
+bool GPUPixelContext::createEGLContext(bool surfaceless) {
+  EGLDisplay display = EGL_NO_DISPLAY;
+  if (_shareContext && _shareContext->m_gpu_context) {
+    // a share group can't span displays
+    display = _shareContext->m_gpu_context->egldisplay;
+  } else if (surfaceless) {
+    const char* clientExtensions = eglQueryString(EGL_NO_DISPLAY, EGL_EXTENSIONS);
+    if (!hasExtension(clientExtensions, "EGL_MESA_platform_surfaceless")) {
+      return false;
+    }
+    GetPlatformDisplayProc getPlatformDisplay =
+        (GetPlatformDisplayProc)eglGetProcAddress("eglGetPlatformDisplayEXT");
+    if (!getPlatformDisplay) {
+      return false;
+    }
+    display = getPlatformDisplay(kEGLPlatformSurfacelessMesa,
+                                 (void*)EGL_DEFAULT_DISPLAY, nullptr);
+  } else {
+    display = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+  }
+  if (display == EGL_NO_DISPLAY) {
+    return false;
+  }
+
+  EGLint majorVersion;
+  EGLint minorVersion;
+  if (!eglInitialize(display, &majorVersion, &minorVersion)) {
+    return false;
+  }
+  // the shaders are written for desktop GL, same as the GLFW context
+  if (!eglBindAPI(EGL_OPENGL_API)) {
+    terminateIfUnused(display);
+    return false;
+  }
+
+  EGLint configAttribs[] = {EGL_RED_SIZE,
+                            8,
+                            EGL_GREEN_SIZE,
+                            8,
+                            EGL_BLUE_SIZE,
+                            8,
+                            EGL_ALPHA_SIZE,
+                            8,
+                            EGL_RENDERABLE_TYPE,
+                            EGL_OPENGL_BIT,
+                            EGL_SURFACE_TYPE,
+                            EGL_PBUFFER_BIT,
+                            EGL_NONE};
+  EGLConfig config;
+  EGLint numConfigs = 0;
+  if (!eglChooseConfig(display, configAttribs, &config, 1, &numConfigs) ||
+      numConfigs == 0) {
+    // some surfaceless drivers expose no pbuffer configs at all
+    configAttribs[11] = 0;
+    if (!eglChooseConfig(display, configAttribs, &config, 1, &numConfigs) ||
+        numConfigs == 0) {
+      terminateIfUnused(display);
+      return false;
+    }
+  }
+
+  EGLint contextAttribs[] = {EGL_NONE};
+  EGLContext shareContext = (_shareContext && _shareContext->m_gpu_context)
+                                ? _shareContext->m_gpu_context->eglcontext
+                                : EGL_NO_CONTEXT;
+  EGLContext context =
+      eglCreateContext(display, config, shareContext, contextAttribs);
+  if (context == EGL_NO_CONTEXT) {
+    terminateIfUnused(display);
+    return false;
+  }
+
+  // all rendering goes to framebuffer objects, the surface is only there
+  // to make the context current
+  EGLint pbufferAttribs[] = {EGL_WIDTH, 1, EGL_HEIGHT, 1, EGL_NONE};
+  EGLSurface surface = eglCreatePbufferSurface(display, config, pbufferAttribs);
+  if (surface == EGL_NO_SURFACE &&
+      !hasExtension(eglQueryString(display, EGL_EXTENSIONS),
+                    "EGL_KHR_surfaceless_context")) {
+    eglDestroyContext(display, context);
+    terminateIfUnused(display);
+    return false;
+  }
+
+  if (!eglMakeCurrent(display, surface, surface, context) ||
+      !gladLoadGLLoader((GLADloadproc)eglGetProcAddress)) {
+    eglMakeCurrent(display, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+    if (surface != EGL_NO_SURFACE) {
+      eglDestroySurface(display, surface);
+    }
+    eglDestroyContext(display, context);
+    terminateIfUnused(display);
+    return false;
+  }
+
+  sEGLContexts++;
+  m_gpu_context = new _gpu_context_t;
+  m_gpu_context->egldisplay = display;
+  m_gpu_context->eglsurface = surface;
+  m_gpu_context->eglcontext = context;
+
+  const GLubyte* renderer = glGetString(GL_RENDERER);
+  _rendererName = renderer ? (const char*)renderer : "";
+  Util::Log("INFO", "headless %s EGL %d.%d context, renderer %s",
+            surfaceless ? "surfaceless" : "pbuffer", majorVersion,
+            minorVersion, _rendererName.c_str());
+  return true;
+}
+#endif
+
 void GPUPixelContext::useAsCurrent() {
+  if (_mode == kModeExternal) {
+    // the host keeps its own context current
+    return;
+  }
   #if defined(GPUPIXEL_IOS)
     if ([EAGLContext currentContext] != _eglContext) {
       [EAGLContext setCurrentContext:_eglContext];
@@ -283,18 +601,66 @@ void GPUPixelContext::useAsCurrent() {
       [imageProcessingContext makeCurrentContext];
     }
 #elif defined(GPUPIXEL_ANDROID)
+  if (m_gpu_context == nullptr) {
+    return;
+  }
   if (!eglMakeCurrent(m_gpu_context->egldisplay, m_gpu_context->eglsurface,
                       m_gpu_context->eglsurface, m_gpu_context->eglcontext)) {
     // err_log("Set Current Context Error.");
     Util::Log("ERROR", "Set Current Context Error!");
   }
 #elif defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)
+#if defined(GPUPIXEL_HEADLESS_EGL)
+  if (_headless) {
+    if (eglGetCurrentContext() != m_gpu_context->eglcontext &&
+        !eglMakeCurrent(m_gpu_context->egldisplay, m_gpu_context->eglsurface,
+                        m_gpu_context->eglsurface, m_gpu_context->eglcontext)) {
+      Util::Log("ERROR", "Set Current Context Error!");
+    }
+    return;
+  }
+#endif
    if (glfwGetCurrentContext() != gl_context_) {
     glfwMakeContextCurrent(gl_context_);
   }
 #endif
 }
 
+// a context may only be current on one thread at a time
+void GPUPixelContext::releaseCurrent() {
+  if (_mode == kModeExternal) {
+    return;
+  }
+#if defined(GPUPIXEL_IOS)
+  if ([EAGLContext currentContext] == _eglContext) {
+    [EAGLContext setCurrentContext:nil];
+  }
+#elif defined(GPUPIXEL_MAC)
+  if ([NSOpenGLContext currentContext] == imageProcessingContext) {
+    [NSOpenGLContext clearCurrentContext];
+  }
+#elif defined(GPUPIXEL_ANDROID)
+  if (m_gpu_context != nullptr &&
+      eglGetCurrentContext() == m_gpu_context->eglcontext) {
+    eglMakeCurrent(m_gpu_context->egldisplay, EGL_NO_SURFACE, EGL_NO_SURFACE,
+                   EGL_NO_CONTEXT);
+  }
+#elif defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)
+#if defined(GPUPIXEL_HEADLESS_EGL)
+  if (m_gpu_context != nullptr) {
+    if (eglGetCurrentContext() == m_gpu_context->eglcontext) {
+      eglMakeCurrent(m_gpu_context->egldisplay, EGL_NO_SURFACE,
+                     EGL_NO_SURFACE, EGL_NO_CONTEXT);
+    }
+    return;
+  }
+#endif
+  if (gl_context_ && glfwGetCurrentContext() == gl_context_) {
+    glfwMakeContextCurrent(NULL);
+  }
+#endif
+}
+
 void GPUPixelContext::presentBufferForDisplay() {
 #if defined(GPUPIXEL_IOS)
   [_eglContext presentRenderbuffer:GL_RENDERBUFFER];
@@ -304,27 +670,52 @@ void GPUPixelContext::presentBufferForDisplay() {
 }
 
 void GPUPixelContext::releaseContext() {
+  if (_mode == kModeExternal) {
+    return;
+  }
 #if defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)
+#if defined(GPUPIXEL_HEADLESS_EGL)
+  if (m_gpu_context != nullptr) {
+    EGLDisplay display = m_gpu_context->egldisplay;
+    releaseCurrent();
+    if (m_gpu_context->eglsurface != EGL_NO_SURFACE) {
+      eglDestroySurface(display, m_gpu_context->eglsurface);
+    }
+    eglDestroyContext(display, m_gpu_context->eglcontext);
+    if (--sEGLContexts == 0) {
+      eglTerminate(display);
+    }
+    delete m_gpu_context;
+    m_gpu_context = nullptr;
+    return;
+  }
+#endif
   if (gl_context_) {
     glfwDestroyWindow(gl_context_);
+    gl_context_ = nullptr;
+    if (--sGLFWWindows == 0) {
+      glfwTerminate();
+    }
   }
-  glfwTerminate();
 #elif defined(GPUPIXEL_ANDROID)
   if (!context_inited) {
     return;
   }
   context_inited = false;
   if (m_gpu_context != nullptr && m_gpu_context->egldisplay != EGL_NO_DISPLAY) {
-    if (m_gpu_context->eglcontext != EGL_NO_CONTEXT) {
+    releaseCurrent();
+    bool hadContext = m_gpu_context->eglcontext != EGL_NO_CONTEXT;
+    if (hadContext) {
       eglDestroyContext(m_gpu_context->egldisplay, m_gpu_context->eglcontext);
     }
     if (m_gpu_context->eglsurface != EGL_NO_SURFACE) {
       eglDestroySurface(m_gpu_context->egldisplay, m_gpu_context->eglsurface);
     }
 
-    eglMakeCurrent(m_gpu_context->egldisplay, EGL_NO_SURFACE, EGL_NO_SURFACE,
-                   EGL_NO_CONTEXT);
-    if (!eglTerminate(m_gpu_context->egldisplay)) {
+    // the display is shared by every context in the process, one that
+    // failed to create never counted itself
+    if (hadContext && --sEGLContexts == 0 &&
+        !eglTerminate(m_gpu_context->egldisplay)) {
       // err_log("Free egldisplay error!");
       Util::Log("ERROR", "Free egldisplay Error!");
     }
@@ -338,17 +729,50 @@ void GPUPixelContext::releaseContext() {
 }
  
 void GPUPixelContext::runSync(std::function<void(void)> func) {
+  if (_renderQueue) {
+    if (std::this_thread::get_id() == _renderThreadId) {
+      func();
+      return;
+    }
+    std::promise<void> done;
+    _renderQueue->add([this, &func, &done] {
+      // the caller waits on this, it has to be satisfied however func ends
+      try {
+        useAsCurrent();
+        func();
+        done.set_value();
+      } catch (...) {
+        done.set_exception(std::current_exception());
+      }
+    });
+    // rethrows on the calling thread
+    done.get_future().get();
+    return;
+  }
+  if (_mode == kModeExternal) {
+    func();
+    return;
+  }
   // todo fix android 
 #if defined(GPUPIXEL_ANDROID)
   func();
 #else
-  task_queue_->add([=]() {
-      useAsCurrent();
-      func();
-  });
-  task_queue_->processOne();
+  // inline; going through a local queue only cost two allocations a call
+  useAsCurrent();
+  func();
 #endif
 
 }
 
+void GPUPixelContext::runAsync(std::function<void(void)> func) {
+  if (_renderQueue) {
+    _renderQueue->add([this, func] {
+      useAsCurrent();
+      func();
+    });
+    return;
+  }
+  runSync(func);
+}
+
 NS_GPUPIXEL_END
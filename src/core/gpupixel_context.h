@@ -7,15 +7,21 @@
 
 #pragma once
 
+#include <memory>
 #include <mutex>
+#include <thread>
 #include "framebuffer_cache.h"
+#include "frame_capture.h"
+#include "frame_governor.h"
+#include "pipeline_metrics.h"
+#include "shader_program_cache.h"
 #include "gpupixel_macros.h"
 #include "dispatch_queue.h"
 
 #include "filter.h"
 #include "gl_program.h"
 
-#if defined(GPUPIXEL_ANDROID)
+#if defined(GPUPIXEL_ANDROID) || defined(GPUPIXEL_HEADLESS_EGL)
   typedef struct _gpu_context_t {
     EGLDisplay egldisplay;
     EGLSurface eglsurface;
@@ -27,15 +33,62 @@
 NS_GPUPIXEL_BEGIN
 class GPUPIXEL_API GPUPixelContext {
  public:
+  // the context bound to the calling thread (a pipeline's render thread),
+  // otherwise the default one
   static GPUPixelContext* getInstance();
+  // destroys the default context
   static void destroy();
 
+  // A pipeline of its own: a separate GL context, framebuffer cache, shader
+  // state and capture queue, with a render thread that runSync() and
+  // runAsync() hand work to. Everything created inside those calls belongs
+  // to the pipeline, so pipelines render in parallel. With shareContext
+  // both GL contexts are in one share group and can use each other's
+  // textures. Release a pipeline's sources and filters before the context.
+  static std::shared_ptr<GPUPixelContext> create(
+      GPUPixelContext* shareContext = nullptr);
+  // pipeline state without a GL context or thread, for hosts that own both
+  // (a GLSurfaceView); bind it on the host's thread with setThreadContext().
+  // shareContext only records that the host's GL contexts share objects.
+  static std::shared_ptr<GPUPixelContext> createExternal(
+      GPUPixelContext* shareContext = nullptr);
+  // what getInstance() returns on the calling thread, nullptr restores the
+  // default context
+  static void setThreadContext(GPUPixelContext* context);
+  // the pipeline bound to the calling thread, nullptr for the default
+  static GPUPixelContext* getThreadContext();
+  // a GL entry point of the current context by name, nullptr where there is
+  // no loader to ask (Apple's GL, WebGL)
+  static void* getProcAddress(const char* name);
+  // whether the current context's GL_EXTENSIONS string lists name
+  static bool hasGLExtension(const char* name);
+  // contexts sharing GL objects report the same group
+  const GPUPixelContext* getShareGroup() const { return _shareGroup; }
+
+  // Linux only: render through an EGL pbuffer/surfaceless context instead
+  // of a hidden GLFW window, so no display is needed. Must be called before
+  // the first getInstance(). GPUPIXEL_HEADLESS=1 in the environment does
+  // the same, and a failed window falls back to it.
+  static void setHeadless(bool headless);
+  bool isHeadless() const { return _headless; }
+  // GL_RENDERER of the context, e.g. "llvmpipe (LLVM 15.0.7, 256 bits)"
+  const std::string& getRendererName() const { return _rendererName; }
+
   FramebufferCache* getFramebufferCache() const;
+  FrameCapture* getFrameCapture() const { return _frameCapture; }
+  ShaderProgramCache* getShaderProgramCache() const {
+    return _shaderProgramCache;
+  }
+  PipelineMetrics* getPipelineMetrics() const { return _pipelineMetrics; }
+  FrameGovernor* getFrameGovernor() const { return _frameGovernor; }
   //todo(zhaoyou)
   void setActiveShaderProgram(GLProgram* shaderProgram);
   void purge();
 
+  // pipelines run func on their render thread (inline when already on
+  // it); the default context runs it on the calling thread
   void runSync(std::function<void(void)> func);
+  // queued on a pipeline's render thread, same as runSync otherwise
   void runAsync(std::function<void(void)> func);
   void useAsCurrent(void);
   void presentBufferForDisplay();
@@ -49,27 +102,45 @@ class GPUPIXEL_API GPUPixelContext {
 #endif
  
 
-  // used for capturing a processed frame data
-  bool isCapturingFrame;
-  std::shared_ptr<Filter> captureUpToFilter;
-  unsigned char* capturedFrameData;
-  int captureWidth;
-  int captureHeight;
-
  private:
-  GPUPixelContext();
+  enum Mode {
+    // the process-wide singleton, runs on whichever thread calls it
+    kModeDefault,
+    kModeOwnThread,
+    kModeExternal,
+  };
+
+  GPUPixelContext(Mode mode = kModeDefault,
+                  GPUPixelContext* shareContext = nullptr);
   ~GPUPixelContext();
 
   void init();
 
   void createContext();
   void releaseContext();
+  void releaseCurrent();
+#if defined(GPUPIXEL_HEADLESS_EGL)
+  bool createHeadlessContext();
+  bool createEGLContext(bool surfaceless);
+#endif
  private:
   static GPUPixelContext* _instance;
   static std::mutex _mutex;
+  static bool _headlessRequested;
+  const Mode _mode;
+  GPUPixelContext* const _shareContext;
+  const GPUPixelContext* _shareGroup;
+  // own-thread pipelines only
+  std::unique_ptr<DispatchQueue> _renderQueue;
+  std::thread::id _renderThreadId;
+  bool _headless = false;
+  std::string _rendererName;
   FramebufferCache* _framebufferCache;
+  FrameCapture* _frameCapture;
+  ShaderProgramCache* _shaderProgramCache;
+  PipelineMetrics* _pipelineMetrics;
+  FrameGovernor* _frameGovernor;
   GLProgram* _curShaderProgram;
-  std::shared_ptr<LocalDispatchQueue> task_queue_;
   
 #if defined(GPUPIXEL_ANDROID)
   bool context_inited = false;
@@ -84,6 +155,9 @@ class GPUPIXEL_API GPUPixelContext {
 #elif defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)
   GLFWwindow* gl_context_ = nullptr;
 #endif
+#if defined(GPUPIXEL_HEADLESS_EGL)
+  _gpu_context_t* m_gpu_context = nullptr;
+#endif
 
 };
 
@@ -89,6 +89,14 @@
   #include <GLFW/glfw3.h>
 #endif
 
+#if defined(GPUPIXEL_LINUX) && !defined(__emscripten__)
+  // headless contexts without a display, see GPUPixelContext::setHeadless
+  #define GPUPIXEL_HEADLESS_EGL
+  #define EGL_NO_X11
+  #define MESA_EGL_NO_X11_HEADERS
+  #include <EGL/egl.h>
+#endif
+
 #define NS_GPUPIXEL_BEGIN namespace gpupixel {
 #define NS_GPUPIXEL_END }
 #define USING_NS_GPUPIXEL using namespace gpupixel;
@@ -0,0 +1,114 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "gpupixel_offscreen_session.h"
+#include <cstring>
+#include "gpupixel_context.h"
+#include "util.h"
+
+NS_GPUPIXEL_BEGIN
+
+GPUPixelOffscreenSession::GPUPixelOffscreenSession()
+    : _context(GPUPixelContext::getInstance()) {}
+
+GPUPixelOffscreenSession::~GPUPixelOffscreenSession() {
+  if (_input) {
+    _input->removeAllTargets();
+  }
+  for (auto& filter : _filters) {
+    filter->removeAllTargets();
+  }
+}
+
+std::shared_ptr<GPUPixelOffscreenSession> GPUPixelOffscreenSession::create() {
+  auto ret = std::shared_ptr<GPUPixelOffscreenSession>(
+      new GPUPixelOffscreenSession());
+  ret->_context->runSync([&] {
+    if (!ret->init()) {
+      ret.reset();
+    }
+  });
+  return ret;
+}
+
+bool GPUPixelOffscreenSession::init() {
+  _input = SourceRawDataInput::create();
+  if (!_input) {
+    return false;
+  }
+  // stills have no earlier frames to extrapolate landmarks from
+  _input->setFaceDetectionSynchronous(true);
+  return true;
+}
+
+void GPUPixelOffscreenSession::setFilters(
+    const std::vector<std::shared_ptr<Filter>>& filters) {
+  _input->removeAllTargets();
+  for (auto& filter : _filters) {
+    filter->removeAllTargets();
+  }
+  _filters = filters;
+
+  std::shared_ptr<Source> last = _input;
+  for (auto& filter : _filters) {
+    last->addTarget(filter);
+    last = filter;
+  }
+}
+
+bool GPUPixelOffscreenSession::bindLandmarks(std::shared_ptr<Filter> filter) {
+  return _input->bindLandmarks(filter);
+}
+
+bool GPUPixelOffscreenSession::process(const uint8_t* rgba,
+                                       int width,
+                                       int height,
+                                       int stride,
+                                       std::vector<uint8_t>& output) {
+  if (rgba == nullptr || width <= 0 || height <= 0 || stride < width) {
+    return false;
+  }
+
+  // the raw input takes stride as the texture width, so padded rows are
+  // packed first; the face detector wants packed rows too
+  const uint8_t* pixels = rgba;
+  if (stride != width) {
+    const size_t rowBytes = (size_t)width * 4;
+    _packedInput.resize(rowBytes * height);
+    for (int row = 0; row < height; ++row) {
+      memcpy(_packedInput.data() + rowBytes * row,
+             rgba + (size_t)stride * 4 * row, rowBytes);
+    }
+    pixels = _packedInput.data();
+  }
+
+  bool ok = false;
+  _context->runSync([&] {
+    _input->uploadBytes(pixels, width, height, width);
+
+    std::shared_ptr<Framebuffer> framebuffer =
+        _filters.empty() ? _input->getFramebuffer()
+                         : _filters.back()->getFramebuffer();
+    if (!framebuffer) {
+      Util::Log("ERROR", "offscreen session produced no output");
+      return;
+    }
+    _outputWidth = framebuffer->getWidth();
+    _outputHeight = framebuffer->getHeight();
+    output.resize((size_t)_outputWidth * _outputHeight * 4);
+
+    framebuffer->active();
+    CHECK_GL(glPixelStorei(GL_PACK_ALIGNMENT, 1));
+    CHECK_GL(glReadPixels(0, 0, _outputWidth, _outputHeight, GL_RGBA,
+                          GL_UNSIGNED_BYTE, output.data()));
+    framebuffer->inactive();
+    ok = true;
+  });
+  return ok;
+}
+
+NS_GPUPIXEL_END
@@ -0,0 +1,61 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <vector>
+#include "filter.h"
+#include "gpupixel_macros.h"
+#include "source_raw_data_input.h"
+
+NS_GPUPIXEL_BEGIN
+// Runs a filter chain from an RGBA buffer to an RGBA buffer with no view or
+// window, for batch jobs and servers. On Linux machines without a display,
+// call GPUPixelContext::setHeadless(true) before creating the session.
+// process() blocks until the result has been read back. A session renders
+// on the context current where it was created, so sessions created inside
+// different GPUPixelContext::create() pipelines run in parallel.
+class GPUPIXEL_API GPUPixelOffscreenSession {
+ public:
+  static std::shared_ptr<GPUPixelOffscreenSession> create();
+  ~GPUPixelOffscreenSession();
+
+  // applied in order; an empty chain hands the input back unchanged
+  void setFilters(const std::vector<std::shared_ptr<Filter>>& filters);
+  const std::vector<std::shared_ptr<Filter>>& getFilters() const {
+    return _filters;
+  }
+
+  // face filters get landmarks detected on every processed image before it
+  // renders, since there are no earlier frames to follow
+  bool bindLandmarks(std::shared_ptr<Filter> filter);
+
+  // stride is in pixels. output is resized to hold the tightly packed RGBA
+  // result, getOutputWidth() x getOutputHeight(), first row at the top.
+  bool process(const uint8_t* rgba,
+               int width,
+               int height,
+               int stride,
+               std::vector<uint8_t>& output);
+
+  int getOutputWidth() const { return _outputWidth; }
+  int getOutputHeight() const { return _outputHeight; }
+
+ private:
+  GPUPixelOffscreenSession();
+  bool init();
+
+  GPUPixelContext* _context;
+  std::shared_ptr<SourceRawDataInput> _input;
+  std::vector<std::shared_ptr<Filter>> _filters;
+  // input rows repacked when they are padded
+  std::vector<uint8_t> _packedInput;
+  int _outputWidth = 0;
+  int _outputHeight = 0;
+};
+
+NS_GPUPIXEL_END
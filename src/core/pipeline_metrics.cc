@@ -0,0 +1,416 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "pipeline_metrics.h"
+#include <algorithm>
+#include <cstdlib>
+#include <cstring>
+#if defined(__GNUG__)
+#include <cxxabi.h>
+#endif
+#include "gpupixel_context.h"
+#include "source.h"
+#include "target.h"
+#include "util.h"
+
+#ifndef GL_TIME_ELAPSED
+#define GL_TIME_ELAPSED 0x88BF
+#endif
+#ifndef GL_QUERY_RESULT
+#define GL_QUERY_RESULT 0x8866
+#endif
+#ifndef GL_QUERY_RESULT_AVAILABLE
+#define GL_QUERY_RESULT_AVAILABLE 0x8867
+#endif
+#ifndef GL_GPU_DISJOINT_EXT
+#define GL_GPU_DISJOINT_EXT 0x8FBB
+#endif
+#ifndef APIENTRY
+#define APIENTRY
+#endif
+
+NS_GPUPIXEL_BEGIN
+
+typedef void(APIENTRY* GenQueriesFunc)(GLsizei n, GLuint* ids);
+typedef void(APIENTRY* DeleteQueriesFunc)(GLsizei n, const GLuint* ids);
+typedef void(APIENTRY* BeginQueryFunc)(GLenum target, GLuint id);
+typedef void(APIENTRY* EndQueryFunc)(GLenum target);
+typedef void(APIENTRY* GetQueryObjectuivFunc)(GLuint id,
+                                              GLenum pname,
+                                              GLuint* params);
+typedef void(APIENTRY* GetQueryObjectui64vFunc)(GLuint id,
+                                                GLenum pname,
+                                                uint64_t* params);
+
+const double PipelineMetrics::kBucketBoundsMs[kBucketCount - 1] = {
+    0.1, 0.25, 0.5, 1.0, 2.0, 4.0, 8.0, 16.0, 33.0};
+
+// queries in flight across all nodes; a node goes unmeasured on the GPU
+// rather than waiting when they are used up
+static const size_t kMaxPendingQueries = 256;
+// nodes that have not rendered for this long are dropped
+static const int kNodeExpirySeconds = 5;
+
+static std::string nodeName(const std::type_info& type) {
+  std::string name = type.name();
+#if defined(__GNUG__)
+  int status = 0;
+  char* demangled = abi::__cxa_demangle(type.name(), nullptr, nullptr, &status);
+  if (demangled) {
+    if (status == 0) {
+      name = demangled;
+    }
+    free(demangled);
+  }
+#endif
+  size_t separator = name.rfind("::");
+  if (separator != std::string::npos) {
+    name = name.substr(separator + 2);
+  }
+  return name;
+}
+
+void PipelineMetrics::Window::add(float ms) {
+  samples[next] = ms;
+  next = (next + 1) % kWindow;
+  if (count < kWindow) {
+    count++;
+  }
+}
+
+PipelineTimingStats PipelineMetrics::Window::stats() const {
+  PipelineTimingStats stats = {count, 0, 0, 0, 0, {}};
+  if (count == 0) {
+    return stats;
+  }
+  std::vector<float> sorted(samples, samples + count);
+  std::sort(sorted.begin(), sorted.end());
+  stats.buckets.assign(kBucketCount, 0);
+  double total = 0;
+  for (float ms : sorted) {
+    total += ms;
+    int bucket = 0;
+    while (bucket < kBucketCount - 1 && ms > kBucketBoundsMs[bucket]) {
+      bucket++;
+    }
+    stats.buckets[bucket]++;
+  }
+  stats.meanMs = total / count;
+  stats.p50Ms = sorted[count / 2];
+  stats.p95Ms = sorted[std::min(count - 1, count * 95 / 100)];
+  stats.maxMs = sorted[count - 1];
+  return stats;
+}
+
+PipelineMetrics::PipelineMetrics() {}
+
+PipelineMetrics::~PipelineMetrics() {
+  // the owning context deletes this with its GL context current
+  if (_deleteQueries) {
+    for (size_t i = 0; i < _pendingCount; ++i) {
+      _freeQueries.push_back(
+          _pending[(_pendingHead + i) % _pending.size()].query);
+    }
+    if (!_freeQueries.empty()) {
+      ((DeleteQueriesFunc)_deleteQueries)((GLsizei)_freeQueries.size(),
+                                          _freeQueries.data());
+      glGetError();
+    }
+  }
+}
+
+void PipelineMetrics::reset() {
+  std::unique_lock<std::mutex> lock(_mutex);
+  _nodes.clear();
+}
+
+PipelineMetrics::Node& PipelineMetrics::_node(const void* node,
+                                              const std::type_info& type) {
+  auto it = _nodes.find(node);
+  if (it == _nodes.end() || *it->second.type != type) {
+    // new node, or a freed one's address handed to another class
+    Node& created = _nodes[node];
+    created = Node();
+    created.id = _nextId++;
+    created.type = &type;
+    created.name = nodeName(type);
+    created.lastSeen = std::chrono::steady_clock::now();
+    return created;
+  }
+  return it->second;
+}
+
+void PipelineMetrics::_prune() {
+  auto now = std::chrono::steady_clock::now();
+  for (auto it = _nodes.begin(); it != _nodes.end();) {
+    if (now - it->second.lastSeen > std::chrono::seconds(kNodeExpirySeconds)) {
+      it = _nodes.erase(it);
+    } else {
+      ++it;
+    }
+  }
+}
+
+PipelineMetrics::NodeTimer::NodeTimer(PipelineMetrics* metrics,
+                                      const void* node,
+                                      const std::type_info& type)
+    : _metrics(metrics && metrics->isEnabled() ? metrics : nullptr),
+      _node(node),
+      _type(type) {
+  if (_metrics) {
+    _start = std::chrono::steady_clock::now();
+    _gpu = _metrics->_beginGpu();
+  }
+}
+
+void PipelineMetrics::NodeTimer::stop() {
+  if (!_metrics) {
+    return;
+  }
+  if (_gpu) {
+    _metrics->_endGpu(_node, _type);
+  }
+  auto now = std::chrono::steady_clock::now();
+  {
+    std::unique_lock<std::mutex> lock(_metrics->_mutex);
+    Node& node = _metrics->_node(_node, _type);
+    node.cpu.add(std::chrono::duration<float, std::milli>(now - _start).count());
+    node.lastSeen = now;
+  }
+  _metrics = nullptr;
+}
+
+void PipelineMetrics::recordTargets(
+    const Source* node,
+    const std::map<std::shared_ptr<Target>, int>& targets) {
+  if (!_enabled) {
+    return;
+  }
+  std::unique_lock<std::mutex> lock(_mutex);
+  Node& entry = _node(dynamic_cast<const void*>(node), typeid(*node));
+  entry.targets.clear();
+  for (auto& it : targets) {
+    entry.targets.push_back(
+        {dynamic_cast<const void*>(it.first.get()), it.second});
+  }
+}
+
+bool PipelineMetrics::_resolveQueryFunctions() {
+  if (_resolved) {
+    return _gpuTimingSupported;
+  }
+  _resolved = true;
+  const char* version = (const char*)glGetString(GL_VERSION);
+  bool es = version && strncmp(version, "OpenGL ES", 9) == 0;
+  if (es) {
+    if (!GPUPixelContext::hasGLExtension("GL_EXT_disjoint_timer_query")) {
+      return false;
+    }
+    _disjointQueries = true;
+    _genQueries = GPUPixelContext::getProcAddress("glGenQueriesEXT");
+    _deleteQueries = GPUPixelContext::getProcAddress("glDeleteQueriesEXT");
+    _beginQuery = GPUPixelContext::getProcAddress("glBeginQueryEXT");
+    _endQuery = GPUPixelContext::getProcAddress("glEndQueryEXT");
+    _getQueryObjectuiv =
+        GPUPixelContext::getProcAddress("glGetQueryObjectuivEXT");
+    _getQueryObjectui64v =
+        GPUPixelContext::getProcAddress("glGetQueryObjectui64vEXT");
+  } else {
+    // GL 3.3 / ARB_timer_query
+    _genQueries = GPUPixelContext::getProcAddress("glGenQueries");
+    _deleteQueries = GPUPixelContext::getProcAddress("glDeleteQueries");
+    _beginQuery = GPUPixelContext::getProcAddress("glBeginQuery");
+    _endQuery = GPUPixelContext::getProcAddress("glEndQuery");
+    _getQueryObjectuiv = GPUPixelContext::getProcAddress("glGetQueryObjectuiv");
+    _getQueryObjectui64v =
+        GPUPixelContext::getProcAddress("glGetQueryObjectui64v");
+  }
+  if (!_genQueries || !_deleteQueries || !_beginQuery || !_endQuery ||
+      !_getQueryObjectuiv || !_getQueryObjectui64v) {
+    _deleteQueries = nullptr;
+    return false;
+  }
+  _pending.resize(kMaxPendingQueries);
+  _gpuTimingSupported = true;
+  Util::Log("INFO", "PipelineMetrics: GPU timer queries available");
+  return true;
+}
+
+bool PipelineMetrics::_beginGpu() {
+  if (!_resolveQueryFunctions() || _activeQuery) {
+    return false;
+  }
+  _pollQueries();
+  if (_pendingCount == _pending.size()) {
+    return false;
+  }
+  GLuint query = 0;
+  if (!_freeQueries.empty()) {
+    query = _freeQueries.back();
+    _freeQueries.pop_back();
+  } else {
+    ((GenQueriesFunc)_genQueries)(1, &query);
+  }
+  ((BeginQueryFunc)_beginQuery)(GL_TIME_ELAPSED, query);
+  _activeQuery = query;
+  return true;
+}
+
+void PipelineMetrics::_endGpu(const void* node, const std::type_info& type) {
+  if (!_activeQuery) {
+    return;
+  }
+  ((EndQueryFunc)_endQuery)(GL_TIME_ELAPSED);
+  uint64_t id = 0;
+  {
+    std::unique_lock<std::mutex> lock(_mutex);
+    id = _node(node, type).id;
+  }
+  PendingQuery& pending =
+      _pending[(_pendingHead + _pendingCount) % _pending.size()];
+  pending.query = _activeQuery;
+  pending.node = node;
+  pending.id = id;
+  _pendingCount++;
+  _activeQuery = 0;
+}
+
+void PipelineMetrics::_pollQueries() {
+  if (_pendingCount == 0) {
+    return;
+  }
+  bool disjoint = false;
+  if (_disjointQueries) {
+    // the GPU clock jumped (frequency change, context loss), the results
+    // in flight are meaningless
+    GLint value = 0;
+    glGetIntegerv(GL_GPU_DISJOINT_EXT, &value);
+    disjoint = value != 0;
+  }
+  while (_pendingCount > 0) {
+    PendingQuery& pending = _pending[_pendingHead];
+    GLuint available = 0;
+    ((GetQueryObjectuivFunc)_getQueryObjectuiv)(
+        pending.query, GL_QUERY_RESULT_AVAILABLE, &available);
+    if (!available && !disjoint) {
+      break;
+    }
+    if (!disjoint) {
+      uint64_t ns = 0;
+      ((GetQueryObjectui64vFunc)_getQueryObjectui64v)(pending.query,
+                                                      GL_QUERY_RESULT, &ns);
+      std::unique_lock<std::mutex> lock(_mutex);
+      auto it = _nodes.find(pending.node);
+      if (it != _nodes.end() && it->second.id == pending.id) {
+        it->second.gpu.add((float)(ns / 1e6));
+      }
+    }
+    _freeQueries.push_back(pending.query);
+    _pendingHead = (_pendingHead + 1) % _pending.size();
+    _pendingCount--;
+  }
+}
+
+std::vector<PipelineNodeStats> PipelineMetrics::getSnapshot() {
+  std::unique_lock<std::mutex> lock(_mutex);
+  _prune();
+  std::vector<PipelineNodeStats> snapshot;
+  for (auto& it : _nodes) {
+    const Node& node = it.second;
+    PipelineNodeStats stats;
+    stats.id = node.id;
+    stats.name = node.name;
+    for (auto& target : node.targets) {
+      auto found = _nodes.find(target.first);
+      if (found != _nodes.end()) {
+        stats.targets.push_back({found->second.id, target.second});
+      }
+    }
+    stats.cpu = node.cpu.stats();
+    stats.gpu = node.gpu.stats();
+    snapshot.push_back(stats);
+  }
+  std::sort(snapshot.begin(), snapshot.end(),
+            [](const PipelineNodeStats& a, const PipelineNodeStats& b) {
+              return a.id < b.id;
+            });
+  return snapshot;
+}
+
+static std::string topologyText(
+    const std::vector<PipelineNodeStats>& snapshot) {
+  std::string text;
+  for (auto& node : snapshot) {
+    text += Util::str_format("%llu %s ->", (unsigned long long)node.id,
+                             node.name.c_str());
+    for (auto& target : node.targets) {
+      text += Util::str_format(" %llu[%d]", (unsigned long long)target.first,
+                               target.second);
+    }
+    text += "\n";
+  }
+  return text;
+}
+
+std::string PipelineMetrics::dumpTopology() {
+  return topologyText(getSnapshot());
+}
+
+static std::string timingJson(const PipelineTimingStats& stats) {
+  std::string json = Util::str_format(
+      "{\"samples\":%d,\"meanMs\":%.4f,\"p50Ms\":%.4f,\"p95Ms\":%.4f,"
+      "\"maxMs\":%.4f,\"buckets\":[",
+      stats.samples, stats.meanMs, stats.p50Ms, stats.p95Ms, stats.maxMs);
+  for (size_t i = 0; i < stats.buckets.size(); ++i) {
+    json += Util::str_format(i ? ",%d" : "%d", stats.buckets[i]);
+  }
+  return json + "]}";
+}
+
+static std::string escapeJson(const std::string& text) {
+  std::string escaped;
+  for (char c : text) {
+    if (c == '"' || c == '\\') {
+      escaped += '\\';
+      escaped += c;
+    } else if (c == '\n') {
+      escaped += "\\n";
+    } else {
+      escaped += c;
+    }
+  }
+  return escaped;
+}
+
+std::string PipelineMetrics::toJson() {
+  std::vector<PipelineNodeStats> snapshot = getSnapshot();
+  std::string json = Util::str_format(
+      "{\"enabled\":%s,\"gpuTiming\":%s,\"window\":%d,\"bucketBoundsMs\":[",
+      _enabled ? "true" : "false", _gpuTimingSupported ? "true" : "false",
+      kWindow);
+  for (int i = 0; i < kBucketCount - 1; ++i) {
+    json += Util::str_format(i ? ",%g" : "%g", kBucketBoundsMs[i]);
+  }
+  json += "],\"nodes\":[";
+  for (size_t i = 0; i < snapshot.size(); ++i) {
+    const PipelineNodeStats& node = snapshot[i];
+    json += Util::str_format("%s{\"id\":%llu,\"name\":\"%s\",\"targets\":[",
+                             i ? "," : "", (unsigned long long)node.id,
+                             escapeJson(node.name).c_str());
+    for (size_t t = 0; t < node.targets.size(); ++t) {
+      json += Util::str_format("%s{\"id\":%llu,\"input\":%d}", t ? "," : "",
+                               (unsigned long long)node.targets[t].first,
+                               node.targets[t].second);
+    }
+    json += "],\"cpu\":" + timingJson(node.cpu) +
+            ",\"gpu\":" + timingJson(node.gpu) + "}";
+  }
+  json += "],\"topology\":\"" + escapeJson(topologyText(snapshot)) + "\"}";
+  return json;
+}
+
+NS_GPUPIXEL_END
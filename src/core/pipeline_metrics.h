@@ -0,0 +1,162 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <atomic>
+#include <chrono>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <typeinfo>
+#include <unordered_map>
+#include <vector>
+#include "gpupixel_macros.h"
+
+NS_GPUPIXEL_BEGIN
+class Source;
+class Target;
+
+// timings of one node over the last kWindow frames it rendered
+struct GPUPIXEL_API PipelineTimingStats {
+  int samples;
+  double meanMs;
+  double p50Ms;
+  double p95Ms;
+  double maxMs;
+  // samples per bucket, bucket i holding those up to kBucketBoundsMs[i]
+  // and the last one everything slower
+  std::vector<int> buckets;
+};
+
+struct GPUPIXEL_API PipelineNodeStats {
+  // stable while the node lives, never reused
+  uint64_t id;
+  // class of the node, e.g. "SaturationFilter"
+  std::string name;
+  // ids of the nodes it rendered into last frame, with their input index
+  std::vector<std::pair<uint64_t, int>> targets;
+  PipelineTimingStats cpu;
+  // empty when the driver has no timer queries
+  PipelineTimingStats gpu;
+};
+
+// Per-node timing of a context's graph, off until setEnabled(true). Each
+// filter's own pass is measured, not what it triggers downstream: CPU time
+// on the GL thread and, where the driver has GL_EXT_disjoint_timer_query
+// or GL_TIME_ELAPSED, GPU time. Timer queries are read back a few frames
+// later, once the GPU has finished them, so nothing waits. Nodes that have
+// not rendered for a few seconds are dropped.
+class GPUPIXEL_API PipelineMetrics {
+ public:
+  static const int kWindow = 120;
+  static const int kBucketCount = 10;
+  static const double kBucketBoundsMs[kBucketCount - 1];
+
+  PipelineMetrics();
+  ~PipelineMetrics();
+
+  // safe from any thread; takes effect with the next frame
+  void setEnabled(bool enabled) { _enabled = enabled; }
+  bool isEnabled() const { return _enabled; }
+  // false until the first frame measured on the GL thread
+  bool isGpuTimingSupported() const { return _gpuTimingSupported; }
+  // drops everything recorded so far
+  void reset();
+
+  // safe from any thread
+  std::vector<PipelineNodeStats> getSnapshot();
+  // one line per node: "id name -> id[input] ..."
+  std::string dumpTopology();
+  // the snapshot and topology as one JSON object
+  std::string toJson();
+
+  // Measures one node's own work on the GL thread; does nothing while
+  // metrics are off. Stop it before the node updates its targets, GPU
+  // timer queries cannot nest.
+  class GPUPIXEL_API NodeTimer {
+   public:
+    // nodes are keyed by their most derived object, so a filter is the
+    // same node whether reached as a Source or as a Target
+    template <class T>
+    NodeTimer(PipelineMetrics* metrics, const T* node)
+        : NodeTimer(metrics, dynamic_cast<const void*>(node), typeid(*node)) {}
+    ~NodeTimer() { stop(); }
+    void stop();
+
+   private:
+    NodeTimer(PipelineMetrics* metrics,
+              const void* node,
+              const std::type_info& type);
+
+    PipelineMetrics* _metrics;
+    const void* _node;
+    const std::type_info& _type;
+    std::chrono::steady_clock::time_point _start;
+    bool _gpu = false;
+  };
+
+  // the targets a node handed its output to this frame
+  void recordTargets(const Source* node,
+                     const std::map<std::shared_ptr<Target>, int>& targets);
+
+ private:
+  struct Window {
+    float samples[kWindow];
+    int count = 0;
+    int next = 0;
+    void add(float ms);
+    PipelineTimingStats stats() const;
+  };
+  struct Node {
+    uint64_t id;
+    const std::type_info* type;
+    std::string name;
+    std::vector<std::pair<const void*, int>> targets;
+    Window cpu;
+    Window gpu;
+    std::chrono::steady_clock::time_point lastSeen;
+  };
+  struct PendingQuery {
+    unsigned int query;
+    const void* node;
+    uint64_t id;
+  };
+
+  // with _mutex held
+  Node& _node(const void* node, const std::type_info& type);
+  void _prune();
+
+  bool _beginGpu();
+  void _endGpu(const void* node, const std::type_info& type);
+  void _pollQueries();
+  bool _resolveQueryFunctions();
+
+  std::atomic<bool> _enabled{false};
+  std::mutex _mutex;
+  std::unordered_map<const void*, Node> _nodes;
+  uint64_t _nextId = 1;
+
+  // GL thread only
+  bool _resolved = false;
+  std::atomic<bool> _gpuTimingSupported{false};
+  bool _disjointQueries = false;
+  void* _genQueries = nullptr;
+  void* _deleteQueries = nullptr;
+  void* _beginQuery = nullptr;
+  void* _endQuery = nullptr;
+  void* _getQueryObjectuiv = nullptr;
+  void* _getQueryObjectui64v = nullptr;
+  unsigned int _activeQuery = 0;
+  std::vector<unsigned int> _freeQueries;
+  std::vector<PendingQuery> _pending;
+  size_t _pendingHead = 0;
+  size_t _pendingCount = 0;
+};
+
+NS_GPUPIXEL_END
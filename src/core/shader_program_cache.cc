@@ -0,0 +1,567 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "shader_program_cache.h"
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <future>
+#include <mutex>
+#include <vector>
+#include "dispatch_queue.h"
+#include "gpupixel_context.h"
+#include "util.h"
+
+#ifndef GL_PROGRAM_BINARY_RETRIEVABLE_HINT
+#define GL_PROGRAM_BINARY_RETRIEVABLE_HINT 0x8257
+#endif
+#ifndef GL_PROGRAM_BINARY_LENGTH
+#define GL_PROGRAM_BINARY_LENGTH 0x8741
+#endif
+#ifndef GL_NUM_PROGRAM_BINARY_FORMATS
+#define GL_NUM_PROGRAM_BINARY_FORMATS 0x87FE
+#endif
+#ifndef APIENTRY
+#define APIENTRY
+#endif
+
+NS_GPUPIXEL_BEGIN
+
+typedef void(APIENTRY* GetProgramBinaryFunc)(GLuint program,
+                                             GLsizei bufSize,
+                                             GLsizei* length,
+                                             GLenum* binaryFormat,
+                                             void* binary);
+typedef void(APIENTRY* ProgramBinaryFunc)(GLuint program,
+                                          GLenum binaryFormat,
+                                          const void* binary,
+                                          GLsizei length);
+typedef void(APIENTRY* ProgramParameteriFunc)(GLuint program,
+                                              GLenum pname,
+                                              GLint value);
+
+// bump when the file layout changes
+static const uint32_t kStoreMagic = 0x4E425047;  // "GPBN"
+static const uint32_t kStoreVersion = 1;
+static const char* kStoreFileName = "gpupixel_programs.bin";
+
+// FNV-1a, seeded so the key and the check are independent
+static uint64_t hashSources(const std::string& vertexShaderSource,
+                            const std::string& fragmentShaderSource,
+                            uint64_t hash) {
+  for (unsigned char c : vertexShaderSource) {
+    hash = (hash ^ c) * 1099511628211ull;
+  }
+  hash = (hash ^ 0xff) * 1099511628211ull;
+  for (unsigned char c : fragmentShaderSource) {
+    hash = (hash ^ c) * 1099511628211ull;
+  }
+  return hash;
+}
+
+static double elapsedUs(std::chrono::steady_clock::time_point start) {
+  return (double)std::chrono::duration_cast<std::chrono::microseconds>(
+             std::chrono::steady_clock::now() - start)
+      .count();
+}
+
+// Process-wide binary store, loaded on first use and rewritten on a
+// background thread after it changes. Binaries live in memory while the
+// process runs, so a lookup never touches the file.
+namespace {
+struct StoredBinary {
+  uint32_t check;
+  uint32_t format;
+  uint64_t lastUsed;
+  std::vector<uint8_t> data;
+};
+
+struct BinaryStore {
+  std::mutex mutex;
+  std::string directory;
+  uint64_t maxBytes = ShaderProgramCache::kDefaultDiskBudgetBytes;
+  bool loaded = false;
+  std::string driverTag;
+  std::unordered_map<uint64_t, StoredBinary> binaries;
+  uint64_t bytes = 0;
+  uint64_t clock = 0;
+  bool writePending = false;
+};
+}  // namespace
+
+// never destroyed, a write may still be queued at exit
+static BinaryStore& store() {
+  static BinaryStore* instance = new BinaryStore();
+  return *instance;
+}
+
+static DispatchQueue& storeWriter() {
+  static DispatchQueue* queue = new DispatchQueue(DispatchQueue::Serial);
+  return *queue;
+}
+
+static std::string storePath(const std::string& directory) {
+  return directory + "/" + kStoreFileName;
+}
+
+template <typename T>
+static void append(std::vector<uint8_t>& out, const T& value) {
+  const uint8_t* bytes = reinterpret_cast<const uint8_t*>(&value);
+  out.insert(out.end(), bytes, bytes + sizeof(T));
+}
+
+template <typename T>
+static bool readValue(FILE* file, T& value) {
+  return fread(&value, sizeof(T), 1, file) == 1;
+}
+
+// with the store locked
+static void readStore(BinaryStore& s) {
+  const std::string path = storePath(s.directory);
+  FILE* file = fopen(path.c_str(), "rb");
+  if (!file) {
+    return;
+  }
+  uint32_t magic = 0;
+  uint32_t version = 0;
+  uint32_t tagLength = 0;
+  bool valid = readValue(file, magic) && readValue(file, version) &&
+               readValue(file, tagLength) && magic == kStoreMagic &&
+               version == kStoreVersion && tagLength < 4096;
+  if (valid) {
+    std::string tag(tagLength, '\0');
+    valid = fread(&tag[0], 1, tagLength, file) == tagLength &&
+            tag == s.driverTag;
+  }
+  if (!valid) {
+    // another driver or an older layout, nothing in it is usable
+    fclose(file);
+    remove(path.c_str());
+    Util::Log("INFO", "shader program store discarded");
+    return;
+  }
+  // written oldest first
+  uint64_t key = 0;
+  StoredBinary binary;
+  uint32_t length = 0;
+  bool corrupt = false;
+  while (readValue(file, key) && readValue(file, binary.check) &&
+         readValue(file, binary.format) && readValue(file, length)) {
+    // no entry written fits outside the budget, a larger length is garbage
+    if (length > s.maxBytes) {
+      corrupt = true;
+      break;
+    }
+    binary.data.resize(length);
+    if (fread(binary.data.data(), 1, length, file) != length) {
+      break;
+    }
+    binary.lastUsed = ++s.clock;
+    s.bytes += length;
+    s.binaries[key] = binary;
+  }
+  fclose(file);
+  if (corrupt) {
+    s.binaries.clear();
+    s.bytes = 0;
+    remove(path.c_str());
+    Util::Log("INFO", "shader program store corrupt, discarded");
+  }
+}
+
+// with the store locked; false when it is disabled or for another driver
+static bool openStore(BinaryStore& s, const std::string& driverTag) {
+  if (s.directory.empty()) {
+    return false;
+  }
+  if (!s.loaded) {
+    s.loaded = true;
+    s.driverTag = driverTag;
+    readStore(s);
+  }
+  return s.driverTag == driverTag;
+}
+
+static void writeStore() {
+  BinaryStore& s = store();
+  std::string path;
+  std::vector<uint8_t> out;
+  {
+    std::unique_lock<std::mutex> lock(s.mutex);
+    s.writePending = false;
+    if (s.directory.empty()) {
+      return;
+    }
+    path = storePath(s.directory);
+    std::vector<std::pair<uint64_t, const StoredBinary*>> ordered;
+    for (auto& it : s.binaries) {
+      ordered.push_back({it.first, &it.second});
+    }
+    std::sort(ordered.begin(), ordered.end(),
+              [](const std::pair<uint64_t, const StoredBinary*>& a,
+                 const std::pair<uint64_t, const StoredBinary*>& b) {
+                return a.second->lastUsed < b.second->lastUsed;
+              });
+    out.reserve(s.bytes + ordered.size() * 20 + s.driverTag.size() + 12);
+    append(out, kStoreMagic);
+    append(out, kStoreVersion);
+    append(out, (uint32_t)s.driverTag.size());
+    out.insert(out.end(), s.driverTag.begin(), s.driverTag.end());
+    for (auto& entry : ordered) {
+      append(out, entry.first);
+      append(out, entry.second->check);
+      append(out, entry.second->format);
+      append(out, (uint32_t)entry.second->data.size());
+      out.insert(out.end(), entry.second->data.begin(),
+                 entry.second->data.end());
+    }
+  }
+
+  // readers never see a half written file
+  const std::string temporary = path + ".tmp";
+  FILE* file = fopen(temporary.c_str(), "wb");
+  if (!file) {
+    Util::Log("WARN", "cannot write shader program store %s", path.c_str());
+    return;
+  }
+  bool ok = fwrite(out.data(), 1, out.size(), file) == out.size();
+  ok = fclose(file) == 0 && ok;
+  if (ok) {
+    remove(path.c_str());
+    ok = rename(temporary.c_str(), path.c_str()) == 0;
+  }
+  if (!ok) {
+    remove(temporary.c_str());
+  }
+}
+
+// with the store locked; writes coalesce while one is queued
+static void scheduleWrite(BinaryStore& s) {
+  if (!s.writePending) {
+    s.writePending = true;
+    storeWriter().add(writeStore);
+  }
+}
+
+ShaderProgramCache::ShaderProgramCache() {}
+
+ShaderProgramCache::~ShaderProgramCache() {
+  for (auto& it : _entries) {
+    glDeleteProgram(it.second.program);
+  }
+  for (GLuint program : _unshared) {
+    glDeleteProgram(program);
+  }
+}
+
+GLuint ShaderProgramCache::acquire(const std::string& vertexShaderSource,
+                                   const std::string& fragmentShaderSource) {
+  const uint64_t key = hashSources(vertexShaderSource, fragmentShaderSource,
+                                   1469598103934665603ull);
+  auto it = _entries.find(key);
+  if (it != _entries.end()) {
+    Entry& entry = it->second;
+    if (entry.vertexShaderSource == vertexShaderSource &&
+        entry.fragmentShaderSource == fragmentShaderSource) {
+      entry.refs++;
+      _hits++;
+      return entry.program;
+    }
+    bool linked = false;
+    GLuint program =
+        _compile(vertexShaderSource, fragmentShaderSource, linked);
+    _unshared.insert(program);
+    _programsResident++;
+    return program;
+  }
+
+  // a different seed, so a stored binary is only used when both agree
+  const uint32_t check = (uint32_t)hashSources(
+      vertexShaderSource, fragmentShaderSource, 0x84222325cbf29ce4ull);
+  GLuint program = _loadBinary(key, check);
+  if (program == 0) {
+    bool linked = false;
+    program = _compile(vertexShaderSource, fragmentShaderSource, linked);
+    if (linked) {
+      _storeBinary(program, key, check);
+    }
+  }
+  _entries[key] = {program, 1, vertexShaderSource, fragmentShaderSource};
+  _keys[program] = key;
+  _programsResident++;
+  return program;
+}
+
+void ShaderProgramCache::release(GLuint program) {
+  if (_unshared.erase(program)) {
+    glDeleteProgram(program);
+    _programsResident--;
+    return;
+  }
+  auto key = _keys.find(program);
+  if (key == _keys.end()) {
+    return;
+  }
+  Entry& entry = _entries[key->second];
+  if (entry.refs > 0) {
+    entry.refs--;
+  }
+}
+
+void ShaderProgramCache::purge() {
+  for (auto it = _entries.begin(); it != _entries.end();) {
+    if (it->second.refs == 0) {
+      glDeleteProgram(it->second.program);
+      _keys.erase(it->second.program);
+      _programsResident--;
+      it = _entries.erase(it);
+    } else {
+      ++it;
+    }
+  }
+}
+
+ShaderProgramCacheStats ShaderProgramCache::getStats() const {
+  ShaderProgramCacheStats stats;
+  stats.hits = _hits;
+  stats.compiles = _compiles;
+  stats.diskLoads = _diskLoads;
+  stats.diskRejected = _diskRejected;
+  stats.programsResident = _programsResident;
+  stats.compileMs = _compileUs / 1000.0;
+  stats.diskLoadMs = _diskLoadUs / 1000.0;
+  return stats;
+}
+
+void ShaderProgramCache::resetStats() {
+  _hits = 0;
+  _compiles = 0;
+  _diskLoads = 0;
+  _diskRejected = 0;
+  _compileUs = 0;
+  _diskLoadUs = 0;
+}
+
+void ShaderProgramCache::setDiskCache(const std::string& directory,
+                                      uint64_t maxBytes) {
+  BinaryStore& s = store();
+  std::unique_lock<std::mutex> lock(s.mutex);
+  s.directory = directory;
+  s.maxBytes = maxBytes;
+  s.loaded = false;
+  s.binaries.clear();
+  s.bytes = 0;
+}
+
+void ShaderProgramCache::clearDiskCache() {
+  BinaryStore& s = store();
+  std::unique_lock<std::mutex> lock(s.mutex);
+  s.binaries.clear();
+  s.bytes = 0;
+  if (!s.directory.empty()) {
+    remove(storePath(s.directory).c_str());
+  }
+}
+
+void ShaderProgramCache::flushDiskCache() {
+  // the writer is serial, so this runs after every write queued before it
+  std::promise<void> done;
+  storeWriter().add([&done] { done.set_value(); });
+  done.get_future().wait();
+}
+
+bool ShaderProgramCache::_resolveBinaryFunctions() {
+  if (_resolved) {
+    return _getProgramBinary != nullptr;
+  }
+  _resolved = true;
+  GLint formats = 0;
+  glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS, &formats);
+  glGetError();
+  if (formats <= 0) {
+    return false;
+  }
+  _getProgramBinary = GPUPixelContext::getProcAddress("glGetProgramBinary");
+  _programBinary = GPUPixelContext::getProcAddress("glProgramBinary");
+  _programParameteri = GPUPixelContext::getProcAddress("glProgramParameteri");
+  if (!_getProgramBinary || !_programBinary) {
+    _getProgramBinary = nullptr;
+    return false;
+  }
+  const char* vendor = (const char*)glGetString(GL_VENDOR);
+  const char* renderer = (const char*)glGetString(GL_RENDERER);
+  const char* version = (const char*)glGetString(GL_VERSION);
+  _driverTag = Util::str_format("%s|%s|%s", vendor ? vendor : "",
+                                renderer ? renderer : "",
+                                version ? version : "");
+  return true;
+}
+
+GLuint ShaderProgramCache::_loadBinary(uint64_t key, uint32_t check) {
+  if (!_resolveBinaryFunctions()) {
+    return 0;
+  }
+  auto start = std::chrono::steady_clock::now();
+  StoredBinary binary;
+  {
+    BinaryStore& s = store();
+    std::unique_lock<std::mutex> lock(s.mutex);
+    if (!openStore(s, _driverTag)) {
+      return 0;
+    }
+    auto it = s.binaries.find(key);
+    if (it == s.binaries.end() || it->second.check != check) {
+      return 0;
+    }
+    it->second.lastUsed = ++s.clock;
+    binary = it->second;
+  }
+
+  GLuint program = glCreateProgram();
+  ((ProgramBinaryFunc)_programBinary)(program, binary.format,
+                                      binary.data.data(),
+                                      (GLsizei)binary.data.size());
+  GLint linked = GL_FALSE;
+  glGetProgramiv(program, GL_LINK_STATUS, &linked);
+  glGetError();
+  if (linked != GL_TRUE) {
+    // same version string, different driver build: forget the binary
+    glDeleteProgram(program);
+    _diskRejected++;
+    BinaryStore& s = store();
+    std::unique_lock<std::mutex> lock(s.mutex);
+    auto it = s.binaries.find(key);
+    if (it != s.binaries.end()) {
+      s.bytes -= it->second.data.size();
+      s.binaries.erase(it);
+      scheduleWrite(s);
+    }
+    return 0;
+  }
+  _diskLoads++;
+  _diskLoadUs += (uint64_t)elapsedUs(start);
+  return program;
+}
+
+void ShaderProgramCache::_storeBinary(GLuint program,
+                                      uint64_t key,
+                                      uint32_t check) {
+  if (!_resolveBinaryFunctions()) {
+    return;
+  }
+  GLint length = 0;
+  glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH, &length);
+  if (length <= 0) {
+    glGetError();
+    return;
+  }
+  StoredBinary binary;
+  binary.check = check;
+  binary.data.resize(length);
+  GLsizei written = 0;
+  GLenum format = 0;
+  ((GetProgramBinaryFunc)_getProgramBinary)(program, length, &written, &format,
+                                            binary.data.data());
+  if (glGetError() != GL_NO_ERROR || written <= 0) {
+    return;
+  }
+  binary.data.resize(written);
+  binary.format = format;
+
+  BinaryStore& s = store();
+  std::unique_lock<std::mutex> lock(s.mutex);
+  if (!openStore(s, _driverTag) || binary.data.size() > s.maxBytes) {
+    return;
+  }
+  binary.lastUsed = ++s.clock;
+  auto old = s.binaries.find(key);
+  if (old != s.binaries.end()) {
+    s.bytes -= old->second.data.size();
+  }
+  s.bytes += binary.data.size();
+  s.binaries[key] = std::move(binary);
+  while (s.bytes > s.maxBytes) {
+    auto oldest = s.binaries.begin();
+    for (auto it = s.binaries.begin(); it != s.binaries.end(); ++it) {
+      if (it->second.lastUsed < oldest->second.lastUsed) {
+        oldest = it;
+      }
+    }
+    s.bytes -= oldest->second.data.size();
+    s.binaries.erase(oldest);
+  }
+  scheduleWrite(s);
+}
+
+GLuint ShaderProgramCache::_compile(const std::string& vertexShaderSource,
+                                    const std::string& fragmentShaderSource,
+                                    bool& linked) {
+  linked = false;
+  auto start = std::chrono::steady_clock::now();
+  GLuint program = 0;
+  CHECK_GL(program = glCreateProgram());
+
+  CHECK_GL(GLuint vertShader = glCreateShader(GL_VERTEX_SHADER));
+  const char* vertexShaderSourceStr = vertexShaderSource.c_str();
+  CHECK_GL(glShaderSource(vertShader, 1, &vertexShaderSourceStr, NULL));
+  CHECK_GL(glCompileShader(vertShader));
+
+  GLint compileSuccess;
+  glGetShaderiv(vertShader, GL_COMPILE_STATUS, &compileSuccess);
+  if (compileSuccess == GL_FALSE) {
+    GLchar messages[256];
+    glGetShaderInfoLog(vertShader, sizeof(messages), 0, &messages[0]);
+    Util::Log("ERROR", "GL ERROR ShaderProgramCache vertex shader %s",
+              messages);
+    glDeleteShader(vertShader);
+    return program;
+  }
+
+  CHECK_GL(GLuint fragShader = glCreateShader(GL_FRAGMENT_SHADER));
+  const char* fragmentShaderSourceStr = fragmentShaderSource.c_str();
+  CHECK_GL(glShaderSource(fragShader, 1, &fragmentShaderSourceStr, NULL));
+  CHECK_GL(glCompileShader(fragShader));
+
+  glGetShaderiv(fragShader, GL_COMPILE_STATUS, &compileSuccess);
+  if (compileSuccess == GL_FALSE) {
+    GLchar messages[256];
+    glGetShaderInfoLog(fragShader, sizeof(messages), 0, &messages[0]);
+    Util::Log("ERROR", "GL ERROR ShaderProgramCache frag shader %s", messages);
+    glDeleteShader(vertShader);
+    glDeleteShader(fragShader);
+    return program;
+  }
+
+  CHECK_GL(glAttachShader(program, vertShader));
+  CHECK_GL(glAttachShader(program, fragShader));
+  // some drivers only keep a retrievable binary when asked before linking
+  if (_resolveBinaryFunctions() && _programParameteri) {
+    ((ProgramParameteriFunc)_programParameteri)(
+        program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+    glGetError();
+  }
+  CHECK_GL(glLinkProgram(program));
+
+  CHECK_GL(glDeleteShader(vertShader));
+  CHECK_GL(glDeleteShader(fragShader));
+
+  GLint linkSuccess = GL_FALSE;
+  glGetProgramiv(program, GL_LINK_STATUS, &linkSuccess);
+  if (linkSuccess != GL_TRUE) {
+    GLchar messages[256];
+    glGetProgramInfoLog(program, sizeof(messages), 0, &messages[0]);
+    Util::Log("ERROR", "GL ERROR ShaderProgramCache link %s", messages);
+    return program;
+  }
+  linked = true;
+  _compiles++;
+  _compileUs += (uint64_t)elapsedUs(start);
+  return program;
+}
+
+NS_GPUPIXEL_END
@@ -0,0 +1,102 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <atomic>
+#include <string>
+#include <unordered_map>
+#include <unordered_set>
+#include "gpupixel_macros.h"
+
+NS_GPUPIXEL_BEGIN
+struct ShaderProgramCacheStats {
+  // acquires served by a program already linked in this context
+  uint64_t hits;
+  // programs compiled and linked from source
+  uint64_t compiles;
+  // programs created from a stored binary
+  uint64_t diskLoads;
+  // stored binaries the driver refused, recompiled from source
+  uint64_t diskRejected;
+  uint64_t programsResident;
+  double compileMs;
+  double diskLoadMs;
+};
+
+// One linked program per vertex/fragment source pair, shared by every
+// GLProgram with that source and deleted by purge() once none uses it.
+// Linked programs are also kept on disk (glGetProgramBinary) when a
+// directory is set, so later launches skip compiling. Stored binaries are
+// tagged with the GL vendor, renderer and version and dropped when any of
+// them changes; the store is capped, least recently used binaries go
+// first. All calls except the static ones must come from the GL thread.
+class GPUPIXEL_API ShaderProgramCache {
+ public:
+  static const uint64_t kDefaultDiskBudgetBytes = 4ull * 1024 * 1024;
+
+  ShaderProgramCache();
+  ~ShaderProgramCache();
+
+  // the linked program for the pair; one that fails to compile is logged
+  // and handed out all the same, but never stored. Every acquire needs a
+  // release.
+  GLuint acquire(const std::string& vertexShaderSource,
+                 const std::string& fragmentShaderSource);
+  void release(GLuint program);
+  // deletes programs nothing uses any more
+  void purge();
+
+  // safe to call from any thread
+  ShaderProgramCacheStats getStats() const;
+  void resetStats();
+
+  // enables the on-disk store in directory (which must exist), shared by
+  // every context of the process; an empty directory disables it
+  static void setDiskCache(const std::string& directory,
+                           uint64_t maxBytes = kDefaultDiskBudgetBytes);
+  // forgets and deletes every stored binary
+  static void clearDiskCache();
+  // blocks until binaries stored so far are written out
+  static void flushDiskCache();
+
+ private:
+  GLuint _compile(const std::string& vertexShaderSource,
+                  const std::string& fragmentShaderSource,
+                  bool& linked);
+  GLuint _loadBinary(uint64_t key, uint32_t check);
+  void _storeBinary(GLuint program, uint64_t key, uint32_t check);
+  bool _resolveBinaryFunctions();
+
+  struct Entry {
+    GLuint program;
+    int refs;
+    std::string vertexShaderSource;
+    std::string fragmentShaderSource;
+  };
+  std::unordered_map<uint64_t, Entry> _entries;
+  std::unordered_map<GLuint, uint64_t> _keys;
+  // hash collisions get a program of their own that is never shared
+  std::unordered_set<GLuint> _unshared;
+
+  // filled on the first acquire, when a context is current
+  bool _resolved = false;
+  std::string _driverTag;
+  void* _getProgramBinary = nullptr;
+  void* _programBinary = nullptr;
+  void* _programParameteri = nullptr;
+
+  std::atomic<uint64_t> _hits{0};
+  std::atomic<uint64_t> _compiles{0};
+  std::atomic<uint64_t> _diskLoads{0};
+  std::atomic<uint64_t> _diskRejected{0};
+  std::atomic<uint64_t> _programsResident{0};
+  std::atomic<uint64_t> _compileUs{0};
+  std::atomic<uint64_t> _diskLoadUs{0};
+};
+
+NS_GPUPIXEL_END
@@ -0,0 +1,146 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "face_detection_proxy.h"
+#include <algorithm>
+#include "filter.h"
+#include "gpupixel_context.h"
+
+NS_GPUPIXEL_BEGIN
+
+// each output texel packs four horizontally adjacent proxy pixels
+#if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_ANDROID)
+const std::string kFaceDetectionProxyFragmentShader = R"(
+    varying highp vec2 textureCoordinate;
+    uniform sampler2D inputImageTexture;
+    uniform highp float widthScale;
+    uniform highp float pixelWidth;
+    uniform int luminance;
+
+    lowp float luma(highp float x) {
+      lowp vec4 color = texture2D(inputImageTexture,
+                                  vec2(x * widthScale, textureCoordinate.y));
+      return luminance == 1 ? color.r
+                            : dot(color.rgb, vec3(0.299, 0.587, 0.114));
+    }
+
+    void main() {
+      highp float x = textureCoordinate.x - 1.5 * pixelWidth;
+      gl_FragColor = vec4(luma(x), luma(x + pixelWidth),
+                          luma(x + 2.0 * pixelWidth),
+                          luma(x + 3.0 * pixelWidth));
+    })";
+#elif defined(GPUPIXEL_WIN) || defined(GPUPIXEL_MAC) || defined(GPUPIXEL_LINUX)
+const std::string kFaceDetectionProxyFragmentShader = R"(
+    varying vec2 textureCoordinate;
+    uniform sampler2D inputImageTexture;
+    uniform float widthScale;
+    uniform float pixelWidth;
+    uniform int luminance;
+
+    float luma(float x) {
+      vec4 color = texture2D(inputImageTexture,
+                             vec2(x * widthScale, textureCoordinate.y));
+      return luminance == 1 ? color.r
+                            : dot(color.rgb, vec3(0.299, 0.587, 0.114));
+    }
+
+    void main() {
+      float x = textureCoordinate.x - 1.5 * pixelWidth;
+      gl_FragColor = vec4(luma(x), luma(x + pixelWidth),
+                          luma(x + 2.0 * pixelWidth),
+                          luma(x + 3.0 * pixelWidth));
+    })";
+#endif
+
+FaceDetectionProxy::FaceDetectionProxy() {}
+
+FaceDetectionProxy::~FaceDetectionProxy() {
+  if (_program) {
+    delete _program;
+    _program = nullptr;
+  }
+}
+
+bool FaceDetectionProxy::_init() {
+  _program = GLProgram::createByShaderString(kDefaultVertexShader,
+                                             kFaceDetectionProxyFragmentShader);
+  if (!_program) {
+    return false;
+  }
+  _positionAttribute = _program->getAttribLocation("position");
+  _texCoordAttribute = _program->getAttribLocation("inputTextureCoordinate");
+  return true;
+}
+
+void FaceDetectionProxy::process(const std::shared_ptr<FaceDetector>& detector,
+                                 GLuint texture,
+                                 bool luminance,
+                                 float widthScale,
+                                 int width,
+                                 int height,
+                                 int64_t frameTime) {
+  if (!detector->BeginProxyFrame(frameTime)) {
+    return;
+  }
+  if (!_program && !_init()) {
+    detector->SubmitProxyFrame(nullptr, 0, 0, 0, GPUPIXEL_FRAME_TYPE_GRAY8,
+                               frameTime);
+    return;
+  }
+
+  // frames already small enough are only converted; the width is rounded
+  // up to whole texels, stretching the copy by at most three pixels
+  const float scale =
+      std::min(1.0f, (float)_shortSide / (float)std::min(width, height));
+  const int proxyHeight = std::max(1, (int)(height * scale + 0.5f));
+  const int packedWidth = std::max(1, ((int)(width * scale + 0.5f) + 3) / 4);
+  const int proxyWidth = packedWidth * 4;
+
+  GPUPixelContext* context = GPUPixelContext::getInstance();
+  FramebufferCache* cache = context->getFramebufferCache();
+  std::shared_ptr<Framebuffer> framebuffer =
+      cache->fetchFramebuffer(packedWidth, proxyHeight);
+  context->setActiveShaderProgram(_program);
+  framebuffer->active();
+
+  static const GLfloat vertices[] = {-1.0f, -1.0f, 1.0f, -1.0f,
+                                     -1.0f, 1.0f,  1.0f, 1.0f};
+  // rows keep the frame's order, so the readback is the frame top first
+  static const GLfloat texCoords[] = {0.0f, 0.0f, 1.0f, 0.0f,
+                                      0.0f, 1.0f, 1.0f, 1.0f};
+  CHECK_GL(glActiveTexture(GL_TEXTURE0));
+  CHECK_GL(glBindTexture(GL_TEXTURE_2D, texture));
+  _program->setUniformValue("inputImageTexture", 0);
+  _program->setUniformValue("widthScale", widthScale);
+  _program->setUniformValue("pixelWidth", 1.0f / proxyWidth);
+  _program->setUniformValue("luminance", luminance ? 1 : 0);
+  CHECK_GL(glEnableVertexAttribArray(_positionAttribute));
+  CHECK_GL(glVertexAttribPointer(_positionAttribute, 2, GL_FLOAT, 0, 0,
+                                 vertices));
+  CHECK_GL(glEnableVertexAttribArray(_texCoordAttribute));
+  CHECK_GL(glVertexAttribPointer(_texCoordAttribute, 2, GL_FLOAT, 0, 0,
+                                 texCoords));
+  CHECK_GL(glDrawArrays(GL_TRIANGLE_STRIP, 0, 4));
+  framebuffer->inactive();
+
+  // delivered by a later poll; the detector may be gone by then
+  std::weak_ptr<FaceDetector> weakDetector = detector;
+  context->getFrameCapture()->readPixels(
+      framebuffer,
+      [weakDetector](const uint8_t* data, int w, int h, int64_t time) {
+        if (auto detector = weakDetector.lock()) {
+          detector->SubmitProxyFrame(data, w * 4, w * 4, h,
+                                     GPUPIXEL_FRAME_TYPE_GRAY8, time);
+        }
+      },
+      frameTime);
+  // the readback is queued, later draws into it come after it
+  cache->returnFramebuffer(framebuffer);
+}
+
+NS_GPUPIXEL_END
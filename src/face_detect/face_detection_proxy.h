@@ -0,0 +1,56 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <memory>
+#include "face_detector.h"
+#include "gpupixel_macros.h"
+
+NS_GPUPIXEL_BEGIN
+class GLProgram;
+
+// Feeds a FaceDetector a small luminance copy of each frame it asks for,
+// made on the GPU, instead of the full-size frame: the copy is scaled to
+// kDefaultShortSide on its short side, four pixels are packed per RGBA
+// texel and it is read back through FrameCapture, so detection costs the
+// same whatever the capture resolution. Landmarks come back normalized
+// to the frame as before. GL thread only.
+class GPUPIXEL_API FaceDetectionProxy {
+ public:
+  static const int kDefaultShortSide = 320;
+
+  FaceDetectionProxy();
+  ~FaceDetectionProxy();
+
+  // 0 disables the proxy
+  void setShortSide(int shortSide) { _shortSide = shortSide; }
+  int getShortSide() const { return _shortSide; }
+  bool isEnabled() const { return _shortSide > 0; }
+
+  // texture holds a width x height frame in its left widthScale part,
+  // as luminance in .r (a Y plane) or as RGBA. Runs the detector's
+  // callbacks for this frame and, when it wants the frame, renders and
+  // queues the copy. Leaves no framebuffer bound.
+  void process(const std::shared_ptr<FaceDetector>& detector,
+               GLuint texture,
+               bool luminance,
+               float widthScale,
+               int width,
+               int height,
+               int64_t frameTime);
+
+ private:
+  bool _init();
+
+  int _shortSide = kDefaultShortSide;
+  GLProgram* _program = nullptr;
+  GLuint _positionAttribute = 0;
+  GLuint _texCoordAttribute = 0;
+};
+
+NS_GPUPIXEL_END
@@ -10,45 +10,526 @@
 #include "vnn_kit.h"
 #include "vnn_face.h"
 
+#include <algorithm>
+#include <cmath>
+#include <cstring>
 #include "util.h"
 NS_GPUPIXEL_BEGIN
 
+// landmarks are never pushed further ahead of the last detection than this
+static const int64_t kMaxExtrapolationMs = 100;
+// a face is taken for one seen in the last detection if its centre moved
+// less than this share of the face's size
+static const float kMaxTrackingShift = 0.5f;
 
-FaceDetector::FaceDetector() {
-  //  init 
+
+namespace {
+std::mutex sModelMutex;
+std::condition_variable sModelCond;
+FaceDetectorModel::State sModelState = FaceDetectorModel::kUnloaded;
+std::shared_ptr<FaceDetectorModel> sModel;
+int sLoadMs = 0;
+int sWarmUpMs = 0;
+std::vector<FaceDetectorModel::ProgressCallback> sProgressCallbacks;
+std::vector<FaceDetectorModel::CompletionCallback> sCompletionCallbacks;
+
+void reportProgress(float progress) {
+  std::vector<FaceDetectorModel::ProgressCallback> callbacks;
+  {
+    std::unique_lock<std::mutex> lock(sModelMutex);
+    callbacks = sProgressCallbacks;
+  }
+  for (auto& callback : callbacks) {
+    callback(progress);
+  }
+}
+}  // namespace
+
+void FaceDetectorModel::Preload(ProgressCallback progress,
+                                CompletionCallback completion) {
+  std::unique_lock<std::mutex> lock(sModelMutex);
+  if (sModelState == kReady) {
+    const int loadMs = sLoadMs;
+    const int warmUpMs = sWarmUpMs;
+    lock.unlock();
+    if (progress) {
+      progress(1.0f);
+    }
+    if (completion) {
+      completion(true, loadMs, warmUpMs);
+    }
+    return;
+  }
+  if (progress) {
+    sProgressCallbacks.push_back(progress);
+  }
+  if (completion) {
+    sCompletionCallbacks.push_back(completion);
+  }
+  if (sModelState != kLoading) {
+    sModelState = kLoading;
+    std::thread(&FaceDetectorModel::_load).detach();
+  }
+}
+
+std::shared_ptr<FaceDetectorModel> FaceDetectorModel::Acquire() {
+  Preload(nullptr, nullptr);
+  std::unique_lock<std::mutex> lock(sModelMutex);
+  sModelCond.wait(lock, [] { return sModelState != kLoading; });
+  return sModel;
+}
+
+FaceDetectorModel::State FaceDetectorModel::GetState() {
+  std::unique_lock<std::mutex> lock(sModelMutex);
+  return sModelState;
+}
+
+void FaceDetectorModel::Unload() {
+  std::unique_lock<std::mutex> lock(sModelMutex);
+  if (sModelState == kReady) {
+    sModel.reset();
+    sModelState = kUnloaded;
+  }
+}
+
+void FaceDetectorModel::_load() {
+  const int64_t start = Util::nowTimeMs();
+  reportProgress(0.0f);
   VNN_SetLogLevel(VNN_LOG_LEVEL_ALL);
+  // VNN only loads a model from a path; on Android this waits for the
+  // extraction GPUPixel.setContext started
 #if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_ANDROID)
   auto model_path = Util::getResourcePath("face_mobile[1.0.0].vnnmodel");
 #elif defined(GPUPIXEL_WIN) || defined(GPUPIXEL_MAC) || defined(GPUPIXEL_LINUX)
   auto model_path = Util::getResourcePath("face_pc[1.0.0].vnnmodel");
 #endif
-    const void *argv[] = {
-      model_path.c_str(),
-    };
-  
+  reportProgress(0.2f);
+  const void *argv[] = {
+    model_path.c_str(),
+  };
   const int argc = sizeof(argv)/sizeof(argv[0]);
-  VNN_Result  ret = VNN_Create_Face(&vnn_handle_, argc, argv);
+  uint32_t handle = 0;
+  VNN_Result ret = VNN_Create_Face(&handle, argc, argv);
+
+  std::shared_ptr<FaceDetectorModel> model;
+  int loadMs = (int)(Util::nowTimeMs() - start);
+  int warmUpMs = 0;
+  if (ret == VNN_Result_Success && handle > 0) {
+    model.reset(new FaceDetectorModel(handle));
+    reportProgress(0.8f);
+    const int64_t warmUpStart = Util::nowTimeMs();
+    std::vector<uint8_t> blank(128 * 128 * 4, 128);
+    model->Detect(nullptr, blank.data(), 128, 128, GPUPIXEL_MODE_FMT_PICTURE,
+                  GPUPIXEL_FRAME_TYPE_RGBA8888);
+    warmUpMs = (int)(Util::nowTimeMs() - warmUpStart);
+    reportProgress(1.0f);
+    Util::Log("INFO", "FaceDetectorModel: loaded in %d ms, warmed up in %d ms",
+              loadMs, warmUpMs);
+  } else {
+    Util::Log("ERROR", "FaceDetectorModel: can't load %s (%d)",
+              model_path.c_str(), (int)ret);
+  }
+
+  std::vector<CompletionCallback> completions;
+  {
+    std::unique_lock<std::mutex> lock(sModelMutex);
+    sModel = model;
+    sModelState = model ? kReady : kFailed;
+    sLoadMs = loadMs;
+    sWarmUpMs = warmUpMs;
+    sProgressCallbacks.clear();
+    completions.swap(sCompletionCallbacks);
+  }
+  sModelCond.notify_all();
+  for (auto& completion : completions) {
+    completion(model != nullptr, loadMs, warmUpMs);
+  }
 }
 
-FaceDetector::~FaceDetector() {
+FaceDetectorModel::~FaceDetectorModel() {
   if(vnn_handle_ > 0)
     VNN_Destroy_Face(&vnn_handle_);
 }
 
+FaceDetector::FaceDetector() {
+  // starts loading the model in the background if nobody did yet
+  FaceDetectorModel::Preload(nullptr, nullptr);
+}
+
+FaceDetector::~FaceDetector() {
+  {
+    std::unique_lock<std::mutex> lock(_mutex);
+    _quit = true;
+  }
+  _cond.notify_all();
+  if (_worker.joinable()) {
+    _worker.join();
+  }
+}
+
+bool FaceDetector::_failed() const {
+  return FaceDetectorModel::GetState() == FaceDetectorModel::kFailed;
+}
+
 int FaceDetector::RegCallback(FaceDetectorCallback callback) {
   _face_detector_callbacks.push_back(callback);
   return 0;
 }
 
+int FaceDetector::RegCallback(FaceLandmarksCallback callback) {
+  _faces_callbacks.push_back(callback);
+  return 0;
+}
+
+void FaceDetector::SetMaxFaces(int maxFaces) {
+  _maxFaces = std::min(std::max(1, maxFaces), (int)FaceLandmarkSet::kMaxFaces);
+}
+
 int FaceDetector::Detect(const uint8_t* data,
                     int width,
                     int height,
                     GPUPIXEL_MODE_FMT fmt,
                     GPUPIXEL_FRAME_TYPE type) {
-  if(vnn_handle_ == 0) {
+  if(_failed()) {
+    return -1;
+  }
+
+  FaceLandmarkSet faces = _detect(data, width, height, fmt, type);
+  {
+    // a picture is the latest detection too, with nothing to extrapolate
+    std::unique_lock<std::mutex> lock(_mutex);
+    _track(faces);
+    _prevLandmarks.clear();
+    _landmarks.assign(faces);
+    _landmarksTime = _prevLandmarksTime = 0;
+  }
+
+  _notify(faces);
+  return 0;
+}
+
+void FaceDetector::SetDetectionCadence(int everyNFrames, int minIntervalMs) {
+  _everyNFrames = std::max(1, everyNFrames);
+  _minIntervalMs = std::max(0, minIntervalMs);
+}
+
+int FaceDetector::SubmitFrame(const uint8_t* const planes[],
+                              const int strides[],
+                              int width,
+                              int height,
+                              GPUPIXEL_FRAME_TYPE type,
+                              int64_t frameTime) {
+  if(_failed()) {
     return -1;
   }
-  
+
+  _framesSinceSubmit++;
+  if (_cadenceDue(frameTime)) {
+    std::unique_lock<std::mutex> lock(_mutex);
+    // the worker is idle, so it doesn't touch the frame buffer
+    if (!_busy && !_hasFrame) {
+      _handOff(planes, strides, width, height, type, frameTime);
+    }
+  }
+
+  _publish(frameTime);
+  return 0;
+}
+
+bool FaceDetector::BeginProxyFrame(int64_t frameTime) {
+  if(_failed()) {
+    return false;
+  }
+
+  _framesSinceSubmit++;
+  bool wanted = false;
+  if (!_proxyPending && _cadenceDue(frameTime)) {
+    std::unique_lock<std::mutex> lock(_mutex);
+    wanted = !_busy && !_hasFrame;
+  }
+  if (wanted) {
+    _proxyPending = true;
+    _framesSinceSubmit = 0;
+    _lastSubmitTime = frameTime;
+  }
+
+  _publish(frameTime);
+  return wanted;
+}
+
+void FaceDetector::SubmitProxyFrame(const uint8_t* data,
+                                    int stride,
+                                    int width,
+                                    int height,
+                                    GPUPIXEL_FRAME_TYPE type,
+                                    int64_t frameTime) {
+  _proxyPending = false;
+  if (!data) {
+    return;
+  }
+  std::unique_lock<std::mutex> lock(_mutex);
+  if (!_busy && !_hasFrame) {
+    const uint8_t* planes[] = {data};
+    const int strides[] = {stride};
+    _handOff(planes, strides, width, height, type, frameTime);
+  }
+}
+
+bool FaceDetector::_cadenceDue(int64_t frameTime) const {
+  return _framesSinceSubmit >= _everyNFrames &&
+         frameTime - _lastSubmitTime >= _minIntervalMs;
+}
+
+// with _mutex held and the worker idle
+void FaceDetector::_handOff(const uint8_t* const planes[],
+                           const int strides[],
+                           int width,
+                           int height,
+                           GPUPIXEL_FRAME_TYPE type,
+                           int64_t frameTime) {
+  const int chromaWidth = (width + 1) / 2;
+  const int chromaHeight = (height + 1) / 2;
+  // plane rows as the detector wants them, tightly packed
+  int rowBytes[3] = {width, 0, 0};
+  int rows[3] = {height, 0, 0};
+  int planeCount = 1;
+  if (type == GPUPIXEL_FRAME_TYPE_RGBA8888) {
+    rowBytes[0] = width * 4;
+  } else if (type == GPUPIXEL_FRAME_TYPE_YUVI420) {
+    rowBytes[1] = rowBytes[2] = chromaWidth;
+    rows[1] = rows[2] = chromaHeight;
+    planeCount = 3;
+  } else if (type != GPUPIXEL_FRAME_TYPE_GRAY8) {
+    rowBytes[1] = chromaWidth * 2;
+    rows[1] = chromaHeight;
+    planeCount = 2;
+  }
+
+  size_t size = 0;
+  for (int i = 0; i < planeCount; ++i) {
+    size += (size_t)rowBytes[i] * rows[i];
+  }
+  _frame.resize(size);
+  uint8_t* dst = _frame.data();
+  for (int i = 0; i < planeCount; ++i) {
+    for (int row = 0; row < rows[i]; ++row) {
+      std::memcpy(dst, planes[i] + (size_t)row * strides[i], rowBytes[i]);
+      dst += rowBytes[i];
+    }
+  }
+
+  _frameWidth = width;
+  _frameHeight = height;
+  _frameType = type;
+  _frameTime = frameTime;
+  _hasFrame = true;
+  _framesSinceSubmit = 0;
+  _lastSubmitTime = frameTime;
+  if (!_worker.joinable()) {
+    _worker = std::thread(&FaceDetector::_workerLoop, this);
+  }
+  _cond.notify_one();
+}
+
+void FaceDetector::_publish(int64_t frameTime) {
+  {
+    std::unique_lock<std::mutex> lock(_mutex);
+    _predict(frameTime, _published);
+  }
+  _notify(_published);
+}
+
+void FaceDetector::_notify(const FaceLandmarkSet& faces) {
+  if (!_face_detector_callbacks.empty()) {
+    if (faces.empty()) {
+      _publishedFirst.clear();
+    } else {
+      _publishedFirst.assign(faces.face(0),
+                             faces.face(0) + FaceLandmarkSet::kStride);
+    }
+    for(auto cb : _face_detector_callbacks) {
+      cb(_publishedFirst);
+    }
+  }
+  for (auto& cb : _faces_callbacks) {
+    cb(faces);
+  }
+}
+
+void FaceDetector::_workerLoop() {
+  std::unique_lock<std::mutex> lock(_mutex);
+  while (true) {
+    _cond.wait(lock, [this] { return _quit || _hasFrame; });
+    if (_quit) {
+      break;
+    }
+    _hasFrame = false;
+    _busy = true;
+    const int width = _frameWidth;
+    const int height = _frameHeight;
+    const GPUPIXEL_FRAME_TYPE type = _frameType;
+    const int64_t frameTime = _frameTime;
+    lock.unlock();
+
+    const int64_t start = Util::nowTimeMs();
+    FaceLandmarkSet faces =
+        _detect(_frame.data(), width, height, GPUPIXEL_MODE_FMT_VIDEO, type);
+    _lastDetectionMs = (int)(Util::nowTimeMs() - start);
+    _detectionCount++;
+
+    lock.lock();
+    _track(faces);
+    std::swap(_prevLandmarks, _landmarks);
+    _prevLandmarksTime = _landmarksTime;
+    _landmarks = std::move(faces);
+    _landmarksTime = frameTime;
+    _busy = false;
+  }
+}
+
+// Keeps the largest _maxFaces faces and gives each the id of the face of
+// the last detection it is closest to, within kMaxTrackingShift; the rest
+// get new ids. Closest pairs are matched first.
+void FaceDetector::_track(FaceLandmarkSet& faces) {
+  struct Box {
+    float x, y, size;
+  };
+  auto box = [](const float* points) {
+    float minX = points[0], maxX = points[0];
+    float minY = points[1], maxY = points[1];
+    for (int i = 1; i < FaceLandmarkSet::kPointCount; ++i) {
+      minX = std::min(minX, points[i * 2]);
+      maxX = std::max(maxX, points[i * 2]);
+      minY = std::min(minY, points[i * 2 + 1]);
+      maxY = std::max(maxY, points[i * 2 + 1]);
+    }
+    return Box{(minX + maxX) / 2, (minY + maxY) / 2,
+               std::max(maxX - minX, maxY - minY)};
+  };
+
+  const int count = faces.faceCount();
+  std::vector<Box> boxes(count);
+  std::vector<int> order(count);
+  for (int i = 0; i < count; ++i) {
+    boxes[i] = box(faces.face(i));
+    order[i] = i;
+  }
+  std::sort(order.begin(), order.end(),
+            [&](int a, int b) { return boxes[a].size > boxes[b].size; });
+  order.resize(std::min(count, _maxFaces.load()));
+
+  const int previousCount = _landmarks.faceCount();
+  struct Match {
+    float shift;
+    int face;
+    int previous;
+  };
+  std::vector<Match> matches;
+  for (int i : order) {
+    for (int j = 0; j < previousCount; ++j) {
+      Box previous = box(_landmarks.face(j));
+      float size = std::max(boxes[i].size, previous.size);
+      if (size <= 0) {
+        continue;
+      }
+      float shift = std::hypot(boxes[i].x - previous.x,
+                               boxes[i].y - previous.y) / size;
+      if (shift < kMaxTrackingShift) {
+        matches.push_back(Match{shift, i, j});
+      }
+    }
+  }
+  std::sort(matches.begin(), matches.end(),
+            [](const Match& a, const Match& b) { return a.shift < b.shift; });
+
+  std::vector<int> ids(count, 0);
+  std::vector<bool> taken(previousCount, false);
+  for (const Match& match : matches) {
+    if (ids[match.face] == 0 && !taken[match.previous]) {
+      ids[match.face] = _landmarks.ids[match.previous];
+      taken[match.previous] = true;
+    }
+  }
+  for (int i : order) {
+    if (ids[i] == 0) {
+      ids[i] = _nextFaceId++;
+    }
+  }
+
+  std::sort(order.begin(), order.end(),
+            [&](int a, int b) { return ids[a] < ids[b]; });
+  FaceLandmarkSet tracked;
+  tracked.points.reserve(order.size() * FaceLandmarkSet::kStride);
+  for (int i : order) {
+    tracked.ids.push_back(ids[i]);
+    tracked.points.insert(tracked.points.end(), faces.face(i),
+                          faces.face(i) + FaceLandmarkSet::kStride);
+  }
+  faces = std::move(tracked);
+}
+
+// Linear motion from the previous detection to the latest one, carried on
+// to frameTime, per face; a lost or newly found face is not extrapolated.
+// Fills predicted in place, so its storage is reused from frame to frame.
+void FaceDetector::_predict(int64_t frameTime, FaceLandmarkSet& predicted) {
+  predicted.assign(_landmarks);
+  const int64_t period = _landmarksTime - _prevLandmarksTime;
+  const int64_t ahead =
+      std::min(frameTime - _landmarksTime, kMaxExtrapolationMs);
+  if (predicted.empty() || _prevLandmarks.empty() || period <= 0 ||
+      ahead <= 0) {
+    return;
+  }
+
+  // no further than one detection period ahead
+  const float k = std::min(1.0f, (float)ahead / (float)period);
+  for (int i = 0; i < _landmarks.faceCount(); ++i) {
+    auto previous = std::find(_prevLandmarks.ids.begin(),
+                              _prevLandmarks.ids.end(), _landmarks.ids[i]);
+    if (previous == _prevLandmarks.ids.end()) {
+      continue;
+    }
+    const float* last = _landmarks.face(i);
+    const float* before =
+        _prevLandmarks.face((int)(previous - _prevLandmarks.ids.begin()));
+    float* out = predicted.points.data() + (size_t)i * FaceLandmarkSet::kStride;
+    for (int j = 0; j < FaceLandmarkSet::kStride; ++j) {
+      out[j] = last[j] + (last[j] - before[j]) * k;
+    }
+  }
+}
+
+// the worker waits here for a model still loading, Detect() too
+FaceLandmarkSet FaceDetector::_detect(const uint8_t* data,
+                                         int width,
+                                         int height,
+                                         GPUPIXEL_MODE_FMT fmt,
+                                         GPUPIXEL_FRAME_TYPE type) {
+  std::shared_ptr<FaceDetectorModel> model;
+  {
+    std::unique_lock<std::mutex> lock(_modelMutex);
+    if (!_model) {
+      _model = FaceDetectorModel::Acquire();
+    }
+    model = _model;
+  }
+  if (!model) {
+    return FaceLandmarkSet();
+  }
+  return model->Detect(this, data, width, height, fmt, type);
+}
+
+FaceLandmarkSet FaceDetectorModel::Detect(const void* stream,
+                                             const uint8_t* data,
+                                             int width,
+                                             int height,
+                                             GPUPIXEL_MODE_FMT fmt,
+                                             GPUPIXEL_FRAME_TYPE type) {
+  std::unique_lock<std::mutex> lock(_mutex);
+  if (stream != _lastStream) {
+    fmt = GPUPIXEL_MODE_FMT_PICTURE;
+    _lastStream = stream;
+  }
   VNN_Set_Face_Attr(vnn_handle_, "_use_278pts", &use_278pts);
 
   VNN_Image input;
@@ -64,6 +545,19 @@ int FaceDetector::Detect(const uint8_t* data,
       input.pix_fmt = VNN_PIX_FMT_YUVI420;
     }
       break;
+    case GPUPIXEL_FRAME_TYPE_NV12: {
+      input.pix_fmt = VNN_PIX_FMT_NV12;
+    }
+      break;
+    case GPUPIXEL_FRAME_TYPE_NV21: {
+      input.pix_fmt = VNN_PIX_FMT_NV21;
+    }
+      break;
+    case GPUPIXEL_FRAME_TYPE_GRAY8: {
+      input.pix_fmt = VNN_PIX_FMT_GRAY8;
+      input.channels = 1;
+    }
+      break;
     default:
       break;
   }
@@ -82,50 +576,33 @@ int FaceDetector::Detect(const uint8_t* data,
   VNN_FaceFrameDataArr output;
   VNN_Result ret = VNN_Apply_Face_CPU(vnn_handle_, &input, &output);
  
-  std::vector<float> landmarks;
-  if(output.facesNum > 0) {
-    for (int i = 0; i < output.facesArr[0].faceLandmarksNum; i++) {
-      landmarks.push_back(output.facesArr[0].faceLandmarks[i].x);
-      landmarks.push_back(output.facesArr[0].faceLandmarks[i].y);
-    }
-
-    // 106
-    auto point_x = (output.facesArr[0].faceLandmarks[102].x + output.facesArr[0].faceLandmarks[98].x)/2;
-    auto point_y = (output.facesArr[0].faceLandmarks[102].y + output.facesArr[0].faceLandmarks[98].y)/2;
-    landmarks.push_back(point_x);
-    landmarks.push_back(point_y);
-    
-    // 107
-    point_x = (output.facesArr[0].faceLandmarks[35].x + output.facesArr[0].faceLandmarks[65].x)/2;
-    point_y = (output.facesArr[0].faceLandmarks[35].y + output.facesArr[0].faceLandmarks[65].y)/2;
-    landmarks.push_back(point_x);
-    landmarks.push_back(point_y);
-    
-    
-    // 108
-    point_x = (output.facesArr[0].faceLandmarks[70].x + output.facesArr[0].faceLandmarks[40].x)/2;
-    point_y = (output.facesArr[0].faceLandmarks[70].y + output.facesArr[0].faceLandmarks[40].y)/2;
-    landmarks.push_back(point_x);
-    landmarks.push_back(point_y);
-    
-    // 109
-    point_x = (output.facesArr[0].faceLandmarks[5].x + output.facesArr[0].faceLandmarks[80].x)/2;
-    point_y = (output.facesArr[0].faceLandmarks[5].y + output.facesArr[0].faceLandmarks[80].y)/2;
-    landmarks.push_back(point_x);
-    landmarks.push_back(point_y);
-
-    // 110
-    point_x = (output.facesArr[0].faceLandmarks[81].x + output.facesArr[0].faceLandmarks[27].x)/2;
-    point_y = (output.facesArr[0].faceLandmarks[81].y + output.facesArr[0].faceLandmarks[27].y)/2;
-    landmarks.push_back(point_x);
-    landmarks.push_back(point_y);
-  }
-  
-  // do callbck
-  for(auto cb : _face_detector_callbacks) {
-    cb(landmarks);
+  FaceLandmarkSet faces;
+  if (ret != VNN_Result_Success) {
+    return faces;
   }
-  return 0;
+  for (uint32_t f = 0;
+       f < output.facesNum && f < VNN_FRAMEDATAARR_MAX_FACES_NUM; f++) {
+    const VNN_FaceFrameData& face = output.facesArr[f];
+    if (face.faceLandmarksNum < 106) {
+      continue;
+    }
+    faces.ids.push_back(0);
+    for (int i = 0; i < 106; i++) {
+      faces.points.push_back(face.faceLandmarks[i].x);
+      faces.points.push_back(face.faceLandmarks[i].y);
+    }
+    // 106 to 110, midpoints of these pairs
+    static const int kDerived[][2] = {
+        {102, 98}, {35, 65}, {70, 40}, {5, 80}, {81, 27}};
+    for (const auto& pair : kDerived) {
+      faces.points.push_back(
+          (face.faceLandmarks[pair[0]].x + face.faceLandmarks[pair[1]].x) / 2);
+      faces.points.push_back(
+          (face.faceLandmarks[pair[0]].y + face.faceLandmarks[pair[1]].y) / 2);
+    }
+  }
+
+  return faces;
 }
 
 NS_GPUPIXEL_END
@@ -8,7 +8,12 @@
 #pragma once
 
 #include <stdlib.h>
+#include <atomic>
+#include <condition_variable>
 #include <functional>
+#include <memory>
+#include <mutex>
+#include <thread>
 #include <vector>
 #include "gpupixel_macros.h"
 
@@ -20,6 +25,9 @@ GPUPIXEL_API typedef enum {
         GPUPIXEL_FRAME_TYPE_UNKNOW,      /*  Unknow pixel format, as a cube */
         GPUPIXEL_FRAME_TYPE_YUVI420,     /*  YUV  4:2:0   12bpp ( 3 planes, the first is Y, the second is U, the third is V */
         GPUPIXEL_FRAME_TYPE_RGBA8888,    /*  RGBA 8:8:8:8 32bpp ( 4 channel, 8x4=32bit RGBA pixel ) */  
+        GPUPIXEL_FRAME_TYPE_NV12,        /*  YUV  4:2:0   12bpp ( 2 planes, the first is Y, the second is interleaved UV */
+        GPUPIXEL_FRAME_TYPE_NV21,        /*  YUV  4:2:0   12bpp ( 2 planes, the first is Y, the second is interleaved VU */
+        GPUPIXEL_FRAME_TYPE_GRAY8,       /*  Y    8bpp ( 1 plane, luminance only ) */
     } GPUPIXEL_FRAME_TYPE;
 
 GPUPIXEL_API typedef enum {
@@ -28,6 +36,120 @@ GPUPIXEL_API typedef enum {
         GPUPIXEL_MODE_FMT_DEFAULT = 0x00000000,
     } GPUPIXEL_MODE_FMT;
 
+// Landmarks of every tracked face of a frame in one packed buffer: face i
+// has id ids[i] and kPointCount normalized (x, y) points from
+// points[i * kStride]. A face keeps its id for as long as it stays tracked,
+// ids are never reused, and faces are ordered by id, so the face tracked
+// the longest comes first.
+struct GPUPIXEL_API FaceLandmarkSet {
+    // VNN's 106 points and 5 more derived from them for the face filters
+    static const int kPointCount = 111;
+    static const int kStride = kPointCount * 2;
+    // the most faces a detector reports and a face filter draws
+    static const int kMaxFaces = 4;
+
+    std::vector<int> ids;
+    std::vector<float> points;
+
+    int faceCount() const { return (int)ids.size(); }
+    bool empty() const { return ids.empty(); }
+    const float* face(int i) const { return points.data() + (size_t)i * kStride; }
+    void clear() {
+        ids.clear();
+        points.clear();
+    }
+    // assign reuses the capacity, no allocation once warmed up
+    void assign(const FaceLandmarkSet& other) {
+        ids.assign(other.ids.begin(), other.ids.end());
+        points.assign(other.points.begin(), other.points.end());
+    }
+};
+
+GPUPIXEL_API typedef std::function<void(const FaceLandmarkSet& faces)>
+FaceLandmarksCallback;
+
+// Latest landmarks of a source, shared with the filters bound to it so they
+// read them natively on the GL thread instead of through per-filter copies.
+// Written by the source's detector callback right before the frame renders.
+class GPUPIXEL_API FaceLandmarkChannel {
+    public:
+        void Publish(const FaceLandmarkSet& faces) {
+            _faces.assign(faces);
+            _version++;
+        }
+        const FaceLandmarkSet& GetFaces() const { return _faces; }
+        // bumped on every publish, consumers compare it to skip re-reads
+        uint64_t GetVersion() const { return _version; }
+    private:
+        FaceLandmarkSet _faces;
+        uint64_t _version = 0;
+    };
+
+// implemented by filters that can follow a FaceLandmarkChannel
+class GPUPIXEL_API FaceLandmarkConsumer {
+    public:
+        virtual ~FaceLandmarkConsumer() {}
+        // null unbinds
+        virtual void SetLandmarkChannel(
+            std::shared_ptr<FaceLandmarkChannel> channel) = 0;
+    };
+
+// The loaded VNN model, one per process and shared by every FaceDetector.
+// Loading takes long enough to stall a frame, so Preload() does it on a
+// thread of its own and then runs one inference on a blank frame, which
+// is where the runtime sets up its buffers. Detectors created before the
+// model is ready start a preload themselves and report no face until it
+// is done.
+class GPUPIXEL_API FaceDetectorModel {
+    public:
+        enum State { kUnloaded, kLoading, kReady, kFailed };
+        // stages of the preload, 0 to 1: resolved the model file, loaded
+        // it, warmed up
+        typedef std::function<void(float progress)> ProgressCallback;
+        typedef std::function<void(bool loaded, int loadMs, int warmUpMs)>
+            CompletionCallback;
+
+        // Callbacks run on the loading thread, or right here when the
+        // model is already loaded. Joins a preload in progress.
+        static void Preload(ProgressCallback progress,
+                            CompletionCallback completion);
+        // the shared model, waiting for the load; null if it failed
+        static std::shared_ptr<FaceDetectorModel> Acquire();
+        static State GetState();
+        // drops the process's reference, detectors still hold theirs
+        static void Unload();
+
+        ~FaceDetectorModel();
+
+        // stream identifies the caller: the handle tracks faces from frame
+        // to frame, so a video frame from another stream than the last is
+        // detected from scratch
+        // faces come without ids, FaceDetector tracks them
+        FaceLandmarkSet Detect(const void* stream,
+                                  const uint8_t* data,
+                                  int width,
+                                  int height,
+                                  GPUPIXEL_MODE_FMT fmt,
+                                  GPUPIXEL_FRAME_TYPE type);
+
+    private:
+        FaceDetectorModel(uint32_t handle) : vnn_handle_(handle) {}
+        static void _load();
+
+        uint32_t vnn_handle_;
+        std::mutex _mutex;
+        const void* _lastStream = nullptr;
+        int use_278pts = 0;
+    };
+
+// Detection normally runs on a worker thread fed by SubmitFrame(): the
+// submitting thread only copies the frame, and every submitted frame gets
+// landmarks extrapolated from the two latest detections, so consumers stay
+// aligned between detections. Detect() still runs synchronously, for
+// single pictures. Detectors are cheap, the model behind them is shared.
+// Up to SetMaxFaces() faces are tracked, matched from one detection to the
+// next by position, so each keeps its id; RegCallback() callbacks get the
+// first of them only.
 class GPUPIXEL_API FaceDetector {
     public:
         FaceDetector();
@@ -39,11 +161,105 @@ class GPUPIXEL_API FaceDetector {
                     int height,
                     GPUPIXEL_MODE_FMT fmt,
                     GPUPIXEL_FRAME_TYPE type);
-      
+
+        // planes/strides hold 1 (RGBA), 2 (NV12/NV21) or 3 (I420) entries.
+        // Callbacks run here, on the calling thread, with the landmarks
+        // predicted for frameTime (milliseconds, monotonic per source).
+        int SubmitFrame(const uint8_t* const planes[],
+                        const int strides[],
+                        int width,
+                        int height,
+                        GPUPIXEL_FRAME_TYPE type,
+                        int64_t frameTime);
+
+        // Frames detected through a small copy made on the GPU (see
+        // FaceDetectionProxy) come in two steps. BeginProxyFrame() counts
+        // the frame, runs the callbacks like SubmitFrame() and says whether
+        // a copy is wanted; that copy, once read back, goes to
+        // SubmitProxyFrame(), null when the readback was dropped.
+        // Landmarks are normalized, so the copy's size doesn't matter as
+        // long as it keeps the frame's aspect.
+        bool BeginProxyFrame(int64_t frameTime);
+        void SubmitProxyFrame(const uint8_t* data,
+                              int stride,
+                              int width,
+                              int height,
+                              GPUPIXEL_FRAME_TYPE type,
+                              int64_t frameTime);
+
+        // a frame is handed to the worker once at least everyNFrames frames
+        // and minIntervalMs have passed since the last one, and only while
+        // the worker is idle; 1 and 0 detect as often as the worker keeps up
+        void SetDetectionCadence(int everyNFrames, int minIntervalMs);
+
+        int GetLastDetectionTimeMs() const { return _lastDetectionMs; }
+        int64_t GetDetectionCount() const { return _detectionCount; }
+
+        // the largest faces are kept, 1 to FaceLandmarkSet::kMaxFaces
+        void SetMaxFaces(int maxFaces);
+
         int RegCallback(FaceDetectorCallback callback);
+        int RegCallback(FaceLandmarksCallback callback);
     private:
-        uint32_t vnn_handle_;
-        int use_278pts = 0;
+        FaceLandmarkSet _detect(const uint8_t* data,
+                                   int width,
+                                   int height,
+                                   GPUPIXEL_MODE_FMT fmt,
+                                   GPUPIXEL_FRAME_TYPE type);
+        bool _failed() const;
+        bool _cadenceDue(int64_t frameTime) const;
+        void _handOff(const uint8_t* const planes[],
+                      const int strides[],
+                      int width,
+                      int height,
+                      GPUPIXEL_FRAME_TYPE type,
+                      int64_t frameTime);
+        void _publish(int64_t frameTime);
+        void _notify(const FaceLandmarkSet& faces);
+        void _workerLoop();
+        // with _mutex held
+        void _track(FaceLandmarkSet& faces);
+        void _predict(int64_t frameTime, FaceLandmarkSet& predicted);
+
+        // taken on the first detection, guarded by _modelMutex
+        std::shared_ptr<FaceDetectorModel> _model;
+        std::mutex _modelMutex;
         std::vector<FaceDetectorCallback> _face_detector_callbacks;
+        std::vector<FaceLandmarksCallback> _faces_callbacks;
+        // what the callbacks got last, kept to reuse its storage
+        FaceLandmarkSet _published;
+        std::vector<float> _publishedFirst;
+
+        // cadence, submitting thread only
+        int _everyNFrames = 1;
+        int _minIntervalMs = 0;
+        int _framesSinceSubmit = 0;
+        int64_t _lastSubmitTime = 0;
+        bool _proxyPending = false;
+
+        // worker hand-off, guarded by _mutex
+        std::mutex _mutex;
+        std::condition_variable _cond;
+        std::thread _worker;
+        bool _quit = false;
+        bool _busy = false;
+        bool _hasFrame = false;
+        std::vector<uint8_t> _frame;
+        int _frameWidth = 0;
+        int _frameHeight = 0;
+        GPUPIXEL_FRAME_TYPE _frameType = GPUPIXEL_FRAME_TYPE_UNKNOW;
+        int64_t _frameTime = 0;
+
+        std::atomic<int> _maxFaces{FaceLandmarkSet::kMaxFaces};
+
+        // the two most recent detections, guarded by _mutex
+        int _nextFaceId = 1;
+        FaceLandmarkSet _landmarks;
+        FaceLandmarkSet _prevLandmarks;
+        int64_t _landmarksTime = 0;
+        int64_t _prevLandmarksTime = 0;
+
+        std::atomic<int> _lastDetectionMs{0};
+        std::atomic<int64_t> _detectionCount{0};
     };
 NS_GPUPIXEL_END
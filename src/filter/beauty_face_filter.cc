@@ -47,6 +47,14 @@ bool BeautyFaceFilter::init() {
       setWhite(val);
   });
 
+  registerProperty("blur_radius", 4.0f, "The radius of the blur layers in texels, 4 by default.", [this](float& val) {
+      setRadius(val);
+  });
+
+  registerProperty("blur_scale", 1.0f, "The resolution of the blur layers, from 1/16 to 1.", [this](float& val) {
+      setBlurScale(val);
+  });
+
   registerProperty("skin_smoothing", 0, "The smoothing of filter with range between -1 and 1.", [this](float& val) {
       setBlurAlpha(val);
   });
@@ -78,6 +86,11 @@ void BeautyFaceFilter::setWhite(float white) {
   beautyFilter->setWhite(white);
 }
 
+void BeautyFaceFilter::setBlurScale(float scale) {
+  boxBlurFilter->setRenderScale(scale);
+  boxHighPassFilter->setBlurScale(scale);
+}
+
 void BeautyFaceFilter::setRadius(float radius) {
   boxBlurFilter->setRadius(radius);
   boxHighPassFilter->setRadius(radius);
@@ -26,6 +26,10 @@ class GPUPIXEL_API BeautyFaceFilter : public FilterGroup {
   void setBlurAlpha(float blurAlpha);
   void setWhite(float white);
   void setRadius(float sigma);
+  // Renders both blurs at this scale of the input, 0.5 or 0.25 say. The
+  // final blend runs at full size and samples them bilinearly; the high
+  // pass still takes its difference at full size.
+  void setBlurScale(float scale);
 
   virtual void setInputFramebuffer(std::shared_ptr<Framebuffer> framebuffer,
                                    RotationMode rotationMode /* = NoRotation*/,
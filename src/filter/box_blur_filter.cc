@@ -31,6 +31,8 @@ bool BoxBlurFilter::init(int radius, float sigma) {
       BoxMonoBlurFilter::create(GaussianBlurMonoFilter::HORIZONTAL, 4, 0.0);
   _vBlurFilter =
       BoxMonoBlurFilter::create(GaussianBlurMonoFilter::VERTICAL, 4, 0.0);
+  _hBlurFilter->setAutoDownsampling(true);
+  _vBlurFilter->setAutoDownsampling(true);
   _hBlurFilter->addTarget(_vBlurFilter);
   addFilter(_hBlurFilter);
 
@@ -56,4 +58,10 @@ void BoxBlurFilter::setTexelSpacingMultiplier(float value) {
   _vBlurFilter->setTexelSpacingMultiplier(value);
 }
 
+void BoxBlurFilter::setRenderScale(float scale) {
+  FilterGroup::setRenderScale(scale);
+  _hBlurFilter->setResolutionScale(_framebufferScale);
+  _vBlurFilter->setResolutionScale(_framebufferScale);
+}
+
 NS_GPUPIXEL_END
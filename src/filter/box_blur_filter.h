@@ -21,6 +21,7 @@ class GPUPIXEL_API BoxBlurFilter : public FilterGroup {
   bool init(int radius, float sigma);
   void setRadius(int radius);
   void setSigma(float sigma);
+  virtual void setRenderScale(float scale) override;
   void setTexelSpacingMultiplier(float value);
 
  protected:
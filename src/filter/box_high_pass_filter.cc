@@ -52,6 +52,10 @@ void BoxHighPassFilter::setRadius(float radius) {
   boxBlurFilter->setRadius(radius);
 }
 
+void BoxHighPassFilter::setBlurScale(float scale) {
+  boxBlurFilter->setRenderScale(scale);
+}
+
 void BoxHighPassFilter::setDelta(float delta) {
   boxDifferenceFilter->setDelta(delta);
 }
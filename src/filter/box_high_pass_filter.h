@@ -21,6 +21,8 @@ class GPUPIXEL_API BoxHighPassFilter : public FilterGroup {
 
   void setRadius(float radius);
   void setDelta(float delta);
+  // renders the blur the difference is taken from at this scale
+  void setBlurScale(float scale);
 
   virtual void setInputFramebuffer(std::shared_ptr<Framebuffer> framebuffer,
                                    RotationMode rotationMode /* = NoRotation*/,
@@ -25,12 +25,7 @@ std::shared_ptr<BoxMonoBlurFilter> BoxMonoBlurFilter::create(Type type,
 }
 
 bool BoxMonoBlurFilter::init(int radius, float sigma) {
-  if (Filter::initWithShaderString(
-          _generateOptimizedVertexShaderString(radius, sigma),
-          _generateOptimizedFragmentShaderString(radius, sigma))) {
-    return true;
-  }
-  return false;
+  return GaussianBlurMonoFilter::init(radius, sigma);
 }
 
 void BoxMonoBlurFilter::setRadius(int radius) {
@@ -39,14 +34,17 @@ void BoxMonoBlurFilter::setRadius(int radius) {
 
   if (newBlurRadius != _radius) {
     _radius = newBlurRadius;
+    _updateProgram();
+  }
+}
 
-    if (_filterProgram) {
-      delete _filterProgram;
-      _filterProgram = 0;
-    }
-    initWithShaderString(_generateOptimizedVertexShaderString(_radius, 0.0),
-                         _generateOptimizedFragmentShaderString(_radius, 0.0));
+int BoxMonoBlurFilter::_kernelRadius() const {
+  if (_radius < 1) {
+    return _radius;
   }
+  // downsampled radii stay even as well
+  int radius = (int)std::ceil(_radius * _downsampling);
+  return radius + radius % 2;
 }
 
 std::string BoxMonoBlurFilter::_generateOptimizedVertexShaderString(
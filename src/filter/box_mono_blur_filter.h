@@ -24,6 +24,8 @@ class GPUPIXEL_API BoxMonoBlurFilter : public GaussianBlurMonoFilter {
  protected:
   BoxMonoBlurFilter(Type type);
 
+  int _kernelRadius() const override;
+
   std::string _generateOptimizedVertexShaderString(int radius,
                                                    float sigma) override;
   std::string _generateOptimizedFragmentShaderString(int radius,
@@ -6,30 +6,18 @@
  */
 
 #include "brightness_filter.h"
+#include "pointwise_fusion.h"
 
 USING_NS_GPUPIXEL
 
 REGISTER_FILTER_CLASS(BrightnessFilter)
 
-#if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_ANDROID) || defined(GPUPIXEL_MAC)
-const std::string kBrightnessFragmentShaderString = R"(
-    uniform sampler2D inputImageTexture; uniform lowp float brightness_para;
-    varying highp vec2 textureCoordinate;
-
-    void main() {
-      lowp vec4 color = texture2D(inputImageTexture, textureCoordinate);
-      gl_FragColor = vec4((color.rgb + vec3(brightness_para)), color.a);
-    })";
-#elif defined(GPUPIXEL_WIN) || defined(GPUPIXEL_MAC) || defined(GPUPIXEL_LINUX)
-const std::string kBrightnessFragmentShaderString = R"(
-    uniform sampler2D inputImageTexture; uniform float brightness_para;
-    varying vec2 textureCoordinate;
-
-    void main() {
-      vec4 color = texture2D(inputImageTexture, textureCoordinate);
-      gl_FragColor = vec4((color.rgb + vec3(brightness_para)), color.a);
-    })";
-#endif
+// the filter's shader, and a stage of a fused pass, see PointwiseFusion
+const char kPointwiseBrightnessFunction[] = R"(
+uniform float brightness_para$;
+vec4 pointwise$(vec4 color) {
+  return vec4(color.rgb + vec3(brightness_para$), color.a);
+})";
 
 std::shared_ptr<BrightnessFilter> BrightnessFilter::create(
     float brightness /* = 0.0*/) {
@@ -41,7 +29,8 @@ std::shared_ptr<BrightnessFilter> BrightnessFilter::create(
 }
 
 bool BrightnessFilter::init(float brightness) {
-  if (!initWithFragmentShaderString(kBrightnessFragmentShaderString)) {
+  if (!initWithFragmentShaderString(
+          PointwiseFusion::standaloneShader(kPointwiseBrightnessFunction))) {
     return false;
   }
 
@@ -66,3 +55,12 @@ bool BrightnessFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   _filterProgram->setUniformValue("brightness_para", _brightness);
   return Filter::proceed(bUpdateTargets, frameTime);
 }
+
+const char* BrightnessFilter::getPointwiseFunction() const {
+  return kPointwiseBrightnessFunction;
+}
+
+void BrightnessFilter::setPointwiseUniforms(GLProgram* program, int stage) {
+  program->setUniformValue(_stageUniform("brightness_para", stage),
+                           _brightness);
+}
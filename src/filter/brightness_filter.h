@@ -17,6 +17,8 @@ class GPUPIXEL_API BrightnessFilter : public Filter {
   bool init(float brightness);
   virtual bool proceed(bool bUpdateTargets = true,
                        int64_t frameTime = 0) override;
+  virtual const char* getPointwiseFunction() const override;
+  virtual void setPointwiseUniforms(GLProgram* program, int stage) override;
 
   void setBrightness(float brightness);
 
@@ -6,20 +6,18 @@
  */
 
 #include "contrast_filter.h"
+#include "pointwise_fusion.h"
 
 USING_NS_GPUPIXEL
 
 REGISTER_FILTER_CLASS(ContrastFilter)
 
-const std::string kContrastFragmentShaderString = R"(
-    uniform sampler2D inputImageTexture; uniform lowp float contrast;
-    varying highp vec2 textureCoordinate;
-
-    void main() {
-      lowp vec4 color = texture2D(inputImageTexture, textureCoordinate);
-      gl_FragColor =
-          vec4(((color.rgb - vec3(0.5)) * contrast + vec3(0.5)), color.a);
-    })";
+// the filter's shader, and a stage of a fused pass, see PointwiseFusion
+const char kPointwiseContrastFunction[] = R"(
+uniform float contrast$;
+vec4 pointwise$(vec4 color) {
+  return vec4((color.rgb - vec3(0.5)) * contrast$ + vec3(0.5), color.a);
+})";
 
 std::shared_ptr<ContrastFilter> ContrastFilter::create() {
   auto ret = std::shared_ptr<ContrastFilter>(new ContrastFilter());
@@ -30,7 +28,8 @@ std::shared_ptr<ContrastFilter> ContrastFilter::create() {
 }
 
 bool ContrastFilter::init() {
-  if (!initWithFragmentShaderString(kContrastFragmentShaderString)) {
+  if (!initWithFragmentShaderString(
+          PointwiseFusion::standaloneShader(kPointwiseContrastFunction))) {
     return false;
   }
 
@@ -56,3 +55,11 @@ bool ContrastFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   _filterProgram->setUniformValue("contrast", _contrast);
   return Filter::proceed(bUpdateTargets, frameTime);
 }
+
+const char* ContrastFilter::getPointwiseFunction() const {
+  return kPointwiseContrastFunction;
+}
+
+void ContrastFilter::setPointwiseUniforms(GLProgram* program, int stage) {
+  program->setUniformValue(_stageUniform("contrast", stage), _contrast);
+}
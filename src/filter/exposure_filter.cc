@@ -6,17 +6,16 @@
  */
 
 #include "exposure_filter.h"
+#include "pointwise_fusion.h"
 
 USING_NS_GPUPIXEL
 
-const std::string kExposureFragmentShaderString = R"(
-    uniform sampler2D inputImageTexture; uniform lowp float exposure;
-    varying highp vec2 textureCoordinate;
-
-    void main() {
-      lowp vec4 color = texture2D(inputImageTexture, textureCoordinate);
-      gl_FragColor = vec4(color.rgb * pow(2.0, exposure), color.a);
-    })";
+// the filter's shader, and a stage of a fused pass, see PointwiseFusion
+const char kPointwiseExposureFunction[] = R"(
+uniform float exposure$;
+vec4 pointwise$(vec4 color) {
+  return vec4(color.rgb * pow(2.0, exposure$), color.a);
+})";
 
 std::shared_ptr<ExposureFilter> ExposureFilter::create() {
   auto ret = std::shared_ptr<ExposureFilter>(new ExposureFilter());
@@ -27,7 +26,8 @@ std::shared_ptr<ExposureFilter> ExposureFilter::create() {
 }
 
 bool ExposureFilter::init() {
-  if (!initWithFragmentShaderString(kExposureFragmentShaderString)) {
+  if (!initWithFragmentShaderString(
+          PointwiseFusion::standaloneShader(kPointwiseExposureFunction))) {
     return false;
   }
 
@@ -53,3 +53,11 @@ bool ExposureFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   _filterProgram->setUniformValue("exposure", _exposure);
   return Filter::proceed(bUpdateTargets, frameTime);
 }
+
+const char* ExposureFilter::getPointwiseFunction() const {
+  return kPointwiseExposureFunction;
+}
+
+void ExposureFilter::setPointwiseUniforms(GLProgram* program, int stage) {
+  program->setUniformValue(_stageUniform("exposure", stage), _exposure);
+}
@@ -16,6 +16,8 @@ class GPUPIXEL_API ExposureFilter : public Filter {
   bool init();
   virtual bool proceed(bool bUpdateTargets = true,
                        int64_t frameTime = 0) override;
+  virtual const char* getPointwiseFunction() const override;
+  virtual void setPointwiseUniforms(GLProgram* program, int stage) override;
 
   void setExposure(float exposure);
 
@@ -12,15 +12,17 @@
 
 NS_GPUPIXEL_BEGIN
 
+// position is a landmark as detected, normalized, so the detector's
+// buffer can be uploaded as is
 const std::string FaceMakeupFilterVertexShaderString = R"(
-    attribute vec3 position; attribute vec2 inputTextureCoordinate;
+    attribute vec2 position; attribute vec2 inputTextureCoordinate;
     varying vec2 textureCoordinate;
     varying vec2 textureCoordinate2;
 
     void main(void) {
-      gl_Position = vec4(position, 1.);
+      gl_Position = vec4(position * 2.0 - 1.0, 0.0, 1.0);
       textureCoordinate = inputTextureCoordinate;
-      textureCoordinate2 = position.xy * 0.5 + 0.5;  // landmark
+      textureCoordinate2 = position;  // landmark
     })";
 #if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_ANDROID)
 const std::string FaceMakeupFilterFragmentShaderString = R"(
@@ -164,7 +166,13 @@ const std::string FaceMakeupFilterFragmentShaderString = R"(
 #endif
 FaceMakeupFilter::FaceMakeupFilter() {}
 
-FaceMakeupFilter::~FaceMakeupFilter() {}
+FaceMakeupFilter::~FaceMakeupFilter() {
+  GLuint buffers[] = {position_buffer_, texcoord_buffer_, index_buffer_};
+  if (buffers[0] || buffers[1] || buffers[2]) {
+    GPUPixelContext::getInstance()->runSync(
+        [&] { CHECK_GL(glDeleteBuffers(3, buffers)); });
+  }
+}
 
 std::shared_ptr<FaceMakeupFilter> FaceMakeupFilter::create() {
   auto ret = std::shared_ptr<FaceMakeupFilter>(new FaceMakeupFilter());
@@ -192,6 +200,8 @@ bool FaceMakeupFilter::init() {
   _filterTexCoordAttribute2 =
       _filterProgram2->getAttribLocation("inputTextureCoordinate");
 
+  _initMeshBuffers();
+
   registerProperty("blend_level", 0, "The smoothing of filter with range between -1 and 1.", [this](float& val) {
       setBlendLevel(val);
   });
@@ -203,17 +213,88 @@ bool FaceMakeupFilter::init() {
   return true;
 }
 
-void FaceMakeupFilter::SetFaceLandmarks(std::vector<float> landmarks) {
-  if (landmarks.size() == 0) {
-    has_face_ = false;
-    return;
+void FaceMakeupFilter::SetFaceLandmarks(const std::vector<float>& landmarks) {
+  const size_t count = std::min(landmarks.size() / FaceLandmarkSet::kStride,
+                                (size_t)FaceLandmarkSet::kMaxFaces);
+  face_land_marks_.assign(landmarks.begin(),
+                          landmarks.begin() + count * FaceLandmarkSet::kStride);
+  face_land_marks_dirty_ = true;
+}
+
+void FaceMakeupFilter::SetFaces(const FaceLandmarkSet& faces) {
+  face_land_marks_.assign(faces.points.begin(), faces.points.end());
+  face_land_marks_dirty_ = true;
+}
+
+// The mesh is the same for every face and frame: texture coordinates and
+// indices for kMaxFaces copies of it go to the GPU here, once. Only the
+// landmark positions are streamed, see _uploadFaces().
+void FaceMakeupFilter::_initMeshBuffers() {
+  const std::vector<GLfloat>& coord = faceTextureCoordinates();
+  const size_t point_count = coord.size() / 2;
+  std::vector<GLfloat> texture_coordinates(coord.size() *
+                                           FaceLandmarkSet::kMaxFaces);
+  for (size_t i = 0; i < point_count * FaceLandmarkSet::kMaxFaces; i++) {
+    const size_t j = i % point_count;
+    texture_coordinates[i * 2 + 0] =
+        (coord[j * 2 + 0] * 1280 - texture_bounds_.x) / texture_bounds_.width;
+    texture_coordinates[i * 2 + 1] =
+        (coord[j * 2 + 1] * 1280 - texture_bounds_.y) / texture_bounds_.height;
+  }
+
+  // shorts, as no index of kMaxFaces faces reaches 65536
+  const std::vector<GLuint>& face = getFaceIndexs();
+  std::vector<GLushort> indices;
+  indices.reserve(face.size() * FaceLandmarkSet::kMaxFaces);
+  for (int i = 0; i < FaceLandmarkSet::kMaxFaces; ++i) {
+    for (GLuint index : face) {
+      indices.push_back((GLushort)(index + i * FaceLandmarkSet::kPointCount));
+    }
   }
-  std::vector<float> vect;
-  for (auto it : landmarks) {
-    vect.push_back(2 * it - 1);
+  index_count_per_face_ = (GLsizei)face.size();
+
+  GLuint buffers[3];
+  CHECK_GL(glGenBuffers(3, buffers));
+  position_buffer_ = buffers[0];
+  texcoord_buffer_ = buffers[1];
+  index_buffer_ = buffers[2];
+
+  CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, position_buffer_));
+  CHECK_GL(glBufferData(GL_ARRAY_BUFFER, kPositionBufferSize, nullptr,
+                        GL_STREAM_DRAW));
+  CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, texcoord_buffer_));
+  CHECK_GL(glBufferData(GL_ARRAY_BUFFER,
+                        texture_coordinates.size() * sizeof(GLfloat),
+                        texture_coordinates.data(), GL_STATIC_DRAW));
+  CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, 0));
+  CHECK_GL(glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, index_buffer_));
+  CHECK_GL(glBufferData(GL_ELEMENT_ARRAY_BUFFER,
+                        indices.size() * sizeof(GLushort), indices.data(),
+                        GL_STATIC_DRAW));
+  CHECK_GL(glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0));
+}
+
+// Straight from the detector's buffer, no copy. The old storage is orphaned
+// first, so a draw still reading it doesn't stall the upload.
+void FaceMakeupFilter::_uploadFaces(const float* points, int count) {
+  face_count_ = std::min(count, (int)FaceLandmarkSet::kMaxFaces);
+  if (face_count_ == 0) {
+    return;
   }
-  face_land_marks_ = vect;
-  has_face_ = true;
+  CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, position_buffer_));
+  CHECK_GL(glBufferData(GL_ARRAY_BUFFER, kPositionBufferSize, nullptr,
+                        GL_STREAM_DRAW));
+  CHECK_GL(glBufferSubData(
+      GL_ARRAY_BUFFER, 0,
+      (GLsizeiptr)face_count_ * FaceLandmarkSet::kStride * sizeof(GLfloat),
+      points));
+  CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, 0));
+}
+
+void FaceMakeupFilter::SetLandmarkChannel(
+    std::shared_ptr<FaceLandmarkChannel> channel) {
+  landmark_channel_ = channel;
+  landmark_version_ = 0;
 }
 
 void FaceMakeupFilter::setImageTexture(std::shared_ptr<SourceImage> texture) {
@@ -229,6 +310,17 @@ bool FaceMakeupFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
     1.0f, 1.0f,
   };
 
+  if (landmark_channel_ &&
+      landmark_channel_->GetVersion() != landmark_version_) {
+    landmark_version_ = landmark_channel_->GetVersion();
+    const FaceLandmarkSet& faces = landmark_channel_->GetFaces();
+    _uploadFaces(faces.points.data(), faces.faceCount());
+  } else if (face_land_marks_dirty_) {
+    face_land_marks_dirty_ = false;
+    _uploadFaces(face_land_marks_.data(),
+                 (int)(face_land_marks_.size() / FaceLandmarkSet::kStride));
+  }
+
   _framebuffer->active();
   // render origin frame --- begin -----//
   GPUPixelContext::getInstance()->setActiveShaderProgram(_filterProgram2);
@@ -256,24 +348,17 @@ bool FaceMakeupFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   GPUPixelContext::getInstance()->setActiveShaderProgram(_filterProgram);
 
   CHECK_GL(glEnableVertexAttribArray(_filterPositionAttribute));
-  if (face_land_marks_.size() != 0) {
-    CHECK_GL(glVertexAttribPointer(_filterPositionAttribute, 2, GL_FLOAT, 0, 0,
-                                   face_land_marks_.data()));
-  }
+  CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, position_buffer_));
+  CHECK_GL(glVertexAttribPointer(_filterPositionAttribute, 2, GL_FLOAT, 0, 0,
+                                 nullptr));
 
-  auto coord = this->faceTextureCoordinates();
-  std::vector<GLfloat> textureCoordinates(coord.size());
-  auto point_count = coord.size() / 2;
-  for (int i = 0; i < point_count; i++) {
-    textureCoordinates[i * 2 + 0] =
-        (coord[i * 2 + 0] * 1280 - texture_bounds_.x) / texture_bounds_.width;
-    textureCoordinates[i * 2 + 1] =
-        (coord[i * 2 + 1] * 1280 - texture_bounds_.y) / texture_bounds_.height;
-  }
   // texcoord attribute
   CHECK_GL(glEnableVertexAttribArray(_filterTexCoordAttribute));
+  CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, texcoord_buffer_));
   CHECK_GL(glVertexAttribPointer(_filterTexCoordAttribute, 2, GL_FLOAT, 0, 0,
-                                 textureCoordinates.data()));
+                                 nullptr));
+  // the other filters draw from client memory
+  CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, 0));
 
   _filterProgram->setUniformValue("intensity", this->blend_level_);
 
@@ -289,17 +374,19 @@ bool FaceMakeupFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   glBindTexture(GL_TEXTURE_2D, image_texture_->getFramebuffer()->getTexture());
   _filterProgram->setUniformValue("inputImageTexture2", 3);
 
-  if (has_face_) {
-    auto face_indexs = this->getFaceIndexs();
-    glDrawElements(GL_TRIANGLES, (GLsizei)face_indexs.size(), GL_UNSIGNED_INT,
-                   face_indexs.data());
+  // all faces in one draw, each a copy of the mesh over its own points
+  if (face_count_ > 0) {
+    CHECK_GL(glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, index_buffer_));
+    CHECK_GL(glDrawElements(GL_TRIANGLES, index_count_per_face_ * face_count_,
+                            GL_UNSIGNED_SHORT, nullptr));
+    CHECK_GL(glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0));
   }
   _framebuffer->inactive();
 
   return Source::proceed(bUpdateTargets, frameTime);
 }
 
-std::vector<GLuint> FaceMakeupFilter::getFaceIndexs() {
+const std::vector<GLuint>& FaceMakeupFilter::getFaceIndexs() {
   static std::vector<GLuint> faceIndexs{
     // 左眉毛  10个三角形
     33, 34, 64,
@@ -493,7 +580,7 @@ std::vector<GLuint> FaceMakeupFilter::getFaceIndexs() {
   return faceIndexs;
 }
 
-std::vector<GLfloat> FaceMakeupFilter::faceTextureCoordinates() {
+const std::vector<GLfloat>& FaceMakeupFilter::faceTextureCoordinates() {
   static std::vector<GLfloat> arr = {
     0.302451, 0.384169,
     0.302986, 0.409377,
@@ -7,6 +7,7 @@
 
 #pragma once
 
+#include "face_detector.h"
 #include "filter.h"
 
 NS_GPUPIXEL_BEGIN
@@ -19,7 +20,8 @@ GPUPIXEL_API typedef struct {
   float height;
 } FrameBounds;
 
-class GPUPIXEL_API FaceMakeupFilter : public Filter {
+class GPUPIXEL_API FaceMakeupFilter : public Filter,
+                                     public FaceLandmarkConsumer {
  public:
   static std::shared_ptr<FaceMakeupFilter> create();
   ~FaceMakeupFilter();
@@ -29,20 +31,41 @@ class GPUPIXEL_API FaceMakeupFilter : public Filter {
 
  
   inline void setBlendLevel(float level) { this->blend_level_ = level; }
-  void SetFaceLandmarks(std::vector<float> landmarks);
+  // one face, or several packed as in FaceLandmarkSet
+  void SetFaceLandmarks(const std::vector<float>& landmarks);
+  void SetFaces(const FaceLandmarkSet& faces);
+  void SetLandmarkChannel(
+      std::shared_ptr<FaceLandmarkChannel> channel) override;
  protected:
   FaceMakeupFilter();
   void setImageTexture(std::shared_ptr<SourceImage> texture);
   void setTextureBounds(FrameBounds bounds) { texture_bounds_ = bounds; }
 
  private:
-  std::vector<GLuint> getFaceIndexs();
-  std::vector<GLfloat> faceTextureCoordinates();
+  static const std::vector<GLuint>& getFaceIndexs();
+  static const std::vector<GLfloat>& faceTextureCoordinates();
+  void _initMeshBuffers();
+  void _uploadFaces(const float* points, int count);
+
+  static const GLsizeiptr kPositionBufferSize = FaceLandmarkSet::kMaxFaces *
+                                                FaceLandmarkSet::kStride *
+                                                sizeof(GLfloat);
 
  private:
+  // landmarks set directly rather than through a channel, uploaded with
+  // the next frame
   std::vector<float> face_land_marks_;
+  bool face_land_marks_dirty_ = false;
   float blend_level_ = 0;  //[0. 0.5]
-  bool has_face_ = false;
+  // faces in position_buffer_
+  int face_count_ = 0;
+  // streamed landmark positions; static texture coordinates and indices
+  GLuint position_buffer_ = 0;
+  GLuint texcoord_buffer_ = 0;
+  GLuint index_buffer_ = 0;
+  GLsizei index_count_per_face_ = 0;
+  std::shared_ptr<FaceLandmarkChannel> landmark_channel_;
+  uint64_t landmark_version_ = 0;
   //
   GLProgram* _filterProgram2;
   GLuint _filterPositionAttribute2;
@@ -10,14 +10,24 @@
 #include "face_detector.h"
 NS_GPUPIXEL_BEGIN
 
+// landmark (origin, target) pairs each face is warped by, in the order the
+// shader reads them: thin face, then big eye
+static const int kReshapePairs[FaceReshapeFilter::kPairCount][2] = {
+    {3, 44},  {29, 44}, {7, 45},  {25, 45}, {10, 46}, {22, 46},
+    {14, 49}, {18, 49}, {16, 49}, {74, 72}, {77, 75}};
+// the shader's facePairs array is sized for this
+static_assert(FaceLandmarkSet::kMaxFaces == 4, "update facePairs in the shader");
+
 #if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_ANDROID)
 const std::string kGPUPixelThinFaceFragmentShaderString = R"(
  precision highp float;
  varying highp vec2 textureCoordinate;
  uniform sampler2D inputImageTexture;
 
- uniform int hasFace;
- uniform float facePoints[106 * 2];
+ // per face 9 thin-face then 2 big-eye warps, each an (origin, target)
+ // pair in one vec4; faceCount faces of at most 4
+ uniform int faceCount;
+ uniform vec4 facePairs[4 * 11];
 
  uniform highp float aspectRatio;
  uniform float thinFaceDelta;
@@ -51,62 +61,34 @@ const std::string kGPUPixelThinFaceFragmentShaderString = R"(
      return result;
  }
 
- vec2 thinFace(vec2 currentCoordinate) {
-
-     vec2 faceIndexs[9];
-     faceIndexs[0] = vec2(3., 44.);
-     faceIndexs[1] = vec2(29., 44.);
-     faceIndexs[2] = vec2(7., 45.);
-     faceIndexs[3] = vec2(25., 45.);
-     faceIndexs[4] = vec2(10., 46.);
-     faceIndexs[5] = vec2(22., 46.);
-     faceIndexs[6] = vec2(14., 49.);
-     faceIndexs[7] = vec2(18., 49.);
-     faceIndexs[8] = vec2(16., 49.);
-
-     for(int i = 0; i < 9; i++)
-     {
-         int originIndex = int(faceIndexs[i].x);
-         int targetIndex = int(faceIndexs[i].y);
-         vec2 originPoint = vec2(facePoints[originIndex * 2], facePoints[originIndex * 2 + 1]);
-         vec2 targetPoint = vec2(facePoints[targetIndex * 2], facePoints[targetIndex * 2 + 1]);
-         currentCoordinate = curveWarp(currentCoordinate, originPoint, targetPoint, thinFaceDelta);
-     }
-     return currentCoordinate;
- }
-
- vec2 bigEye(vec2 currentCoordinate) {
-
-     vec2 faceIndexs[2];
-     faceIndexs[0] = vec2(74., 72.);
-     faceIndexs[1] = vec2(77., 75.);
-
-     for(int i = 0; i < 2; i++)
-     {
-         int originIndex = int(faceIndexs[i].x);
-         int targetIndex = int(faceIndexs[i].y);
-
-         vec2 originPoint = vec2(facePoints[originIndex * 2], facePoints[originIndex * 2 + 1]);
-         vec2 targetPoint = vec2(facePoints[targetIndex * 2], facePoints[targetIndex * 2 + 1]);
-
-         float radius = distance(vec2(targetPoint.x, targetPoint.y / aspectRatio), vec2(originPoint.x, originPoint.y / aspectRatio));
-         radius = radius * 5.;
-         currentCoordinate = enlargeEye(currentCoordinate, originPoint, radius, bigEyeDelta);
-     }
-     return currentCoordinate;
+ vec2 bigEye(vec2 currentCoordinate, vec4 pair) {
+     vec2 originPoint = pair.xy;
+     vec2 targetPoint = pair.zw;
+     float radius = distance(vec2(targetPoint.x, targetPoint.y / aspectRatio), vec2(originPoint.x, originPoint.y / aspectRatio));
+     radius = radius * 5.;
+     return enlargeEye(currentCoordinate, originPoint, radius, bigEyeDelta);
  }
 
  void main()
  {
      vec2 positionToUse = textureCoordinate;
 
-     if (hasFace == 1) {
-         positionToUse = thinFace(positionToUse);
-         positionToUse = bigEye(positionToUse);
+     // every face in this one pass; the indices stay loop-derived, which
+     // is all fragment shaders must support for uniform arrays
+     for (int face = 0; face < 4; face++) {
+         if (face >= faceCount) {
+             break;
+         }
+         for (int i = 0; i < 9; i++) {
+             vec4 pair = facePairs[face * 11 + i];
+             positionToUse = curveWarp(positionToUse, pair.xy, pair.zw, thinFaceDelta);
+         }
+         for (int i = 9; i < 11; i++) {
+             positionToUse = bigEye(positionToUse, facePairs[face * 11 + i]);
+         }
      }
 
      gl_FragColor = texture2D(inputImageTexture, positionToUse);
-
  }
  )";
 #elif defined(GPUPIXEL_MAC) || defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)
@@ -114,8 +96,10 @@ const std::string kGPUPixelThinFaceFragmentShaderString = R"(
  varying vec2 textureCoordinate;
  uniform sampler2D inputImageTexture;
 
- uniform int hasFace;
- uniform float facePoints[106 * 2];
+ // per face 9 thin-face then 2 big-eye warps, each an (origin, target)
+ // pair in one vec4; faceCount faces of at most 4
+ uniform int faceCount;
+ uniform vec4 facePairs[4 * 11];
 
  uniform float aspectRatio;
  uniform float thinFaceDelta;
@@ -149,58 +133,31 @@ const std::string kGPUPixelThinFaceFragmentShaderString = R"(
      return result;
  }
 
- vec2 thinFace(vec2 currentCoordinate) {
-
-     vec2 faceIndexs[9];
-     faceIndexs[0] = vec2(3., 44.);
-     faceIndexs[1] = vec2(29., 44.);
-     faceIndexs[2] = vec2(7., 45.);
-     faceIndexs[3] = vec2(25., 45.);
-     faceIndexs[4] = vec2(10., 46.);
-     faceIndexs[5] = vec2(22., 46.);
-     faceIndexs[6] = vec2(14., 49.);
-     faceIndexs[7] = vec2(18., 49.);
-     faceIndexs[8] = vec2(16., 49.);
-
-     for(int i = 0; i < 9; i++)
-     {
-         int originIndex = int(faceIndexs[i].x);
-         int targetIndex = int(faceIndexs[i].y);
-         vec2 originPoint = vec2(facePoints[originIndex * 2], facePoints[originIndex * 2 + 1]);
-         vec2 targetPoint = vec2(facePoints[targetIndex * 2], facePoints[targetIndex * 2 + 1]);
-         currentCoordinate = curveWarp(currentCoordinate, originPoint, targetPoint, thinFaceDelta);
-     }
-     return currentCoordinate;
- }
-
- vec2 bigEye(vec2 currentCoordinate) {
-
-     vec2 faceIndexs[2];
-     faceIndexs[0] = vec2(74., 72.);
-     faceIndexs[1] = vec2(77., 75.);
-
-     for(int i = 0; i < 2; i++)
-     {
-         int originIndex = int(faceIndexs[i].x);
-         int targetIndex = int(faceIndexs[i].y);
-
-         vec2 originPoint = vec2(facePoints[originIndex * 2], facePoints[originIndex * 2 + 1]);
-         vec2 targetPoint = vec2(facePoints[targetIndex * 2], facePoints[targetIndex * 2 + 1]);
-
-         float radius = distance(vec2(targetPoint.x, targetPoint.y / aspectRatio), vec2(originPoint.x, originPoint.y / aspectRatio));
-         radius = radius * 5.;
-         currentCoordinate = enlargeEye(currentCoordinate, originPoint, radius, bigEyeDelta);
-     }
-     return currentCoordinate;
+ vec2 bigEye(vec2 currentCoordinate, vec4 pair) {
+     vec2 originPoint = pair.xy;
+     vec2 targetPoint = pair.zw;
+     float radius = distance(vec2(targetPoint.x, targetPoint.y / aspectRatio), vec2(originPoint.x, originPoint.y / aspectRatio));
+     radius = radius * 5.;
+     return enlargeEye(currentCoordinate, originPoint, radius, bigEyeDelta);
  }
 
  void main()
  {
      vec2 positionToUse = textureCoordinate;
 
-     if (hasFace == 1) {
-         positionToUse = thinFace(positionToUse);
-         positionToUse = bigEye(positionToUse);
+     // every face in this one pass; the indices stay loop-derived, which
+     // is all fragment shaders must support for uniform arrays
+     for (int face = 0; face < 4; face++) {
+         if (face >= faceCount) {
+             break;
+         }
+         for (int i = 0; i < 9; i++) {
+             vec4 pair = facePairs[face * 11 + i];
+             positionToUse = curveWarp(positionToUse, pair.xy, pair.zw, thinFaceDelta);
+         }
+         for (int i = 9; i < 11; i++) {
+             positionToUse = bigEye(positionToUse, facePairs[face * 11 + i]);
+         }
      }
 
      gl_FragColor = texture2D(inputImageTexture, positionToUse);
@@ -242,17 +199,42 @@ bool FaceReshapeFilter::init() {
   return true;
 }
 
-void FaceReshapeFilter::SetFaceLandmarks(std::vector<float> landmarks) {
-  if (landmarks.size() == 0) {
-    has_face_ = false;
-    return;
+void FaceReshapeFilter::SetFaceLandmarks(const std::vector<float>& landmarks) {
+  _setFaces(landmarks.data(),
+            (int)(landmarks.size() / FaceLandmarkSet::kStride));
+}
+
+void FaceReshapeFilter::SetFaces(const FaceLandmarkSet& faces) {
+  _setFaces(faces.points.data(), faces.faceCount());
+}
+
+void FaceReshapeFilter::_setFaces(const float* points, int count) {
+  face_count_ = std::min(count, (int)FaceLandmarkSet::kMaxFaces);
+  for (int face = 0; face < face_count_; ++face) {
+    const float* landmarks = points + (size_t)face * FaceLandmarkSet::kStride;
+    float* pairs = face_pairs_ + face * kPairCount * 4;
+    for (int i = 0; i < kPairCount; ++i) {
+      pairs[i * 4 + 0] = landmarks[kReshapePairs[i][0] * 2];
+      pairs[i * 4 + 1] = landmarks[kReshapePairs[i][0] * 2 + 1];
+      pairs[i * 4 + 2] = landmarks[kReshapePairs[i][1] * 2];
+      pairs[i * 4 + 3] = landmarks[kReshapePairs[i][1] * 2 + 1];
+    }
   }
+}
 
-  face_land_marks_ = landmarks;
-  has_face_ = true;
+void FaceReshapeFilter::SetLandmarkChannel(
+    std::shared_ptr<FaceLandmarkChannel> channel) {
+  landmark_channel_ = channel;
+  landmark_version_ = 0;
 }
 
 bool FaceReshapeFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
+  if (landmark_channel_ &&
+      landmark_channel_->GetVersion() != landmark_version_) {
+    landmark_version_ = landmark_channel_->GetVersion();
+    SetFaces(landmark_channel_->GetFaces());
+  }
+
   float aspect = (float)_framebuffer->getWidth() / _framebuffer->getHeight();
   _filterProgram->setUniformValue("aspectRatio", aspect);
 
@@ -260,10 +242,10 @@ bool FaceReshapeFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
 
   _filterProgram->setUniformValue("bigEyeDelta", this->bigEyeDelta_);
 
-  _filterProgram->setUniformValue("hasFace", has_face_);
-  if (has_face_) {
-    _filterProgram->setUniformValue("facePoints", face_land_marks_.data(),
-                                    static_cast<int>(face_land_marks_.size()));
+  _filterProgram->setUniformValue("faceCount", face_count_);
+  if (face_count_ > 0) {
+    _filterProgram->setUniformVec4Array("facePairs", face_pairs_,
+                                        face_count_ * kPairCount);
   }
   return Filter::proceed(bUpdateTargets, frameTime);
 }
@@ -11,7 +11,8 @@
 #include "face_detector.h"
 
 NS_GPUPIXEL_BEGIN
-class GPUPIXEL_API FaceReshapeFilter : public Filter {
+class GPUPIXEL_API FaceReshapeFilter : public Filter,
+                                      public FaceLandmarkConsumer {
  public:
   static std::shared_ptr<FaceReshapeFilter> create();
   ~FaceReshapeFilter();
@@ -21,14 +22,25 @@ class GPUPIXEL_API FaceReshapeFilter : public Filter {
 
   void setFaceSlimLevel(float level);
   void setEyeZoomLevel(float level);
-  void SetFaceLandmarks(std::vector<float> landmarks);
+  static const int kPairCount = 11;
+
+  // one face, or several packed as in FaceLandmarkSet
+  void SetFaceLandmarks(const std::vector<float>& landmarks);
+  void SetFaces(const FaceLandmarkSet& faces);
+  void SetLandmarkChannel(
+      std::shared_ptr<FaceLandmarkChannel> channel) override;
  protected:
   FaceReshapeFilter();
+  void _setFaces(const float* points, int count);
   float thinFaceDelta_ = 0;
   float bigEyeDelta_ = 0;
 
-  std::vector<float> face_land_marks_;
-  int has_face_ = 0;
+  // the landmark pairs of each face as the shader takes them
+  float face_pairs_[FaceLandmarkSet::kMaxFaces * kPairCount * 4];
+  int face_count_ = 0;
+
+  std::shared_ptr<FaceLandmarkChannel> landmark_channel_;
+  uint64_t landmark_version_ = 0;
 };
 
 NS_GPUPIXEL_END
@@ -6,8 +6,11 @@
  */
 
 #include "filter.h"
+#include <algorithm>
+#include <cstdio>
 #include "gpupixel.h"
 #include "gpupixel_context.h"
+#include "pointwise_fusion.h"
 
 NS_GPUPIXEL_BEGIN
 
@@ -17,6 +20,14 @@ std::map<std::string, std::function<std::shared_ptr<Filter>()>> initFilterFactor
     factory["FaceReshapeFilter"] = FaceReshapeFilter::create;
     factory["LipstickFilter"] = LipstickFilter::create;
     factory["BlusherFilter"] = BlusherFilter::create;
+    // colour adjustments, so presets can be assembled by name
+    factory["BrightnessFilter"] = [] { return BrightnessFilter::create(); };
+    factory["ContrastFilter"] = ContrastFilter::create;
+    factory["SaturationFilter"] = SaturationFilter::create;
+    factory["ExposureFilter"] = ExposureFilter::create;
+    factory["HueFilter"] = HueFilter::create;
+    factory["WhiteBalanceFilter"] = WhiteBalanceFilter::create;
+    factory["GrayscaleFilter"] = GrayscaleFilter::create;
     return  factory;
 }
 std::map<std::string, std::function<std::shared_ptr<Filter>()>> Filter::_filterFactories = initFilterFactory();
@@ -70,11 +81,32 @@ bool Filter::initWithShaderString(const std::string& vertexShaderSource,
   _filterProgram =
       GLProgram::createByShaderString(vertexShaderSource, fragmentShaderSource);
   _filterPositionAttribute = _filterProgram->getAttribLocation("position");
+  _inputLocations.clear();
+  _resolveInputLocations(inputNumber);
   GPUPixelContext::getInstance()->setActiveShaderProgram(_filterProgram);
   CHECK_GL(glEnableVertexAttribArray(_filterPositionAttribute));
   return true;
 }
 
+void Filter::_resolveInputLocations(int inputNumber) {
+  char name[64];
+  for (int i = (int)_inputLocations.size(); i < inputNumber; ++i) {
+    InputLocations locations;
+    if (i == 0) {
+      locations.textureUniform =
+          _filterProgram->getUniformLocation("inputImageTexture");
+      locations.texCoordAttribute =
+          _filterProgram->getAttribLocation("inputTextureCoordinate");
+    } else {
+      snprintf(name, sizeof(name), "inputImageTexture%d", i);
+      locations.textureUniform = _filterProgram->getUniformLocation(name);
+      snprintf(name, sizeof(name), "inputTextureCoordinate%d", i);
+      locations.texCoordAttribute = _filterProgram->getAttribLocation(name);
+    }
+    _inputLocations.push_back(locations);
+  }
+}
+
 bool Filter::initWithFragmentShaderString(
     const std::string& fragmentShaderSource,
     int inputNumber /* = 1*/) {
@@ -123,7 +155,9 @@ bool Filter::proceed(bool bUpdateTargets /* = true*/,
       -1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f,
   };
 
-  GPUPixelContext::getInstance()->setActiveShaderProgram(_filterProgram);
+  GPUPixelContext* context = GPUPixelContext::getInstance();
+  PipelineMetrics::NodeTimer timer(context->getPipelineMetrics(), this);
+  context->setActiveShaderProgram(_filterProgram);
   _framebuffer->active();
   CHECK_GL(glClearColor(_backgroundColor.r, _backgroundColor.g,
                         _backgroundColor.b, _backgroundColor.a));
@@ -132,20 +166,19 @@ bool Filter::proceed(bool bUpdateTargets /* = true*/,
            _inputFramebuffers.begin();
        it != _inputFramebuffers.end(); ++it) {
     int texIdx = it->first;
-    std::shared_ptr<Framebuffer> fb = it->second.frameBuffer;
+    if (texIdx >= (int)_inputLocations.size()) {
+      // an input added past the count the shader was built for
+      _resolveInputLocations(texIdx + 1);
+    }
+    const InputLocations& locations = _inputLocations[texIdx];
     CHECK_GL(glActiveTexture(GL_TEXTURE0 + texIdx));
-    CHECK_GL(glBindTexture(GL_TEXTURE_2D, fb->getTexture()));
-    _filterProgram->setUniformValue(
-        texIdx == 0 ? "inputImageTexture"
-                    : Util::str_format("inputImageTexture%d", texIdx),
-        texIdx);
+    CHECK_GL(
+        glBindTexture(GL_TEXTURE_2D, it->second.frameBuffer->getTexture()));
+    _filterProgram->setUniformValue(locations.textureUniform, texIdx);
     // texcoord attribute
-    GLuint filterTexCoordAttribute = _filterProgram->getAttribLocation(
-        texIdx == 0 ? "inputTextureCoordinate"
-                    : Util::str_format("inputTextureCoordinate%d", texIdx));
-    CHECK_GL(glEnableVertexAttribArray(filterTexCoordAttribute));
+    CHECK_GL(glEnableVertexAttribArray(locations.texCoordAttribute));
     CHECK_GL(
-        glVertexAttribPointer(filterTexCoordAttribute, 2, GL_FLOAT, 0, 0,
+        glVertexAttribPointer(locations.texCoordAttribute, 2, GL_FLOAT, 0, 0,
                               _getTexureCoordinate(it->second.rotationMode)));
   }
   CHECK_GL(glVertexAttribPointer(_filterPositionAttribute, 2, GL_FLOAT, 0, 0,
@@ -153,6 +186,8 @@ bool Filter::proceed(bool bUpdateTargets /* = true*/,
   CHECK_GL(glDrawArrays(GL_TRIANGLE_STRIP, 0, 4));
 
   _framebuffer->inactive();
+  // the targets time themselves
+  timer.stop();
 
   return Source::proceed(bUpdateTargets, frametime);
 }
@@ -245,64 +280,156 @@ const GLfloat* Filter::_getTexureCoordinate(
   }
 }
 
+void Filter::setRenderScale(float scale) {
+  _framebufferScale = std::min(1.0f, std::max(1.0f / 16, scale));
+}
+
 void Filter::update(int64_t frameTime) {
   if (_inputFramebuffers.empty()) {
     return;
   }
 
-  if (GPUPixelContext::getInstance()->isCapturingFrame &&
-      this == GPUPixelContext::getInstance()->captureUpToFilter.get()) {
-    int captureWidth = GPUPixelContext::getInstance()->captureWidth;
-    int captureHeight = GPUPixelContext::getInstance()->captureHeight;
+  if (_bypass) {
+    _passThrough(frameTime);
+    return;
+  }
 
-    if (!_framebuffer || (_framebuffer->getWidth() != captureWidth ||
-                          _framebuffer->getHeight() != captureHeight)) {
-      _framebuffer = GPUPixelContext::getInstance()
-                         ->getFramebufferCache()
-                         ->fetchFramebuffer(captureWidth, captureHeight);
+  if (_pointwiseFusion && getPointwiseFunction()) {
+    if (!_fusion) {
+      _fusion = std::make_shared<PointwiseFusion>();
     }
-
-    proceed(false);
-
-    _framebuffer->active();
-    GPUPixelContext::getInstance()->capturedFrameData =
-        new unsigned char[captureWidth * captureHeight * 4];
-    CHECK_GL(glReadPixels(0, 0, captureWidth, captureHeight, GL_RGBA,
-                          GL_UNSIGNED_BYTE,
-                          GPUPixelContext::getInstance()->capturedFrameData));
-    _framebuffer->inactive();
-  } else {
-    // todo(Jeayo)
-    std::shared_ptr<Framebuffer> firstInputFramebuffer =
-        _inputFramebuffers.begin()->second.frameBuffer;
-    RotationMode firstInputRotation =
-        _inputFramebuffers.begin()->second.rotationMode;
-    if (!firstInputFramebuffer) {
+    // drew this filter and the point-wise ones after it in one pass
+    if (_fusion->update(this, frameTime)) {
       return;
     }
+  }
+
+  int width = 0;
+  int height = 0;
+  if (!_getOutputSize(width, height)) {
+    return;
+  }
+  _fetchFramebuffer(width, height);
+  proceed(true, frameTime);
+
+  if (!_captureRequests.empty()) {
+    _captureFrame(frameTime);
+  }
+}
 
-    int rotatedFramebufferWidth = firstInputFramebuffer->getWidth();
-    int rotatedFramebufferHeight = firstInputFramebuffer->getHeight();
-    if (rotationSwapsSize(firstInputRotation)) {
-      rotatedFramebufferWidth = firstInputFramebuffer->getHeight();
-      rotatedFramebufferHeight = firstInputFramebuffer->getWidth();
+void Filter::_passThrough(int64_t frameTime) {
+  const InputFrameBufferInfo& input = _inputFramebuffers.begin()->second;
+  if (!_captureRequests.empty()) {
+    _captureInput(input, frameTime);
+  }
+  for (auto& it : getTargets()) {
+    const std::shared_ptr<Target>& target = it.first;
+    target->setInputFramebuffer(input.frameBuffer, input.rotationMode,
+                                it.second);
+    if (target->isPrepared()) {
+      target->update(frameTime);
+      target->unPrepear();
     }
+  }
+}
+
+bool Filter::_getOutputSize(int& width, int& height) const {
+  if (_inputFramebuffers.empty()) {
+    return false;
+  }
+
+  // todo(Jeayo)
+  const std::shared_ptr<Framebuffer>& firstInputFramebuffer =
+      _inputFramebuffers.begin()->second.frameBuffer;
+  RotationMode firstInputRotation =
+      _inputFramebuffers.begin()->second.rotationMode;
+  if (!firstInputFramebuffer) {
+    return false;
+  }
+
+  width = firstInputFramebuffer->getWidth();
+  height = firstInputFramebuffer->getHeight();
+  if (rotationSwapsSize(firstInputRotation)) {
+    width = firstInputFramebuffer->getHeight();
+    height = firstInputFramebuffer->getWidth();
+  }
 
-    if (_framebufferScale != 1.0) {
-      rotatedFramebufferWidth =
-          int(rotatedFramebufferWidth * _framebufferScale);
-      rotatedFramebufferHeight =
-          int(rotatedFramebufferHeight * _framebufferScale);
+  if (_framebufferScale != 1.0) {
+    width = int(width * _framebufferScale);
+    height = int(height * _framebufferScale);
+  }
+  return true;
+}
+
+void Filter::_fetchFramebuffer(int width, int height) {
+  if (!_framebuffer || (_framebuffer->getWidth() != width ||
+                        _framebuffer->getHeight() != height)) {
+    // hand the old size back, the cache evicts it if nobody needs it again
+    FramebufferCache* cache =
+        GPUPixelContext::getInstance()->getFramebufferCache();
+    cache->returnFramebuffer(_framebuffer);
+    _framebuffer = cache->fetchFramebuffer(width, height);
+  }
+}
+
+const char* Filter::_stageUniform(const char* name, int stage) {
+  snprintf(_stageUniformName, sizeof(_stageUniformName), "%s%d", name, stage);
+  return _stageUniformName;
+}
+
+void Filter::requestCapture(const FrameCaptureRequest& request) {
+  _captureRequests.push_back(request);
+}
+
+void Filter::_captureFrame(int64_t frameTime) {
+  // new requests made from inside a callback wait for the next frame
+  std::vector<FrameCaptureRequest> requests;
+  requests.swap(_captureRequests);
+
+  FrameCapture* capture = GPUPixelContext::getInstance()->getFrameCapture();
+  std::shared_ptr<Framebuffer> outputFramebuffer = _framebuffer;
+  for (auto& request : requests) {
+    int width = request.width > 0 ? request.width : _framebuffer->getWidth();
+    int height =
+        request.height > 0 ? request.height : _framebuffer->getHeight();
+    if (width == outputFramebuffer->getWidth() &&
+        height == outputFramebuffer->getHeight()) {
+      capture->readPixels(outputFramebuffer, request.callback, frameTime);
+      continue;
     }
-    if (!_framebuffer ||
-        (_framebuffer->getWidth() != rotatedFramebufferWidth ||
-         _framebuffer->getHeight() != rotatedFramebufferHeight)) {
-      _framebuffer = GPUPixelContext::getInstance()
-                         ->getFramebufferCache()
-                         ->fetchFramebuffer(rotatedFramebufferWidth,
-                                            rotatedFramebufferHeight);
+
+    // render this node once more at the requested size, targets untouched
+    auto captureFramebuffer =
+        GPUPixelContext::getInstance()->getFramebufferCache()->fetchFramebuffer(
+            width, height);
+    _framebuffer = captureFramebuffer;
+    proceed(false, frameTime);
+    _framebuffer = outputFramebuffer;
+    capture->readPixels(captureFramebuffer, request.callback, frameTime);
+    GPUPixelContext::getInstance()->getFramebufferCache()->returnFramebuffer(
+        captureFramebuffer);
+  }
+}
+
+void Filter::_captureInput(const InputFrameBufferInfo& input,
+                           int64_t frameTime) {
+  std::vector<FrameCaptureRequest> requests;
+  requests.swap(_captureRequests);
+
+  FrameCapture* capture = GPUPixelContext::getInstance()->getFrameCapture();
+  const std::shared_ptr<Framebuffer>& framebuffer = input.frameBuffer;
+  for (auto& request : requests) {
+    int width = request.width > 0 ? request.width : framebuffer->getWidth();
+    int height = request.height > 0 ? request.height : framebuffer->getHeight();
+    // the input is what this node hands on; there's no pass to scale or
+    // rotate it with, other sizes are dropped
+    if (input.rotationMode == NoRotation &&
+        width == framebuffer->getWidth() &&
+        height == framebuffer->getHeight()) {
+      capture->readPixels(framebuffer, request.callback, frameTime);
+    } else if (request.callback) {
+      request.callback(nullptr, width, height, frameTime);
     }
-    proceed(true, frameTime);
   }
 }
 
@@ -319,6 +446,7 @@ bool Filter::registerProperty(const std::string& name,
   property.comment = comment;
   property.setCallback = setCallback;
   _intProperties[name] = property;
+  _indexProperty(name, &_intProperties[name]);
   return true;
 }
 
@@ -336,6 +464,7 @@ bool Filter::registerProperty(
   property.comment = comment;
   property.setCallback = setCallback;
   _floatProperties[name] = property;
+  _indexProperty(name, &_floatProperties[name]);
   return true;
 }
 
@@ -353,6 +482,7 @@ bool Filter::registerProperty(
   property.comment = comment;
   property.setCallback = setCallback;
   _vectorProperties[name] = property;
+  _indexProperty(name, &_vectorProperties[name]);
   return true;
 }
 
@@ -370,6 +500,7 @@ bool Filter::registerProperty(
   property.comment = comment;
   property.setCallback = setCallback;
   _stringProperties[name] = property;
+  _indexProperty(name, &_stringProperties[name]);
   return true;
 }
 
@@ -379,7 +510,12 @@ bool Filter::setProperty(const std::string& name, int value) {
     Util::Log("WARNING", "Filter::setProperty invalid property %s",
               name.c_str());
     return false;
-  } else if (rawProperty->type != "int") {
+  }
+  return _setProperty(rawProperty, value);
+}
+
+bool Filter::_setProperty(Property* rawProperty, int value) {
+  if (rawProperty->type != "int") {
     Util::Log("WARNING",
               "Filter::setProperty The property type is expected to be %s",
               rawProperty->type.c_str());
@@ -399,7 +535,12 @@ bool Filter::setProperty(const std::string& name, float value) {
     Util::Log("WARNING", "Filter::setProperty invalid property %s",
               name.c_str());
     return false;
-  } else if (rawProperty->type != "float") {
+  }
+  return _setProperty(rawProperty, value);
+}
+
+bool Filter::_setProperty(Property* rawProperty, float value) {
+  if (rawProperty->type != "float") {
     Util::Log("WARNING",
               "Filter::setProperty The property type is expected to be %s",
               rawProperty->type.c_str());
@@ -420,7 +561,12 @@ bool Filter::setProperty(const std::string& name, std::vector<float> value) {
     Util::Log("WARNING", "Filter::setProperty invalid property %s",
               name.c_str());
     return false;
-  } else if (rawProperty->type != "vector") {
+  }
+  return _setProperty(rawProperty, value);
+}
+
+bool Filter::_setProperty(Property* rawProperty, std::vector<float> value) {
+  if (rawProperty->type != "vector") {
     Util::Log("WARNING",
               "Filter::setProperty The property type is expected to be %s",
               rawProperty->type.c_str());
@@ -441,7 +587,12 @@ bool Filter::setProperty(const std::string& name, std::string value) {
     Util::Log("WARNING", "Filter::setProperty invalid property %s",
               name.c_str());
     return false;
-  } else if (rawProperty->type != "string") {
+  }
+  return _setProperty(rawProperty, value);
+}
+
+bool Filter::_setProperty(Property* rawProperty, std::string value) {
+  if (rawProperty->type != "string") {
     Util::Log("WARNING",
               "Filter::setProperty The property type is expected to be %s",
               rawProperty->type.c_str());
@@ -455,6 +606,42 @@ bool Filter::setProperty(const std::string& name, std::string value) {
   return true;
 }
 
+int Filter::getPropertyId(const std::string& name) const {
+  for (size_t i = 0; i < _propertyNames.size(); i++) {
+    if (_propertyNames[i] == name) {
+      return (int)i;
+    }
+  }
+  return -1;
+}
+
+bool Filter::setPropertyById(int id, int value) {
+  Property* rawProperty = _getPropertyById(id);
+  if (!rawProperty) {
+    Util::Log("WARNING", "Filter::setPropertyById invalid property id %d", id);
+    return false;
+  }
+  return _setProperty(rawProperty, value);
+}
+
+bool Filter::setPropertyById(int id, float value) {
+  Property* rawProperty = _getPropertyById(id);
+  if (!rawProperty) {
+    Util::Log("WARNING", "Filter::setPropertyById invalid property id %d", id);
+    return false;
+  }
+  return _setProperty(rawProperty, value);
+}
+
+bool Filter::setPropertyById(int id, const float* values, int count) {
+  Property* rawProperty = _getPropertyById(id);
+  if (!rawProperty) {
+    Util::Log("WARNING", "Filter::setPropertyById invalid property id %d", id);
+    return false;
+  }
+  return _setProperty(rawProperty, std::vector<float>(values, values + count));
+}
+
 bool Filter::getProperty(const std::string& name, int& retValue) {
   Property* property = _getProperty(name);
   if (!property) {
@@ -498,6 +685,18 @@ Filter::Property* Filter::_getProperty(const std::string& name) {
   return 0;
 }
 
+Filter::Property* Filter::_getPropertyById(int id) {
+  if (id < 0 || id >= (int)_propertyIndex.size()) {
+    return 0;
+  }
+  return _propertyIndex[id];
+}
+
+void Filter::_indexProperty(const std::string& name, Property* property) {
+  _propertyNames.push_back(name);
+  _propertyIndex.push_back(property);
+}
+
 bool Filter::hasProperty(const std::string& name, const std::string type) {
   Property* property = _getProperty(name);
   return property && property->type == type ? true : false;
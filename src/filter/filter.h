@@ -7,6 +7,7 @@
 
 #pragma once
 
+#include "frame_capture.h"
 #include "gl_program.h"
 #include "gpupixel_macros.h"
 #include "source.h"
@@ -15,6 +16,8 @@
 #include "string"
 
 NS_GPUPIXEL_BEGIN
+class PointwiseFusion;
+
 const std::string kDefaultVertexShader = R"(
     attribute vec4 position; attribute vec4 inputTextureCoordinate;
 
@@ -75,6 +78,32 @@ class GPUPIXEL_API Filter : public Source, public Target {
 
   GLProgram* getProgram() const { return _filterProgram; };
 
+  // Renders at scale times its input's size, 1/16 to 1. Whatever samples
+  // the output reads it with bilinear filtering, so blending it with a
+  // full-size input upsamples it; filters after this one keep the reduced
+  // size unless their first input is full size.
+  virtual void setRenderScale(float scale);
+  virtual float getRenderScale() const { return _framebufferScale; }
+
+  // A bypassed filter draws nothing and hands its first input on to its
+  // targets as it is, for optional filters a frame can do without.
+  void setBypass(bool bypass) { _bypass = bypass; }
+  bool isBypassed() const { return _bypass; }
+
+  // Point-wise filters (each output pixel depends on the same input pixel
+  // only) return their colour transform as GLSL defining
+  // "vec4 pointwise$(vec4 color)", every uniform name ending in '$' as well,
+  // so consecutive ones can be drawn in one pass (Source::setPointwiseFusion).
+  // Others return null.
+  virtual const char* getPointwiseFunction() const { return nullptr; }
+  // sets the uniforms of getPointwiseFunction(), '$' replaced by stage
+  virtual void setPointwiseUniforms(GLProgram* program, int stage) {}
+
+  // reads this node's output back the next time it renders. The callback
+  // runs on the GL thread once the GPU has finished, usually a frame later;
+  // any number of requests may be pending at once.
+  virtual void requestCapture(const FrameCaptureRequest& request);
+
   // property setters & getters
   bool registerProperty(const std::string& name,
                         int defaultValue,
@@ -119,9 +148,29 @@ bool registerProperty(
 
   bool getPropertyType(const std::string& name, std::string& retType);
 
+  // property ids are dense indices assigned in registration order, so hot
+  // callers can resolve a name once and skip the string maps afterwards
+  int getPropertyId(const std::string& name) const;
+
+  const std::vector<std::string>& getPropertyNames() const {
+    return _propertyNames;
+  }
+
+  bool setPropertyById(int id, int value);
+
+  bool setPropertyById(int id, float value);
+
+  bool setPropertyById(int id, const float* values, int count);
+
  protected:
   GLProgram* _filterProgram;
   GLuint _filterPositionAttribute;
+  // per input index, resolved when the program is created
+  struct InputLocations {
+    GLint textureUniform;
+    GLuint texCoordAttribute;
+  };
+  std::vector<InputLocations> _inputLocations;
   std::string _filterClassName;
   struct {
     float r;
@@ -134,8 +183,32 @@ bool registerProperty(
 
   std::string _getVertexShaderString(int inputNumber) const;
 
+  void _resolveInputLocations(int inputNumber);
+
+  // this filter's output size: its first input's, rotated and scaled
+  bool _getOutputSize(int& width, int& height) const;
+
+  void _fetchFramebuffer(int width, int height);
+
+  // name + stage, for setPointwiseUniforms; valid until the next call
+  const char* _stageUniform(const char* name, int stage);
+
   const GLfloat* _getTexureCoordinate(const RotationMode& rotationMode) const;
 
+  void _captureFrame(int64_t frameTime);
+
+  // gives the first input to the targets in place of the output
+  void _passThrough(int64_t frameTime);
+  // serves capture requests from the input while bypassed
+  void _captureInput(const InputFrameBufferInfo& input, int64_t frameTime);
+  bool _bypass = false;
+
+  std::vector<FrameCaptureRequest> _captureRequests;
+
+  // set up when this filter starts a fused run
+  std::shared_ptr<PointwiseFusion> _fusion;
+  char _stageUniformName[64];
+
   // properties
   struct Property {
     std::string type;
@@ -144,6 +217,18 @@ bool registerProperty(
 
   Property* _getProperty(const std::string& name);
 
+  Property* _getPropertyById(int id);
+
+  void _indexProperty(const std::string& name, Property* property);
+
+  bool _setProperty(Property* rawProperty, int value);
+
+  bool _setProperty(Property* rawProperty, float value);
+
+  bool _setProperty(Property* rawProperty, std::vector<float> value);
+
+  bool _setProperty(Property* rawProperty, std::string value);
+
   struct IntProperty : Property {
     int value;
     std::function<void(int&)> setCallback;
@@ -169,7 +254,12 @@ bool registerProperty(
   };
   std::map<std::string, StringProperty> _stringProperties;
 
+  // map nodes never move, so the index can point into the maps above
+  std::vector<std::string> _propertyNames;
+  std::vector<Property*> _propertyIndex;
+
  private:
+  friend class PointwiseFusion;
   static std::map<std::string, std::function<std::shared_ptr<Filter>()>> _filterFactories;
 };
 
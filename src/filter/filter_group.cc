@@ -65,6 +65,9 @@ void FilterGroup::addFilter(std::shared_ptr<Filter> filter) {
 
   _filters.push_back(filter);
   setTerminalFilter(_predictTerminalFilter(filter));
+  if (_pointwiseFusion) {
+    filter->setPointwiseFusion(true);
+  }
 }
 
 void FilterGroup::removeFilter(std::shared_ptr<Filter> filter) {
@@ -145,10 +148,22 @@ bool FilterGroup::proceed(bool bUpdateTargets, int64_t frameTime) {
 }
 
 void FilterGroup::update(int64_t frameTime) {
+  if (_bypass) {
+    if (!_inputFramebuffers.empty()) {
+      _passThrough(frameTime);
+    }
+    _inputFramebuffers.clear();
+    return;
+  }
+
   proceed();
-  if (GPUPixelContext::getInstance()->isCapturingFrame &&
-      this == GPUPixelContext::getInstance()->captureUpToFilter.get()) {
-    GPUPixelContext::getInstance()->captureUpToFilter = _terminalFilter;
+
+  // left over from while it was bypassed
+  if (!_captureRequests.empty() && _terminalFilter) {
+    for (auto& request : _captureRequests) {
+      _terminalFilter->requestCapture(request);
+    }
+    _captureRequests.clear();
   }
 
   for (auto& filter : _filters) {
@@ -164,6 +179,17 @@ void FilterGroup::updateTargets(int64_t frameTime) {
   }
 }
 
+void FilterGroup::requestCapture(const FrameCaptureRequest& request) {
+  // the filters don't render while bypassed, the group serves it
+  if (_bypass) {
+    Filter::requestCapture(request);
+  } else if (_terminalFilter) {
+    _terminalFilter->requestCapture(request);
+  } else if (request.callback) {
+    request.callback(nullptr, request.width, request.height, 0);
+  }
+}
+
 void FilterGroup::setFramebuffer(
     std::shared_ptr<Framebuffer> fb,
     RotationMode outputRotation /* = RotationMode::NoRotation*/) {
@@ -181,11 +207,30 @@ void FilterGroup::setInputFramebuffer(
     std::shared_ptr<Framebuffer> framebuffer,
     RotationMode rotationMode /* = NoRotation*/,
     int texIdx /* = 0*/) {
+  // kept here instead while bypassed, the filters don't render
+  if (_bypass) {
+    Target::setInputFramebuffer(framebuffer, rotationMode, texIdx);
+    return;
+  }
   for (auto& filter : _filters) {
     filter->setInputFramebuffer(framebuffer, rotationMode, texIdx);
   }
 }
 
+void FilterGroup::setPointwiseFusion(bool enabled) {
+  _pointwiseFusion = enabled;
+  for (auto& filter : _filters) {
+    filter->setPointwiseFusion(enabled);
+  }
+}
+
+void FilterGroup::setRenderScale(float scale) {
+  Filter::setRenderScale(scale);
+  for (auto& filter : _filters) {
+    filter->setRenderScale(_framebufferScale);
+  }
+}
+
 bool FilterGroup::isPrepared() const {
   // todo(Jeayo)
   //    for (auto& filter : _filters) {
@@ -51,6 +51,8 @@ class GPUPIXEL_API FilterGroup : public Filter {
                        int64_t frameTime = 0) override;
   virtual void update(int64_t frameTime) override;
   virtual void updateTargets(int64_t frameTime) override;
+  // captures the terminal filter's output
+  virtual void requestCapture(const FrameCaptureRequest& request) override;
   virtual void setFramebuffer(
       std::shared_ptr<Framebuffer> fb,
       RotationMode outputRotation = RotationMode::NoRotation) override;
@@ -60,6 +62,11 @@ class GPUPIXEL_API FilterGroup : public Filter {
                                    RotationMode rotationMode = NoRotation,
                                    int texIdx = 0) override;
 
+  // applies to the filters of the group and whatever follows them
+  virtual void setPointwiseFusion(bool enabled) override;
+  // scales the filters that take the group's input, the rest follow them
+  virtual void setRenderScale(float scale) override;
+
   virtual bool isPrepared() const override;
   virtual void unPrepear() override;
 
@@ -34,6 +34,8 @@ bool GaussianBlurFilter::init(int radius, float sigma) {
       GaussianBlurMonoFilter::HORIZONTAL, radius, sigma);
   _vBlurFilter = GaussianBlurMonoFilter::create(
       GaussianBlurMonoFilter::VERTICAL, radius, sigma);
+  _hBlurFilter->setAutoDownsampling(true);
+  _vBlurFilter->setAutoDownsampling(true);
   _hBlurFilter->addTarget(_vBlurFilter);
   addFilter(_hBlurFilter);
 
@@ -54,4 +56,11 @@ void GaussianBlurFilter::setSigma(float sigma) {
   _vBlurFilter->setSigma(sigma);
 }
 
+// the horizontal pass downsamples, the vertical one keeps its size
+void GaussianBlurFilter::setRenderScale(float scale) {
+  FilterGroup::setRenderScale(scale);
+  _hBlurFilter->setResolutionScale(_framebufferScale);
+  _vBlurFilter->setResolutionScale(_framebufferScale);
+}
+
 NS_GPUPIXEL_END
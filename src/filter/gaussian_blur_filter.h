@@ -21,6 +21,7 @@ class GPUPIXEL_API GaussianBlurFilter : public FilterGroup {
   bool init(int radius, float sigma);
   void setRadius(int radius);
   void setSigma(float sigma);
+  virtual void setRenderScale(float scale) override;
 
  protected:
   GaussianBlurFilter();
@@ -6,7 +6,9 @@
  */
 
 #include "gaussian_blur_mono_filter.h"
+#include <algorithm>
 #include <cmath>
+#include "gpupixel_context.h"
 #include "util.h"
 
 NS_GPUPIXEL_BEGIN
@@ -28,13 +30,20 @@ std::shared_ptr<GaussianBlurMonoFilter> GaussianBlurMonoFilter::create(
   return ret;
 }
 
-bool GaussianBlurMonoFilter::init(int radius, float sigma) {
-  if (Filter::initWithShaderString(
-          _generateOptimizedVertexShaderString(radius, sigma),
-          _generateOptimizedFragmentShaderString(radius, sigma))) {
-    return true;
+GaussianBlurMonoFilter::~GaussianBlurMonoFilter() {
+  for (auto& variant : _variants) {
+    delete variant.program;
   }
-  return false;
+  // _filterProgram is one of them
+  _filterProgram = 0;
+}
+
+bool GaussianBlurMonoFilter::init(int radius, float sigma) {
+  _inputNum = 1;
+  _radius = radius;
+  _sigma = sigma;
+  _updateProgram();
+  return _filterProgram != 0;
 }
 
 void GaussianBlurMonoFilter::setRadius(int radius) {
@@ -43,13 +52,7 @@ void GaussianBlurMonoFilter::setRadius(int radius) {
   }
 
   _radius = radius;
-
-  if (_filterProgram) {
-    delete _filterProgram;
-    _filterProgram = 0;
-  }
-  initWithShaderString(_generateOptimizedVertexShaderString(_radius, _sigma),
-                       _generateOptimizedFragmentShaderString(_radius, _sigma));
+  _updateProgram();
 }
 
 void GaussianBlurMonoFilter::setSigma(float sigma) {
@@ -75,41 +78,131 @@ void GaussianBlurMonoFilter::setSigma(float sigma) {
             // radius sizes, due to the optimizations I use
   }
   _radius = calculatedSampleRadius;
+  _updateProgram();
+}
+
+void GaussianBlurMonoFilter::setRenderScale(float scale) {
+  Filter::setRenderScale(scale);
+  _renderScale = _framebufferScale;
+  _updateProgram();
+}
+
+void GaussianBlurMonoFilter::setAutoDownsampling(bool enabled) {
+  _autoDownsampling = enabled;
+  _updateProgram();
+}
+
+float GaussianBlurMonoFilter::downsamplingForRadius(int radius) {
+  float downsampling = 1.0;
+  while (radius * downsampling > kMaxKernelRadius && downsampling > 0.25) {
+    downsampling *= 0.5;
+  }
+  return downsampling;
+}
+
+int GaussianBlurMonoFilter::_kernelRadius() const {
+  if (_radius < 1) {
+    return _radius;
+  }
+  return std::max(1, (int)std::ceil(_radius * _downsampling));
+}
+
+void GaussianBlurMonoFilter::_updateProgram() {
+  _downsampling = _autoDownsampling ? downsamplingForRadius(_radius) : 1.0;
+  // the horizontal pass shrinks the picture, the vertical one brings it
+  // back to the size it was asked for
+  _framebufferScale = _type == HORIZONTAL ? _renderScale * _downsampling
+                                          : _renderScale / _downsampling;
+
+  // sigma in eighths of a texel, a slider's nearby values share a shader
+  const int radius = _kernelRadius();
+  const int sigmaSteps = (int)std::lround(_sigma * _downsampling * 8);
+  const uint64_t key = ((uint64_t)(uint32_t)radius << 32) | (uint32_t)sigmaSteps;
+  auto it = std::find_if(_variants.begin(), _variants.end(),
+                         [key](const Variant& v) { return v.key == key; });
+  if (it != _variants.end()) {
+    Variant variant = *it;
+    _variants.erase(it);
+    _variants.push_back(variant);
+    if (_filterProgram == variant.program) {
+      return;
+    }
+    _filterProgram = variant.program;
+    _filterPositionAttribute = _filterProgram->getAttribLocation("position");
+    _inputLocations.clear();
+    _resolveInputLocations(_inputNum);
+    GPUPixelContext::getInstance()->setActiveShaderProgram(_filterProgram);
+    CHECK_GL(glEnableVertexAttribArray(_filterPositionAttribute));
+    return;
+  }
 
-  if (_filterProgram) {
-    delete _filterProgram;
-    _filterProgram = 0;
+  if (_variants.size() >= kMaxVariants) {
+    // never the current one, that is always the most recent
+    delete _variants.front().program;
+    _variants.erase(_variants.begin());
+  }
+  const float sigma = sigmaSteps / 8.0f;
+  initWithShaderString(_generateOptimizedVertexShaderString(radius, sigma),
+                       _generateOptimizedFragmentShaderString(radius, sigma));
+  _variants.push_back({key, _filterProgram});
+}
+
+std::vector<float> GaussianBlurMonoFilter::_gaussianWeights(int radius,
+                                                            float sigma) {
+  std::vector<float> weights(radius + 2, 0.0f);
+  float sumOfWeights = 0.0;
+  for (int i = 0; i < radius + 1; ++i) {
+    weights[i] = (1.0 / sqrt(2.0 * M_PI * pow(sigma, 2.0))) *
+                 exp(-pow(i, 2.0) / (2.0 * pow(sigma, 2.0)));
+    if (i == 0) {
+      sumOfWeights += weights[i];
+    } else {
+      sumOfWeights += 2.0 * weights[i];
+    }
+  }
+
+  // normalize these weights to prevent the clipping of the Gaussian curve at
+  // the end of the discrete samples from reducing luminance
+  for (int i = 0; i < radius + 1; ++i) {
+    weights[i] = weights[i] / sumOfWeights;
   }
-  initWithShaderString(_generateOptimizedVertexShaderString(_radius, _sigma),
-                       _generateOptimizedFragmentShaderString(_radius, _sigma));
+  return weights;
 }
 
 bool GaussianBlurMonoFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   RotationMode inputRotation = _inputFramebuffers.begin()->second.rotationMode;
+  // taps are 1/downsampling input texels apart; the vertical pass
+  // measures them in its output, which is that much larger than its input
+  const float texelScale = _type == VERTICAL ? _resolutionScale / _downsampling
+                                             : _resolutionScale;
 
   if (rotationSwapsSize(inputRotation)) {
     if (_type == HORIZONTAL) {
       _filterProgram->setUniformValue("texelWidthOffset", (float)0.0);
       _filterProgram->setUniformValue(
           "texelHeightOffset",
-          (float)(verticalTexelSpacing_ / _framebuffer->getWidth()));
+          (float)(verticalTexelSpacing_ * texelScale /
+                  _framebuffer->getWidth()));
     } else {
       _filterProgram->setUniformValue(
           "texelWidthOffset",
-          (float)(horizontalTexelSpacing_ / _framebuffer->getHeight()));
+          (float)(horizontalTexelSpacing_ * texelScale /
+                  _framebuffer->getHeight()));
       _filterProgram->setUniformValue("texelHeightOffset", (float)0.0);
     }
   } else {
     if (_type == HORIZONTAL) {
       _filterProgram->setUniformValue(
           "texelWidthOffset",
-          (float)(verticalTexelSpacing_ / _framebuffer->getWidth()));
+          (float)(verticalTexelSpacing_ * texelScale /
+                  _framebuffer->getWidth()));
       _filterProgram->setUniformValue("texelHeightOffset", (float)0.0);
     } else {
       _filterProgram->setUniformValue("texelWidthOffset", (float)0.0);
       _filterProgram->setUniformValue(
           "texelHeightOffset",
-          (float)(horizontalTexelSpacing_ / _framebuffer->getHeight()));
+          (float)(horizontalTexelSpacing_ * texelScale /
+                  _framebuffer->getHeight()));
     }
   }
   return Filter::proceed(bUpdateTargets, frameTime);
@@ -222,24 +315,9 @@ std::string GaussianBlurMonoFilter::_generateOptimizedVertexShaderString(
     return kDefaultVertexShader;
   }
 
-  // 1. generate the normal Gaussian weights for a given sigma
-  float* standardGaussianWeights = new float[radius + 1];
-  float sumOfWeights = 0.0;
-  for (int i = 0; i < radius + 1; ++i) {
-    standardGaussianWeights[i] = (1.0 / sqrt(2.0 * M_PI * pow(sigma, 2.0))) *
-                                 exp(-pow(i, 2.0) / (2.0 * pow(sigma, 2.0)));
-    if (i == 0) {
-      sumOfWeights += standardGaussianWeights[i];
-    } else {
-      sumOfWeights += 2.0 * standardGaussianWeights[i];
-    }
-  }
-
-  // 2. normalize these weights to prevent the clipping of the Gaussian curve at
-  // the end of the discrete samples from reducing luminance
-  for (int i = 0; i < radius + 1; ++i) {
-    standardGaussianWeights[i] = standardGaussianWeights[i] / sumOfWeights;
-  }
+  // 1. generate the normalized Gaussian weights for a given sigma, with a
+  // zero past the last one for the pair an odd radius leaves half empty
+  std::vector<float> standardGaussianWeights = _gaussianWeights(radius, sigma);
 
   // 3. From these weights we calculate the offsets to read interpolated values
   // from
@@ -301,7 +379,6 @@ std::string GaussianBlurMonoFilter::_generateOptimizedVertexShaderString(
 
   shaderStr += "}\n";
 
-  delete[] standardGaussianWeights;
   delete[] optimizedGaussianOffsets;
 
   return shaderStr;
@@ -314,24 +391,9 @@ std::string GaussianBlurMonoFilter::_generateOptimizedFragmentShaderString(
     return kDefaultFragmentShader;
   }
 
-  // 1. generate the normal Gaussian weights for a given sigma
-  float* standardGaussianWeights = new float[radius + 1];
-  float sumOfWeights = 0.0;
-  for (int i = 0; i < radius + 1; ++i) {
-    standardGaussianWeights[i] = (1.0 / sqrt(2.0 * M_PI * pow(sigma, 2.0))) *
-                                 exp(-pow(i, 2.0) / (2.0 * pow(sigma, 2.0)));
-    if (i == 0) {
-      sumOfWeights += standardGaussianWeights[i];
-    } else {
-      sumOfWeights += 2.0 * standardGaussianWeights[i];
-    }
-  }
-
-  // 2. normalize these weights to prevent the clipping of the Gaussian curve at
-  // the end of the discrete samples from reducing luminance
-  for (int i = 0; i < radius + 1; ++i) {
-    standardGaussianWeights[i] = standardGaussianWeights[i] / sumOfWeights;
-  }
+  // 1. generate the normalized Gaussian weights for a given sigma, with a
+  // zero past the last one for the pair an odd radius leaves half empty
+  std::vector<float> standardGaussianWeights = _gaussianWeights(radius, sigma);
 
   // 3. From these weights we calculate the offsets to read interpolated values
   // from
@@ -414,8 +476,6 @@ std::string GaussianBlurMonoFilter::_generateOptimizedFragmentShaderString(
 
   shaderStr += "}";
 
-  delete[] standardGaussianWeights;
-  standardGaussianWeights = 0;
   return shaderStr;
 }
 
@@ -7,6 +7,7 @@
 
 #pragma once
 
+#include <vector>
 #include "filter_group.h"
 #include "gpupixel_macros.h"
 
@@ -15,9 +16,13 @@ class GPUPIXEL_API GaussianBlurMonoFilter : public Filter {
  public:
   enum Type { HORIZONTAL, VERTICAL };
 
+  // widest kernel a pass samples before large radii get downsampled
+  static const int kMaxKernelRadius = 8;
+
   static std::shared_ptr<GaussianBlurMonoFilter> create(Type type = HORIZONTAL,
                                                         int radius = 4,
                                                         float sigma = 2.0);
+  virtual ~GaussianBlurMonoFilter();
   bool init(int radius, float sigma);
 
   void setRadius(int radius);
@@ -26,6 +31,22 @@ class GPUPIXEL_API GaussianBlurMonoFilter : public Filter {
   virtual bool proceed(bool bUpdateTargets = true,
                        int64_t frameTime = 0) override;
   void setTexelSpacingMultiplier(float value);
+  // share of the full picture's size this pass renders at, when the blur
+  // it belongs to renders smaller; its samples move closer together so the
+  // blur stays as wide in the picture
+  void setResolutionScale(float scale) { _resolutionScale = scale; }
+  virtual void setRenderScale(float scale) override;
+  virtual float getRenderScale() const override { return _renderScale; }
+  int getRadius() const { return _radius; }
+
+  // For the two passes of a blur: a radius above kMaxKernelRadius is
+  // sampled with fewer, wider spaced taps on a copy of the picture half or
+  // a quarter the size. The horizontal pass renders that copy, the
+  // vertical pass renders at full size again, so the cost stops growing
+  // with the radius and the output keeps its size.
+  void setAutoDownsampling(bool enabled);
+  // 1, 1/2 or 1/4
+  static float downsamplingForRadius(int radius);
 
  protected:
   GaussianBlurMonoFilter(Type type = HORIZONTAL);
@@ -35,8 +56,30 @@ class GPUPIXEL_API GaussianBlurMonoFilter : public Filter {
 
   float verticalTexelSpacing_ = 1.0;
   float horizontalTexelSpacing_ = 1.0;
+  float _resolutionScale = 1.0;
+  float _renderScale = 1.0;
+  bool _autoDownsampling = false;
+  float _downsampling = 1.0;
+
+  // the taps the shader takes for _radius
+  virtual int _kernelRadius() const;
+  // switches to the program for the current radius and sigma, compiled
+  // the first time it is needed
+  void _updateProgram();
+  // normalized weights of offsets 0 to radius, plus a trailing 0 so the
+  // last pair of an odd radius folds into a single tap
+  static std::vector<float> _gaussianWeights(int radius, float sigma);
 
  private:
+  // programs by radius and sigma, least recently used first; each keeps
+  // its linked program in the context's cache alive
+  struct Variant {
+    uint64_t key;
+    GLProgram* program;
+  };
+  static const size_t kMaxVariants = 16;
+  std::vector<Variant> _variants;
+
   virtual std::string _generateVertexShaderString(int radius, float sigma);
   virtual std::string _generateFragmentShaderString(int radius, float sigma);
 
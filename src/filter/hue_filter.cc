@@ -7,52 +7,32 @@
 
 #include "hue_filter.h"
 #include "math_toolbox.h"
+#include "pointwise_fusion.h"
 
 USING_NS_GPUPIXEL
 
 // Adapted from
 // http://stackoverflow.com/questions/9234724/how-to-change-hue-of-a-texture-with-glsl
 // - see for code and discussion
-const std::string kHueFragmentShaderString = R"(
-    precision highp float; uniform sampler2D inputImageTexture;
-    uniform mediump float hueAdjustment;
-    varying highp vec2 textureCoordinate;
-    const highp vec4 kRGBToYPrime = vec4(0.299, 0.587, 0.114, 0.0);
-    const highp vec4 kRGBToI = vec4(0.595716, -0.274453, -0.321263, 0.0);
-    const highp vec4 kRGBToQ = vec4(0.211456, -0.522591, 0.31135, 0.0);
-    const highp vec4 kYIQToR = vec4(1.0, 0.9563, 0.6210, 0.0);
-    const highp vec4 kYIQToG = vec4(1.0, -0.2721, -0.6474, 0.0);
-    const highp vec4 kYIQToB = vec4(1.0, -1.1070, 1.7046, 0.0);
-
-    void main() {
-      // Sample the input pixel
-      highp vec4 color = texture2D(inputImageTexture, textureCoordinate);
-
-      // Convert to YIQ
-      highp float YPrime = dot(color, kRGBToYPrime);
-      highp float I = dot(color, kRGBToI);
-      highp float Q = dot(color, kRGBToQ);
-
-      // Calculate the hue and chroma
-      highp float hue = atan(Q, I);
-      highp float chroma = sqrt(I * I + Q * Q);
-
-      // Make the user's adjustments
-      hue += (-hueAdjustment);  // why negative rotation?
-
-      // Convert back to YIQ
-      Q = chroma * sin(hue);
-      I = chroma * cos(hue);
-
-      // Convert back to RGB
-      highp vec4 yIQ = vec4(YPrime, I, Q, 0.0);
-      color.r = dot(yIQ, kYIQToR);
-      color.g = dot(yIQ, kYIQToG);
-      color.b = dot(yIQ, kYIQToB);
-
-      // Save the result
-      gl_FragColor = color;
-    })";
+// the filter's shader, and a stage of a fused pass, see PointwiseFusion
+const char kPointwiseHueFunction[] = R"(
+uniform float hueAdjustment$;
+vec4 pointwise$(vec4 color) {
+  const vec4 kRGBToYPrime = vec4(0.299, 0.587, 0.114, 0.0);
+  const vec4 kRGBToI = vec4(0.595716, -0.274453, -0.321263, 0.0);
+  const vec4 kRGBToQ = vec4(0.211456, -0.522591, 0.31135, 0.0);
+  const vec4 kYIQToR = vec4(1.0, 0.9563, 0.6210, 0.0);
+  const vec4 kYIQToG = vec4(1.0, -0.2721, -0.6474, 0.0);
+  const vec4 kYIQToB = vec4(1.0, -1.1070, 1.7046, 0.0);
+  float YPrime = dot(color, kRGBToYPrime);
+  float I = dot(color, kRGBToI);
+  float Q = dot(color, kRGBToQ);
+  float hue = atan(Q, I) - hueAdjustment$;
+  float chroma = sqrt(I * I + Q * Q);
+  vec4 yIQ = vec4(YPrime, chroma * cos(hue), chroma * sin(hue), 0.0);
+  return vec4(dot(yIQ, kYIQToR), dot(yIQ, kYIQToG), dot(yIQ, kYIQToB),
+              color.a);
+})";
 
 std::shared_ptr<HueFilter> HueFilter::create() {
   auto ret = std::shared_ptr<HueFilter>(new HueFilter());
@@ -63,7 +43,8 @@ std::shared_ptr<HueFilter> HueFilter::create() {
 }
 
 bool HueFilter::init() {
-  if (!initWithFragmentShaderString(kHueFragmentShaderString)) {
+  if (!initWithFragmentShaderString(
+          PointwiseFusion::standaloneShader(kPointwiseHueFunction))) {
     return false;
   }
 
@@ -85,3 +66,12 @@ bool HueFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   _filterProgram->setUniformValue("hueAdjustment", _hueAdjustment);
   return Filter::proceed(bUpdateTargets, frameTime);
 }
+
+const char* HueFilter::getPointwiseFunction() const {
+  return kPointwiseHueFunction;
+}
+
+void HueFilter::setPointwiseUniforms(GLProgram* program, int stage) {
+  program->setUniformValue(_stageUniform("hueAdjustment", stage),
+                           _hueAdjustment);
+}
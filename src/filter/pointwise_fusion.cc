@@ -0,0 +1,190 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "pointwise_fusion.h"
+#include "filter.h"
+#include "gpupixel_context.h"
+#include "util.h"
+
+NS_GPUPIXEL_BEGIN
+
+const std::string kFusedFragmentShaderHeader = R"(
+#ifdef GL_ES
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+precision highp float;
+#else
+precision mediump float;
+#endif
+#endif
+uniform sampler2D inputImageTexture;
+varying vec2 textureCoordinate;
+)";
+
+PointwiseFusion::PointwiseFusion() {}
+
+PointwiseFusion::~PointwiseFusion() {
+  _reset();
+}
+
+bool PointwiseFusion::update(Filter* head, int64_t frameTime) {
+  static const GLfloat imageVertices[] = {
+      -1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f,
+  };
+
+  if (!_collect(head)) {
+    _reset();
+    return false;
+  }
+  // every filter of the run renders at scale 1, so at the head's input size
+  int width = 0;
+  int height = 0;
+  if (!head->_getOutputSize(width, height)) {
+    return false;
+  }
+  if (!_matches()) {
+    _build();
+  }
+
+  // only the last filter of the run renders
+  FramebufferCache* cache =
+      GPUPixelContext::getInstance()->getFramebufferCache();
+  for (size_t i = 0; i + 1 < _run.size(); ++i) {
+    // the next filter may still hold it as input from an unfused frame,
+    // then it is only let go of and freed with that last reference
+    if (_run[i]->_framebuffer && _run[i]->_framebuffer.use_count() == 1) {
+      cache->returnFramebuffer(_run[i]->_framebuffer);
+    }
+    _run[i]->_framebuffer = 0;
+  }
+  Filter* tail = _run.back();
+  tail->_fetchFramebuffer(width, height);
+
+  // the whole run is timed as its head
+  PipelineMetrics::NodeTimer timer(
+      GPUPixelContext::getInstance()->getPipelineMetrics(), head);
+
+  const auto& input =
+      head->_inputFramebuffers.begin()->second;
+  GPUPixelContext::getInstance()->setActiveShaderProgram(_program);
+  tail->_framebuffer->active();
+  CHECK_GL(glClearColor(head->_backgroundColor.r, head->_backgroundColor.g,
+                        head->_backgroundColor.b, head->_backgroundColor.a));
+  CHECK_GL(glClear(GL_COLOR_BUFFER_BIT));
+  CHECK_GL(glActiveTexture(GL_TEXTURE0));
+  CHECK_GL(glBindTexture(GL_TEXTURE_2D, input.frameBuffer->getTexture()));
+  _program->setUniformValue(_textureUniform, 0);
+  for (size_t i = 0; i < _run.size(); ++i) {
+    _run[i]->setPointwiseUniforms(_program, (int)i);
+  }
+  CHECK_GL(glEnableVertexAttribArray(_texCoordAttribute));
+  CHECK_GL(glVertexAttribPointer(_texCoordAttribute, 2, GL_FLOAT, 0, 0,
+                                 head->_getTexureCoordinate(input.rotationMode)));
+  CHECK_GL(glEnableVertexAttribArray(_positionAttribute));
+  CHECK_GL(glVertexAttribPointer(_positionAttribute, 2, GL_FLOAT, 0, 0,
+                                 imageVertices));
+  CHECK_GL(glDrawArrays(GL_TRIANGLE_STRIP, 0, 4));
+  tail->_framebuffer->inactive();
+
+  // a FilterGroup hands its input to every member; the fused ones must not
+  // render it again on their own
+  for (size_t i = 1; i < _run.size(); ++i) {
+    _run[i]->unPrepear();
+  }
+  timer.stop();
+  tail->Source::proceed(true, frameTime);
+  return true;
+}
+
+std::string PointwiseFusion::standaloneShader(const char* function) {
+  std::string shader = kFusedFragmentShaderHeader;
+  for (const char* c = function; *c; ++c) {
+    if (*c != '$') {
+      shader += *c;
+    }
+  }
+  shader +=
+      "\nvoid main() {\n"
+      "  gl_FragColor = pointwise(\n"
+      "      texture2D(inputImageTexture, textureCoordinate));\n"
+      "}\n";
+  return shader;
+}
+
+bool PointwiseFusion::_collect(Filter* head) {
+  _run.clear();
+  Filter* filter = head;
+  while (filter && filter->_pointwiseFusion && !filter->_bypass &&
+         filter->_inputNum == 1 &&
+         filter->_framebufferScale == 1.0 &&
+         filter->_captureRequests.empty() && filter->getPointwiseFunction()) {
+    _run.push_back(filter);
+    auto& targets = filter->getTargets();
+    if (targets.size() != 1 || targets.begin()->second != 0) {
+      break;
+    }
+    filter = dynamic_cast<Filter*>(targets.begin()->first.get());
+  }
+  return _run.size() >= 2;
+}
+
+bool PointwiseFusion::_matches() const {
+  if (!_program || _stages.size() != _run.size()) {
+    return false;
+  }
+  for (size_t i = 0; i < _run.size(); ++i) {
+    // a filter freed and another allocated at its address is only a match
+    // when it has the same shader, which is all that matters here
+    if (_stages[i].filter != _run[i] ||
+        *_stages[i].type != typeid(*_run[i])) {
+      return false;
+    }
+  }
+  return true;
+}
+
+void PointwiseFusion::_build() {
+  std::string shader = kFusedFragmentShaderHeader;
+  std::string main =
+      "void main() {\n"
+      "  vec4 color = texture2D(inputImageTexture, textureCoordinate);\n";
+  _stages.clear();
+  for (size_t i = 0; i < _run.size(); ++i) {
+    std::string stage = std::to_string(i);
+    for (const char* c = _run[i]->getPointwiseFunction(); *c; ++c) {
+      if (*c == '$') {
+        shader += stage;
+      } else {
+        shader += *c;
+      }
+    }
+    shader += "\n";
+    main += "  color = pointwise" + stage + "(color);\n";
+    _stages.push_back({_run[i], &typeid(*_run[i])});
+  }
+  shader += main + "  gl_FragColor = color;\n}\n";
+
+  if (_program) {
+    delete _program;
+  }
+  _program = GLProgram::createByShaderString(kDefaultVertexShader, shader);
+  _positionAttribute = _program->getAttribLocation("position");
+  _texCoordAttribute = _program->getAttribLocation("inputTextureCoordinate");
+  _textureUniform = _program->getUniformLocation("inputImageTexture");
+
+  Util::Log("INFO", "PointwiseFusion: %d filters drawn in one pass",
+            (int)_run.size());
+}
+
+void PointwiseFusion::_reset() {
+  _stages.clear();
+  if (_program) {
+    delete _program;
+    _program = nullptr;
+  }
+}
+
+NS_GPUPIXEL_END
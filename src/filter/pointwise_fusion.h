@@ -0,0 +1,59 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <string>
+#include <typeinfo>
+#include <vector>
+#include "gl_program.h"
+#include "gpupixel_macros.h"
+
+NS_GPUPIXEL_BEGIN
+class Filter;
+
+// Draws a run of consecutive point-wise filters as one pass. A run starts at
+// the filter being updated and follows single-target links for as long as
+// the next filter is point-wise, takes one input, has fusion on, renders at
+// scale 1 and has no capture pending. The fused program is rebuilt whenever
+// the run differs from the last frame's; each filter still sets its own
+// uniforms every frame. Output goes to the last filter's framebuffer, the
+// filters before it keep none.
+class GPUPIXEL_API PointwiseFusion {
+ public:
+  PointwiseFusion();
+  ~PointwiseFusion();
+
+  // false, with nothing drawn, when head starts no run of two or more
+  bool update(Filter* head, int64_t frameTime);
+
+  // the fragment shader of a filter drawn on its own: the function with
+  // '$' dropped and a main that calls it, so both paths share the math
+  static std::string standaloneShader(const char* function);
+
+ private:
+  bool _collect(Filter* head);
+  bool _matches() const;
+  void _build();
+  void _reset();
+
+  // this frame's run
+  std::vector<Filter*> _run;
+  // what _program was built for
+  struct Stage {
+    Filter* filter;
+    const std::type_info* type;
+  };
+  std::vector<Stage> _stages;
+
+  GLProgram* _program = nullptr;
+  GLuint _positionAttribute = 0;
+  GLuint _texCoordAttribute = 0;
+  GLint _textureUniform = -1;
+};
+
+NS_GPUPIXEL_END
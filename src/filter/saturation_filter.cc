@@ -6,24 +6,19 @@
  */
 
 #include "saturation_filter.h"
+#include "pointwise_fusion.h"
 
 USING_NS_GPUPIXEL
 
-const std::string kSaturationFragmentShaderString = R"(
-    uniform sampler2D inputImageTexture; uniform lowp float saturation;
-    varying highp vec2 textureCoordinate;
-
-    // Values from "Graphics Shaders: Theory and Practice" by Bailey and
-    // Cunningham
-    const mediump vec3 luminanceWeighting = vec3(0.2125, 0.7154, 0.0721);
-
-    void main() {
-      lowp vec4 color = texture2D(inputImageTexture, textureCoordinate);
-      lowp float luminance = dot(color.rgb, luminanceWeighting);
-      lowp vec3 greyScaleColor = vec3(luminance);
-
-      gl_FragColor = vec4(mix(greyScaleColor, color.rgb, saturation), color.a);
-    })";
+// the filter's shader, and a stage of a fused pass, see PointwiseFusion
+const char kPointwiseSaturationFunction[] = R"(
+uniform float saturation$;
+vec4 pointwise$(vec4 color) {
+  // values from "Graphics Shaders: Theory and Practice" by Bailey and
+  // Cunningham
+  float luminance = dot(color.rgb, vec3(0.2125, 0.7154, 0.0721));
+  return vec4(mix(vec3(luminance), color.rgb, saturation$), color.a);
+})";
 
 std::shared_ptr<SaturationFilter> SaturationFilter::create() {
   auto ret = std::shared_ptr<SaturationFilter>(new SaturationFilter());
@@ -34,7 +29,8 @@ std::shared_ptr<SaturationFilter> SaturationFilter::create() {
 }
 
 bool SaturationFilter::init() {
-  if (!initWithFragmentShaderString(kSaturationFragmentShaderString)) {
+  if (!initWithFragmentShaderString(
+          PointwiseFusion::standaloneShader(kPointwiseSaturationFunction))) {
     return false;
   }
 
@@ -61,3 +57,11 @@ bool SaturationFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   _filterProgram->setUniformValue("saturation", _saturation);
   return Filter::proceed(bUpdateTargets, frameTime);
 }
+
+const char* SaturationFilter::getPointwiseFunction() const {
+  return kPointwiseSaturationFunction;
+}
+
+void SaturationFilter::setPointwiseUniforms(GLProgram* program, int stage) {
+  program->setUniformValue(_stageUniform("saturation", stage), _saturation);
+}
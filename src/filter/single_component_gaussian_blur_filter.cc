@@ -36,6 +36,8 @@ bool SingleComponentGaussianBlurFilter::init(int radius, float sigma) {
       SingleComponentGaussianBlurMonoFilter::HORIZONTAL, radius, sigma);
   _vBlurFilter = SingleComponentGaussianBlurMonoFilter::create(
       SingleComponentGaussianBlurMonoFilter::VERTICAL, radius, sigma);
+  _hBlurFilter->setAutoDownsampling(true);
+  _vBlurFilter->setAutoDownsampling(true);
   _hBlurFilter->addTarget(_vBlurFilter);
   addFilter(_hBlurFilter);
 
@@ -56,4 +58,10 @@ void SingleComponentGaussianBlurFilter::setSigma(float sigma) {
   _vBlurFilter->setSigma(sigma);
 }
 
+void SingleComponentGaussianBlurFilter::setRenderScale(float scale) {
+  FilterGroup::setRenderScale(scale);
+  _hBlurFilter->setResolutionScale(_framebufferScale);
+  _vBlurFilter->setResolutionScale(_framebufferScale);
+}
+
 NS_GPUPIXEL_END
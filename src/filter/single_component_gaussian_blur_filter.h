@@ -22,6 +22,7 @@ class GPUPIXEL_API SingleComponentGaussianBlurFilter : public FilterGroup {
   bool init(int radius, float sigma);
   void setRadius(int radius);
   void setSigma(float sigma);
+  virtual void setRenderScale(float scale) override;
 
  protected:
   SingleComponentGaussianBlurFilter();
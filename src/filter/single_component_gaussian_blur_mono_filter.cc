@@ -36,24 +36,9 @@ SingleComponentGaussianBlurMonoFilter::_generateOptimizedVertexShaderString(
     return kDefaultVertexShader;
   }
 
-  // 1. generate the normal Gaussian weights for a given sigma
-  float* standardGaussianWeights = new float[radius + 1];
-  float sumOfWeights = 0.0;
-  for (int i = 0; i < radius + 1; ++i) {
-    standardGaussianWeights[i] = (1.0 / sqrt(2.0 * M_PI * pow(sigma, 2.0))) *
-                                 exp(-pow(i, 2.0) / (2.0 * pow(sigma, 2.0)));
-    if (i == 0) {
-      sumOfWeights += standardGaussianWeights[i];
-    } else {
-      sumOfWeights += 2.0 * standardGaussianWeights[i];
-    }
-  }
-
-  // 2. normalize these weights to prevent the clipping of the Gaussian curve at
-  // the end of the discrete samples from reducing luminance
-  for (int i = 0; i < radius + 1; ++i) {
-    standardGaussianWeights[i] = standardGaussianWeights[i] / sumOfWeights;
-  }
+  // 1. generate the normalized Gaussian weights for a given sigma, with a
+  // zero past the last one for the pair an odd radius leaves half empty
+  std::vector<float> standardGaussianWeights = _gaussianWeights(radius, sigma);
 
   // 3. From these weights we calculate the offsets to read interpolated values
   // from
@@ -115,7 +100,6 @@ SingleComponentGaussianBlurMonoFilter::_generateOptimizedVertexShaderString(
 
   shaderStr += "}\n";
 
-  delete[] standardGaussianWeights;
   delete[] optimizedGaussianOffsets;
 
   return shaderStr;
@@ -129,24 +113,9 @@ SingleComponentGaussianBlurMonoFilter::_generateOptimizedFragmentShaderString(
     return kDefaultFragmentShader;
   }
 
-  // 1. generate the normal Gaussian weights for a given sigma
-  float* standardGaussianWeights = new float[radius + 1];
-  float sumOfWeights = 0.0;
-  for (int i = 0; i < radius + 1; ++i) {
-    standardGaussianWeights[i] = (1.0 / sqrt(2.0 * M_PI * pow(sigma, 2.0))) *
-                                 exp(-pow(i, 2.0) / (2.0 * pow(sigma, 2.0)));
-    if (i == 0) {
-      sumOfWeights += standardGaussianWeights[i];
-    } else {
-      sumOfWeights += 2.0 * standardGaussianWeights[i];
-    }
-  }
-
-  // 2. normalize these weights to prevent the clipping of the Gaussian curve at
-  // the end of the discrete samples from reducing luminance
-  for (int i = 0; i < radius + 1; ++i) {
-    standardGaussianWeights[i] = standardGaussianWeights[i] / sumOfWeights;
-  }
+  // 1. generate the normalized Gaussian weights for a given sigma, with a
+  // zero past the last one for the pair an odd radius leaves half empty
+  std::vector<float> standardGaussianWeights = _gaussianWeights(radius, sigma);
 
   // 3. From these weights we calculate the offsets to read interpolated values
   // from
@@ -226,8 +195,6 @@ SingleComponentGaussianBlurMonoFilter::_generateOptimizedFragmentShaderString(
       "gl_FragColor = vec4(sum, sum, sum, 1.0);\n\
     }";
 
-  delete[] standardGaussianWeights;
-  standardGaussianWeights = 0;
   return shaderStr;
 }
 
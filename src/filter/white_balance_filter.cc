@@ -6,42 +6,36 @@
  */
 
 #include "white_balance_filter.h"
+#include "pointwise_fusion.h"
 
 USING_NS_GPUPIXEL
 
 REGISTER_FILTER_CLASS(WhiteBalanceFilter)
 
-const std::string kWhiteBalanceFragmentShaderString = R"(
-    uniform sampler2D inputImageTexture; uniform lowp float temperature;
-    uniform lowp float tint;
-    varying highp vec2 textureCoordinate;
-    const lowp vec3 warmFilter = vec3(0.93, 0.54, 0.0);
-    const mediump mat3 RGBtoYIQ =
-        mat3(0.299, 0.587, 0.114,
-             0.596, -0.274, -0.322,
-             0.212, -0.523, 0.311);
-    const mediump mat3 YIQtoRGB =
-        mat3(1.0, 0.956, 0.621,
-             1.0, -0.272, -0.647,
-             1.0, -1.105, 1.702);
-
-    void main() {
-      lowp vec4 color = texture2D(inputImageTexture, textureCoordinate);
-      mediump vec3 yiq = RGBtoYIQ * color.rgb;  // adjusting tint
-      yiq.b = clamp(yiq.b + tint * 0.5226 * 0.1, -0.5226, 0.5226);
-      lowp vec3 rgb = YIQtoRGB * yiq;
-      lowp vec3 processed = vec3(
-          (rgb.r < 0.5
-               ? (2.0 * rgb.r * warmFilter.r)
-               : (1.0 - 2.0 * (1.0 - rgb.r) *
-                            (1.0 - warmFilter.r))),  // adjusting temperature
-          (rgb.g < 0.5 ? (2.0 * rgb.g * warmFilter.g)
-                       : (1.0 - 2.0 * (1.0 - rgb.g) * (1.0 - warmFilter.g))),
-          (rgb.b < 0.5 ? (2.0 * rgb.b * warmFilter.b)
-                       : (1.0 - 2.0 * (1.0 - rgb.b) * (1.0 - warmFilter.b))));
-
-      gl_FragColor = vec4(mix(rgb, processed, temperature), color.a);
-    })";
+// the filter's shader, and a stage of a fused pass, see PointwiseFusion
+const char kPointwiseWhiteBalanceFunction[] = R"(
+uniform float temperature$;
+uniform float tint$;
+vec4 pointwise$(vec4 color) {
+  const vec3 warmFilter = vec3(0.93, 0.54, 0.0);
+  const mat3 RGBtoYIQ = mat3(0.299, 0.587, 0.114,
+                             0.596, -0.274, -0.322,
+                             0.212, -0.523, 0.311);
+  const mat3 YIQtoRGB = mat3(1.0, 0.956, 0.621,
+                             1.0, -0.272, -0.647,
+                             1.0, -1.105, 1.702);
+  vec3 yiq = RGBtoYIQ * color.rgb;
+  yiq.b = clamp(yiq.b + tint$ * 0.5226 * 0.1, -0.5226, 0.5226);
+  vec3 rgb = YIQtoRGB * yiq;
+  vec3 processed = vec3(
+      rgb.r < 0.5 ? 2.0 * rgb.r * warmFilter.r
+                  : 1.0 - 2.0 * (1.0 - rgb.r) * (1.0 - warmFilter.r),
+      rgb.g < 0.5 ? 2.0 * rgb.g * warmFilter.g
+                  : 1.0 - 2.0 * (1.0 - rgb.g) * (1.0 - warmFilter.g),
+      rgb.b < 0.5 ? 2.0 * rgb.b * warmFilter.b
+                  : 1.0 - 2.0 * (1.0 - rgb.b) * (1.0 - warmFilter.b));
+  return vec4(mix(rgb, processed, temperature$), color.a);
+})";
 
 std::shared_ptr<WhiteBalanceFilter> WhiteBalanceFilter::create() {
   auto ret = std::shared_ptr<WhiteBalanceFilter>(new WhiteBalanceFilter());
@@ -52,7 +46,8 @@ std::shared_ptr<WhiteBalanceFilter> WhiteBalanceFilter::create() {
 }
 
 bool WhiteBalanceFilter::init() {
-  if (!initWithFragmentShaderString(kWhiteBalanceFragmentShaderString)) {
+  if (!initWithFragmentShaderString(
+          PointwiseFusion::standaloneShader(kPointwiseWhiteBalanceFunction))) {
     return false;
   }
 
@@ -85,3 +80,13 @@ bool WhiteBalanceFilter::proceed(bool bUpdateTargets, int64_t frameTime) {
   _filterProgram->setUniformValue("tint", _tint);
   return Filter::proceed(bUpdateTargets, frameTime);
 }
+
+const char* WhiteBalanceFilter::getPointwiseFunction() const {
+  return kPointwiseWhiteBalanceFunction;
+}
+
+void WhiteBalanceFilter::setPointwiseUniforms(GLProgram* program, int stage) {
+  program->setUniformValue(_stageUniform("temperature", stage),
+                           _temperature);
+  program->setUniformValue(_stageUniform("tint", stage), _tint);
+}
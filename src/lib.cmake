@@ -17,6 +17,14 @@ ELSE()
     MESSAGE(FATAL_ERROR "NOT SUPPORT THIS SYSTEM")
 ENDIF()
 
+# Count heap allocations per thread (AllocationCounter), for checking the
+# render loop stays allocation free
+# --------
+OPTION(GPUPIXEL_COUNT_ALLOCATIONS "Replace operator new to count allocations" OFF)
+IF(GPUPIXEL_COUNT_ALLOCATIONS)
+	add_definitions(-DGPUPIXEL_COUNT_ALLOCATIONS)
+ENDIF()
+
 # Config build output path
 # --------
 SET(OUTPUT_INSTALL_PATH "${CMAKE_CURRENT_SOURCE_DIR}/../output")
@@ -196,7 +204,16 @@ ENDIF()
 
 # link libs
 # -------
-IF(${CURRENT_OS} STREQUAL "linux" OR ${CURRENT_OS} STREQUAL "wasm")
+IF(${CURRENT_OS} STREQUAL "linux")
+	TARGET_LINK_LIBRARIES(
+						${PROJECT_NAME}  
+						GL
+						EGL
+						glfw
+						vnn_core
+						vnn_kit
+						vnn_face)
+ELSEIF(${CURRENT_OS} STREQUAL "wasm")
 	TARGET_LINK_LIBRARIES(
 						${PROJECT_NAME}  
 						GL
@@ -6,6 +6,7 @@
  */
 
 #include "source.h"
+#include "filter.h"
 #include "gpupixel_context.h"
 #include "util.h"
 
@@ -34,6 +35,12 @@ std::shared_ptr<Source> Source::addTarget(std::shared_ptr<Target> target,
   if (!hasTarget(target)) {
     _targets[target] = texIdx;
     target->setInputFramebuffer(_framebuffer, RotationMode::NoRotation, texIdx);
+    if (_pointwiseFusion) {
+      auto source = std::dynamic_pointer_cast<Source>(target);
+      if (source) {
+        source->setPointwiseFusion(true);
+      }
+    }
   }
   return std::dynamic_pointer_cast<Source>(target);
 }
@@ -70,52 +77,37 @@ bool Source::proceed(bool bUpdateTargets /* = true*/,
   if (bUpdateTargets) {
     updateTargets(frameTime);
   }
+  // hand out captures whose readback has finished in the meantime
+  GPUPixelContext::getInstance()->getFrameCapture()->poll();
   return true;
 }
 
 void Source::updateTargets(int64_t frameTime) {
+  PipelineMetrics* metrics =
+      GPUPixelContext::getInstance()->getPipelineMetrics();
+  const bool measure = metrics->isEnabled();
+  if (measure) {
+    metrics->recordTargets(this, _targets);
+  }
   for (auto& it : _targets) {
-    auto target = it.first;
-    target->setInputFramebuffer(_framebuffer, _outputRotation,
-                                _targets[target]);
+    const std::shared_ptr<Target>& target = it.first;
+    target->setInputFramebuffer(_framebuffer, _outputRotation, it.second);
     if (target->isPrepared()) {
-      target->update(frameTime);
+      if (measure && !dynamic_cast<Source*>(target.get())) {
+        // views and outputs end the graph, all of update() is their own
+        PipelineMetrics::NodeTimer timer(metrics, target.get());
+        target->update(frameTime);
+      } else {
+        target->update(frameTime);
+      }
       target->unPrepear();
     }
   }
 }
 
-unsigned char* Source::captureAProcessedFrameData(
-    std::shared_ptr<Filter> upToFilter,
-    int width /* = 0*/,
-    int height /* = 0*/) {
-  if (GPUPixelContext::getInstance()->isCapturingFrame) {
-    return 0;
-  }
-
-  if (width <= 0 || height <= 0) {
-    if (!_framebuffer) {
-      return 0;
-    }
-    width = getRotatedFramebufferWidth();
-    height = getRotatedFramebufferHeight();
-  }
-
-  GPUPixelContext::getInstance()->isCapturingFrame = true;
-  GPUPixelContext::getInstance()->captureWidth = width;
-  GPUPixelContext::getInstance()->captureHeight = height;
-  GPUPixelContext::getInstance()->captureUpToFilter = upToFilter;
-
-  proceed(true);
-  unsigned char* processedFrameData =
-      GPUPixelContext::getInstance()->capturedFrameData;
-
-  GPUPixelContext::getInstance()->capturedFrameData = 0;
-  GPUPixelContext::getInstance()->captureWidth = 0;
-  GPUPixelContext::getInstance()->captureHeight = 0;
-  GPUPixelContext::getInstance()->isCapturingFrame = false;
-
-  return processedFrameData;
+void Source::requestCapture(std::shared_ptr<Filter> upToFilter,
+                            const FrameCaptureRequest& request) {
+  upToFilter->requestCapture(request);
 }
 
 void Source::setFramebuffer(
@@ -137,13 +129,70 @@ int Source::getRotatedFramebufferWidth() const {
   }
 }
  
-int Source::RegLandmarkCallback(FaceDetectorCallback callback) {
+std::shared_ptr<FaceDetector> Source::_faceDetector() {
   if(_face_detector == nullptr) {
     // init face detector
     _face_detector = std::make_shared<FaceDetector>();
+    _face_detector->SetDetectionCadence(_faceDetectEveryNFrames,
+                                        _faceDetectMinIntervalMs);
+    _face_detector->SetMaxFaces(_faceDetectMaxFaces);
+  }
+  return _face_detector;
+}
+
+int Source::RegLandmarkCallback(FaceDetectorCallback callback) {
+  return _faceDetector()->RegCallback(callback);
+}
+
+int Source::RegLandmarkCallback(FaceLandmarksCallback callback) {
+  return _faceDetector()->RegCallback(callback);
+}
+
+bool Source::bindLandmarks(std::shared_ptr<Filter> filter) {
+  auto consumer = std::dynamic_pointer_cast<FaceLandmarkConsumer>(filter);
+  if (!consumer) {
+    return false;
+  }
+  if (!_landmarkChannel) {
+    auto channel = std::make_shared<FaceLandmarkChannel>();
+    RegLandmarkCallback(FaceLandmarksCallback(
+        [channel](const FaceLandmarkSet& faces) { channel->Publish(faces); }));
+    _landmarkChannel = channel;
+  }
+  consumer->SetLandmarkChannel(_landmarkChannel);
+  return true;
+}
+
+void Source::unbindLandmarks(std::shared_ptr<Filter> filter) {
+  auto consumer = std::dynamic_pointer_cast<FaceLandmarkConsumer>(filter);
+  if (consumer) {
+    consumer->SetLandmarkChannel(nullptr);
+  }
+}
+
+void Source::setFaceDetectionCadence(int everyNFrames, int minIntervalMs) {
+  _faceDetectEveryNFrames = everyNFrames;
+  _faceDetectMinIntervalMs = minIntervalMs;
+  if (_face_detector) {
+    _face_detector->SetDetectionCadence(everyNFrames, minIntervalMs);
   }
+}
 
-  return _face_detector->RegCallback(callback);
+void Source::setFaceDetectionMaxFaces(int maxFaces) {
+  _faceDetectMaxFaces = maxFaces;
+  if (_face_detector) {
+    _face_detector->SetMaxFaces(maxFaces);
+  }
+}
+
+void Source::setPointwiseFusion(bool enabled) {
+  _pointwiseFusion = enabled;
+  for (auto& it : _targets) {
+    auto source = std::dynamic_pointer_cast<Source>(it.first);
+    if (source) {
+      source->setPointwiseFusion(enabled);
+    }
+  }
 }
 
 int Source::getRotatedFramebufferHeight() const {
@@ -9,6 +9,7 @@
 
 #include <functional>
 #include <map>
+#include "frame_capture.h"
 #include "gpupixel_macros.h"
 #include "target.h"
 #if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_MAC)
@@ -51,17 +52,42 @@ class GPUPIXEL_API Source {
   virtual bool proceed(bool bUpdateTargets = true, int64_t frameTime = 0);
   virtual void updateTargets(int64_t frameTime);
 
-  virtual unsigned char* captureAProcessedFrameData(
-      std::shared_ptr<Filter> upToFilter,
-      int width = 0,
-      int height = 0);
+  // queues a readback of upToFilter's output for the next frame; see
+  // Filter::requestCapture. Finished captures are delivered from proceed().
+  void requestCapture(std::shared_ptr<Filter> upToFilter,
+                      const FrameCaptureRequest& request);
+  // the first face only; the overload below gets every tracked face
   int RegLandmarkCallback(FaceDetectorCallback callback);
+  int RegLandmarkCallback(FaceLandmarksCallback callback);
+  // lets a face filter read this source's landmarks natively every frame,
+  // no callback needed. Returns false if filter doesn't take landmarks.
+  bool bindLandmarks(std::shared_ptr<Filter> filter);
+  void unbindLandmarks(std::shared_ptr<Filter> filter);
+  // see FaceDetector::SetDetectionCadence
+  void setFaceDetectionCadence(int everyNFrames, int minIntervalMs);
+  int getFaceDetectionEveryNFrames() const { return _faceDetectEveryNFrames; }
+  int getFaceDetectionMinIntervalMs() const {
+    return _faceDetectMinIntervalMs;
+  }
+  // see FaceDetector::SetMaxFaces
+  void setFaceDetectionMaxFaces(int maxFaces);
+  // draws each run of consecutive point-wise filters downstream of this
+  // source (Brightness, Contrast, Saturation, Exposure, Hue, WhiteBalance)
+  // as a single pass. Filters connected later are included; off by default.
+  virtual void setPointwiseFusion(bool enabled);
  protected:
   std::shared_ptr<Framebuffer> _framebuffer;
   RotationMode _outputRotation;
   std::map<std::shared_ptr<Target>, int> _targets;
   float _framebufferScale;
   std::shared_ptr<FaceDetector> _face_detector;
+  std::shared_ptr<FaceDetector> _faceDetector();
+
+  std::shared_ptr<FaceLandmarkChannel> _landmarkChannel;
+  int _faceDetectEveryNFrames = 1;
+  int _faceDetectMinIntervalMs = 0;
+  int _faceDetectMaxFaces = FaceLandmarkSet::kMaxFaces;
+  bool _pointwiseFusion = false;
 };
 
 NS_GPUPIXEL_END
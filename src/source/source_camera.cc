@@ -45,14 +45,17 @@ void SourceCamera::setFrameData(
     RotationMode outputRotation /* = RotationMode::NoRotation*/) {
   if (!_framebuffer || (_framebuffer->getWidth() != width ||
                         _framebuffer->getHeight() != height)) {
-    _framebuffer =
-        GPUPixelContext::getInstance()->getFramebufferCache()->fetchFramebuffer(
-            width, height, true);
+    FramebufferCache* cache =
+        GPUPixelContext::getInstance()->getFramebufferCache();
+    cache->returnFramebuffer(_framebuffer);
+    _framebuffer = cache->fetchFramebuffer(width, height, true);
   }
   if(_face_detector) {
-      _face_detector->Detect(static_cast<const uint8_t *>(pixels), width, height,
-                             GPUPIXEL_MODE_FMT_VIDEO,
-                             GPUPIXEL_FRAME_TYPE_RGBA8888);
+      const uint8_t* planes[] = {static_cast<const uint8_t*>(pixels)};
+      const int strides[] = {width * 4};
+      _face_detector->SubmitFrame(planes, strides, width, height,
+                                  GPUPIXEL_FRAME_TYPE_RGBA8888,
+                                  Util::nowTimeMs());
   }
   this->setFramebuffer(_framebuffer, outputRotation);
 
@@ -7,6 +7,7 @@
 
 #include "source_image.h"
 #include "gpupixel_context.h"
+#include "resource_loader.h"
 #include "util.h"
 
 #if defined(GPUPIXEL_ANDROID)
@@ -41,6 +42,24 @@ std::shared_ptr<SourceImage> SourceImage::create(const std::string name) {
     return image;
 }
 
+std::shared_ptr<SourceImage> SourceImage::createFromResource(
+    const std::string& name) {
+    auto resource = ResourceLoader::open(name);
+    if (!resource) {
+        return nullptr;
+    }
+    int width, height, channel_count;
+    unsigned char *data = stbi_load_from_memory(resource->data(), (int)resource->size(),
+                                                &width, &height, &channel_count, 0);
+    if (data == nullptr) {
+        Util::Log("SourceImage", "SourceImage: can't decode resource %s", name.c_str());
+        return nullptr;
+    }
+    auto image = SourceImage::create_from_memory(width, height, channel_count, data);
+    stbi_image_free(data);
+    return image;
+}
+
 void SourceImage::init(int width, int height, int channel_count, const unsigned char* pixels) {
     this->setFramebuffer(0);
     if (!_framebuffer || (_framebuffer->getWidth() != width ||
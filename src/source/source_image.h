@@ -23,6 +23,9 @@ class GPUPIXEL_API SourceImage : public Source {
               const unsigned char* pixels);
   static std::shared_ptr<SourceImage> create(
       const std::string name);
+  // a bundled image by resource name, see ResourceLoader
+  static std::shared_ptr<SourceImage> createFromResource(
+      const std::string& name);
 
   static std::shared_ptr<SourceImage> create_from_memory(int width,
                                             int height,
@@ -21,6 +21,8 @@ const std::string kI420VertexShaderString = R"(
       gl_Position = position;
     })";
 
+// texture_type: 0 I420, 1 RGBA, 2 NV12, 3 NV21. YUV planes are uploaded at
+// their full stride, the *_width_scale uniforms crop the padding away.
 #if defined(GPUPIXEL_IOS) || defined(GPUPIXEL_ANDROID)
 const std::string kI420FragmentShaderString = R"(
     varying mediump vec2 textureCoordinate; uniform sampler2D yTexture;
@@ -28,22 +30,36 @@ const std::string kI420FragmentShaderString = R"(
     uniform sampler2D vTexture;
     uniform sampler2D inputImageTexture;
     uniform int texture_type;
+    uniform mediump float y_width_scale;
+    uniform mediump float u_width_scale;
+    uniform mediump float v_width_scale;
     mediump mat3 trans =
         mat3(1.0, 1.0, 1.0,
              0, -0.34414, 1.772,
              1.402, -0.71414, 0);
 
     void main() {
-      mediump vec3 yuv;
-      if (texture_type == 0) {  // yuv
-        yuv.x = texture2D(yTexture, textureCoordinate).r;
-        yuv.y = texture2D(uTexture, textureCoordinate).r - 0.5;
-        yuv.z = texture2D(vTexture, textureCoordinate).r - 0.5;
-
-        gl_FragColor = vec4(trans * yuv, 1.0);
-      } else {
+      if (texture_type == 1) {  // rgba
         gl_FragColor = texture2D(inputImageTexture, textureCoordinate);
+        return;
       }
+
+      mediump vec3 yuv;
+      yuv.x = texture2D(yTexture, vec2(textureCoordinate.x * y_width_scale,
+                                       textureCoordinate.y)).r;
+      mediump vec2 uvCoordinate =
+          vec2(textureCoordinate.x * u_width_scale, textureCoordinate.y);
+      if (texture_type == 0) {  // i420
+        yuv.y = texture2D(uTexture, uvCoordinate).r - 0.5;
+        yuv.z = texture2D(vTexture, vec2(textureCoordinate.x * v_width_scale,
+                                         textureCoordinate.y)).r - 0.5;
+      } else if (texture_type == 2) {  // nv12
+        yuv.yz = texture2D(uTexture, uvCoordinate).ra - 0.5;
+      } else {  // nv21
+        yuv.yz = texture2D(uTexture, uvCoordinate).ar - 0.5;
+      }
+
+      gl_FragColor = vec4(trans * yuv, 1.0);
     })";
 #elif defined(GPUPIXEL_MAC) || defined(GPUPIXEL_WIN) || defined(GPUPIXEL_LINUX)
 const std::string kI420FragmentShaderString = R"(
@@ -52,21 +68,35 @@ const std::string kI420FragmentShaderString = R"(
     uniform sampler2D vTexture;
     uniform sampler2D inputImageTexture;
     uniform int texture_type;
+    uniform float y_width_scale;
+    uniform float u_width_scale;
+    uniform float v_width_scale;
     mat3 trans = mat3(1.0, 1.0, 1.0,
                       0, -0.34414, 1.772,
                       1.402, -0.71414, 0);
 
     void main() {
+      if (texture_type == 1) {  // rgba
+        gl_FragColor = texture2D(inputImageTexture, textureCoordinate);
+        return;
+      }
+
       vec3 yuv;
+      yuv.x = texture2D(yTexture, vec2(textureCoordinate.x * y_width_scale,
+                                       textureCoordinate.y)).r;
+      vec2 uvCoordinate =
+          vec2(textureCoordinate.x * u_width_scale, textureCoordinate.y);
       if (texture_type == 0) {  // i420
-        yuv.x = texture2D(yTexture, textureCoordinate).r;
-        yuv.y = texture2D(uTexture, textureCoordinate).r - 0.5;
-        yuv.z = texture2D(vTexture, textureCoordinate).r - 0.5;
-
-        gl_FragColor = vec4(trans * yuv, 1.0);
-      } else {
-        gl_FragColor = texture2D(inputImageTexture, textureCoordinate);
+        yuv.y = texture2D(uTexture, uvCoordinate).r - 0.5;
+        yuv.z = texture2D(vTexture, vec2(textureCoordinate.x * v_width_scale,
+                                         textureCoordinate.y)).r - 0.5;
+      } else if (texture_type == 2) {  // nv12
+        yuv.yz = texture2D(uTexture, uvCoordinate).ra - 0.5;
+      } else {  // nv21
+        yuv.yz = texture2D(uTexture, uvCoordinate).ar - 0.5;
       }
+
+      gl_FragColor = vec4(trans * yuv, 1.0);
     })";
 #endif
 
@@ -99,6 +129,9 @@ bool SourceRawDataInput::init() {
   _filterProgram->setUniformValue("yTexture", 0);
   _filterProgram->setUniformValue("uTexture", 1);
   _filterProgram->setUniformValue("vTexture", 2);
+  _filterProgram->setUniformValue("y_width_scale", 1.0f);
+  _filterProgram->setUniformValue("u_width_scale", 1.0f);
+  _filterProgram->setUniformValue("v_width_scale", 1.0f);
 
   if (0 == _textures[0]) {
     glGenTextures(4, _textures);
@@ -122,12 +155,24 @@ void SourceRawDataInput::uploadBytes(const uint8_t* pixels,
                                      int height,
                                      int stride,
                                      int64_t ts) {
-  GPUPixelContext::getInstance()->runSync([=] {
-    if(_face_detector) {
-      _face_detector->Detect(pixels, width, height, GPUPIXEL_MODE_FMT_VIDEO,GPUPIXEL_FRAME_TYPE_RGBA8888);
+  // by reference, so the std::function runSync takes does not allocate
+  auto upload = [&] {
+    const bool synchronous = _faceDetectionSynchronous && stride == width;
+    _detectThroughProxy = _face_detector && !synchronous &&
+                          _detectionProxy.isEnabled();
+    if (_face_detector && synchronous) {
+      _face_detector->Detect(pixels, width, height, GPUPIXEL_MODE_FMT_PICTURE,
+                             GPUPIXEL_FRAME_TYPE_RGBA8888);
+    } else if (_face_detector && !_detectThroughProxy) {
+      const uint8_t* planes[] = {pixels};
+      const int strides[] = {stride * 4};
+      _face_detector->SubmitFrame(planes, strides, width, height,
+                                  GPUPIXEL_FRAME_TYPE_RGBA8888,
+                                  Util::nowTimeMs());
     }
-    genTextureWithRGBA(pixels, width, height, stride, ts); 
-  });
+    genTextureWithRGBA(pixels, width, height, stride, ts);
+  };
+  GPUPixelContext::getInstance()->runSync(std::ref(upload));
 }
 
 void SourceRawDataInput::setRotation(RotationMode rotation) {
@@ -143,14 +188,43 @@ void SourceRawDataInput::uploadBytes(int width,
                                      const uint8_t* dataV,
                                      int strideV,
                                      int64_t ts) {
-  GPUPixelContext::getInstance()->runSync([=] {
-    if(_face_detector) {
-      _face_detector->Detect(dataY, width, height, GPUPIXEL_MODE_FMT_VIDEO, GPUPIXEL_FRAME_TYPE_YUVI420);
+  auto upload = [&] {
+    _detectThroughProxy = _face_detector && _detectionProxy.isEnabled();
+    if (_face_detector && !_detectThroughProxy) {
+      const uint8_t* planes[] = {dataY, dataU, dataV};
+      const int strides[] = {strideY, strideU, strideV};
+      _face_detector->SubmitFrame(planes, strides, width, height,
+                                  GPUPIXEL_FRAME_TYPE_YUVI420,
+                                  Util::nowTimeMs());
     }
 
     genTextureWithI420(width, height, dataY, strideY, dataU, strideU, dataV,
                        strideV, ts);
-  });
+  };
+  GPUPixelContext::getInstance()->runSync(std::ref(upload));
+}
+
+void SourceRawDataInput::uploadBytes(int width,
+                                     int height,
+                                     const uint8_t* dataY,
+                                     int strideY,
+                                     const uint8_t* dataUV,
+                                     int strideUV,
+                                     GPUPIXEL_FRAME_TYPE type,
+                                     int64_t ts) {
+  auto upload = [&] {
+    _detectThroughProxy = _face_detector && _detectionProxy.isEnabled();
+    if (_face_detector && !_detectThroughProxy) {
+      const uint8_t* planes[] = {dataY, dataUV};
+      const int strides[] = {strideY, strideUV};
+      _face_detector->SubmitFrame(planes, strides, width, height, type,
+                                  Util::nowTimeMs());
+    }
+
+    genTextureWithNV(width, height, dataY, strideY, dataUV, strideUV,
+                     type == GPUPIXEL_FRAME_TYPE_NV21, ts);
+  };
+  GPUPixelContext::getInstance()->runSync(std::ref(upload));
 }
 
 int SourceRawDataInput::genTextureWithI420(int width,
@@ -162,18 +236,101 @@ int SourceRawDataInput::genTextureWithI420(int width,
                                            const uint8_t* dataV,
                                            int strideV,
                                            int64_t ts) {
-  if (!_framebuffer || (_framebuffer->getWidth() != width ||
-                        _framebuffer->getHeight() != height)) {
-    _framebuffer =
-        GPUPixelContext::getInstance()->getFramebufferCache()->fetchFramebuffer(
-            width, height);
+  PipelineMetrics::NodeTimer timer(
+      GPUPixelContext::getInstance()->getPipelineMetrics(), this);
+  _prepareFramebuffer(width, height);
+
+  const int chromaWidth = (width + 1) / 2;
+  const int chromaHeight = (height + 1) / 2;
+  _uploadPlane(0, GL_LUMINANCE, strideY, height, dataY);
+  _uploadPlane(1, GL_LUMINANCE, strideU, chromaHeight, dataU);
+  _uploadPlane(2, GL_LUMINANCE, strideV, chromaHeight, dataV);
+
+  _drawYUV(0, (float)width / strideY, (float)chromaWidth / strideU,
+           (float)chromaWidth / strideV);
+  timer.stop();
+  _detectInProxy(_textures[0], true, (float)width / strideY, width, height);
+
+  Source::proceed(true, ts);
+  return 0;
+}
+
+int SourceRawDataInput::genTextureWithNV(int width,
+                                         int height,
+                                         const uint8_t* dataY,
+                                         int strideY,
+                                         const uint8_t* dataUV,
+                                         int strideUV,
+                                         bool isNV21,
+                                         int64_t ts) {
+  PipelineMetrics::NodeTimer timer(
+      GPUPixelContext::getInstance()->getPipelineMetrics(), this);
+  _prepareFramebuffer(width, height);
+
+  // the interleaved chroma plane is sampled as luminance/alpha pairs
+  const int chromaWidth = (width + 1) / 2;
+  const int chromaHeight = (height + 1) / 2;
+  const int chromaTextureWidth = strideUV / 2;
+  _uploadPlane(0, GL_LUMINANCE, strideY, height, dataY);
+  _uploadPlane(1, GL_LUMINANCE_ALPHA, chromaTextureWidth, chromaHeight, dataUV);
+
+  const float uvScale = (float)chromaWidth / chromaTextureWidth;
+  _drawYUV(isNV21 ? 3 : 2, (float)width / strideY, uvScale, uvScale);
+  timer.stop();
+  _detectInProxy(_textures[0], true, (float)width / strideY, width, height);
+
+  Source::proceed(true, ts);
+  return 0;
+}
+
+void SourceRawDataInput::_uploadPlane(int index,
+                                      GLenum format,
+                                      int width,
+                                      int height,
+                                      const uint8_t* data) {
+  CHECK_GL(glActiveTexture(GL_TEXTURE0 + index));
+  CHECK_GL(glBindTexture(GL_TEXTURE_2D, _textures[index]));
+  CHECK_GL(glPixelStorei(GL_UNPACK_ALIGNMENT, 1));
+  if (_textureWidths[index] == width && _textureHeights[index] == height &&
+      _textureFormats[index] == format) {
+    CHECK_GL(glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, format,
+                             GL_UNSIGNED_BYTE, data));
+  } else {
+    CHECK_GL(glTexImage2D(GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                          GL_UNSIGNED_BYTE, data));
+    _textureWidths[index] = width;
+    _textureHeights[index] = height;
+    _textureFormats[index] = format;
+  }
+}
+
+void SourceRawDataInput::_prepareFramebuffer(int width, int height) {
+  // rotation is applied through the texture coordinates, so a quarter turn
+  // only has to swap the output size
+  int outputWidth = width;
+  int outputHeight = height;
+  if (rotationSwapsSize(_rotation)) {
+    outputWidth = height;
+    outputHeight = width;
   }
 
+  if (!_framebuffer || (_framebuffer->getWidth() != outputWidth ||
+                        _framebuffer->getHeight() != outputHeight)) {
+    FramebufferCache* cache =
+        GPUPixelContext::getInstance()->getFramebufferCache();
+    cache->returnFramebuffer(_framebuffer);
+    _framebuffer = cache->fetchFramebuffer(outputWidth, outputHeight);
+  }
   this->setFramebuffer(_framebuffer, NoRotation);
 
   GPUPixelContext::getInstance()->setActiveShaderProgram(_filterProgram);
   this->getFramebuffer()->active();
+}
 
+void SourceRawDataInput::_drawYUV(int textureType,
+                                  float yScale,
+                                  float uScale,
+                                  float vScale) {
   GLfloat imageVertices[]{
       -1.0, -1.0,  // left down
       1.0,  -1.0,  // right down
@@ -189,24 +346,26 @@ int SourceRawDataInput::genTextureWithI420(int width,
   CHECK_GL(glVertexAttribPointer(_filterTexCoordAttribute, 2, GL_FLOAT, 0, 0,
                                  _getTexureCoordinate(_rotation)));
 
-  const uint8_t* pixels[3] = {dataY, dataU, dataV};
-  const int widths[3] = {width, width / 2, width / 2};
-  const int heights[3] = {height, height / 2, height / 2};
+  _filterProgram->setUniformValue("texture_type", textureType);
+  _filterProgram->setUniformValue("y_width_scale", yScale);
+  _filterProgram->setUniformValue("u_width_scale", uScale);
+  _filterProgram->setUniformValue("v_width_scale", vScale);
 
-  for (int i = 0; i < 3; ++i) {
-    glActiveTexture(GL_TEXTURE0 + i);
-    glBindTexture(GL_TEXTURE_2D, _textures[i]);
-    glTexImage2D(GL_TEXTURE_2D, 0, GL_LUMINANCE, widths[i], heights[i], 0,
-                 GL_LUMINANCE, GL_UNSIGNED_BYTE, pixels[i]);
-  }
-  
-  _filterProgram->setUniformValue("texture_type", 0);
   // draw frame buffer
   glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
   this->getFramebuffer()->inactive();
+}
 
-  Source::proceed(true, ts);
-  return 0;
+// the planes are on the GPU already, the detector's copy is made from them
+void SourceRawDataInput::_detectInProxy(GLuint texture,
+                                        bool luminance,
+                                        float widthScale,
+                                        int width,
+                                        int height) {
+  if (_detectThroughProxy) {
+    _detectionProxy.process(_face_detector, texture, luminance, widthScale,
+                            width, height, Util::nowTimeMs());
+  }
 }
 
 int SourceRawDataInput::genTextureWithRGBA(const uint8_t* pixels,
@@ -214,14 +373,8 @@ int SourceRawDataInput::genTextureWithRGBA(const uint8_t* pixels,
                                            int height,
                                            int stride,
                                            int64_t ts) {
-  if (!_framebuffer || (_framebuffer->getWidth() != stride ||
-                        _framebuffer->getHeight() != height)) {
-    _framebuffer =
-        GPUPixelContext::getInstance()->getFramebufferCache()->fetchFramebuffer(
-            stride, height);
-  }
-  this->setFramebuffer(_framebuffer, NoRotation);
-
+  PipelineMetrics::NodeTimer timer(
+      GPUPixelContext::getInstance()->getPipelineMetrics(), this);
   GLuint texture = _textures[3];
   CHECK_GL(glBindTexture(GL_TEXTURE_2D, texture));
 
@@ -233,8 +386,7 @@ int SourceRawDataInput::genTextureWithRGBA(const uint8_t* pixels,
                         GL_UNSIGNED_BYTE, pixels));
 #endif
 
-  GPUPixelContext::getInstance()->setActiveShaderProgram(_filterProgram);
-  this->getFramebuffer()->active();
+  _prepareFramebuffer(stride, height);
 
   GLfloat imageVertices[]{
     -1.0f, -1.0f,
@@ -260,6 +412,8 @@ int SourceRawDataInput::genTextureWithRGBA(const uint8_t* pixels,
   // draw frame buffer
   glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
   this->getFramebuffer()->inactive();
+  timer.stop();
+  _detectInProxy(texture, false, (float)width / stride, width, height);
 
   Source::proceed(true, ts);
   return 0;
@@ -7,6 +7,7 @@
 
 #pragma once
 
+#include "face_detection_proxy.h"
 #include "filter.h"
 #include "gl_program.h"
 #include <functional>
@@ -29,8 +30,28 @@ class GPUPIXEL_API SourceRawDataInput : public Filter {
                    const uint8_t* dataV,
                    int strideV,
                    int64_t ts = 0);
+  // semi-planar NV12 / NV21 (type GPUPIXEL_FRAME_TYPE_NV12 or _NV21)
+  void uploadBytes(int width,
+                   int height,
+                   const uint8_t* dataY,
+                   int strideY,
+                   const uint8_t* dataUV,
+                   int strideUV,
+                   GPUPIXEL_FRAME_TYPE type,
+                   int64_t ts = 0);
 
   void setRotation(RotationMode rotation);
+  // detect faces in every RGBA upload before it renders instead of on the
+  // detection worker, for stills where there is nothing to extrapolate from.
+  // Padded rows still go through the worker.
+  void setFaceDetectionSynchronous(bool synchronous) {
+    _faceDetectionSynchronous = synchronous;
+  }
+  // short side of the copy faces are detected in, see FaceDetectionProxy;
+  // 0 detects in the full frame on the CPU
+  void setFaceDetectionProxySize(int shortSide) {
+    _detectionProxy.setShortSide(shortSide);
+  }
 
  private:
   SourceRawDataInput();
@@ -46,6 +67,15 @@ class GPUPIXEL_API SourceRawDataInput : public Filter {
                          int strideV,
                          int64_t ts = 0);
 
+  int genTextureWithNV(int width,
+                       int height,
+                       const uint8_t* dataY,
+                       int strideY,
+                       const uint8_t* dataUV,
+                       int strideUV,
+                       bool isNV21,
+                       int64_t ts = 0);
+
   int genTextureWithRGBA(const uint8_t* pixels,
                          int width,
                          int height,
@@ -58,8 +88,30 @@ class GPUPIXEL_API SourceRawDataInput : public Filter {
   GLuint _filterTexCoordAttribute;
 
   GLuint _textures[4] = {0};
+  // size and format last allocated per texture, so same-sized frames only
+  // need glTexSubImage2D
+  int _textureWidths[4] = {0};
+  int _textureHeights[4] = {0};
+  GLenum _textureFormats[4] = {0};
   RotationMode _rotation = NoRotation;
+  bool _faceDetectionSynchronous = false;
+  FaceDetectionProxy _detectionProxy;
+  // this frame's landmarks come from the proxy, set before it renders
+  bool _detectThroughProxy = false;
   std::shared_ptr<Framebuffer> _framebuffer;
+
+  void _uploadPlane(int index,
+                    GLenum format,
+                    int width,
+                    int height,
+                    const uint8_t* data);
+  void _prepareFramebuffer(int width, int height);
+  void _drawYUV(int textureType, float yScale, float uScale, float vScale);
+  void _detectInProxy(GLuint texture,
+                      bool luminance,
+                      float widthScale,
+                      int width,
+                      int height);
 };
 
 NS_GPUPIXEL_END
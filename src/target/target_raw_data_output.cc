@@ -80,7 +80,9 @@ TargetRawDataOutput::~TargetRawDataOutput() {
     }
 #endif
 
-    CHECK_GL(glDeleteBuffers(PBO_SIZE, pboIds));
+    if (!pboIds.empty()) {
+      CHECK_GL(glDeleteBuffers((GLsizei)pboIds.size(), pboIds.data()));
+    }
 
     CHECK_GL(glDeleteBuffers(PBO_SIZE, pboIds_yuvdata));
   });
@@ -94,7 +96,11 @@ void TargetRawDataOutput::update(int64_t frameTime) {
 
   int width = _inputFramebuffers[0].frameBuffer->getWidth();
   int height = _inputFramebuffers[0].frameBuffer->getHeight();
-  if (_width != width || _height != height) {
+  bool pboCountChanged = false;
+#if !defined(GPUPIXEL_IOS)
+  pboCountChanged = (int)pboIds.size() != _pboCount;
+#endif
+  if (_width != width || _height != height || pboCountChanged) {
     _width = width;
     _height = height;
 #if defined(GPUPIXEL_IOS)
@@ -180,6 +186,10 @@ void TargetRawDataOutput::setPixelsCallbck(RawOutputCallback cb) {
   pixels_callback_ = cb;
 }
 
+void TargetRawDataOutput::setPBOCount(int count) {
+  _pboCount = count < 1 ? 1 : count;
+}
+
 void TargetRawDataOutput::initOutputBuffer(int width, int height) {
   uint32_t rgb_size = width * height * 4;
   uint32_t yuv_size = width * height * 3 / 2;
@@ -292,15 +302,25 @@ void TargetRawDataOutput::initTextureCache(int width, int height) {
 void TargetRawDataOutput::initFrameBuffer(int width, int height) {
   if (!_framebuffer || (_framebuffer->getWidth() != width ||
                         _framebuffer->getHeight() != height)) {
-    _framebuffer =
-        GPUPixelContext::getInstance()->getFramebufferCache()->fetchFramebuffer(
-            width, height);
+    FramebufferCache* cache =
+        GPUPixelContext::getInstance()->getFramebufferCache();
+    cache->returnFramebuffer(_framebuffer);
+    _framebuffer = cache->fetchFramebuffer(width, height);
   }
 }
 
 void TargetRawDataOutput::initPBO(int width, int height) {
-  CHECK_GL(glGenBuffers(PBO_SIZE, pboIds));
-  for (int i = 0; i < PBO_SIZE; ++i) {
+  if (!pboIds.empty()) {
+    CHECK_GL(glDeleteBuffers((GLsizei)pboIds.size(), pboIds.data()));
+  }
+  pboIds.assign(_pboCount, 0);
+  _pboTimestamps.assign(_pboCount, 0);
+  _pboFilled = 0;
+  index = 0;
+  nextIndex = 0;
+
+  CHECK_GL(glGenBuffers(_pboCount, pboIds.data()));
+  for (int i = 0; i < _pboCount; ++i) {
     CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[i]));
     CHECK_GL(glBufferData(GL_PIXEL_PACK_BUFFER, width * height * 4, 0,
                           GL_STREAM_READ));
@@ -310,13 +330,25 @@ void TargetRawDataOutput::initPBO(int width, int height) {
 
 // read pixel with pbo
 void TargetRawDataOutput::readPixelsWithPBO(int width, int height) {
-  index = (index + 1) % 2;
-  nextIndex = (index + 1) % 2;
+  const int count = (int)pboIds.size();
+  index = (index + 1) % count;
+  // the oldest PBO in the ring
+  nextIndex = (index + 1) % count;
 
   // read pixels from framebuffer to PBO
   // glReadPixels() should return immediately.
   CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[index]));
   CHECK_GL(glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, 0));
+  _pboTimestamps[index] = _frame_ts;
+  if (_pboFilled < count) {
+    _pboFilled++;
+  }
+  if (_pboFilled < count) {
+    // ring not primed yet, the oldest PBO holds no frame
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, GL_NONE);
+    return;
+  }
+
   // map the PBO to process its data by CPU
   CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[nextIndex]));
 
@@ -327,16 +359,17 @@ void TargetRawDataOutput::readPixelsWithPBO(int width, int height) {
                   GL_PIXEL_PACK_BUFFER, 0, width * height * 4, GL_MAP_READ_BIT);
 #endif
   if (ptr) {
-       libyuv::ABGRToI420(ptr, width * 4, _yuvFrameBuffer, _width,
-                          _yuvFrameBuffer + _width * _height, _width / 2,
-                          _yuvFrameBuffer + _width * _height * 5 / 4, _width
-                          / 2, _width, _height);
+    const int64_t ts = _pboTimestamps[nextIndex];
     if (i420_callback_) {
-      i420_callback_(_yuvFrameBuffer, _width, _height, _frame_ts);
+      libyuv::ABGRToI420(ptr, width * 4, _yuvFrameBuffer, _width,
+                         _yuvFrameBuffer + _width * _height, _width / 2,
+                         _yuvFrameBuffer + _width * _height * 5 / 4, _width
+                         / 2, _width, _height);
+      i420_callback_(_yuvFrameBuffer, _width, _height, ts);
     }
 
     if(pixels_callback_) {
-      pixels_callback_(ptr, _width, _height, _frame_ts);
+      pixels_callback_(ptr, _width, _height, ts);
     }
 
     glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
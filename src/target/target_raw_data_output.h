@@ -19,11 +19,13 @@
 #endif
 
 #include <mutex>
+#include <vector>
 NS_GPUPIXEL_BEGIN
 GPUPIXEL_API typedef std::function<
     void(const uint8_t* data, int width, int height, int64_t ts)>
     RawOutputCallback;
     
+// default depth of the readback ring
 #define PBO_SIZE 2
 
 class GPUPIXEL_API TargetRawDataOutput : public Target {
@@ -34,6 +36,10 @@ class GPUPIXEL_API TargetRawDataOutput : public Target {
   void update(int64_t frameTime) override;
   void setI420Callbck(RawOutputCallback cb);
   void setPixelsCallbck(RawOutputCallback cb);
+  // number of PBOs frames rotate through; a frame is delivered count - 1
+  // frames after it was rendered. Takes effect on the next frame.
+  void setPBOCount(int count);
+  int getPBOCount() const { return _pboCount; }
  private:
   int renderToOutput();
   bool initWithShaderString(const std::string& vertexShaderSource,
@@ -64,7 +70,11 @@ class GPUPIXEL_API TargetRawDataOutput : public Target {
 
   bool init_ = false;
 
-  GLuint pboIds[PBO_SIZE] = {0};
+  int _pboCount = PBO_SIZE;
+  std::vector<GLuint> pboIds;
+  // timestamp of the frame each PBO holds, and how many PBOs hold one
+  std::vector<int64_t> _pboTimestamps;
+  int _pboFilled = 0;
 
   GLuint pboIds_yuvdata[PBO_SIZE] = {0};
 
@@ -0,0 +1,83 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "allocation_counter.h"
+#include <cstdlib>
+#include <new>
+
+#if defined(GPUPIXEL_COUNT_ALLOCATIONS)
+static thread_local uint64_t tAllocations = 0;
+
+static void* countedAlloc(std::size_t size) {
+  ++tAllocations;
+  return std::malloc(size ? size : 1);
+}
+
+void* operator new(std::size_t size) {
+  void* p = countedAlloc(size);
+  if (!p) {
+    throw std::bad_alloc();
+  }
+  return p;
+}
+
+void* operator new[](std::size_t size) {
+  return operator new(size);
+}
+
+void* operator new(std::size_t size, const std::nothrow_t&) noexcept {
+  return countedAlloc(size);
+}
+
+void* operator new[](std::size_t size, const std::nothrow_t&) noexcept {
+  return countedAlloc(size);
+}
+
+void operator delete(void* p) noexcept {
+  std::free(p);
+}
+
+void operator delete[](void* p) noexcept {
+  std::free(p);
+}
+
+void operator delete(void* p, std::size_t) noexcept {
+  std::free(p);
+}
+
+void operator delete[](void* p, std::size_t) noexcept {
+  std::free(p);
+}
+
+void operator delete(void* p, const std::nothrow_t&) noexcept {
+  std::free(p);
+}
+
+void operator delete[](void* p, const std::nothrow_t&) noexcept {
+  std::free(p);
+}
+#endif
+
+NS_GPUPIXEL_BEGIN
+
+bool AllocationCounter::isEnabled() {
+#if defined(GPUPIXEL_COUNT_ALLOCATIONS)
+  return true;
+#else
+  return false;
+#endif
+}
+
+uint64_t AllocationCounter::threadAllocations() {
+#if defined(GPUPIXEL_COUNT_ALLOCATIONS)
+  return tAllocations;
+#else
+  return 0;
+#endif
+}
+
+NS_GPUPIXEL_END
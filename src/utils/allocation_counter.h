@@ -0,0 +1,24 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <cstdint>
+#include "gpupixel_macros.h"
+
+NS_GPUPIXEL_BEGIN
+// Heap allocations made by the calling thread, for checking that a render
+// loop stays allocation free. Counting replaces the global operator new and
+// is only compiled in with GPUPIXEL_COUNT_ALLOCATIONS (cmake option of the
+// same name); otherwise threadAllocations() is always 0.
+class GPUPIXEL_API AllocationCounter {
+ public:
+  static bool isEnabled();
+  static uint64_t threadAllocations();
+};
+
+NS_GPUPIXEL_END
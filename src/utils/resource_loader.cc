@@ -0,0 +1,110 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#include "resource_loader.h"
+#include <atomic>
+#include <fstream>
+#include <iterator>
+#include "util.h"
+
+#if defined(GPUPIXEL_WIN)
+#else
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#endif
+
+NS_GPUPIXEL_BEGIN
+
+#if defined(GPUPIXEL_ANDROID)
+static std::atomic<AAssetManager*> sAssetManager{nullptr};
+
+void ResourceLoader::setAssetManager(AAssetManager* assetManager) {
+  sAssetManager = assetManager;
+}
+#endif
+
+ResourceData::~ResourceData() {
+#if defined(GPUPIXEL_ANDROID)
+  if (_asset) {
+    AAsset_close((AAsset*)_asset);
+  }
+#endif
+#if !defined(GPUPIXEL_WIN)
+  if (_mapping) {
+    munmap(_mapping, _mappingSize);
+  }
+#endif
+}
+
+std::unique_ptr<ResourceData> ResourceLoader::open(const std::string& name) {
+#if defined(GPUPIXEL_ANDROID)
+  AAssetManager* assetManager = sAssetManager;
+  if (assetManager) {
+    std::string assetName = "resource/" + name;
+    // BUFFER maps uncompressed assets; compressed ones are inflated
+    // into memory the asset owns
+    AAsset* asset =
+        AAssetManager_open(assetManager, assetName.c_str(), AASSET_MODE_BUFFER);
+    if (asset) {
+      const void* buffer = AAsset_getBuffer(asset);
+      if (buffer) {
+        std::unique_ptr<ResourceData> resource(new ResourceData());
+        resource->_asset = asset;
+        resource->_data = (const uint8_t*)buffer;
+        resource->_size = (size_t)AAsset_getLength64(asset);
+        return resource;
+      }
+      AAsset_close(asset);
+    }
+    Util::Log("WARN", "ResourceLoader: %s is not in the APK, trying files",
+              name.c_str());
+  }
+#endif
+  return _openFile(Util::getResourcePath(name));
+}
+
+std::unique_ptr<ResourceData> ResourceLoader::_openFile(
+    const std::string& path) {
+  std::unique_ptr<ResourceData> resource(new ResourceData());
+#if defined(GPUPIXEL_WIN)
+  std::ifstream file(path, std::ios::binary);
+  if (!file) {
+    Util::Log("ERROR", "ResourceLoader: can't open %s", path.c_str());
+    return nullptr;
+  }
+  resource->_copy.assign(std::istreambuf_iterator<char>(file),
+                         std::istreambuf_iterator<char>());
+  resource->_data = resource->_copy.data();
+  resource->_size = resource->_copy.size();
+#else
+  int fd = ::open(path.c_str(), O_RDONLY);
+  struct stat info;
+  if (fd < 0 || fstat(fd, &info) != 0 || info.st_size <= 0) {
+    Util::Log("ERROR", "ResourceLoader: can't open %s", path.c_str());
+    if (fd >= 0) {
+      close(fd);
+    }
+    return nullptr;
+  }
+  void* mapping =
+      mmap(nullptr, (size_t)info.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+  close(fd);
+  if (mapping == MAP_FAILED) {
+    Util::Log("ERROR", "ResourceLoader: can't map %s", path.c_str());
+    return nullptr;
+  }
+  resource->_mapping = mapping;
+  resource->_mappingSize = (size_t)info.st_size;
+  resource->_data = (const uint8_t*)mapping;
+  resource->_size = (size_t)info.st_size;
+#endif
+  return resource;
+}
+
+NS_GPUPIXEL_END
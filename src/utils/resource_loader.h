@@ -0,0 +1,60 @@
+/*
+ * GPUPixel
+ *
+ * Created by PixPark on 2021/6/24.
+ * Copyright © 2021 PixPark. All rights reserved.
+ */
+
+#pragma once
+
+#include <memory>
+#include <string>
+#include <vector>
+#include "gpupixel_macros.h"
+
+#if defined(GPUPIXEL_ANDROID)
+#include <android/asset_manager.h>
+#endif
+
+NS_GPUPIXEL_BEGIN
+// Bytes of one bundled resource, read-only and valid while the object
+// lives. Memory mapped where possible, so nothing is copied.
+class GPUPIXEL_API ResourceData {
+ public:
+  ~ResourceData();
+  const uint8_t* data() const { return _data; }
+  size_t size() const { return _size; }
+
+ private:
+  friend class ResourceLoader;
+  ResourceData() {}
+
+  const uint8_t* _data = nullptr;
+  size_t _size = 0;
+  // whichever one backs _data
+  void* _asset = nullptr;
+  void* _mapping = nullptr;
+  size_t _mappingSize = 0;
+  std::vector<uint8_t> _copy;
+};
+
+// Opens resources by the name Util::getResourcePath takes. On Android,
+// once an AAssetManager is set, they are read straight from the APK:
+// assets stored uncompressed are mapped in place and need no extraction.
+// Elsewhere, and as the fallback, the file at getResourcePath is mapped.
+class GPUPIXEL_API ResourceLoader {
+ public:
+  // null when the resource can't be found
+  static std::unique_ptr<ResourceData> open(const std::string& name);
+
+#if defined(GPUPIXEL_ANDROID)
+  // assets are looked up under "resource/"; the manager must outlive
+  // every load, null goes back to extracted files
+  static void setAssetManager(AAssetManager* assetManager);
+#endif
+
+ private:
+  static std::unique_ptr<ResourceData> _openFile(const std::string& path);
+};
+
+NS_GPUPIXEL_END
@@ -120,32 +120,35 @@ int vasprintf(char** strp, const char* fmt, va_list ap) {
 #if defined(GPUPIXEL_ANDROID)
 std::string Util::getResourcePathJni(std::string name) {
   // Todo(Jeayo) @see https://developer.android.com/ndk/guides/image-decoder?hl=zh-cn
-  JavaVM *jvm = GetJVM();
-  JNIEnv *env = GetEnv(jvm);
+  // the face model loads on a thread of its own, attach it if needed
+  AttachThreadScoped attach(GetJVM());
+  JNIEnv *env = attach.env();
 
   // 定义类路径和方法签名
-  const char *className = "com/pixpark/gpupixel/GPUPixel";
   const char *methodName = "getResource_path";
   const char *methodSignature = "()Ljava/lang/String;";
 
   // GPUPixel
-  jclass class_id = env->FindClass(className);
+  jclass class_id = GetGPUPixelClass();
   if (class_id == NULL) {
-    return NULL;
+    return name;
   }
 
   jmethodID mtd = env->GetStaticMethodID(class_id, methodName,
                                          methodSignature);
   if (mtd == NULL) {
-    return NULL;
+    return name;
   }
 
   // 调用createBitmap方法
   jstring path = (jstring)env->CallStaticObjectMethod(class_id,
                                                       mtd);
+  if (path == NULL) {
+    return name;
+  }
 
-  std::string str = env->GetStringUTFChars(path, nullptr);
-  env->DeleteLocalRef(class_id);
+  std::string str = JavaToStdString(env, path);
+  env->DeleteLocalRef(path);
   return str + "/" + name;
 }
 #endif
@@ -177,7 +180,7 @@ std::string Util::str_format(const char* fmt, ...) {
 }
 
 int64_t Util::nowTimeMs() {
-  auto time_now = std::chrono::system_clock::now();
+  auto time_now = std::chrono::steady_clock::now();
   auto duration_in_ms = std::chrono::duration_cast<std::chrono::milliseconds>(
       time_now.time_since_epoch());
   int64_t ts = duration_in_ms.count();
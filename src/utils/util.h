@@ -22,6 +22,8 @@ class GPUPIXEL_API Util {
  public:
   static std::string str_format(const char* fmt, ...);
   static void Log(const std::string& tag, std::string format, ...);
+  // monotonic, the time base of frame times; on Android the same as
+  // System.nanoTime() and Choreographer's vsync times
   static int64_t nowTimeMs();
 
   static std::string getResourcePath(std::string name);